@@ -414,7 +414,11 @@ public class App1 {
                 throw new IllegalArgumentException("unknown ngramMatchScoreType");
         }
 
-        FeatureLoader.loadFeatures(index, dataSet, featureList, idTranslator, matchScoreType, docFilter, fieldLength);
+        if (config.containsKey("train.feature.loadByDocument") && config.getBoolean("train.feature.loadByDocument")){
+            FeatureLoader.loadFeaturesByDocument(index, dataSet, featureList, idTranslator, matchScoreType, docFilter, fieldLength);
+        } else {
+            FeatureLoader.loadFeatures(index, dataSet, featureList, idTranslator, matchScoreType, docFilter, fieldLength);
+        }
 
         dataSet.setIdTranslator(idTranslator);
         dataSet.setLabelTranslator(labelTranslator);
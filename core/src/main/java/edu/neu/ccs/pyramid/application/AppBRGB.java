@@ -110,7 +110,7 @@ public class AppBRGB {
                 "train.feature.featureFieldPrefix","train.feature.ngram.extractionFields",
                 "train.splitQuery","test.splitQuery","valid.splitQuery","calibration.splitQuery",
                 "train.feature.ngram.matchScoreType","createTrainSet","createTestSet","createValidSet","createCalibrationSet",
-                "train.feature.ngram.selection", "train.feature.ngram.selectPerLabel",
+                "train.feature.ngram.selection", "train.feature.ngram.selectPerLabel", "train.feature.loadByDocument",
                 "train.label.order","train.useInstanceWeights","train.weight.field","train.feature.normalize"
 
         };
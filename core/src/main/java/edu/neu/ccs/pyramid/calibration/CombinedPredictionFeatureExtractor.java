@@ -27,6 +27,26 @@ public class CombinedPredictionFeatureExtractor implements PredictionFeatureExtr
         return Vectors.conatenateToSparseRandom(vectors);
     }
 
+    /**
+     * each extractor goes over all candidates once
+     */
+    @Override
+    public List<Vector> extractFeatures(List<PredictionCandidate> predictionCandidates) {
+        List<List<Vector>> parts = new ArrayList<>();
+        for (PredictionFeatureExtractor predictionFeatureExtractor: list){
+            parts.add(predictionFeatureExtractor.extractFeatures(predictionCandidates));
+        }
+        List<Vector> features = new ArrayList<>(predictionCandidates.size());
+        for (int c=0;c<predictionCandidates.size();c++){
+            List<Vector> vectors = new ArrayList<>(parts.size());
+            for (List<Vector> part: parts){
+                vectors.add(part.get(c));
+            }
+            features.add(Vectors.conatenateToSparseRandom(vectors));
+        }
+        return features;
+    }
+
     @Override
     public int[] featureMonotonicity() {
         List<int[]> monos = new ArrayList<>();
@@ -29,6 +29,23 @@ public class ExpectedF1FeatureExtractor implements PredictionFeatureExtractor {
         return vector;
     }
 
+    /**
+     * the sparse joint of each row is converted to bitsets once for all its candidates
+     */
+    @Override
+    public List<Vector> extractFeatures(List<PredictionCandidate> predictionCandidates) {
+        double[] expectations = LabelBits.expectations(predictionCandidates, (intersection, truthSize, predictionSize) ->
+                // same as FMeasure.f1
+                truthSize+predictionSize==0? 1: intersection*2.0/(truthSize+predictionSize));
+        List<Vector> features = new ArrayList<>(expectations.length);
+        for (double expectation: expectations){
+            Vector vector = new DenseVector(1);
+            vector.set(0,expectation);
+            features.add(vector);
+        }
+        return features;
+    }
+
     @Override
     public int[] featureMonotonicity() {
         int[] mono = {1};
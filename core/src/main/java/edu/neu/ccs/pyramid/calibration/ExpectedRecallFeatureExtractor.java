@@ -29,6 +29,23 @@ public class ExpectedRecallFeatureExtractor implements PredictionFeatureExtracto
         return vector;
     }
 
+    /**
+     * the sparse joint of each row is converted to bitsets once for all its candidates
+     */
+    @Override
+    public List<Vector> extractFeatures(List<PredictionCandidate> predictionCandidates) {
+        double[] expectations = LabelBits.expectations(predictionCandidates, (intersection, truthSize, predictionSize) ->
+                // same as Recall.recall
+                truthSize==0? 1.0: intersection*1.0/truthSize);
+        List<Vector> features = new ArrayList<>(expectations.length);
+        for (double expectation: expectations){
+            Vector vector = new DenseVector(1);
+            vector.set(0,expectation);
+            features.add(vector);
+        }
+        return features;
+    }
+
     @Override
     public int[] featureMonotonicity() {
         int[] mono = {1};
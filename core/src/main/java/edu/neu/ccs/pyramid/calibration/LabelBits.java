@@ -0,0 +1,92 @@
+package edu.neu.ccs.pyramid.calibration;
+
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.util.Pair;
+
+import java.util.List;
+
+/**
+ * label sets as bitsets, for set overlap computations over many candidates
+ */
+class LabelBits {
+
+    /**
+     * a set measure from the overlap between a truth and a prediction
+     */
+    interface SetMeasure {
+        double apply(int intersection, int truthSize, int predictionSize);
+    }
+
+    /**
+     * expected value of the measure under the sparse joint of each candidate, sum_y p(y) measure(y, candidate)
+     * consecutive candidates sharing the same sparse joint (the candidates of one row) convert it to bitsets only once
+     * @return one expectation per candidate
+     */
+    static double[] expectations(List<PredictionCandidate> predictionCandidates, SetMeasure measure){
+        double[] expectations = new double[predictionCandidates.size()];
+        int start = 0;
+        while (start<predictionCandidates.size()){
+            List<Pair<MultiLabel,Double>> sparseJoint = predictionCandidates.get(start).sparseJoint;
+            int end = start + 1;
+            while (end<predictionCandidates.size() && predictionCandidates.get(end).sparseJoint==sparseJoint){
+                end += 1;
+            }
+            int numWords = numWords(predictionCandidates.subList(start, end));
+            long[][] truthBits = new long[sparseJoint.size()][];
+            int[] truthSizes = new int[sparseJoint.size()];
+            double[] truthProbs = new double[sparseJoint.size()];
+            for (int s=0;s<sparseJoint.size();s++){
+                truthBits[s] = toBits(sparseJoint.get(s).getFirst(), numWords);
+                truthSizes[s] = sparseJoint.get(s).getFirst().getNumMatchedLabels();
+                truthProbs[s] = sparseJoint.get(s).getSecond();
+            }
+            for (int c=start;c<end;c++){
+                MultiLabel prediction = predictionCandidates.get(c).multiLabel;
+                long[] predictionBits = toBits(prediction, numWords);
+                int predictionSize = prediction.getNumMatchedLabels();
+                double expectation = 0;
+                for (int s=0;s<truthBits.length;s++){
+                    expectation += measure.apply(intersection(truthBits[s], predictionBits), truthSizes[s], predictionSize)*truthProbs[s];
+                }
+                expectations[c] = expectation;
+            }
+            start = end;
+        }
+        return expectations;
+    }
+
+    private static int numWords(List<PredictionCandidate> predictionCandidates){
+        int maxLabel = -1;
+        for (Pair<MultiLabel,Double> pair: predictionCandidates.get(0).sparseJoint){
+            maxLabel = Math.max(maxLabel, maxLabel(pair.getFirst()));
+        }
+        for (PredictionCandidate predictionCandidate: predictionCandidates){
+            maxLabel = Math.max(maxLabel, maxLabel(predictionCandidate.multiLabel));
+        }
+        return (maxLabel + 64) >>> 6;
+    }
+
+    private static int maxLabel(MultiLabel multiLabel){
+        int max = -1;
+        for (int l: multiLabel.getMatchedLabels()){
+            max = Math.max(max, l);
+        }
+        return max;
+    }
+
+    static long[] toBits(MultiLabel multiLabel, int numWords){
+        long[] bits = new long[numWords];
+        for (int l: multiLabel.getMatchedLabels()){
+            bits[l>>>6] |= 1L<<l;
+        }
+        return bits;
+    }
+
+    static int intersection(long[] bits1, long[] bits2){
+        int count = 0;
+        for (int w=0;w<bits1.length;w++){
+            count += Long.bitCount(bits1[w] & bits2[w]);
+        }
+        return count;
+    }
+}
@@ -5,10 +5,23 @@ import edu.neu.ccs.pyramid.feature.Feature;
 import org.apache.mahout.math.Vector;
 
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 
 public interface PredictionFeatureExtractor extends Serializable {
     Vector extractFeatures(PredictionCandidate predictionCandidate);
+
+    /**
+     * features of many candidates at once, e.g. all candidates of a row block
+     * extractors can override this to share work between the candidates of the same row
+     */
+    default List<Vector> extractFeatures(List<PredictionCandidate> predictionCandidates){
+        List<Vector> features = new ArrayList<>(predictionCandidates.size());
+        for (PredictionCandidate predictionCandidate: predictionCandidates){
+            features.add(extractFeatures(predictionCandidate));
+        }
+        return features;
+    }
     int[] featureMonotonicity();
     List<Feature> getNames();
 
@@ -1,5 +1,6 @@
 package edu.neu.ccs.pyramid.calibration;
 
+import edu.neu.ccs.pyramid.dataset.LabelSetDictionary;
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
 import edu.neu.ccs.pyramid.feature.Feature;
@@ -14,6 +15,9 @@ import java.util.Map;
 public class PriorFeatureExtractor implements PredictionFeatureExtractor {
     private static final long serialVersionUID = 1L;
     private Map<MultiLabel,Double> priors;
+    // built on demand from priors, so that candidates are looked up without hashing MultiLabel objects
+    private transient volatile LabelSetDictionary dictionary;
+    private transient double[] priorsById;
 
     public PriorFeatureExtractor(MultiLabelClfDataSet dataSet){
         priors = new HashMap<>();
@@ -39,11 +43,33 @@ public class PriorFeatureExtractor implements PredictionFeatureExtractor {
     @Override
     public Vector extractFeatures(PredictionCandidate prediction) {
         Vector vector = new DenseVector(1);
-        double prior = priors.getOrDefault(prediction.multiLabel,0.0);
-        vector.set(0,prior);
+        vector.set(0,prior(prediction.multiLabel));
         return vector;
     }
 
+    private double prior(MultiLabel multiLabel){
+        LabelSetDictionary dictionary = getDictionary();
+        int id = dictionary.getId(multiLabel);
+        return id<0? 0: priorsById[id];
+    }
+
+    private LabelSetDictionary getDictionary(){
+        if (dictionary==null){
+            synchronized (this){
+                if (dictionary==null){
+                    LabelSetDictionary labelSets = new LabelSetDictionary();
+                    double[] values = new double[priors.size()];
+                    for (Map.Entry<MultiLabel,Double> entry: priors.entrySet()){
+                        values[labelSets.add(entry.getKey())] = entry.getValue();
+                    }
+                    priorsById = values;
+                    dictionary = labelSets;
+                }
+            }
+        }
+        return dictionary;
+    }
+
     @Override
     public int[] featureMonotonicity() {
         int[] mono = {1};
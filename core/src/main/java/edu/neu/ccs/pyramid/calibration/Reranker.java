@@ -2,9 +2,10 @@ package edu.neu.ccs.pyramid.calibration;
 
 import edu.neu.ccs.pyramid.dataset.LabelTranslator;
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
 import edu.neu.ccs.pyramid.feature.FeatureList;
-import edu.neu.ccs.pyramid.multilabel_classification.DynamicProgramming;
 import edu.neu.ccs.pyramid.multilabel_classification.MultiLabelClassifier;
+import edu.neu.ccs.pyramid.multilabel_classification.TopKCandidateGenerator;
 import edu.neu.ccs.pyramid.multilabel_classification.cbm.BMDistribution;
 import edu.neu.ccs.pyramid.multilabel_classification.cbm.CBM;
 import edu.neu.ccs.pyramid.multilabel_classification.plugin_rule.GeneralF1Predictor;
@@ -16,9 +17,12 @@ import org.apache.mahout.math.Vector;
 
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Reranker implements MultiLabelClassifier, VectorCalibrator {
     private static final long serialVersionUID = 2L;
+    // rows per block in batch prediction
+    private static final int BLOCK_SIZE = 256;
     Regressor regressor;
     MultiLabelClassifier.ClassProbEstimator classProbEstimator;
     int numCandidate;
@@ -58,8 +62,7 @@ public class Reranker implements MultiLabelClassifier, VectorCalibrator {
 
     public double prob(Vector vector, MultiLabel multiLabel){
         double[] marginals = labelCalibrator.calibratedClassProbs(classProbEstimator.predictClassProbs(vector));
-        DynamicProgramming dynamicProgramming = new DynamicProgramming(marginals);
-        List<Pair<MultiLabel,Double>> topK = dynamicProgramming.topK(numCandidate);
+        List<Pair<MultiLabel,Double>> topK = TopKCandidateGenerator.forCurrentThread().topK(marginals, numCandidate);
 
         PredictionCandidate predictionCandidate = new PredictionCandidate();
         predictionCandidate.x = vector;
@@ -86,15 +89,48 @@ public class Reranker implements MultiLabelClassifier, VectorCalibrator {
 
 
     public MultiLabel predict(Vector vector, double[] uncalibratedLabelScores) {
+        List<PredictionCandidate> candidates = candidates(vector, uncalibratedLabelScores);
+        List<Vector> features = predictionFeatureExtractor.extractFeatures(candidates);
+        return best(candidates, features, 0, candidates.size());
+    }
+
+    /**
+     * rows are predicted block by block: class probabilities of a block come from one batch call,
+     * and the features of all candidates in the block from one pass through the feature extractor
+     */
+    @Override
+    public MultiLabel[] predict(MultiLabelClfDataSet dataSet) {
+        int numDataPoints = dataSet.getNumDataPoints();
+        MultiLabel[] predictions = new MultiLabel[numDataPoints];
+        int numBlocks = (numDataPoints + BLOCK_SIZE - 1)/BLOCK_SIZE;
+        IntStream.range(0, numBlocks).parallel().forEach(b -> {
+            int start = b*BLOCK_SIZE;
+            int end = Math.min(numDataPoints, start+BLOCK_SIZE);
+            double[][] uncalibratedMarginals = new double[end-start][classProbEstimator.getNumClasses()];
+            classProbEstimator.predictClassProbs(dataSet, start, end, uncalibratedMarginals);
+            List<PredictionCandidate> candidates = new ArrayList<>();
+            // candidates of row i are at [offsets[i-start], offsets[i-start+1])
+            int[] offsets = new int[end-start+1];
+            for (int i=start;i<end;i++){
+                candidates.addAll(candidates(dataSet.getRow(i), uncalibratedMarginals[i-start]));
+                offsets[i-start+1] = candidates.size();
+            }
+            List<Vector> features = predictionFeatureExtractor.extractFeatures(candidates);
+            for (int i=start;i<end;i++){
+                predictions[i] = best(candidates, features, offsets[i-start], offsets[i-start+1]);
+            }
+        });
+        return predictions;
+    }
+
+    private List<PredictionCandidate> candidates(Vector vector, double[] uncalibratedLabelScores){
         double[] marginals = labelCalibrator.calibratedClassProbs(uncalibratedLabelScores);
 
-        DynamicProgramming dynamicProgramming = new DynamicProgramming(marginals);
-        List<Pair<MultiLabel,Double>> sparseJoint = dynamicProgramming.topK(numCandidate);
+        List<Pair<MultiLabel,Double>> sparseJoint = TopKCandidateGenerator.forCurrentThread().topK(marginals, numCandidate);
 
         List<MultiLabel> multiLabels = sparseJoint.stream().map(pair->pair.getFirst())
                 .filter(candidate->candidate.getNumMatchedLabels() >= minPredictionSize && candidate.getNumMatchedLabels() <= maxPredictionSize)
                 .collect(Collectors.toList());
-        List<Pair<MultiLabel,Double>> candidates = new ArrayList<>();
 
         if (multiLabels.isEmpty()){
             int[] sorted = ArgSort.argSortDescending(marginals);
@@ -105,19 +141,32 @@ public class Reranker implements MultiLabelClassifier, VectorCalibrator {
             multiLabels.add(multiLabel);
         }
 
+        List<PredictionCandidate> candidates = new ArrayList<>(multiLabels.size());
         for (MultiLabel candidate: multiLabels){
             PredictionCandidate predictionCandidate = new PredictionCandidate();
             predictionCandidate.x = vector;
             predictionCandidate.labelProbs = marginals;
             predictionCandidate.multiLabel = candidate;
             predictionCandidate.sparseJoint = sparseJoint;
-            Vector feature = predictionFeatureExtractor.extractFeatures(predictionCandidate);
-            double score = regressor.predict(feature);
-            candidates.add(new Pair<>(candidate,score));
+            candidates.add(predictionCandidate);
         }
+        return candidates;
+    }
 
-        Comparator<Pair<MultiLabel,Double>> comparator = Comparator.comparing(pair->pair.getSecond());
-        return candidates.stream().max(comparator).map(Pair::getFirst).get();
+    /**
+     * the highest scoring candidate in [start, end); the first one for ties
+     */
+    private MultiLabel best(List<PredictionCandidate> candidates, List<Vector> features, int start, int end){
+        MultiLabel best = null;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int c=start;c<end;c++){
+            double score = regressor.predict(features.get(c));
+            if (best==null || score>bestScore){
+                best = candidates.get(c).multiLabel;
+                bestScore = score;
+            }
+        }
+        return best;
     }
 
 
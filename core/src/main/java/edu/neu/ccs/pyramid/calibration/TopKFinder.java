@@ -1,8 +1,8 @@
 package edu.neu.ccs.pyramid.calibration;
 
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
-import edu.neu.ccs.pyramid.multilabel_classification.DynamicProgramming;
 import edu.neu.ccs.pyramid.multilabel_classification.MultiLabelClassifier;
+import edu.neu.ccs.pyramid.multilabel_classification.TopKCandidateGenerator;
 import edu.neu.ccs.pyramid.multilabel_classification.cbm.BMDistribution;
 import edu.neu.ccs.pyramid.multilabel_classification.cbm.CBM;
 import edu.neu.ccs.pyramid.util.ArgMax;
@@ -33,9 +33,8 @@ public class TopKFinder {
         double[] uncalibratedMarginals = classProbEstimator.predictClassProbs(x);
         double[] marginals = labelCalibrator.calibratedClassProbs(uncalibratedMarginals);
 
-        DynamicProgramming dynamicProgramming = new DynamicProgramming(marginals);
         //todo better
-        List<Pair<MultiLabel,Double>> sparseJoint = dynamicProgramming.topK(50);
+        List<Pair<MultiLabel,Double>> sparseJoint = TopKCandidateGenerator.forCurrentThread().topK(marginals, 50);
 
         List<MultiLabel> multiLabels = sparseJoint.stream().map(pair->pair.getFirst())
                 .filter(candidate->candidate.getNumMatchedLabels() >= minSetSize && candidate.getNumMatchedLabels() <= maxSetSize)
@@ -51,15 +50,11 @@ public class TopKFinder {
             multiLabels.add(multiLabel);
         }
 
-        for (MultiLabel candidate: multiLabels){
-            PredictionCandidate predictionCandidate = new PredictionCandidate();
-            predictionCandidate.x = x;
-            predictionCandidate.labelProbs = marginals;
-            predictionCandidate.multiLabel = candidate;
-            predictionCandidate.sparseJoint = sparseJoint;
-            Vector feature = predictionFeatureExtractor.extractFeatures(predictionCandidate);
-            double score = vectorCalibrator.calibrate(feature);
-            candidates.add(new Pair<>(candidate,score));
+        List<PredictionCandidate> predictionCandidates = predictionCandidates(x, marginals, multiLabels, sparseJoint);
+        List<Vector> features = predictionFeatureExtractor.extractFeatures(predictionCandidates);
+        for (int c=0;c<multiLabels.size();c++){
+            double score = vectorCalibrator.calibrate(features.get(c));
+            candidates.add(new Pair<>(multiLabels.get(c),score));
         }
 
         Comparator<Pair<MultiLabel,Double>> comparator = Comparator.comparing(pair->pair.getSecond());
@@ -73,27 +68,33 @@ public class TopKFinder {
         double[] marginals = labelCalibrator.calibratedClassProbs(classProbEstimator.predictClassProbs(x));
 
 
-        DynamicProgramming dynamicProgramming = new DynamicProgramming(marginals);
         //todo better
-        List<Pair<MultiLabel,Double>> sparseJoint = dynamicProgramming.topK(50);
+        List<Pair<MultiLabel,Double>> sparseJoint = TopKCandidateGenerator.forCurrentThread().topK(marginals, 50);
 
         List<Pair<MultiLabel,Double>> list = new ArrayList<>();
 
-        for (MultiLabel candidate: support){
+        List<PredictionCandidate> predictionCandidates = predictionCandidates(x, marginals, support, sparseJoint);
+        List<Vector> features = predictionFeatureExtractor.extractFeatures(predictionCandidates);
+        for (int c=0;c<support.size();c++){
+            double pro = vectorCalibrator.calibrate(features.get(c));
+            list.add(new Pair<>(support.get(c),pro));
+        }
+
+        Comparator<Pair<MultiLabel,Double>> comparator = Comparator.comparing(pair->pair.getSecond());
+        return list.stream().sorted(comparator.reversed()).limit(top).collect(Collectors.toList());
+    }
+
+    private static List<PredictionCandidate> predictionCandidates(Vector x, double[] marginals, List<MultiLabel> multiLabels,
+                                                                  List<Pair<MultiLabel,Double>> sparseJoint){
+        List<PredictionCandidate> predictionCandidates = new ArrayList<>(multiLabels.size());
+        for (MultiLabel candidate: multiLabels){
             PredictionCandidate predictionCandidate = new PredictionCandidate();
             predictionCandidate.x = x;
             predictionCandidate.labelProbs = marginals;
             predictionCandidate.multiLabel = candidate;
             predictionCandidate.sparseJoint = sparseJoint;
-
-            Vector feature = predictionFeatureExtractor.extractFeatures(predictionCandidate);
-            double pro = vectorCalibrator.calibrate(feature);
-            list.add(new Pair<>(candidate,pro));
+            predictionCandidates.add(predictionCandidate);
         }
-
-        Comparator<Pair<MultiLabel,Double>> comparator = Comparator.comparing(pair->pair.getSecond());
-        return list.stream().sorted(comparator.reversed()).limit(top).collect(Collectors.toList());
+        return predictionCandidates;
     }
-
-
 }
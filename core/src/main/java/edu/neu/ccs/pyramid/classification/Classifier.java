@@ -9,6 +9,8 @@ import org.apache.mahout.math.Vector;
 
 
 import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -96,9 +98,30 @@ public interface Classifier extends Serializable{
 
 
         default List<double[]> predictClassProbs(DataSet dataSet){
-            return IntStream.range(0,dataSet.getNumDataPoints())
-                    .parallel().mapToObj(i -> predictClassProbs(dataSet.getRow(i)))
-                    .collect(Collectors.toList());
+            double[][] probs = new double[dataSet.getNumDataPoints()][getNumClasses()];
+            predictClassProbs(dataSet, probs);
+            return new ArrayList<>(Arrays.asList(probs));
+        }
+
+        /**
+         * batch version for all rows
+         * @param probs size = num data points * num classes, filled in place
+         */
+        default void predictClassProbs(DataSet dataSet, double[][] probs){
+            predictClassProbs(dataSet, 0, dataSet.getNumDataPoints(), probs);
+        }
+
+        /**
+         * batch version for the row block [start, end)
+         * can be implemented more efficiently in individual classifiers
+         * @param probs probabilities of row i go to probs[i-start], which has at least num classes elements;
+         *              the buffer can be reused across blocks
+         */
+        default void predictClassProbs(DataSet dataSet, int start, int end, double[][] probs){
+            IntStream.range(start, end).parallel().forEach(i -> {
+                double[] rowProbs = predictClassProbs(dataSet.getRow(i));
+                System.arraycopy(rowProbs, 0, probs[i-start], 0, rowProbs.length);
+            });
         }
 
         /**
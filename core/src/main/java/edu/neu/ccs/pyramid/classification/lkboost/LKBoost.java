@@ -1,15 +1,18 @@
 package edu.neu.ccs.pyramid.classification.lkboost;
 
 import edu.neu.ccs.pyramid.classification.Classifier;
+import edu.neu.ccs.pyramid.dataset.DataSet;
 import edu.neu.ccs.pyramid.dataset.LabelTranslator;
 import edu.neu.ccs.pyramid.feature.FeatureList;
 import edu.neu.ccs.pyramid.optimization.gradient_boosting.Ensemble;
 import edu.neu.ccs.pyramid.optimization.gradient_boosting.GradientBoosting;
+import edu.neu.ccs.pyramid.regression.regression_tree.CompiledTreeEnsemble;
 import edu.neu.ccs.pyramid.util.ArgMax;
 import edu.neu.ccs.pyramid.util.MathUtil;
 import org.apache.mahout.math.Vector;
 
 import java.io.*;
+import java.util.stream.IntStream;
 
 
 /**
@@ -46,23 +49,50 @@ public class LKBoost extends GradientBoosting implements Classifier.ProbabilityE
      * @return
      */
     public double predictClassScore(Vector vector, int k){
-        return score(vector, k);
+        return compile().score(vector, k);
     }
 
+    /**
+     * through the cached compiled trees
+     */
     public double[] predictClassScores(Vector vector){
-        return scores(vector);
+        return compile().scores(vector);
     }
 
     public double[] predictClassProbs(Vector vector){
         double[] scoreVector = this.predictClassScores(vector);
         double[] probVector = new double[this.numClasses];
+        toProbs(scoreVector, probVector);
+        return probVector;
+    }
+
+    /**
+     * batch predictions go through the cached compiled trees
+     */
+    @Override
+    public int[] predict(DataSet dataSet){
+        CompiledTreeEnsemble compiled = compile();
+        return IntStream.range(0, dataSet.getNumDataPoints()).parallel()
+                .map(i -> ArgMax.argMax(compiled.scores(dataSet.getRow(i)))).toArray();
+    }
+
+    /**
+     * batch predictions go through the cached compiled trees
+     */
+    @Override
+    public void predictClassProbs(DataSet dataSet, int start, int end, double[][] probs){
+        CompiledTreeEnsemble compiled = compile();
+        IntStream.range(start, end).parallel()
+                .forEach(i -> toProbs(compiled.scores(dataSet.getRow(i)), probs[i-start]));
+    }
+
+    private void toProbs(double[] scoreVector, double[] probVector){
         double logDenominator = MathUtil.logSumExp(scoreVector);
         for (int k=0;k<this.numClasses;k++){
             double logNumerator = scoreVector[k];
             double pro = Math.exp(logNumerator-logDenominator);
             probVector[k]=pro;
         }
-        return probVector;
     }
 
     @Override
@@ -5,6 +5,7 @@ import edu.neu.ccs.pyramid.dataset.DataSet;
 import edu.neu.ccs.pyramid.dataset.ProbabilityMatrix;
 import edu.neu.ccs.pyramid.optimization.*;
 import edu.neu.ccs.pyramid.regression.linear_regression.*;
+import edu.neu.ccs.pyramid.util.MathUtil;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.mahout.math.DenseVector;
@@ -62,6 +63,11 @@ public class ElasticNetLogisticTrainer {
 
     private int maxNumLinearRegUpdates = 10;
 
+    // rows scored per batch call
+    private static final int BLOCK_SIZE = 4096;
+    // num rows in block * num classes, reused by batch scoring
+    private double[][] blockBuffer;
+
     public static Builder newBuilder(LogisticRegression logisticRegression, DataSet dataSet, int numClasses,
                                      double[][] targets, double[] weights) {
         return new Builder(logisticRegression, dataSet, numClasses, targets, weights);
@@ -195,30 +201,37 @@ public class ElasticNetLogisticTrainer {
         int numDataPoints = dataSet.getNumDataPoints();
         double[] realLabels = new double[numDataPoints];
         double[] instanceWeights = new double[numDataPoints];
-        IntStream.range(0,numDataPoints).parallel().forEach(i ->
-        {
-            double prob = logisticRegression.predictClassProbs(dataSet.getRow(i))[classIndex];
-            // TODO: following is calculated twice.
-            double classScore = logisticRegression.predictClassScore(dataSet.getRow(i),classIndex);
-            double y = targets[i][classIndex];
-            double frac = 0;
-            double tmpP = prob*(1-prob);
-            // if prob = 0 or prob = 1, weight = 0; doesn't matter how we decide frac; leave it 0
-            if (tmpP!=0){
-                frac = (y-prob)/tmpP;
-            }
-            // frac is numerically unstable; if it is too big, the weighted least square solver will crash
-            if (frac>1){
-                frac=1;
-            }
+        double[][] classScores = blockBuffer();
+        for (int start=0;start<numDataPoints;start+=BLOCK_SIZE){
+            int blockStart = start;
+            int blockEnd = Math.min(numDataPoints, start+BLOCK_SIZE);
+            // one pass over each row for both the score and the probability
+            logisticRegression.predictClassScores(dataSet, blockStart, blockEnd, classScores);
+            IntStream.range(blockStart,blockEnd).parallel().forEach(i ->
+            {
+                double[] rowScores = classScores[i-blockStart];
+                double prob = Math.exp(rowScores[classIndex] - MathUtil.logSumExp(rowScores));
+                double classScore = rowScores[classIndex];
+                double y = targets[i][classIndex];
+                double frac = 0;
+                double tmpP = prob*(1-prob);
+                // if prob = 0 or prob = 1, weight = 0; doesn't matter how we decide frac; leave it 0
+                if (tmpP!=0){
+                    frac = (y-prob)/tmpP;
+                }
+                // frac is numerically unstable; if it is too big, the weighted least square solver will crash
+                if (frac>1){
+                    frac=1;
+                }
 
-            if (frac<-1){
-                frac=-1;
-            }
+                if (frac<-1){
+                    frac=-1;
+                }
 
-            realLabels[i] = classScore + frac;
-            instanceWeights[i] = (weights[i]*tmpP);
-        });
+                realLabels[i] = classScore + frac;
+                instanceWeights[i] = (weights[i]*tmpP);
+            });
+        }
 
         Weights oldWeights = null;
         if (lineSearch) {
@@ -268,24 +281,34 @@ public class ElasticNetLogisticTrainer {
     }
 
 
-    private void updateClassProbs(int dataPointIndex){
-        double[] probs = logisticRegression.predictClassProbs(dataSet.getRow(dataPointIndex));
-        for (int k=0;k<numClasses;k++){
-            this.probabilityMatrix[k][dataPointIndex]=probs[k];
-        }
-    }
-
     private void updateClassProbMatrix(){
         if (logger.isDebugEnabled()){
             logger.debug("start updateClassProbMatrix()");
         }
-        IntStream.range(0,dataSet.getNumDataPoints()).parallel()
-                .forEach(this::updateClassProbs);
+        int numDataPoints = dataSet.getNumDataPoints();
+        double[][] probs = blockBuffer();
+        for (int start=0;start<numDataPoints;start+=BLOCK_SIZE){
+            int blockStart = start;
+            int blockEnd = Math.min(numDataPoints, start+BLOCK_SIZE);
+            logisticRegression.predictClassProbs(dataSet, blockStart, blockEnd, probs);
+            IntStream.range(0,numClasses).parallel().forEach(k -> {
+                for (int i=blockStart;i<blockEnd;i++){
+                    this.probabilityMatrix[k][i] = probs[i-blockStart][k];
+                }
+            });
+        }
         if (logger.isDebugEnabled()){
             logger.debug("finish updateClassProbMatrix()");
         }
     }
 
+    private double[][] blockBuffer(){
+        if (blockBuffer==null){
+            blockBuffer = new double[Math.min(BLOCK_SIZE, dataSet.getNumDataPoints())][numClasses];
+        }
+        return blockBuffer;
+    }
+
     private double loss(){
         // todo: this should be re-implemented here
         // should not use the method provided by LR
@@ -4,6 +4,7 @@ import edu.neu.ccs.pyramid.dataset.ClfDataSet;
 import edu.neu.ccs.pyramid.dataset.DataSet;
 import edu.neu.ccs.pyramid.eval.KLDivergence;
 import edu.neu.ccs.pyramid.optimization.Optimizable;
+import edu.neu.ccs.pyramid.util.MathUtil;
 import edu.neu.ccs.pyramid.util.Vectors;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.logging.log4j.LogManager;
@@ -24,16 +25,14 @@ public class LogisticLoss implements Optimizable.ByGradientValue {
     // instance weights
     private double[] weights;
     private double[][] targetDistributions;
-    private Vector empiricalCounts;
-    private Vector predictedCounts;
     private Vector gradient;
     private int numParameters;
     private int numClasses;
 
-    // size = num classes * num data
-    private double[][] logProbabilityMatrix;
-    // also store probabilities to avoid doing exponentiation
-    private double[][] probabilityMatrix;
+    // size = num data * num classes; weight * (predicted probability - target probability)
+    private double[][] residualMatrix;
+    // weighted kl divergence of each data point
+    private double[] klValues;
     private double value;
     private boolean isGradientCacheValid;
     private boolean isValueCacheValid;
@@ -57,12 +56,9 @@ public class LogisticLoss implements Optimizable.ByGradientValue {
         this.dataSet = dataSet;
         this.weights = weights;
         this.priorGaussianVariance = priorGaussianVariance;
-        this.empiricalCounts = new DenseVector(numParameters);
-        this.predictedCounts = new DenseVector(numParameters);
         this.numClasses = targetDistributions[0].length;
-        this.logProbabilityMatrix = new double[numClasses][dataSet.getNumDataPoints()];
-        this.probabilityMatrix = new double[numClasses][dataSet.getNumDataPoints()];
-        this.updateEmpricalCounts();
+        this.residualMatrix = new double[dataSet.getNumDataPoints()][numClasses];
+        this.klValues = new double[dataSet.getNumDataPoints()];
         this.isValueCacheValid=false;
         this.isGradientCacheValid=false;
         this.isProbabilityCacheValid=false;
@@ -80,12 +76,9 @@ public class LogisticLoss implements Optimizable.ByGradientValue {
         this.weights = weights;
         this.regularization = regularization;
         this.l1Ratio = l1Ratio;
-        this.empiricalCounts = new DenseVector(numParameters);
-        this.predictedCounts = new DenseVector(numParameters);
         this.numClasses = targetDistributions[0].length;
-        this.logProbabilityMatrix = new double[numClasses][dataSet.getNumDataPoints()];
-        this.probabilityMatrix = new double[numClasses][dataSet.getNumDataPoints()];
-        this.updateEmpricalCounts();
+        this.residualMatrix = new double[dataSet.getNumDataPoints()][numClasses];
+        this.klValues = new double[dataSet.getNumDataPoints()];
         this.isValueCacheValid=false;
         this.isGradientCacheValid=false;
         this.isProbabilityCacheValid=false;
@@ -160,24 +153,11 @@ public class LogisticLoss implements Optimizable.ByGradientValue {
         if (!isProbabilityCacheValid){
             updateClassProbMatrix();
         }
-        IntStream intStream;
-        if (isParallel){
-            intStream = IntStream.range(0, dataSet.getNumDataPoints()).parallel();
-        } else {
-            intStream = IntStream.range(0, dataSet.getNumDataPoints());
+        double sum = 0;
+        for (double kl: klValues){
+            sum += kl;
         }
-        return intStream.mapToDouble(this::kl).sum();
-    }
-
-    private double kl(int dataPointIndex){
-        if (weights[dataPointIndex]==0){
-            return 0;
-        }
-        double[] predicted = new double[numClasses];
-        for (int k=0;k<numClasses;k++){
-            predicted[k] = logProbabilityMatrix[k][dataPointIndex];
-        }
-        return weights[dataPointIndex]* KLDivergence.klGivenPLogQ(targetDistributions[dataPointIndex], predicted);
+        return sum;
     }
 
 
@@ -235,8 +215,10 @@ public class LogisticLoss implements Optimizable.ByGradientValue {
             }
             return this.gradient;
         }
-        updateClassProbMatrix();
-        updatePredictedCounts();
+        // shared with getValue when the parameters have not changed
+        if (!isProbabilityCacheValid){
+            updateClassProbMatrix();
+        }
         updateGradient();
         this.isGradientCacheValid = true;
         if (logger.isDebugEnabled()){
@@ -246,130 +228,112 @@ public class LogisticLoss implements Optimizable.ByGradientValue {
     }
 
 
+    /**
+     * gradient = predicted counts - empirical counts + penalty
+     * = sum_i weight_i * (p_ik - t_ik) * x_ij + w_kj/variance
+     * each feature column is scanned once for all classes, against the row major residuals
+     */
     private void updateGradient(){
-        this.gradient = this.predictedCounts.minus(empiricalCounts).plus(penaltyGradient());
-    }
-
-    private Vector penaltyGradient(){
-        Vector weightsVector = this.logisticRegression.getWeights().getAllWeights();
-        Vector penalty = new DenseVector(weightsVector.size());
-
-        penalty = penalty.plus(weightsVector.divide(priorGaussianVariance));
-
-        for (int j:logisticRegression.getWeights().getAllBiasPositions()){
-            penalty.set(j,0);
-        }
-        return penalty;
-    }
-
-    //todo removed isParallel
-    private void updateEmpricalCounts(){
-        IntStream intStream;
-        if (isParallel){
-            intStream = IntStream.range(0, numParameters).parallel();
-        } else {
-            intStream = IntStream.range(0, numParameters);
-        }
-        intStream.forEach(i -> this.empiricalCounts.set(i, calEmpricalCount(i)));
-    }
-
-    private void updatePredictedCounts(){
         StopWatch stopWatch = new StopWatch();
         if (logger.isDebugEnabled()){
             stopWatch.start();
         }
+        int numFeatures = dataSet.getNumFeatures();
+        int numDataPoints = dataSet.getNumDataPoints();
+        double[] parameters = parameterArray();
+        double[] gradientArray = new double[numParameters];
         IntStream intStream;
         if (isParallel){
-            intStream = IntStream.range(0,numParameters).parallel();
+            intStream = IntStream.range(0, numFeatures).parallel();
         } else {
-            intStream = IntStream.range(0,numParameters);
+            intStream = IntStream.range(0, numFeatures);
         }
-
-        intStream.forEach(i -> this.predictedCounts.set(i, calPredictedCount(i)));
-        if (logger.isDebugEnabled()){
-            logger.debug("time spent on updatePredictedCounts = "+stopWatch);
-        }
-    }
-
-    // todo for dense matrix, store a sparse instance weights vector to skip zeros
-    private double calEmpricalCount(int parameterIndex){
-        int classIndex = logisticRegression.getWeights().getClassIndex(parameterIndex);
-        int featureIndex = logisticRegression.getWeights().getFeatureIndex(parameterIndex);
-        double count = 0;
-        //bias
-        if (featureIndex == -1){
-            for (int i=0;i<dataSet.getNumDataPoints();i++){
-                count += targetDistributions[i][classIndex]* weights[i];
-            }
-        } else {
-            Vector featureColumn = dataSet.getColumn(featureIndex);
-            for (Vector.Element element: featureColumn.nonZeroes()){
-                int dataPointIndex = element.index();
-                if (weights[dataPointIndex]!=0){
-                    double featureValue = element.get();
-                    count += featureValue*targetDistributions[dataPointIndex][classIndex]* weights[dataPointIndex];
+        intStream.forEach(j -> {
+            double[] counts = new double[numClasses];
+            Vectors.forEachNonZero(dataSet.getColumn(j), (dataPointIndex, featureValue) -> {
+                double[] residuals = residualMatrix[dataPointIndex];
+                for (int k=0;k<numClasses;k++){
+                    counts[k] += featureValue*residuals[k];
                 }
-
+            });
+            for (int k=0;k<numClasses;k++){
+                int parameterIndex = k*(numFeatures+1)+j+1;
+                gradientArray[parameterIndex] = counts[k] + parameters[parameterIndex]/priorGaussianVariance;
             }
-        }
-        return count;
-    }
-
-    //todo optimize for dense dataset
-    // todo find a way to only iterate over non-zero weight instances
-    private double calPredictedCount(int parameterIndex){
-        int classIndex = logisticRegression.getWeights().getClassIndex(parameterIndex);
-        int featureIndex = logisticRegression.getWeights().getFeatureIndex(parameterIndex);
-        double count = 0;
-        double[] probs = this.probabilityMatrix[classIndex];
-        //bias
-        if (featureIndex == -1){
-            for (int i=0;i<dataSet.getNumDataPoints();i++){
-                if (weights[i]!=0){
-                    count += probs[i]* weights[i];
-                }
-
-            }
-        } else {
-            Vector featureColumn = dataSet.getColumn(featureIndex);
-            for (Vector.Element element: featureColumn.nonZeroes()){
-                int dataPointIndex = element.index();
-                if (weights[dataPointIndex]!=0){
-                    double featureValue = element.get();
-                    count += probs[dataPointIndex]*featureValue* weights[dataPointIndex];
-                }
+        });
+        //bias, not penalized
+        for (int i=0;i<numDataPoints;i++){
+            double[] residuals = residualMatrix[i];
+            for (int k=0;k<numClasses;k++){
+                gradientArray[k*(numFeatures+1)] += residuals[k];
             }
         }
-        return count;
+        this.gradient = new DenseVector(gradientArray, true);
+        if (logger.isDebugEnabled()){
+            logger.debug("time spent on updateGradient = "+stopWatch);
+        }
     }
 
-    private void updateClassProbs(int dataPointIndex){
+    /**
+     * one pass over the non-zeros of the row gives the scores of all classes;
+     * probabilities, kl and residuals follow from them
+     */
+    private void updateClassProbs(int dataPointIndex, double[] parameters){
+        double[] residuals = residualMatrix[dataPointIndex];
         if (weights[dataPointIndex]==0){
+            Arrays.fill(residuals, 0);
+            klValues[dataPointIndex] = 0;
             return;
         }
-        double[] logProbs = logisticRegression.predictLogClassProbs(dataSet.getRow(dataPointIndex));
+        int numFeatures = dataSet.getNumFeatures();
+        double[] scores = new double[numClasses];
+        for (int k=0;k<numClasses;k++){
+            scores[k] = parameters[k*(numFeatures+1)];
+        }
+        Vectors.forEachNonZero(dataSet.getRow(dataPointIndex), (featureIndex, featureValue) -> {
+            for (int k=0;k<numClasses;k++){
+                scores[k] += parameters[k*(numFeatures+1)+featureIndex+1]*featureValue;
+            }
+        });
+        double logDenominator = MathUtil.logSumExp(scores);
+        double[] logProbs = scores;
+        for (int k=0;k<numClasses;k++){
+            logProbs[k] = scores[k] - logDenominator;
+        }
+        double[] target = targetDistributions[dataPointIndex];
         for (int k=0;k<numClasses;k++){
-            this.logProbabilityMatrix[k][dataPointIndex]=logProbs[k];
-            this.probabilityMatrix[k][dataPointIndex] = Math.exp(logProbs[k]);
+            residuals[k] = weights[dataPointIndex]*(Math.exp(logProbs[k]) - target[k]);
         }
+        klValues[dataPointIndex] = weights[dataPointIndex]* KLDivergence.klGivenPLogQ(target, logProbs);
     }
 
     private void updateClassProbMatrix(){
         StopWatch stopWatch = new StopWatch();
         stopWatch.start();
+        double[] parameters = parameterArray();
         IntStream intStream;
         if (isParallel){
             intStream = IntStream.range(0,dataSet.getNumDataPoints()).parallel();
         } else {
             intStream = IntStream.range(0,dataSet.getNumDataPoints());
         }
-        intStream.forEach(this::updateClassProbs);
+        intStream.forEach(i -> updateClassProbs(i, parameters));
         this.isProbabilityCacheValid = true;
         if (logger.isDebugEnabled()){
             logger.debug("time spent on updateClassProbMatrix = "+stopWatch);
         }
     }
 
+    // plain array, so the inner loops avoid vector views
+    private double[] parameterArray(){
+        Vector weightVector = logisticRegression.getWeights().getAllWeights();
+        double[] parameters = new double[numParameters];
+        for (int p=0;p<numParameters;p++){
+            parameters[p] = weightVector.getQuick(p);
+        }
+        return parameters;
+    }
+
 
 
     private static double[] defaultWeights(int numDataPoints){
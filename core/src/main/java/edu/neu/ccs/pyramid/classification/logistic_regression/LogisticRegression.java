@@ -131,6 +131,50 @@ public class LogisticRegression implements Classifier.ProbabilityEstimator, Clas
         return logProbVector;
     }
 
+    /**
+     * batch version of predictClassScores(Vector)
+     * each row is visited once for all classes, and nothing is allocated
+     * @param scores scores of row i go to scores[i-start]
+     */
+    public void predictClassScores(DataSet dataSet, int start, int end, double[][] scores){
+        Vector weightVector = weights.getAllWeights();
+        int stride = numFeatures + 1;
+        IntStream.range(start, end).parallel().forEach(i -> {
+            double[] rowScores = scores[i-start];
+            for (int k=0;k<numClasses;k++){
+                rowScores[k] = weightVector.getQuick(k*stride);
+            }
+            Vectors.forEachNonZero(dataSet.getRow(i), (j, value) -> {
+                for (int k=0;k<numClasses;k++){
+                    rowScores[k] += value*weightVector.getQuick(k*stride + j + 1);
+                }
+            });
+        });
+    }
+
+    /**
+     * scores are turned into probabilities in place
+     */
+    @Override
+    public void predictClassProbs(DataSet dataSet, int start, int end, double[][] probs){
+        predictClassScores(dataSet, start, end, probs);
+        IntStream.range(0, end-start).parallel().forEach(r -> {
+            double[] rowProbs = probs[r];
+            double max = Double.NEGATIVE_INFINITY;
+            for (int k=0;k<numClasses;k++){
+                max = Math.max(max, rowProbs[k]);
+            }
+            double sum = 0;
+            for (int k=0;k<numClasses;k++){
+                rowProbs[k] = Math.exp(rowProbs[k] - max);
+                sum += rowProbs[k];
+            }
+            for (int k=0;k<numClasses;k++){
+                rowProbs[k] /= sum;
+            }
+        });
+    }
+
     /**
      * logLikelihood for each datapoint.
      * @param vector
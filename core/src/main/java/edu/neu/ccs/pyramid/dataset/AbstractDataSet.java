@@ -40,6 +40,18 @@ abstract class AbstractDataSet implements DataSet{
         }
     }
 
+    /**
+     * for loaders that already have the id translator and feature list; skips building the defaults
+     */
+    AbstractDataSet(int numDataPoints, int numFeatures, boolean missingValue,
+                    IdTranslator idTranslator, FeatureList featureList) {
+        this.numDataPoints = numDataPoints;
+        this.numFeatures = numFeatures;
+        this.missingValue = missingValue;
+        this.idTranslator = idTranslator;
+        this.featureList = featureList;
+    }
+
 
 
     @Override
@@ -0,0 +1,550 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import edu.neu.ccs.pyramid.feature.FeatureList;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * single file binary format for data sets, loaded by memory mapping
+ * the feature matrix is mapped as is, in compressed row and compressed column form,
+ * and served by a CompressedSparseDataSet without copying; the OS pages it in on demand
+ * labels and translators are small and are read into the heap
+ *
+ * layout, little endian:
+ * header: magic, version, type, numDataPoints, numFeatures, numClasses, missingValue, numNonZeros (ints),
+ * then (offset, length) in bytes of each section (longs)
+ * sections, each starting at a multiple of 8:
+ * row pointers, row feature indices, row values, column pointers, column data indices, column values,
+ * labels (int per data point for classification, double for regression, label pointers for multi-label),
+ * multi-label class indices, id translator, label translator (string tables), feature list (java serialized)
+ *
+ * feature values are stored in single precision, as in CompressedSparseDataSet
+ * a section is limited to 2GB, i.e. about 500 million non-zeros
+ */
+public class BinaryFormat {
+    private static final int MAGIC = 0x50595244;
+    private static final int VERSION = 1;
+
+    private static final int TYPE_DATA = 0;
+    private static final int TYPE_CLF = 1;
+    private static final int TYPE_REG = 2;
+    private static final int TYPE_ML_CLF = 3;
+
+    private static final int ROW_POINTERS = 0;
+    private static final int ROW_FEATURE_INDICES = 1;
+    private static final int ROW_VALUES = 2;
+    private static final int COLUMN_POINTERS = 3;
+    private static final int COLUMN_DATA_INDICES = 4;
+    private static final int COLUMN_VALUES = 5;
+    private static final int LABELS = 6;
+    private static final int MULTI_LABELS = 7;
+    private static final int ID_TRANSLATOR = 8;
+    private static final int LABEL_TRANSLATOR = 9;
+    private static final int FEATURE_LIST = 10;
+    private static final int NUM_SECTIONS = 11;
+
+    private static final int HEADER_SIZE = 8*4 + NUM_SECTIONS*2*8;
+    private static final int WRITE_BUFFER_SIZE = 1<<20;
+
+    public static void save(DataSet dataSet, String binaryFile) throws IOException{
+        save(dataSet, new File(binaryFile));
+    }
+
+    /**
+     * any data set can be saved; labels are kept for classification, regression and multi-label classification data sets
+     */
+    public static void save(DataSet dataSet, File binaryFile) throws IOException{
+        CompressedSparseDataSet compressed;
+        if (dataSet instanceof CompressedSparseDataSet){
+            compressed = (CompressedSparseDataSet) dataSet;
+        } else {
+            compressed = CompressedSparseDataSet.copyOf(dataSet);
+        }
+        CompressedSparseDataSet.Storage storage = compressed.getStorage();
+        int numDataPoints = dataSet.getNumDataPoints();
+
+        int type = TYPE_DATA;
+        int numClasses = 0;
+        LabelTranslator labelTranslator = null;
+        if (dataSet instanceof ClfDataSet){
+            type = TYPE_CLF;
+            numClasses = ((ClfDataSet) dataSet).getNumClasses();
+            labelTranslator = ((ClfDataSet) dataSet).getLabelTranslator();
+        } else if (dataSet instanceof RegDataSet){
+            type = TYPE_REG;
+        } else if (dataSet instanceof MultiLabelClfDataSet){
+            type = TYPE_ML_CLF;
+            numClasses = ((MultiLabelClfDataSet) dataSet).getNumClasses();
+            labelTranslator = ((MultiLabelClfDataSet) dataSet).getLabelTranslator();
+        }
+
+        if (binaryFile.getParentFile()!=null){
+            binaryFile.getParentFile().mkdirs();
+        }
+        long[] offsets = new long[NUM_SECTIONS];
+        long[] lengths = new long[NUM_SECTIONS];
+        try (FileChannel channel = FileChannel.open(binaryFile.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)){
+            Writer writer = new Writer(channel);
+            // header is written last, once the sections are placed
+            writer.skip(HEADER_SIZE);
+
+            writer.begin(offsets, ROW_POINTERS);
+            writer.putInts(storage.rowPointers);
+            writer.end(offsets, lengths, ROW_POINTERS);
+
+            writer.begin(offsets, ROW_FEATURE_INDICES);
+            writer.putInts(storage.rowFeatureIndices);
+            writer.end(offsets, lengths, ROW_FEATURE_INDICES);
+
+            writer.begin(offsets, ROW_VALUES);
+            writer.putFloats(storage.rowValues);
+            writer.end(offsets, lengths, ROW_VALUES);
+
+            writer.begin(offsets, COLUMN_POINTERS);
+            writer.putInts(storage.columnPointers);
+            writer.end(offsets, lengths, COLUMN_POINTERS);
+
+            writer.begin(offsets, COLUMN_DATA_INDICES);
+            writer.putInts(storage.columnDataIndices);
+            writer.end(offsets, lengths, COLUMN_DATA_INDICES);
+
+            writer.begin(offsets, COLUMN_VALUES);
+            writer.putFloats(storage.columnValues);
+            writer.end(offsets, lengths, COLUMN_VALUES);
+
+            writer.begin(offsets, LABELS);
+            if (type==TYPE_CLF){
+                for (int label: ((ClfDataSet) dataSet).getLabels()){
+                    writer.putInt(label);
+                }
+            } else if (type==TYPE_REG){
+                for (double label: ((RegDataSet) dataSet).getLabels()){
+                    writer.putDouble(label);
+                }
+            } else if (type==TYPE_ML_CLF){
+                MultiLabel[] multiLabels = ((MultiLabelClfDataSet) dataSet).getMultiLabels();
+                int pointer = 0;
+                writer.putInt(pointer);
+                for (int i=0;i<numDataPoints;i++){
+                    pointer += multiLabels[i].getNumMatchedLabels();
+                    writer.putInt(pointer);
+                }
+            }
+            writer.end(offsets, lengths, LABELS);
+
+            writer.begin(offsets, MULTI_LABELS);
+            if (type==TYPE_ML_CLF){
+                for (MultiLabel multiLabel: ((MultiLabelClfDataSet) dataSet).getMultiLabels()){
+                    for (int label: multiLabel.getMatchedLabelsOrdered()){
+                        writer.putInt(label);
+                    }
+                }
+            }
+            writer.end(offsets, lengths, MULTI_LABELS);
+
+            writer.begin(offsets, ID_TRANSLATOR);
+            IdTranslator idTranslator = dataSet.getIdTranslator();
+            String[] extIds = new String[numDataPoints];
+            for (int i=0;i<numDataPoints;i++){
+                extIds[i] = idTranslator.toExtId(i);
+            }
+            writer.putStrings(extIds);
+            writer.end(offsets, lengths, ID_TRANSLATOR);
+
+            writer.begin(offsets, LABEL_TRANSLATOR);
+            if (labelTranslator!=null){
+                String[] extLabels = new String[numClasses];
+                for (int k=0;k<numClasses;k++){
+                    extLabels[k] = labelTranslator.toExtLabel(k);
+                }
+                writer.putStrings(extLabels);
+            }
+            writer.end(offsets, lengths, LABEL_TRANSLATOR);
+
+            writer.begin(offsets, FEATURE_LIST);
+            ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(byteArrayOutputStream)){
+                objectOutputStream.writeObject(dataSet.getFeatureList());
+            }
+            writer.putBytes(byteArrayOutputStream.toByteArray());
+            writer.end(offsets, lengths, FEATURE_LIST);
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putInt(type);
+            header.putInt(numDataPoints);
+            header.putInt(dataSet.getNumFeatures());
+            header.putInt(numClasses);
+            header.putInt(dataSet.hasMissingValue()? 1: 0);
+            header.putInt((int) compressed.getNumNonZeros());
+            for (int s=0;s<NUM_SECTIONS;s++){
+                header.putLong(offsets[s]);
+                header.putLong(lengths[s]);
+            }
+            header.flip();
+            channel.position(0);
+            while (header.hasRemaining()){
+                channel.write(header);
+            }
+        }
+    }
+
+    /**
+     * @return a CompressedSparseClfDataSet, CompressedSparseRegDataSet, CompressedSparseMLClfDataSet
+     * or CompressedSparseDataSet, depending on what was saved
+     */
+    public static DataSet load(String binaryFile) throws IOException, ClassNotFoundException{
+        return load(new File(binaryFile));
+    }
+
+    public static DataSet load(File binaryFile) throws IOException, ClassNotFoundException{
+        try (FileChannel channel = FileChannel.open(binaryFile.toPath(), StandardOpenOption.READ)){
+            Header header = readHeader(channel, binaryFile);
+            // mappings stay valid after the channel is closed
+            CompressedSparseDataSet.Storage storage = new CompressedSparseDataSet.Storage(
+                    map(channel, header, ROW_POINTERS).asIntBuffer(),
+                    map(channel, header, ROW_FEATURE_INDICES).asIntBuffer(),
+                    map(channel, header, ROW_VALUES).asFloatBuffer(),
+                    map(channel, header, COLUMN_POINTERS).asIntBuffer(),
+                    map(channel, header, COLUMN_DATA_INDICES).asIntBuffer(),
+                    map(channel, header, COLUMN_VALUES).asFloatBuffer());
+            if (storage.rowPointers.limit()!=header.numDataPoints+1
+                    || storage.columnPointers.limit()!=header.numFeatures+1
+                    || storage.rowFeatureIndices.limit()!=header.numNonZeros){
+                throw new IOException(binaryFile+" is corrupted");
+            }
+
+            IdTranslator idTranslator = new IdTranslator();
+            String[] extIds = readStrings(map(channel, header, ID_TRANSLATOR));
+            for (int i=0;i<extIds.length;i++){
+                idTranslator.addData(i, extIds[i]);
+            }
+            FeatureList featureList;
+            ByteBuffer featureListBytes = map(channel, header, FEATURE_LIST);
+            byte[] bytes = new byte[featureListBytes.remaining()];
+            featureListBytes.get(bytes);
+            try (ObjectInputStream objectInputStream = new ObjectInputStream(new ByteArrayInputStream(bytes))){
+                featureList = (FeatureList) objectInputStream.readObject();
+            }
+
+            int numDataPoints = header.numDataPoints;
+            switch (header.type){
+                case TYPE_CLF: {
+                    int[] labels = new int[numDataPoints];
+                    map(channel, header, LABELS).asIntBuffer().get(labels);
+                    LabelTranslator labelTranslator = new LabelTranslator(readStrings(map(channel, header, LABEL_TRANSLATOR)));
+                    return new CompressedSparseClfDataSet(numDataPoints, header.numFeatures, header.missingValue,
+                            header.numClasses, idTranslator, featureList, storage, labels, labelTranslator);
+                }
+                case TYPE_REG: {
+                    double[] labels = new double[numDataPoints];
+                    map(channel, header, LABELS).asDoubleBuffer().get(labels);
+                    return new CompressedSparseRegDataSet(numDataPoints, header.numFeatures, header.missingValue,
+                            idTranslator, featureList, storage, labels);
+                }
+                case TYPE_ML_CLF: {
+                    IntBuffer labelPointers = map(channel, header, LABELS).asIntBuffer();
+                    IntBuffer labels = map(channel, header, MULTI_LABELS).asIntBuffer();
+                    MultiLabel[] multiLabels = new MultiLabel[numDataPoints];
+                    for (int i=0;i<numDataPoints;i++){
+                        MultiLabel multiLabel = new MultiLabel();
+                        for (int p=labelPointers.get(i);p<labelPointers.get(i+1);p++){
+                            multiLabel.addLabel(labels.get(p));
+                        }
+                        multiLabels[i] = multiLabel;
+                    }
+                    LabelTranslator labelTranslator = new LabelTranslator(readStrings(map(channel, header, LABEL_TRANSLATOR)));
+                    return new CompressedSparseMLClfDataSet(numDataPoints, header.numFeatures, header.missingValue,
+                            header.numClasses, idTranslator, featureList, storage, multiLabels, labelTranslator);
+                }
+                default:
+                    return new CompressedSparseDataSet(numDataPoints, header.numFeatures, header.missingValue,
+                            idTranslator, featureList, storage);
+            }
+        }
+    }
+
+    public static ClfDataSet loadClfDataSet(String binaryFile) throws IOException, ClassNotFoundException{
+        DataSet dataSet = load(binaryFile);
+        if (!(dataSet instanceof ClfDataSet)){
+            throw new IllegalArgumentException(binaryFile+" is not a classification data set");
+        }
+        return (ClfDataSet) dataSet;
+    }
+
+    public static RegDataSet loadRegDataSet(String binaryFile) throws IOException, ClassNotFoundException{
+        DataSet dataSet = load(binaryFile);
+        if (!(dataSet instanceof RegDataSet)){
+            throw new IllegalArgumentException(binaryFile+" is not a regression data set");
+        }
+        return (RegDataSet) dataSet;
+    }
+
+    public static MultiLabelClfDataSet loadMultiLabelClfDataSet(String binaryFile) throws IOException, ClassNotFoundException{
+        DataSet dataSet = load(binaryFile);
+        if (!(dataSet instanceof MultiLabelClfDataSet)){
+            throw new IllegalArgumentException(binaryFile+" is not a multi-label classification data set");
+        }
+        return (MultiLabelClfDataSet) dataSet;
+    }
+
+    //==========CONVERTERS==========
+
+    /**
+     * convert a TREC directory, loaded with its settings (feature list and translators)
+     * @param dataSetType a classification, regression or multi-label classification type
+     */
+    public static void fromTREC(String trecFile, DataSetType dataSetType, String binaryFile) throws IOException, ClassNotFoundException{
+        DataSet dataSet;
+        switch (dataSetType){
+            case CLF_DENSE:
+            case CLF_SPARSE:
+                dataSet = TRECFormat.loadClfDataSet(trecFile, dataSetType, true);
+                break;
+            case REG_DENSE:
+            case REG_SPARSE:
+                dataSet = TRECFormat.loadRegDataSet(trecFile, dataSetType, true);
+                break;
+            case ML_CLF_DENSE:
+            case ML_CLF_SPARSE:
+            case ML_CLF_SEQ_SPARSE:
+                dataSet = TRECFormat.loadMultiLabelClfDataSet(trecFile, dataSetType, true);
+                break;
+            default:
+                throw new IllegalArgumentException("illegal data set type");
+        }
+        save(dataSet, binaryFile);
+    }
+
+    public static void toTREC(String binaryFile, String trecFile) throws IOException, ClassNotFoundException{
+        DataSet dataSet = load(binaryFile);
+        if (!(dataSet instanceof ClfDataSet || dataSet instanceof RegDataSet || dataSet instanceof MultiLabelClfDataSet)){
+            throw new IllegalArgumentException("TREC format requires labels");
+        }
+        TRECFormat.save(dataSet, trecFile);
+    }
+
+    /**
+     * @param dataSetType a classification, regression or multi-label classification type
+     * @param numClasses ignored for regression
+     */
+    public static void fromLibSvm(String libSvmFile, DataSetType dataSetType, int numFeatures, int numClasses,
+                                  String binaryFile) throws IOException, ClassNotFoundException{
+        DataSet dataSet;
+        switch (dataSetType){
+            case CLF_DENSE:
+            case CLF_SPARSE:
+                dataSet = LibSvmFormat.loadClfDataSet(libSvmFile, numFeatures, numClasses, false);
+                break;
+            case REG_DENSE:
+            case REG_SPARSE:
+                dataSet = LibSvmFormat.loadRegDataSet(libSvmFile, numFeatures, false);
+                break;
+            case ML_CLF_DENSE:
+            case ML_CLF_SPARSE:
+            case ML_CLF_SEQ_SPARSE:
+                dataSet = LibSvmFormat.loadMultiLabelClfDataSet(libSvmFile, false, numFeatures, numClasses);
+                break;
+            default:
+                throw new IllegalArgumentException("illegal data set type");
+        }
+        save(dataSet, binaryFile);
+    }
+
+    public static void toLibSvm(String binaryFile, String libSvmFile) throws IOException, ClassNotFoundException{
+        DataSet dataSet = load(binaryFile);
+        if (dataSet instanceof ClfDataSet){
+            LibSvmFormat.save((ClfDataSet) dataSet, libSvmFile);
+        } else if (dataSet instanceof RegDataSet){
+            LibSvmFormat.save((RegDataSet) dataSet, libSvmFile);
+        } else if (dataSet instanceof MultiLabelClfDataSet){
+            LibSvmFormat.save((MultiLabelClfDataSet) dataSet, libSvmFile);
+        } else {
+            throw new IllegalArgumentException("LibSVM format requires labels");
+        }
+    }
+
+    //==========PRIVATE==========
+
+    private static Header readHeader(FileChannel channel, File binaryFile) throws IOException{
+        if (channel.size()<HEADER_SIZE){
+            throw new IOException(binaryFile+" is not a binary data set");
+        }
+        ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.getInt()!=MAGIC){
+            throw new IOException(binaryFile+" is not a binary data set");
+        }
+        int version = buffer.getInt();
+        if (version!=VERSION){
+            throw new IOException("unsupported binary format version "+version+" in "+binaryFile);
+        }
+        Header header = new Header();
+        header.type = buffer.getInt();
+        header.numDataPoints = buffer.getInt();
+        header.numFeatures = buffer.getInt();
+        header.numClasses = buffer.getInt();
+        header.missingValue = buffer.getInt()==1;
+        header.numNonZeros = buffer.getInt();
+        for (int s=0;s<NUM_SECTIONS;s++){
+            header.offsets[s] = buffer.getLong();
+            header.lengths[s] = buffer.getLong();
+            if (header.offsets[s]<HEADER_SIZE || header.lengths[s]<0
+                    || header.offsets[s]+header.lengths[s]>channel.size()){
+                throw new IOException(binaryFile+" is corrupted");
+            }
+        }
+        return header;
+    }
+
+    private static ByteBuffer map(FileChannel channel, Header header, int section) throws IOException{
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, header.offsets[section], header.lengths[section]);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * count, byte offsets (count+1), then utf-8 bytes
+     */
+    private static String[] readStrings(ByteBuffer buffer){
+        if (!buffer.hasRemaining()){
+            return new String[0];
+        }
+        int count = buffer.getInt();
+        int[] offsets = new int[count+1];
+        for (int i=0;i<=count;i++){
+            offsets[i] = buffer.getInt();
+        }
+        byte[] bytes = new byte[offsets[count]];
+        buffer.get(bytes);
+        String[] strings = new String[count];
+        for (int i=0;i<count;i++){
+            strings[i] = new String(bytes, offsets[i], offsets[i+1]-offsets[i], StandardCharsets.UTF_8);
+        }
+        return strings;
+    }
+
+    private static class Header {
+        int type;
+        int numDataPoints;
+        int numFeatures;
+        int numClasses;
+        boolean missingValue;
+        int numNonZeros;
+        long[] offsets = new long[NUM_SECTIONS];
+        long[] lengths = new long[NUM_SECTIONS];
+    }
+
+    /**
+     * buffered little endian writer over a file channel
+     */
+    private static class Writer {
+        private FileChannel channel;
+        private ByteBuffer buffer;
+        private long position;
+
+        Writer(FileChannel channel) {
+            this.channel = channel;
+            this.buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void skip(int numBytes) throws IOException{
+            for (int b=0;b<numBytes;b++){
+                putByte((byte) 0);
+            }
+        }
+
+        // sections start at multiples of 8, so mapped buffers are aligned for every element type
+        void begin(long[] offsets, int section) throws IOException{
+            while (position%8!=0){
+                putByte((byte) 0);
+            }
+            offsets[section] = position;
+        }
+
+        void end(long[] offsets, long[] lengths, int section) throws IOException{
+            long length = position - offsets[section];
+            if (length>Integer.MAX_VALUE){
+                throw new IOException("section "+section+" is too large for the binary format");
+            }
+            lengths[section] = length;
+        }
+
+        void putByte(byte value) throws IOException{
+            ensure(1);
+            buffer.put(value);
+            position += 1;
+        }
+
+        void putInt(int value) throws IOException{
+            ensure(4);
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        void putDouble(double value) throws IOException{
+            ensure(8);
+            buffer.putDouble(value);
+            position += 8;
+        }
+
+        void putInts(IntBuffer values) throws IOException{
+            for (int p=0;p<values.limit();p++){
+                putInt(values.get(p));
+            }
+        }
+
+        void putFloats(FloatBuffer values) throws IOException{
+            for (int p=0;p<values.limit();p++){
+                ensure(4);
+                buffer.putFloat(values.get(p));
+                position += 4;
+            }
+        }
+
+        void putBytes(byte[] bytes) throws IOException{
+            for (byte b: bytes){
+                putByte(b);
+            }
+        }
+
+        void putStrings(String[] strings) throws IOException{
+            byte[][] encoded = new byte[strings.length][];
+            putInt(strings.length);
+            int offset = 0;
+            putInt(offset);
+            for (int i=0;i<strings.length;i++){
+                encoded[i] = strings[i].getBytes(StandardCharsets.UTF_8);
+                offset += encoded[i].length;
+                putInt(offset);
+            }
+            for (byte[] bytes: encoded){
+                putBytes(bytes);
+            }
+        }
+
+        void flush() throws IOException{
+            buffer.flip();
+            while (buffer.hasRemaining()){
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        private void ensure(int numBytes) throws IOException{
+            if (buffer.remaining()<numBytes){
+                flush();
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import org.apache.mahout.math.Vector;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * collects feature values from many threads without locking, and writes them into a data set in one pass
+ * each thread appends (data point, feature, value) triples to its own buffer;
+ * fill() groups the triples by row and by column, and then fills every row and every column vector in parallel,
+ * each vector by exactly one thread, so SparseDataSet's synchronized setFeatureValue is never called
+ *
+ * if the same cell is set more than once, the last value set by the same thread wins;
+ * across threads, the winner is undefined
+ */
+public class BulkDataSetBuilder {
+    private static final int INITIAL_CAPACITY = 1024;
+    private int numDataPoints;
+    private int numFeatures;
+    // one buffer per writing thread; owned by the builder, so they go away with it
+    private ConcurrentHashMap<Thread,Buffer> buffers;
+
+    public BulkDataSetBuilder(int numDataPoints, int numFeatures) {
+        this.numDataPoints = numDataPoints;
+        this.numFeatures = numFeatures;
+        this.buffers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * thread safe, lock free
+     */
+    public void setFeatureValue(int dataPointIndex, int featureIndex, double featureValue){
+        if (dataPointIndex<0||dataPointIndex>=numDataPoints){
+            throw new IllegalArgumentException("data point index "+dataPointIndex+" is out of range");
+        }
+        if (featureIndex<0||featureIndex>=numFeatures){
+            throw new IllegalArgumentException("feature index "+featureIndex+" is out of range");
+        }
+        Thread thread = Thread.currentThread();
+        Buffer buffer = buffers.get(thread);
+        if (buffer==null){
+            buffer = buffers.computeIfAbsent(thread, t -> new Buffer());
+        }
+        buffer.add(dataPointIndex, featureIndex, featureValue);
+    }
+
+    /**
+     * @return number of collected triples, including duplicates
+     */
+    public long size(){
+        long size = 0;
+        for (Buffer buffer: buffers.values()){
+            size += buffer.size;
+        }
+        return size;
+    }
+
+    /**
+     * write all collected values into the data set
+     * values already in the data set are kept unless overwritten
+     * must be called after all writers are done
+     */
+    public void fill(DataSet dataSet){
+        if (dataSet.getNumDataPoints()!=numDataPoints || dataSet.getNumFeatures()!=numFeatures){
+            throw new IllegalArgumentException("data set size does not match");
+        }
+        Rows rows = groupByRow();
+        for (double value: rows.values){
+            if ((!dataSet.hasMissingValue()) && Double.isNaN(value)){
+                throw new IllegalArgumentException("missing value is not allowed in this data set");
+            }
+            if (Double.isInfinite(value)){
+                throw new IllegalArgumentException("feature value cannot be infinity");
+            }
+        }
+
+        if (dataSet instanceof SparseDataSet){
+            SparseDataSet sparseDataSet = (SparseDataSet) dataSet;
+            fill(rows, sparseDataSet.featureRows, sparseDataSet.featureColumns);
+        } else if (dataSet instanceof SequentialSparseDataSet){
+            SequentialSparseDataSet sequentialSparseDataSet = (SequentialSparseDataSet) dataSet;
+            fill(rows, sequentialSparseDataSet.featureRows, sequentialSparseDataSet.featureColumns);
+        } else if (dataSet instanceof DenseDataSet){
+            // different cells are independent in dense vectors
+            IntStream.range(0, numDataPoints).parallel().forEach(i -> {
+                for (int p=rows.pointers[i];p<rows.pointers[i+1];p++){
+                    dataSet.setFeatureValue(i, rows.indices[p], rows.values[p]);
+                }
+            });
+        } else {
+            for (int i=0;i<numDataPoints;i++){
+                for (int p=rows.pointers[i];p<rows.pointers[i+1];p++){
+                    dataSet.setFeatureValue(i, rows.indices[p], rows.values[p]);
+                }
+            }
+        }
+    }
+
+    /**
+     * freeze the collected values into a new read-only data set
+     */
+    public CompressedSparseDataSet buildCompressed(boolean missingValue){
+        Rows rows = groupByRow();
+        float[] values = new float[rows.values.length];
+        for (int p=0;p<values.length;p++){
+            values[p] = (float) rows.values[p];
+        }
+        return new CompressedSparseDataSet(numDataPoints, numFeatures, missingValue, rows.pointers, rows.indices, values);
+    }
+
+    /**
+     * fill row vectors and column vectors in parallel
+     * entries are added in index order, which is cheap for sequential access vectors
+     */
+    private void fill(Rows rows, Vector[] featureRows, Vector[] featureColumns){
+        IntStream.range(0, numDataPoints).parallel().forEach(i -> {
+            Vector row = featureRows[i];
+            for (int p=rows.pointers[i];p<rows.pointers[i+1];p++){
+                row.set(rows.indices[p], rows.values[p]);
+            }
+        });
+
+        // transpose; scanning rows in order keeps data indices sorted within each column
+        int numEntries = rows.values.length;
+        int[] columnPointers = new int[numFeatures+1];
+        for (int p=0;p<numEntries;p++){
+            columnPointers[rows.indices[p]+1] += 1;
+        }
+        for (int j=0;j<numFeatures;j++){
+            columnPointers[j+1] += columnPointers[j];
+        }
+        int[] dataIndices = new int[numEntries];
+        double[] columnValues = new double[numEntries];
+        int[] next = Arrays.copyOf(columnPointers, numFeatures);
+        for (int i=0;i<numDataPoints;i++){
+            for (int p=rows.pointers[i];p<rows.pointers[i+1];p++){
+                int featureIndex = rows.indices[p];
+                dataIndices[next[featureIndex]] = i;
+                columnValues[next[featureIndex]] = rows.values[p];
+                next[featureIndex] += 1;
+            }
+        }
+
+        IntStream.range(0, numFeatures).parallel().forEach(j -> {
+            Vector column = featureColumns[j];
+            for (int p=columnPointers[j];p<columnPointers[j+1];p++){
+                column.set(dataIndices[p], columnValues[p]);
+            }
+        });
+    }
+
+    /**
+     * counting sort by row, then sort each row by feature index in parallel and drop duplicates
+     */
+    private Rows groupByRow(){
+        long total = size();
+        if (total>Integer.MAX_VALUE){
+            throw new IllegalStateException("too many values: "+total);
+        }
+        int numEntries = (int) total;
+        int[] counts = new int[numDataPoints+1];
+        for (Buffer buffer: buffers.values()){
+            for (int k=0;k<buffer.size;k++){
+                counts[buffer.rows[k]+1] += 1;
+            }
+        }
+        for (int i=0;i<numDataPoints;i++){
+            counts[i+1] += counts[i];
+        }
+        int[] indices = new int[numEntries];
+        double[] values = new double[numEntries];
+        int[] next = Arrays.copyOf(counts, numDataPoints);
+        for (Buffer buffer: buffers.values()){
+            for (int k=0;k<buffer.size;k++){
+                int row = buffer.rows[k];
+                indices[next[row]] = buffer.columns[k];
+                values[next[row]] = buffer.values[k];
+                next[row] += 1;
+            }
+        }
+
+        // sort within rows, keep the last of duplicated cells, and compact in place
+        int[] lengths = new int[numDataPoints];
+        IntStream.range(0, numDataPoints).parallel()
+                .forEach(i -> lengths[i] = sortAndDeduplicate(indices, values, counts[i], counts[i+1]));
+
+        int[] pointers = new int[numDataPoints+1];
+        for (int i=0;i<numDataPoints;i++){
+            pointers[i+1] = pointers[i] + lengths[i];
+        }
+        int[] packedIndices = new int[pointers[numDataPoints]];
+        double[] packedValues = new double[pointers[numDataPoints]];
+        IntStream.range(0, numDataPoints).parallel().forEach(i -> {
+            System.arraycopy(indices, counts[i], packedIndices, pointers[i], lengths[i]);
+            System.arraycopy(values, counts[i], packedValues, pointers[i], lengths[i]);
+        });
+        return new Rows(pointers, packedIndices, packedValues);
+    }
+
+    /**
+     * @return number of distinct indices, moved to the front of [start, end)
+     */
+    private static int sortAndDeduplicate(int[] indices, double[] values, int start, int end){
+        int length = end - start;
+        if (length==0){
+            return 0;
+        }
+        // feature index in the high bits, arrival order in the low bits, so the sort is stable
+        long[] keys = new long[length];
+        for (int p=0;p<length;p++){
+            keys[p] = ((long) indices[start+p] << 32) | p;
+        }
+        Arrays.sort(keys);
+        double[] sortedValues = new double[length];
+        for (int p=0;p<length;p++){
+            sortedValues[p] = values[start+(int) keys[p]];
+        }
+        int cursor = 0;
+        for (int p=0;p<length;p++){
+            int index = (int) (keys[p] >>> 32);
+            if (p+1<length && (int) (keys[p+1] >>> 32)==index){
+                continue;
+            }
+            indices[start+cursor] = index;
+            values[start+cursor] = sortedValues[p];
+            cursor += 1;
+        }
+        return cursor;
+    }
+
+    private static class Buffer {
+        private int[] rows = new int[INITIAL_CAPACITY];
+        private int[] columns = new int[INITIAL_CAPACITY];
+        private double[] values = new double[INITIAL_CAPACITY];
+        private int size;
+
+        void add(int row, int column, double value){
+            if (size==rows.length){
+                int capacity = rows.length*2;
+                rows = Arrays.copyOf(rows, capacity);
+                columns = Arrays.copyOf(columns, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            rows[size] = row;
+            columns[size] = column;
+            values[size] = value;
+            size += 1;
+        }
+    }
+
+    private static class Rows {
+        private int[] pointers;
+        private int[] indices;
+        private double[] values;
+
+        Rows(int[] pointers, int[] indices, double[] values) {
+            this.pointers = pointers;
+            this.indices = indices;
+            this.values = values;
+        }
+    }
+}
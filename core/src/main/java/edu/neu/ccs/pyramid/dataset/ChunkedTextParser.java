@@ -0,0 +1,385 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * parallel parser for line based matrix files (TREC feature_matrix.txt, LibSVM)
+ * lines end at \n, \r\n or a bare \r, as in BufferedReader.readLine
+ * the file is cut into chunks at line breaks; lines are counted per chunk in parallel,
+ * so every chunk knows the index of its first row, and then chunks are parsed in parallel
+ * each line is handed to the consumer as a Cursor over the raw bytes, so numbers are parsed without
+ * String.split or Double.parseDouble garbage
+ * consumers are called concurrently for different rows; writes should go to row-owned slots or a BulkDataSetBuilder
+ */
+class ChunkedTextParser {
+    // small enough to keep one buffer per thread cheap, large enough to amortize the IO calls
+    private static final long MAX_CHUNK_SIZE = 64L<<20;
+    private static final int BOUNDARY_BUFFER_SIZE = 1<<16;
+    // 2^53, mantissas up to this are exact in double
+    private static final long MAX_EXACT_MANTISSA = 1L<<53;
+    private static final double[] POWERS_OF_TEN = {1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+            1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+
+    private File file;
+    private long[] chunkStarts;
+    private int[] firstRows;
+    private int numRows;
+
+    /**
+     * splits the file and counts its lines
+     */
+    ChunkedTextParser(File file) throws IOException {
+        this.file = file;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            long size = channel.size();
+            int numChunks = (int) Math.max(ForkJoinPool.getCommonPoolParallelism()*4L, (size + MAX_CHUNK_SIZE - 1)/MAX_CHUNK_SIZE);
+            List<Long> starts = new ArrayList<>();
+            long previous = -1;
+            for (int c=0;c<numChunks;c++){
+                long start = c==0? 0: nextLineStart(channel, size*c/numChunks);
+                // tiny files, or lines longer than a chunk
+                if (start>previous && start<size){
+                    starts.add(start);
+                    previous = start;
+                }
+            }
+            this.chunkStarts = new long[starts.size()+1];
+            for (int c=0;c<starts.size();c++){
+                chunkStarts[c] = starts.get(c);
+            }
+            chunkStarts[starts.size()] = size;
+        }
+
+        int numChunks = chunkStarts.length-1;
+        int[] counts = new int[numChunks];
+        forEachChunk(c -> counts[c] = countLines(readChunk(c)));
+        this.firstRows = new int[numChunks+1];
+        for (int c=0;c<numChunks;c++){
+            long next = (long) firstRows[c] + counts[c];
+            if (next>Integer.MAX_VALUE){
+                throw new IOException("too many lines in "+file);
+            }
+            firstRows[c+1] = (int) next;
+        }
+        this.numRows = firstRows[numChunks];
+    }
+
+    int getNumRows() {
+        return numRows;
+    }
+
+    /**
+     * parse all lines in parallel
+     */
+    void parse(LineConsumer consumer) throws IOException {
+        forEachChunk(c -> {
+            byte[] bytes = readChunk(c);
+            Cursor cursor = new Cursor(bytes);
+            int row = firstRows[c];
+            int lineStart = 0;
+            while (lineStart<bytes.length){
+                int lineEnd = lineStart;
+                while (lineEnd<bytes.length && bytes[lineEnd]!='\n' && bytes[lineEnd]!='\r'){
+                    lineEnd += 1;
+                }
+                int next = lineEnd + 1;
+                if (lineEnd+1<bytes.length && bytes[lineEnd]=='\r' && bytes[lineEnd+1]=='\n'){
+                    next += 1;
+                }
+                cursor.reset(lineStart, lineEnd);
+                consumer.accept(row, cursor);
+                row += 1;
+                lineStart = next;
+            }
+        });
+    }
+
+    interface LineConsumer {
+        void accept(int dataIndex, Cursor cursor);
+    }
+
+    interface ChunkTask {
+        void run(int chunkIndex) throws IOException;
+    }
+
+    private void forEachChunk(ChunkTask task) throws IOException {
+        try {
+            IntStream.range(0, chunkStarts.length-1).parallel().forEach(c -> {
+                try {
+                    task.run(c);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private byte[] readChunk(int chunkIndex) throws IOException {
+        long start = chunkStarts[chunkIndex];
+        byte[] bytes = new byte[(int) (chunkStarts[chunkIndex+1] - start)];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)){
+            while (buffer.hasRemaining()){
+                if (channel.read(buffer, start + buffer.position())<0){
+                    throw new IOException(file+" was truncated while parsing");
+                }
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * a last line without a line break is still a line
+     * chunks never start inside a \r\n, so a \r at the end of a chunk is a line break of its own
+     */
+    private static int countLines(byte[] bytes){
+        int count = 0;
+        for (int i=0;i<bytes.length;i++){
+            if (bytes[i]=='\n' || (bytes[i]=='\r' && (i+1==bytes.length || bytes[i+1]!='\n'))){
+                count += 1;
+            }
+        }
+        if (bytes.length>0 && !isLineBreak(bytes[bytes.length-1])){
+            count += 1;
+        }
+        return count;
+    }
+
+    private static boolean isLineBreak(byte b){
+        return b=='\n' || b=='\r';
+    }
+
+    /**
+     * @return position right after the first line break at or after position, or size
+     */
+    private static long nextLineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(BOUNDARY_BUFFER_SIZE);
+        long size = channel.size();
+        while (position<size){
+            buffer.clear();
+            int numRead = channel.read(buffer, position);
+            if (numRead<=0){
+                break;
+            }
+            for (int b=0;b<numRead;b++){
+                if (buffer.get(b)=='\n'){
+                    return position + b + 1;
+                }
+                if (buffer.get(b)=='\r'){
+                    // the \n of a \r\n may be in the next read
+                    long next = position + b + 1;
+                    ByteBuffer one = ByteBuffer.allocate(1);
+                    if (next<size && channel.read(one, next)==1 && one.get(0)=='\n'){
+                        next += 1;
+                    }
+                    return next;
+                }
+            }
+            position += numRead;
+        }
+        return size;
+    }
+
+    /**
+     * tokenizer over one line
+     * whitespace separates tokens; '#' starts a comment that runs to the end of the line
+     */
+    static class Cursor {
+        private byte[] bytes;
+        private int position;
+        private int end;
+
+        private Cursor(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        private void reset(int start, int end){
+            this.position = start;
+            this.end = end;
+        }
+
+        /**
+         * @return true if the next byte belongs to a token; false at whitespace or the end of the line
+         */
+        boolean inToken(){
+            return position<end && !isSpace(bytes[position]);
+        }
+
+        /**
+         * skip whitespace
+         * @return false at the end of the line or at a comment
+         */
+        boolean nextToken(){
+            while (position<end && isSpace(bytes[position])){
+                position += 1;
+            }
+            return position<end && bytes[position]!='#';
+        }
+
+        /**
+         * move to the next item of a comma separated list such as "1,2,3";
+         * empty items, as in "1,,2", ",1" or "1,", are skipped
+         * @return false at whitespace or the end of the line
+         */
+        boolean nextListItem(){
+            while (skip(',')){
+            }
+            return inToken();
+        }
+
+        /**
+         * consume c if it is the next byte
+         */
+        boolean skip(char c){
+            if (position<end && bytes[position]==c){
+                position += 1;
+                return true;
+            }
+            return false;
+        }
+
+        int parseInt(){
+            int start = position;
+            boolean negative = false;
+            if (position<end && (bytes[position]=='-' || bytes[position]=='+')){
+                negative = bytes[position]=='-';
+                position += 1;
+            }
+            long value = 0;
+            int digitsStart = position;
+            while (position<end && bytes[position]>='0' && bytes[position]<='9'){
+                value = value*10 + (bytes[position]-'0');
+                if (value>Integer.MAX_VALUE+1L){
+                    throw numberFormatException(start);
+                }
+                position += 1;
+            }
+            if (position==digitsStart || (position<end && !isDelimiter(bytes[position]))){
+                throw numberFormatException(start);
+            }
+            value = negative? -value: value;
+            if (value>Integer.MAX_VALUE){
+                throw numberFormatException(start);
+            }
+            return (int) value;
+        }
+
+        /**
+         * plain decimals with up to 15 or so significant digits and small exponents are converted exactly here;
+         * anything else (long mantissas, large exponents, NaN, Infinity) falls back to Double.parseDouble
+         */
+        double parseDouble(){
+            int start = position;
+            boolean negative = false;
+            if (position<end && (bytes[position]=='-' || bytes[position]=='+')){
+                negative = bytes[position]=='-';
+                position += 1;
+            }
+            long mantissa = 0;
+            int exponent = 0;
+            int numDigits = 0;
+            boolean exact = true;
+            while (position<end && bytes[position]>='0' && bytes[position]<='9'){
+                if (mantissa<MAX_EXACT_MANTISSA){
+                    mantissa = mantissa*10 + (bytes[position]-'0');
+                } else {
+                    exact = false;
+                }
+                numDigits += 1;
+                position += 1;
+            }
+            if (position<end && bytes[position]=='.'){
+                position += 1;
+                while (position<end && bytes[position]>='0' && bytes[position]<='9'){
+                    if (mantissa<MAX_EXACT_MANTISSA){
+                        mantissa = mantissa*10 + (bytes[position]-'0');
+                        exponent -= 1;
+                    } else {
+                        exact = false;
+                    }
+                    numDigits += 1;
+                    position += 1;
+                }
+            }
+            if (numDigits>0 && position<end && (bytes[position]=='e' || bytes[position]=='E')){
+                position += 1;
+                boolean negativeExponent = false;
+                if (position<end && (bytes[position]=='-' || bytes[position]=='+')){
+                    negativeExponent = bytes[position]=='-';
+                    position += 1;
+                }
+                int explicitExponent = 0;
+                int exponentStart = position;
+                while (position<end && bytes[position]>='0' && bytes[position]<='9'){
+                    explicitExponent = Math.min(explicitExponent*10 + (bytes[position]-'0'), 100000);
+                    position += 1;
+                }
+                if (position==exponentStart){
+                    exact = false;
+                }
+                exponent += negativeExponent? -explicitExponent: explicitExponent;
+            }
+            if (numDigits==0 || (position<end && !isDelimiter(bytes[position]))){
+                return fallback(start);
+            }
+            if (!exact || mantissa>MAX_EXACT_MANTISSA || exponent<-22 || exponent>22){
+                return fallback(start);
+            }
+            // both operands are exact, so a single multiplication or division rounds correctly
+            double value = exponent>=0? mantissa*POWERS_OF_TEN[exponent]: mantissa/POWERS_OF_TEN[-exponent];
+            return negative? -value: value;
+        }
+
+        private double fallback(int start){
+            position = start;
+            while (position<end && !isDelimiter(bytes[position])){
+                position += 1;
+            }
+            String token = new String(bytes, start, position-start, StandardCharsets.US_ASCII);
+            return Double.parseDouble(token);
+        }
+
+        /**
+         * read index:value pairs up to the end of the line or a comment
+         * @param indexOffset added to every parsed index, e.g. -1 for 1-based files
+         */
+        void readFeatures(BulkDataSetBuilder builder, int dataIndex, int indexOffset){
+            while (nextToken()){
+                int featureIndex = parseInt() + indexOffset;
+                if (!skip(':')){
+                    throw numberFormatException(position);
+                }
+                double featureValue = parseDouble();
+                builder.setFeatureValue(dataIndex, featureIndex, featureValue);
+            }
+        }
+
+        private NumberFormatException numberFormatException(int start){
+            int tokenEnd = start;
+            while (tokenEnd<end && !isSpace(bytes[tokenEnd])){
+                tokenEnd += 1;
+            }
+            return new NumberFormatException("can not parse \""+new String(bytes, start, tokenEnd-start, StandardCharsets.US_ASCII)+"\"");
+        }
+
+        private static boolean isSpace(byte b){
+            return b==' ' || b=='\t' || b=='\r' || b=='\f' || b==0x0B;
+        }
+
+        private static boolean isDelimiter(byte b){
+            return isSpace(b) || b==':' || b==',';
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import edu.neu.ccs.pyramid.feature.FeatureList;
+
+import java.util.Arrays;
+
+/**
+ * read-only classification data set in compressed sparse form
+ * labels can still be changed
+ */
+public class CompressedSparseClfDataSet extends CompressedSparseDataSet implements ClfDataSet {
+    private static final long serialVersionUID = 1L;
+    private int numClasses;
+    private int[] labels;
+    private LabelTranslator labelTranslator;
+
+    public CompressedSparseClfDataSet(int numDataPoints, int numFeatures, boolean missingValue, int numClasses,
+                                      int[] rowPointers, int[] featureIndices, float[] values) {
+        super(numDataPoints, numFeatures, missingValue, rowPointers, featureIndices, values);
+        this.labels = new int[numDataPoints];
+        this.numClasses = numClasses;
+        this.labelTranslator = LabelTranslator.newDefaultLabelTranslator(numClasses);
+    }
+
+    CompressedSparseClfDataSet(int numDataPoints, int numFeatures, boolean missingValue, int numClasses,
+                               IdTranslator idTranslator, FeatureList featureList, Storage storage,
+                               int[] labels, LabelTranslator labelTranslator) {
+        super(numDataPoints, numFeatures, missingValue, idTranslator, featureList, storage);
+        this.numClasses = numClasses;
+        this.labels = labels;
+        this.labelTranslator = labelTranslator;
+    }
+
+    /**
+     * copy any classification data set into compressed form
+     */
+    public static CompressedSparseClfDataSet copyOf(ClfDataSet dataSet){
+        Compressed compressed = compress(dataSet);
+        CompressedSparseClfDataSet copy = new CompressedSparseClfDataSet(dataSet.getNumDataPoints(), dataSet.getNumFeatures(),
+                dataSet.hasMissingValue(), dataSet.getNumClasses(),
+                compressed.rowPointers, compressed.featureIndices, compressed.values);
+        copy.setIdTranslator(dataSet.getIdTranslator());
+        copy.setFeatureList(dataSet.getFeatureList());
+        copy.setLabelTranslator(dataSet.getLabelTranslator());
+        int[] labels = dataSet.getLabels();
+        for (int i=0;i<labels.length;i++){
+            copy.setLabel(i, labels[i]);
+        }
+        return copy;
+    }
+
+    @Override
+    public int getNumClasses() {
+        return this.numClasses;
+    }
+
+    @Override
+    public int[] getLabels() {
+        return this.labels;
+    }
+
+    @Override
+    public void setLabel(int dataPointIndex, int label) {
+        if (label<0||label>=this.numClasses){
+            throw new IllegalArgumentException("label<0||label>=this.numClasses");
+        }
+        this.labels[dataPointIndex]=label;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("number of classes = ").append(this.numClasses).append("\n");
+        sb.append(super.toString());
+        sb.append("labels = ").append(Arrays.toString(labels));
+        return sb.toString();
+    }
+
+    @Override
+    public String getMetaInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(super.getMetaInfo());
+        sb.append("type = ").append("compressed sparse classification").append("\n");
+        sb.append("number of classes = ").append(this.numClasses);
+        return sb.toString();
+    }
+
+    @Override
+    public LabelTranslator getLabelTranslator() {
+        return labelTranslator;
+    }
+
+    @Override
+    public void setLabelTranslator(LabelTranslator labelTranslator) {
+        this.labelTranslator = labelTranslator;
+    }
+}
@@ -0,0 +1,282 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import edu.neu.ccs.pyramid.feature.FeatureList;
+import org.apache.mahout.math.Vector;
+
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * read-only sparse data set in compressed row (CSR) and compressed column (CSC) form
+ * every non-zero is stored once per orientation as an int index plus a float value,
+ * instead of two hash map entries in SparseDataSet
+ * rows and columns are returned as lightweight CompressedSparseVector views over the shared buffers
+ * values are stored in single precision
+ * the buffers wrap heap arrays, or map a file written by BinaryFormat
+ */
+public class CompressedSparseDataSet extends AbstractDataSet implements DataSet{
+    private static final long serialVersionUID = 1L;
+    // row i = rowPointers[i] to rowPointers[i+1]-1, sorted by feature index
+    protected transient IntBuffer rowPointers;
+    protected transient IntBuffer rowFeatureIndices;
+    protected transient FloatBuffer rowValues;
+    // column j = columnPointers[j] to columnPointers[j+1]-1, sorted by data index
+    protected transient IntBuffer columnPointers;
+    protected transient IntBuffer columnDataIndices;
+    protected transient FloatBuffer columnValues;
+
+    /**
+     * @param rowPointers size = numDataPoints + 1; row i occupies rowPointers[i] to rowPointers[i+1]-1
+     * @param featureIndices feature indices of each row, strictly increasing within a row
+     * @param values feature values; zeros are dropped
+     */
+    public CompressedSparseDataSet(int numDataPoints, int numFeatures, boolean missingValue,
+                                   int[] rowPointers, int[] featureIndices, float[] values) {
+        super(numDataPoints, numFeatures, missingValue);
+        init(rowPointers, featureIndices, values);
+    }
+
+    /**
+     * wrap existing row and column buffers, without validation
+     */
+    CompressedSparseDataSet(int numDataPoints, int numFeatures, boolean missingValue,
+                            IdTranslator idTranslator, FeatureList featureList, Storage storage) {
+        super(numDataPoints, numFeatures, missingValue, idTranslator, featureList);
+        this.rowPointers = storage.rowPointers;
+        this.rowFeatureIndices = storage.rowFeatureIndices;
+        this.rowValues = storage.rowValues;
+        this.columnPointers = storage.columnPointers;
+        this.columnDataIndices = storage.columnDataIndices;
+        this.columnValues = storage.columnValues;
+    }
+
+    /**
+     * copy any data set into compressed form
+     */
+    public static CompressedSparseDataSet copyOf(DataSet dataSet){
+        Compressed compressed = compress(dataSet);
+        CompressedSparseDataSet copy = new CompressedSparseDataSet(dataSet.getNumDataPoints(), dataSet.getNumFeatures(),
+                dataSet.hasMissingValue(), compressed.rowPointers, compressed.featureIndices, compressed.values);
+        copy.setIdTranslator(dataSet.getIdTranslator());
+        copy.setFeatureList(dataSet.getFeatureList());
+        return copy;
+    }
+
+    @Override
+    public Density density() {
+        // rows and columns are sequential access vectors; copies made by DataSetUtil are SequentialSparseDataSets
+        return Density.SPARSE_SEQUENTIAL;
+    }
+
+    @Override
+    public CompressedSparseVector getColumn(int featureIndex) {
+        return new CompressedSparseVector(numDataPoints, columnDataIndices, columnValues,
+                columnPointers.get(featureIndex), columnPointers.get(featureIndex+1));
+    }
+
+    @Override
+    public CompressedSparseVector getRow(int dataPointIndex) {
+        return new CompressedSparseVector(numFeatures, rowFeatureIndices, rowValues,
+                rowPointers.get(dataPointIndex), rowPointers.get(dataPointIndex+1));
+    }
+
+    @Override
+    public void setFeatureValue(int dataPointIndex, int featureIndex, double featureValue) {
+        throw new UnsupportedOperationException("CompressedSparseDataSet is read-only");
+    }
+
+    @Override
+    public boolean isDense() {
+        return false;
+    }
+
+    public long getNumNonZeros(){
+        return rowFeatureIndices.limit();
+    }
+
+    Storage getStorage(){
+        return new Storage(rowPointers, rowFeatureIndices, rowValues, columnPointers, columnDataIndices, columnValues);
+    }
+
+    private void init(int[] rowPointers, int[] featureIndices, float[] values){
+        if (rowPointers.length!=numDataPoints+1){
+            throw new IllegalArgumentException("rowPointers.length="+rowPointers.length+"!=numDataPoints+1="+(numDataPoints+1));
+        }
+        if (featureIndices.length!=values.length){
+            throw new IllegalArgumentException("featureIndices.length!=values.length");
+        }
+        if (rowPointers[0]!=0 || rowPointers[numDataPoints]!=featureIndices.length){
+            throw new IllegalArgumentException("rowPointers must start at 0 and end at featureIndices.length");
+        }
+        // validate, and count non-zeros
+        int numNonZeros = 0;
+        for (int i=0;i<numDataPoints;i++){
+            if (rowPointers[i]>rowPointers[i+1]){
+                throw new IllegalArgumentException("rowPointers must be non-decreasing");
+            }
+            for (int p=rowPointers[i];p<rowPointers[i+1];p++){
+                int featureIndex = featureIndices[p];
+                if (featureIndex<0||featureIndex>=numFeatures){
+                    throw new IllegalArgumentException("feature index "+featureIndex+" is out of range in row "+i);
+                }
+                if (p>rowPointers[i] && featureIndex<=featureIndices[p-1]){
+                    throw new IllegalArgumentException("feature indices must be strictly increasing in row "+i);
+                }
+                float value = values[p];
+                if ((!this.hasMissingValue()) && Float.isNaN(value)){
+                    throw new IllegalArgumentException("missing value is not allowed in this data set");
+                }
+                if (Float.isInfinite(value)){
+                    throw new IllegalArgumentException("feature value cannot be infinity");
+                }
+                if (value!=0){
+                    numNonZeros += 1;
+                }
+            }
+        }
+
+        // row major, without zeros
+        int[] newRowPointers = new int[numDataPoints+1];
+        int[] newFeatureIndices = new int[numNonZeros];
+        float[] newRowValues = new float[numNonZeros];
+        int cursor = 0;
+        for (int i=0;i<numDataPoints;i++){
+            for (int p=rowPointers[i];p<rowPointers[i+1];p++){
+                if (values[p]!=0){
+                    newFeatureIndices[cursor] = featureIndices[p];
+                    newRowValues[cursor] = values[p];
+                    cursor += 1;
+                }
+            }
+            newRowPointers[i+1] = cursor;
+        }
+        wrap(newRowPointers, newFeatureIndices, newRowValues);
+    }
+
+    /**
+     * build the column major copy from valid row major arrays, and wrap both
+     */
+    private void wrap(int[] rowPointers, int[] featureIndices, float[] values){
+        int numNonZeros = featureIndices.length;
+        // column major, by counting sort; scanning rows in order keeps data indices sorted within each column
+        int[] columnPointers = new int[numFeatures+1];
+        for (int p=0;p<numNonZeros;p++){
+            columnPointers[featureIndices[p]+1] += 1;
+        }
+        for (int j=0;j<numFeatures;j++){
+            columnPointers[j+1] += columnPointers[j];
+        }
+        int[] dataIndices = new int[numNonZeros];
+        float[] columnValues = new float[numNonZeros];
+        int[] next = Arrays.copyOf(columnPointers, numFeatures);
+        for (int i=0;i<numDataPoints;i++){
+            for (int p=rowPointers[i];p<rowPointers[i+1];p++){
+                int featureIndex = featureIndices[p];
+                dataIndices[next[featureIndex]] = i;
+                columnValues[next[featureIndex]] = values[p];
+                next[featureIndex] += 1;
+            }
+        }
+
+        this.rowPointers = IntBuffer.wrap(rowPointers);
+        this.rowFeatureIndices = IntBuffer.wrap(featureIndices);
+        this.rowValues = FloatBuffer.wrap(values);
+        this.columnPointers = IntBuffer.wrap(columnPointers);
+        this.columnDataIndices = IntBuffer.wrap(dataIndices);
+        this.columnValues = FloatBuffer.wrap(columnValues);
+    }
+
+    // buffers are written as arrays, so mapped data sets are serialized as ordinary heap ones
+    private void writeObject(java.io.ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(toArray(rowPointers));
+        out.writeObject(toArray(rowFeatureIndices));
+        out.writeObject(toArray(rowValues));
+    }
+
+    private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        int[] rowPointers = (int[]) in.readObject();
+        int[] featureIndices = (int[]) in.readObject();
+        float[] values = (float[]) in.readObject();
+        wrap(rowPointers, featureIndices, values);
+    }
+
+    private static int[] toArray(IntBuffer buffer){
+        int[] array = new int[buffer.limit()];
+        for (int p=0;p<array.length;p++){
+            array[p] = buffer.get(p);
+        }
+        return array;
+    }
+
+    private static float[] toArray(FloatBuffer buffer){
+        float[] array = new float[buffer.limit()];
+        for (int p=0;p<array.length;p++){
+            array[p] = buffer.get(p);
+        }
+        return array;
+    }
+
+    static Compressed compress(DataSet dataSet){
+        int numDataPoints = dataSet.getNumDataPoints();
+        int[] rowPointers = new int[numDataPoints+1];
+        for (int i=0;i<numDataPoints;i++){
+            rowPointers[i+1] = rowPointers[i] + dataSet.getRow(i).getNumNonZeroElements();
+        }
+        int[] featureIndices = new int[rowPointers[numDataPoints]];
+        float[] values = new float[rowPointers[numDataPoints]];
+        for (int i=0;i<numDataPoints;i++){
+            Vector row = dataSet.getRow(i);
+            int cursor = rowPointers[i];
+            for (Vector.Element element: row.nonZeroes()){
+                featureIndices[cursor] = element.index();
+                cursor += 1;
+            }
+            // random access rows iterate in hash order
+            if (!row.isSequentialAccess()){
+                Arrays.sort(featureIndices, rowPointers[i], rowPointers[i+1]);
+            }
+            for (int p=rowPointers[i];p<rowPointers[i+1];p++){
+                values[p] = (float) row.getQuick(featureIndices[p]);
+            }
+        }
+        return new Compressed(rowPointers, featureIndices, values);
+    }
+
+    static class Compressed {
+        int[] rowPointers;
+        int[] featureIndices;
+        float[] values;
+
+        Compressed(int[] rowPointers, int[] featureIndices, float[] values) {
+            this.rowPointers = rowPointers;
+            this.featureIndices = featureIndices;
+            this.values = values;
+        }
+    }
+
+    /**
+     * row major and column major buffers of a compressed data set
+     */
+    static class Storage {
+        IntBuffer rowPointers;
+        IntBuffer rowFeatureIndices;
+        FloatBuffer rowValues;
+        IntBuffer columnPointers;
+        IntBuffer columnDataIndices;
+        FloatBuffer columnValues;
+
+        Storage(IntBuffer rowPointers, IntBuffer rowFeatureIndices, FloatBuffer rowValues,
+                IntBuffer columnPointers, IntBuffer columnDataIndices, FloatBuffer columnValues) {
+            this.rowPointers = rowPointers;
+            this.rowFeatureIndices = rowFeatureIndices;
+            this.rowValues = rowValues;
+            this.columnPointers = columnPointers;
+            this.columnDataIndices = columnDataIndices;
+            this.columnValues = columnValues;
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import edu.neu.ccs.pyramid.feature.FeatureList;
+
+/**
+ * read-only multi-label classification data set in compressed sparse form
+ * labels can still be changed
+ */
+public class CompressedSparseMLClfDataSet extends CompressedSparseDataSet implements MultiLabelClfDataSet {
+    private static final long serialVersionUID = 1L;
+    private int numClasses;
+    private MultiLabel[] multiLabels;
+    private LabelTranslator labelTranslator;
+
+    public CompressedSparseMLClfDataSet(int numDataPoints, int numFeatures, boolean missingValue, int numClasses,
+                                        int[] rowPointers, int[] featureIndices, float[] values) {
+        super(numDataPoints, numFeatures, missingValue, rowPointers, featureIndices, values);
+        this.numClasses = numClasses;
+        this.multiLabels = new MultiLabel[numDataPoints];
+        for (int i=0;i<numDataPoints;i++){
+            this.multiLabels[i] = new MultiLabel();
+        }
+        this.labelTranslator = LabelTranslator.newDefaultLabelTranslator(numClasses);
+    }
+
+    CompressedSparseMLClfDataSet(int numDataPoints, int numFeatures, boolean missingValue, int numClasses,
+                                 IdTranslator idTranslator, FeatureList featureList, Storage storage,
+                                 MultiLabel[] multiLabels, LabelTranslator labelTranslator) {
+        super(numDataPoints, numFeatures, missingValue, idTranslator, featureList, storage);
+        this.numClasses = numClasses;
+        this.multiLabels = multiLabels;
+        this.labelTranslator = labelTranslator;
+    }
+
+    /**
+     * copy any multi-label classification data set into compressed form
+     */
+    public static CompressedSparseMLClfDataSet copyOf(MultiLabelClfDataSet dataSet){
+        Compressed compressed = compress(dataSet);
+        CompressedSparseMLClfDataSet copy = new CompressedSparseMLClfDataSet(dataSet.getNumDataPoints(), dataSet.getNumFeatures(),
+                dataSet.hasMissingValue(), dataSet.getNumClasses(),
+                compressed.rowPointers, compressed.featureIndices, compressed.values);
+        copy.setIdTranslator(dataSet.getIdTranslator());
+        copy.setFeatureList(dataSet.getFeatureList());
+        copy.setLabelTranslator(dataSet.getLabelTranslator());
+        MultiLabel[] multiLabels = dataSet.getMultiLabels();
+        for (int i=0;i<multiLabels.length;i++){
+            copy.setLabels(i, multiLabels[i].copy());
+        }
+        return copy;
+    }
+
+    @Override
+    public int getNumClasses() {
+        return this.numClasses;
+    }
+
+    @Override
+    public MultiLabel[] getMultiLabels() {
+        return this.multiLabels;
+    }
+
+    @Override
+    public void addLabel(int dataPointIndex, int classIndex) {
+        this.multiLabels[dataPointIndex].addLabel(classIndex);
+    }
+
+    @Override
+    public void setLabels(int dataPointIndex, MultiLabel multiLabel) {
+        multiLabels[dataPointIndex] = multiLabel;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("numClasses=").append(numClasses).append("\n");
+        sb.append(super.toString());
+        sb.append("labels").append("\n");
+        for (int i=0;i<numDataPoints;i++){
+            sb.append(i).append(":").append(multiLabels[i]).append(",");
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public String getMetaInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(super.getMetaInfo());
+        sb.append("type = ").append("compressed sparse multi-label classification").append("\n");
+        sb.append("number of classes = ").append(this.numClasses);
+        return sb.toString();
+    }
+
+    @Override
+    public LabelTranslator getLabelTranslator() {
+        return labelTranslator;
+    }
+
+    @Override
+    public void setLabelTranslator(LabelTranslator labelTranslator) {
+        this.labelTranslator = labelTranslator;
+    }
+}
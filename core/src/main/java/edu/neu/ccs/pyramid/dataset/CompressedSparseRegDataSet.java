@@ -0,0 +1,69 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import edu.neu.ccs.pyramid.feature.FeatureList;
+
+import java.util.Arrays;
+
+/**
+ * read-only regression data set in compressed sparse form
+ * labels can still be changed
+ */
+public class CompressedSparseRegDataSet extends CompressedSparseDataSet implements RegDataSet {
+    private static final long serialVersionUID = 1L;
+    private double[] labels;
+
+    public CompressedSparseRegDataSet(int numDataPoints, int numFeatures, boolean missingValue,
+                                      int[] rowPointers, int[] featureIndices, float[] values) {
+        super(numDataPoints, numFeatures, missingValue, rowPointers, featureIndices, values);
+        this.labels = new double[numDataPoints];
+    }
+
+    CompressedSparseRegDataSet(int numDataPoints, int numFeatures, boolean missingValue,
+                               IdTranslator idTranslator, FeatureList featureList, Storage storage,
+                               double[] labels) {
+        super(numDataPoints, numFeatures, missingValue, idTranslator, featureList, storage);
+        this.labels = labels;
+    }
+
+    /**
+     * copy any regression data set into compressed form
+     */
+    public static CompressedSparseRegDataSet copyOf(RegDataSet dataSet){
+        Compressed compressed = compress(dataSet);
+        CompressedSparseRegDataSet copy = new CompressedSparseRegDataSet(dataSet.getNumDataPoints(), dataSet.getNumFeatures(),
+                dataSet.hasMissingValue(), compressed.rowPointers, compressed.featureIndices, compressed.values);
+        copy.setIdTranslator(dataSet.getIdTranslator());
+        copy.setFeatureList(dataSet.getFeatureList());
+        double[] labels = dataSet.getLabels();
+        for (int i=0;i<labels.length;i++){
+            copy.setLabel(i, labels[i]);
+        }
+        return copy;
+    }
+
+    @Override
+    public double[] getLabels() {
+        return this.labels;
+    }
+
+    @Override
+    public void setLabel(int dataPointIndex, double label) {
+        this.labels[dataPointIndex]=label;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(super.toString());
+        sb.append("labels = ").append(Arrays.toString(labels));
+        return sb.toString();
+    }
+
+    @Override
+    public String getMetaInfo() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(super.getMetaInfo());
+        sb.append("type = ").append("compressed sparse regression");
+        return sb.toString();
+    }
+}
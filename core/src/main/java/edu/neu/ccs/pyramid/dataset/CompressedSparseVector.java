@@ -0,0 +1,224 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import org.apache.mahout.math.AbstractVector;
+import org.apache.mahout.math.Matrix;
+import org.apache.mahout.math.OrderedIntDoubleMapping;
+import org.apache.mahout.math.SequentialAccessSparseVector;
+import org.apache.mahout.math.SparseRowMatrix;
+import org.apache.mahout.math.Vector;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * read-only view of one row or one column of a CompressedSparseDataSet
+ * entries are the block [start, end) of the shared index and value buffers, sorted by index
+ * buffers are either wrapped heap arrays or views of a memory-mapped file (see BinaryFormat); only absolute gets are used,
+ * so views can be shared between threads
+ *
+ * besides the Vector interface, non-zeros can be visited without Element objects, either by position:
+ * for (int p=0;p<vector.getNumNonZeroElements();p++){ vector.indexAt(p); vector.valueAt(p); }
+ * or by forEachNonZero
+ */
+public class CompressedSparseVector extends AbstractVector {
+    private IntBuffer indices;
+    private FloatBuffer values;
+    private int start;
+    private int end;
+
+    CompressedSparseVector(int size, IntBuffer indices, FloatBuffer values, int start, int end) {
+        super(size);
+        this.indices = indices;
+        this.values = values;
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * @param position 0 to getNumNonZeroElements()-1
+     * @return index of the position-th non-zero element
+     */
+    public int indexAt(int position){
+        return indices.get(start+position);
+    }
+
+    /**
+     * @param position 0 to getNumNonZeroElements()-1
+     * @return value of the position-th non-zero element, can be NaN
+     */
+    public double valueAt(int position){
+        return values.get(start+position);
+    }
+
+    /**
+     * visit non-zero (including NaN) elements in index order
+     */
+    public void forEachNonZero(IntDoubleConsumer consumer){
+        for (int p=start;p<end;p++){
+            consumer.accept(indices.get(p), values.get(p));
+        }
+    }
+
+    @Override
+    public int getNumNonZeroElements() {
+        return end - start;
+    }
+
+    @Override
+    public int getNumNondefaultElements() {
+        return end - start;
+    }
+
+    @Override
+    public double getQuick(int index) {
+        int low = start;
+        int high = end - 1;
+        while (low<=high){
+            int mid = (low + high) >>> 1;
+            int midIndex = indices.get(mid);
+            if (midIndex<index){
+                low = mid + 1;
+            } else if (midIndex>index){
+                high = mid - 1;
+            } else {
+                return values.get(mid);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void setQuick(int index, double value) {
+        throw new UnsupportedOperationException("compressed sparse vectors are read-only");
+    }
+
+    @Override
+    public void mergeUpdates(OrderedIntDoubleMapping updates) {
+        throw new UnsupportedOperationException("compressed sparse vectors are read-only");
+    }
+
+    @Override
+    public boolean isDense() {
+        return false;
+    }
+
+    @Override
+    public boolean isSequentialAccess() {
+        return true;
+    }
+
+    @Override
+    public Vector like() {
+        return new SequentialAccessSparseVector(size());
+    }
+
+    @Override
+    public Vector like(int cardinality) {
+        return new SequentialAccessSparseVector(cardinality);
+    }
+
+    @Override
+    protected Matrix matrixLike(int rows, int columns) {
+        return new SparseRowMatrix(rows, columns);
+    }
+
+    @Override
+    public double getLookupCost() {
+        return Math.max(1, Math.log(end - start));
+    }
+
+    @Override
+    public double getIteratorAdvanceCost() {
+        return 1;
+    }
+
+    @Override
+    public boolean isAddConstantTime() {
+        return false;
+    }
+
+    @Override
+    protected Iterator<Element> iterateNonZero() {
+        return new NonZeroIterator();
+    }
+
+    @Override
+    protected Iterator<Element> iterator() {
+        return new AllIterator();
+    }
+
+    public interface IntDoubleConsumer {
+        void accept(int index, double value);
+    }
+
+    private class ReadOnlyElement implements Element {
+        int index;
+        double value;
+
+        @Override
+        public double get() {
+            return value;
+        }
+
+        @Override
+        public int index() {
+            return index;
+        }
+
+        @Override
+        public void set(double value) {
+            throw new UnsupportedOperationException("compressed sparse vectors are read-only");
+        }
+    }
+
+    // the element is reused between calls to next(), as in mahout's own iterators
+    private class NonZeroIterator implements Iterator<Element> {
+        private int position = start;
+        private ReadOnlyElement element = new ReadOnlyElement();
+
+        @Override
+        public boolean hasNext() {
+            return position<end;
+        }
+
+        @Override
+        public Element next() {
+            if (position>=end){
+                throw new NoSuchElementException();
+            }
+            element.index = indices.get(position);
+            element.value = values.get(position);
+            position += 1;
+            return element;
+        }
+    }
+
+    private class AllIterator implements Iterator<Element> {
+        private int index = 0;
+        private int position = start;
+        private ReadOnlyElement element = new ReadOnlyElement();
+
+        @Override
+        public boolean hasNext() {
+            return index<size();
+        }
+
+        @Override
+        public Element next() {
+            if (index>=size()){
+                throw new NoSuchElementException();
+            }
+            element.index = index;
+            if (position<end && indices.get(position)==index){
+                element.value = values.get(position);
+                position += 1;
+            } else {
+                element.value = 0;
+            }
+            index += 1;
+            return element;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import edu.neu.ccs.pyramid.util.IntTupleTable;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * interns distinct label sets to int ids 0, 1, 2, ... in insertion order
+ *
+ * the sorted labels of the sets are the tuples of an IntTupleTable, so no MultiLabel, BitSet or boxed Integer
+ * is kept per set
+ * supports, samples and candidate lists can then be passed around as int ids
+ */
+public class LabelSetDictionary implements Serializable {
+    private static final long serialVersionUID = 2L;
+    private IntTupleTable sets = new IntTupleTable();
+
+    public LabelSetDictionary() {
+    }
+
+    /**
+     * ids follow the order of the list; duplicates get the id of their first occurrence
+     */
+    public LabelSetDictionary(List<MultiLabel> multiLabels) {
+        for (MultiLabel multiLabel: multiLabels){
+            add(multiLabel);
+        }
+    }
+
+    /**
+     * @return id of the set, a new one if the set is not in the dictionary yet
+     */
+    public int add(MultiLabel multiLabel){
+        return add(multiLabel.getMatchedLabelsArray());
+    }
+
+    /**
+     * @param sortedLabels labels in ascending order, without duplicates
+     * @return id of the set, a new one if the set is not in the dictionary yet
+     */
+    public int add(int[] sortedLabels){
+        return sets.add(sortedLabels);
+    }
+
+    /**
+     * @return id of the set, -1 if the set is not in the dictionary
+     */
+    public int getId(MultiLabel multiLabel){
+        return getId(multiLabel.getMatchedLabelsArray());
+    }
+
+    /**
+     * @param sortedLabels labels in ascending order, without duplicates
+     * @return id of the set, -1 if the set is not in the dictionary
+     */
+    public int getId(int[] sortedLabels){
+        return sets.getId(sortedLabels);
+    }
+
+    public boolean contains(MultiLabel multiLabel){
+        return getId(multiLabel)>=0;
+    }
+
+    /**
+     * number of distinct sets
+     */
+    public int size() {
+        return sets.size();
+    }
+
+    public int getNumLabels(int id){
+        return sets.getLength(id);
+    }
+
+    /**
+     * @return the i-th smallest label of set id
+     */
+    public int getLabel(int id, int i){
+        return sets.get(id, i);
+    }
+
+    /**
+     * @return labels of set id in ascending order, a copy
+     */
+    public int[] getLabels(int id){
+        return sets.toArray(id);
+    }
+
+    public boolean matchClass(int id, int label){
+        return sets.binarySearch(id, label)>=0;
+    }
+
+    /**
+     * size of the intersection of two sets, by merging their sorted labels
+     */
+    public int intersectionSize(int id1, int id2){
+        int length1 = sets.getLength(id1);
+        int length2 = sets.getLength(id2);
+        int i = 0;
+        int j = 0;
+        int count = 0;
+        while (i<length1 && j<length2){
+            int label1 = sets.get(id1, i);
+            int label2 = sets.get(id2, j);
+            if (label1==label2){
+                count += 1;
+                i += 1;
+                j += 1;
+            } else if (label1<label2){
+                i += 1;
+            } else {
+                j += 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return a new MultiLabel for set id
+     */
+    public MultiLabel getMultiLabel(int id){
+        return new MultiLabel(getLabels(id));
+    }
+
+    /**
+     * @return all sets, in id order
+     */
+    public List<MultiLabel> getMultiLabels(){
+        List<MultiLabel> multiLabels = new ArrayList<>(sets.size());
+        for (int id=0;id<sets.size();id++){
+            multiLabels.add(getMultiLabel(id));
+        }
+        return multiLabels;
+    }
+}
@@ -108,46 +108,36 @@ public class LibSvmFormat {
 
     public static ClfDataSet loadClfDataSet(String libSvmFile,
                                             int numFeatures, int numClasses, boolean dense) throws IOException, ClassNotFoundException {
-        LabelTranslator labelTranslator = loadLabelTranslator(libSvmFile);
+        ChunkedTextParser parser = new ChunkedTextParser(new File(libSvmFile));
+        int numDataPoints = parser.getNumRows();
+        // ext labels are collected in the same pass as the features, and translated afterwards
+        int[] extLabels = new int[numDataPoints];
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(numDataPoints, numFeatures);
+        parser.parse((dataIndex, cursor) -> {
+            cursor.nextToken();
+            extLabels[dataIndex] = (int) cursor.parseDouble();
+            cursor.readFeatures(builder, dataIndex, -1);
+        });
+
+        List<String> labelStrings = Arrays.stream(extLabels).distinct().sorted()
+                .mapToObj(label -> ""+label).collect(Collectors.toList());
+        LabelTranslator labelTranslator = new LabelTranslator(labelStrings);
         System.out.println(labelTranslator);
 
         if (labelTranslator.getNumClasses()!=numClasses){
             throw new RuntimeException("labelTranslator.getNumClasses()!=numClasse");
         }
 
-        int numDataPoints = getNumDataPoints(libSvmFile);
-
         ClfDataSet dataSet = ClfDataSetBuilder.getBuilder()
                 .numDataPoints(numDataPoints)
                 .numFeatures(numFeatures)
                 .numClasses(numClasses)
                 .dense(dense)
                 .build();
-        try (BufferedReader br = new BufferedReader(new FileReader(libSvmFile));
-        ) {
-            String line = null;
-            int dataIndex = 0;
-            while ((line=br.readLine())!=null){
-                // sometimes, they use more than one spaces
-                String[] lineSplit = line.split("\\s+");
-                int extIntLabel = (int)Double.parseDouble(lineSplit[0]);
-                String extLabel = ""+extIntLabel;
-                int label = labelTranslator.toIntLabel(extLabel);
-                dataSet.setLabel(dataIndex,label);
-                for (int i=1;i<lineSplit.length;i++){
-                    String pair = lineSplit[i];
-                    // ignore things after #
-                    if (pair.startsWith("#")){
-                        break;
-                    }
-                    String[] pairSplit = pair.split(":");
-                    int featureIndex = Integer.parseInt(pairSplit[0])-1;
-                    double featureValue = Double.parseDouble(pairSplit[1]);
-                    dataSet.setFeatureValue(dataIndex, featureIndex,featureValue);
-                }
-                dataIndex += 1;
-            }
+        for (int i=0;i<numDataPoints;i++){
+            dataSet.setLabel(i, labelTranslator.toIntLabel(""+extLabels[i]));
         }
+        builder.fill(dataSet);
         dataSet.setLabelTranslator(labelTranslator);
         return dataSet;
 
@@ -155,37 +145,21 @@ public class LibSvmFormat {
 
     public static RegDataSet loadRegDataSet(String libSvmFile,
                                             int numFeatures, boolean dense) throws IOException, ClassNotFoundException {
-        int numDataPoints = getNumDataPoints(libSvmFile);
+        ChunkedTextParser parser = new ChunkedTextParser(new File(libSvmFile));
+        int numDataPoints = parser.getNumRows();
 
         RegDataSet dataSet = RegDataSetBuilder.getBuilder()
                 .numDataPoints(numDataPoints)
                 .numFeatures(numFeatures)
                 .dense(dense)
                 .build();
-        try (BufferedReader br = new BufferedReader(new FileReader(libSvmFile));
-        ) {
-            String line = null;
-            int dataIndex = 0;
-            while ((line=br.readLine())!=null){
-                // sometimes, they use more than one spaces
-                String[] lineSplit = line.split("\\s+");
-                double label = Double.parseDouble(lineSplit[0]);
-
-                dataSet.setLabel(dataIndex,label);
-                for (int i=1;i<lineSplit.length;i++){
-                    String pair = lineSplit[i];
-                    // ignore things after #
-                    if (pair.startsWith("#")){
-                        break;
-                    }
-                    String[] pairSplit = pair.split(":");
-                    int featureIndex = Integer.parseInt(pairSplit[0])-1;
-                    double featureValue = Double.parseDouble(pairSplit[1]);
-                    dataSet.setFeatureValue(dataIndex, featureIndex,featureValue);
-                }
-                dataIndex += 1;
-            }
-        }
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        parser.parse((dataIndex, cursor) -> {
+            cursor.nextToken();
+            dataSet.setLabel(dataIndex, cursor.parseDouble());
+            cursor.readFeatures(builder, dataIndex, -1);
+        });
+        builder.fill(dataSet);
         return dataSet;
     }
 
@@ -225,7 +199,8 @@ public class LibSvmFormat {
 
     public static MultiLabelClfDataSet loadMultiLabelClfDataSet(String libSvmFile,
                                                                 boolean dense, int numFeatures, int numClasses) throws IOException, ClassNotFoundException {
-        int numDatapoints = getNumDataPoints(libSvmFile);
+        ChunkedTextParser parser = new ChunkedTextParser(new File(libSvmFile));
+        int numDatapoints = parser.getNumRows();
 //        int numClasses = getNumClasses(libSvmFile);
 //        int numFeatures = getnumFeatures(libSvmFile);
 
@@ -237,30 +212,16 @@ public class LibSvmFormat {
                 .numFeatures(numFeatures).numDataPoints(numDatapoints).
                         density(Density.SPARSE_RANDOM).build();
 
-        try (BufferedReader br = new BufferedReader(new FileReader(libSvmFile));
-        ) {
-            String line = null;
-            int lineCount = 0;
-            while ((line=br.readLine()) != null) {
-                String[] lineInfo = line.split(" ");
-                // adding labels
-                String labels = lineInfo[0];
-                for (String label : labels.split(",")) {
-                    int l = Integer.parseInt(label);
-                    dataSet.addLabel(lineCount, l-1);
-//                    dataSet.addLabel(lineCount, l);
-                }
-                // adding feature
-                for (int i=1; i<lineInfo.length; i++) {
-                    String[] featureValue = lineInfo[i].split(":");
-                    int feature = Integer.parseInt(featureValue[0]);
-                    double value = Double.parseDouble(featureValue[1]);
-                    dataSet.setFeatureValue(lineCount, feature-1, value);
-                }
-                lineCount++;
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        parser.parse((dataIndex, cursor) -> {
+            // adding labels, 1-based
+            while (cursor.nextListItem()){
+                dataSet.addLabel(dataIndex, cursor.parseInt()-1);
             }
-            br.close();
-        }
+            // adding feature
+            cursor.readFeatures(builder, dataIndex, -1);
+        });
+        builder.fill(dataSet);
 
 
         return dataSet;
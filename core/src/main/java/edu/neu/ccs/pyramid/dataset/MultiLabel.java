@@ -33,6 +33,17 @@ public class MultiLabel implements Serializable{
         }
     }
 
+    /**
+     *
+     * @param labels matched labels
+     */
+    public MultiLabel(int[] labels){
+        this();
+        for (int label: labels){
+            this.addLabel(label);
+        }
+    }
+
     public MultiLabel(String string, LabelTranslator labelTranslator){
         this();
         if (string.isEmpty()){
@@ -130,6 +141,13 @@ public class MultiLabel implements Serializable{
         return set;
     }
 
+    /**
+     * matched labels in ascending order, without boxing
+     */
+    public int[] getMatchedLabelsArray(){
+        return labels.stream().toArray();
+    }
+
     public int getNumMatchedLabels(){
         return labels.cardinality();
     }
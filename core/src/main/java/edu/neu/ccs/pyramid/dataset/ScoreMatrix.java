@@ -1,5 +1,7 @@
 package edu.neu.ccs.pyramid.dataset;
 
+import java.util.stream.IntStream;
+
 /**
  * Created by chengli on 2/3/15.
  */
@@ -24,4 +26,22 @@ public class ScoreMatrix {
     public void increment(int dataPointIndex, int classIndex, double increment){
         this.m[dataPointIndex][classIndex] += increment;
     }
+
+    /**
+     * increment scores of a class by the outputs of the groups the data points belong to,
+     * e.g. the leaves of a regression tree
+     * data points with negative group indices are skipped
+     * parallel by data
+     * @param classIndex
+     * @param groupIndices group index of each data point
+     * @param groupOutputs output of each group
+     */
+    public void increment(int classIndex, int[] groupIndices, double[] groupOutputs){
+        IntStream.range(0, groupIndices.length).parallel().forEach(i -> {
+            int group = groupIndices[i];
+            if (group>=0){
+                this.m[i][classIndex] += groupOutputs[group];
+            }
+        });
+    }
 }
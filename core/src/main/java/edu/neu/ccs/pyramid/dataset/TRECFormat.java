@@ -10,7 +10,6 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
-import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 /**
@@ -337,98 +336,50 @@ public class TRECFormat {
 
     private static void fillClfDataSet(ClfDataSet dataSet, File trecFile) throws IOException {
         File matrixFile = new File(trecFile, TREC_MATRIX_FILE_NAME);
-        try (BufferedReader br = new BufferedReader(new FileReader(matrixFile));
-        ) {
-            String line = null;
-            int dataIndex = 0;
-            while ((line=br.readLine())!=null){
-                String[] lineSplit = line.split("\\s+");
-                int label = Integer.parseInt(lineSplit[0]);
-                dataSet.setLabel(dataIndex,label);
-                for (int i=1;i<lineSplit.length;i++){
-                    String pair = lineSplit[i];
-                    // ignore things after #
-                    if (pair.startsWith("#")){
-                        break;
-                    }
-                    String[] pairSplit = pair.split(":");
-                    int featureIndex = Integer.parseInt(pairSplit[0]);
-                    double featureValue = Double.parseDouble(pairSplit[1]);
-                    dataSet.setFeatureValue(dataIndex, featureIndex,featureValue);
-                }
-                dataIndex += 1;
-            }
-        }
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        ChunkedTextParser parser = newParser(dataSet, matrixFile);
+        parser.parse((dataIndex, cursor) -> {
+            cursor.nextToken();
+            dataSet.setLabel(dataIndex, cursor.parseInt());
+            cursor.readFeatures(builder, dataIndex, 0);
+        });
+        builder.fill(dataSet);
     }
 
     private static void fillMultiLabelClfDataSet(MultiLabelClfDataSet dataSet, File trecFile) throws IOException {
         File matrixFile = new File(trecFile, TREC_MATRIX_FILE_NAME);
-        try (BufferedReader br = new BufferedReader(new FileReader(matrixFile));
-        ) {
-            String line = null;
-            int dataIndex = 0;
-            while ((line=br.readLine())!=null){
-                String[] lineSplit = line.split("\\s+");
-                // the line is not just a space
-                if (lineSplit.length>=1){
-                    String multiLabelString = null;
-                    try {
-                        multiLabelString = lineSplit[0];
-                    } catch (Exception e) {
-                        System.out.println("load data error happens");
-                        System.out.println("line number: " + dataIndex);
-                        System.out.println("line: " + line);
-                    }
-                    String[] multiLabelSplit = multiLabelString.split(Pattern.quote(","));
-                    for (String label: multiLabelSplit){
-                        if (label.equals("")) {
-                            continue;
-                        }
-                        dataSet.addLabel(dataIndex,Integer.parseInt(label));
-                    }
-                }
-
-                for (int i=1;i<lineSplit.length;i++){
-                    String pair = lineSplit[i];
-                    // ignore things after #
-                    if (pair.startsWith("#")){
-                        break;
-                    }
-                    String[] pairSplit = pair.split(":");
-                    int featureIndex = Integer.parseInt(pairSplit[0]);
-                    double featureValue = Double.parseDouble(pairSplit[1]);
-                    dataSet.setFeatureValue(dataIndex, featureIndex,featureValue);
-                }
-                dataIndex += 1;
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        ChunkedTextParser parser = newParser(dataSet, matrixFile);
+        parser.parse((dataIndex, cursor) -> {
+            // a line starting with a space has no labels
+            while (cursor.nextListItem()){
+                dataSet.addLabel(dataIndex, cursor.parseInt());
             }
-        }
+            cursor.readFeatures(builder, dataIndex, 0);
+        });
+        builder.fill(dataSet);
     }
 
 
     private static void fillRegDataSet(RegDataSet dataSet, File trecFile) throws IOException {
         File matrixFile = new File(trecFile, TREC_MATRIX_FILE_NAME);
-        try (BufferedReader br = new BufferedReader(new FileReader(matrixFile));
-        ) {
-            String line = null;
-            int dataIndex = 0;
-            while ((line=br.readLine())!=null){
-                String[] lineSplit = line.split("\\s+");
-                double label = Double.parseDouble(lineSplit[0]);
-                dataSet.setLabel(dataIndex,label);
-                for (int i=1;i<lineSplit.length;i++){
-                    String pair = lineSplit[i];
-                    // ignore things after #
-                    if (pair.startsWith("#")){
-                        break;
-                    }
-                    String[] pairSplit = pair.split(":");
-                    int featureIndex = Integer.parseInt(pairSplit[0]);
-                    double featureValue = Double.parseDouble(pairSplit[1]);
-                    dataSet.setFeatureValue(dataIndex, featureIndex,featureValue);
-                }
-                dataIndex += 1;
-            }
-        }
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        ChunkedTextParser parser = newParser(dataSet, matrixFile);
+        parser.parse((dataIndex, cursor) -> {
+            cursor.nextToken();
+            dataSet.setLabel(dataIndex, cursor.parseDouble());
+            cursor.readFeatures(builder, dataIndex, 0);
+        });
+        builder.fill(dataSet);
+    }
+
+    private static ChunkedTextParser newParser(DataSet dataSet, File matrixFile) throws IOException {
+        ChunkedTextParser parser = new ChunkedTextParser(matrixFile);
+        if (parser.getNumRows()!=dataSet.getNumDataPoints()){
+            throw new IOException(matrixFile+" has "+parser.getNumRows()+" lines, but "
+                    +TREC_CONFIG_NUM_DATA_POINTS+" = "+dataSet.getNumDataPoints());
+        }
+        return parser;
     }
 
 
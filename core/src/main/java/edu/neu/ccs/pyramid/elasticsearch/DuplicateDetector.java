@@ -34,17 +34,15 @@ public class DuplicateDetector implements Serializable{
     public void detect(){
         Map<Integer, Set<String>> hashToIds = new ConcurrentHashMap<>();
         int numDocs = esIndex.getNumDocs();
-        IntStream.range(0,numDocs).parallel()
+        List<String> trainIds = IntStream.range(0,numDocs).parallel()
                 .filter(i -> esIndex.getStringField("" + i, splitField).
                         equalsIgnoreCase("train"))
-                .forEach(i -> {
-                    Map<Integer, String> termVector = esIndex.getTermVectorFromIndex("" + i);
-                    int hash = termVector.hashCode();
-                    if (!hashToIds.containsKey(hash)) {
-                        hashToIds.put(hash, Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()));
-                    }
-                    hashToIds.get(hash).add("" + i);
-                });
+                .mapToObj(i -> "" + i).collect(Collectors.toList());
+        esIndex.forEachTermVector(esIndex.bodyField, trainIds, (id, termVector) -> {
+            int hash = termVector.hashCode();
+            hashToIds.computeIfAbsent(hash, h -> Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>()))
+                    .add(id);
+        });
         hashToIds.entrySet().stream().parallel().map(Map.Entry::getValue)
                 .forEach(this::check);
 
@@ -57,8 +55,10 @@ public class DuplicateDetector implements Serializable{
         if (size==1){
             return;
         }
+        Map<String, Map<Integer, String>> termVectors = esIndex.getTermVectorsFromIndex(esIndex.bodyField,
+                new ArrayList<>(candidates));
         for (String id: candidates){
-            Doc doc = new Doc(id,esIndex.getTermVectorFromIndex(id));
+            Doc doc = new Doc(id,termVectors.get(id));
             docs.add(doc);
         }
         Set<String> uniqueIds = docs.stream().map(Doc::getId).collect(Collectors.toSet());
@@ -2,18 +2,29 @@ package edu.neu.ccs.pyramid.elasticsearch;
 
 import static org.elasticsearch.search.aggregations.AggregationBuilders.terms;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.InetSocketAddress;
 import java.net.URLEncoder;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import edu.neu.ccs.pyramid.esplugins.PhraseCountQueryBuilder;
@@ -30,6 +41,10 @@ import org.elasticsearch.action.admin.indices.mapping.get.GetFieldMappingsRespon
 import org.elasticsearch.action.admin.indices.mapping.get.GetMappingsResponse;
 import org.elasticsearch.action.get.GetResponse;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.termvectors.MultiTermVectorsItemResponse;
+import org.elasticsearch.action.termvectors.MultiTermVectorsRequestBuilder;
+import org.elasticsearch.action.termvectors.MultiTermVectorsResponse;
+import org.elasticsearch.action.termvectors.TermVectorsRequest;
 import org.elasticsearch.action.termvectors.TermVectorsResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
@@ -75,6 +90,16 @@ public class ESIndex implements AutoCloseable{
      * concurrent LRU cache for termvectors
      */
     LoadingCache<String,Map<Integer,String>> termVectorCache;
+    /**
+     * optional persistent copy of the fetched term vectors
+     */
+    TermVectorStore termVectorStore;
+    int termVectorBatchSize;
+    int termVectorConcurrency;
+    /**
+     * termVectorConcurrency - 1 daemon threads helping forEachTermVector and getTermStats, shared by all calls; null if no concurrency
+     */
+    ExecutorService termVectorExecutor;
 
 
     public int getNumDocs() {
@@ -547,12 +572,47 @@ public class ESIndex implements AutoCloseable{
             stopWatch = new StopWatch();
             stopWatch.start();
         }
-        TermVectorsResponse response = client.prepareTermVector(indexName, documentType, id)
-                .setOffsets(false).setPositions(false).setFieldStatistics(false)
-                .setTermStatistics(true)
-                .setSelectedFields(field).
-                        execute().actionGet();
+        Set<TermStat> set = getTermStats(field, Collections.singletonList(id)).get(id);
+        if(logger.isDebugEnabled()){
+            logger.debug("time spent on getNgramInfos for "+id+" = " + stopWatch);
+        }
+        return set;
+    }
+
+    /**
+     * term statistics of many documents, with the batches and fetcher threads of forEachTermVector;
+     * the term vector store only holds positions, so every document is fetched
+     * df is from one shard!!!
+     * @return doc id to term statistics
+     */
+    public Map<String,Set<TermStat>> getTermStats(String field, List<String> ids){
+        Map<String,Set<TermStat>> termStats = new ConcurrentHashMap<>();
+        forEachBatch(ids, batch -> fetchTermStats(field, batch, termStats::put));
+        return new HashMap<>(termStats);
+    }
+
+    private void fetchTermStats(String field, List<String> ids, BiConsumer<String,Set<TermStat>> consumer){
+        MultiTermVectorsRequestBuilder request = client.prepareMultiTermVectors();
+        for (String id: ids){
+            request.add(new TermVectorsRequest(indexName, documentType, id)
+                    .offsets(false).positions(false).fieldStatistics(false)
+                    .termStatistics(true).selectedFields(field));
+        }
+        MultiTermVectorsResponse response = request.execute().actionGet();
+        for (MultiTermVectorsItemResponse item: response.getResponses()){
+            if (item.isFailed()){
+                throw new RuntimeException("failed to get the term statistics of document "+item.getId(),
+                        item.getFailure().getCause());
+            }
+            try {
+                consumer.accept(item.getId(), toTermStats(item.getResponse(), field));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
 
+    private Set<TermStat> toTermStats(TermVectorsResponse response, String field) throws IOException {
         Terms terms = response.getFields().terms(field);
         Set<TermStat> set = new HashSet<>();
         // if the field is empty, terms==null
@@ -560,6 +620,7 @@ public class ESIndex implements AutoCloseable{
             return set;
         }
         TermsEnum iterator = terms.iterator();
+        ClassicSimilarity defaultSimilarity = new ClassicSimilarity();
 
         PostingsEnum postings = null;
         for (int i=0;i<terms.size();i++){
@@ -568,7 +629,6 @@ public class ESIndex implements AutoCloseable{
             postings = iterator.postings(postings);
             int tf = postings.freq();
             int df = iterator.docFreq();
-            ClassicSimilarity defaultSimilarity = new ClassicSimilarity();
             /**
              * from lucene
              */
@@ -582,10 +642,6 @@ public class ESIndex implements AutoCloseable{
             set.add(termStat);
 
         }
-
-        if(logger.isDebugEnabled()){
-            logger.debug("time spent on getNgramInfos for "+id+" = " + stopWatch);
-        }
         return set;
     }
 //
@@ -610,12 +666,21 @@ public class ESIndex implements AutoCloseable{
 //    }
 
     public Map<Integer,String> getTermVectorFromIndex(String field, String id){
+        if (termVectorStore!=null){
+            Map<Integer,String> stored = termVectorStore.get(field, id);
+            if (stored!=null){
+                return stored;
+            }
+        }
         Map<Integer,String> map = null;
         try {
             map = getTermVectorWithException(field, id);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        if (termVectorStore!=null && map!=null){
+            termVectorStore.put(field, id, map);
+        }
         return map;
     }
 
@@ -623,13 +688,127 @@ public class ESIndex implements AutoCloseable{
         return getTermVectorFromIndex(this.bodyField,id);
     }
 
+    /**
+     * term vectors of many documents, see forEachTermVector
+     * @return doc id to (position to term) map
+     */
+    public Map<String,Map<Integer,String>> getTermVectorsFromIndex(String field, List<String> ids){
+        Map<String,Map<Integer,String>> termVectors = new ConcurrentHashMap<>();
+        forEachTermVector(field, ids, termVectors::put);
+        return new HashMap<>(termVectors);
+    }
+
+    /**
+     * fetch the term vectors of many documents with multi term vectors requests of termVectorBatchSize documents,
+     * at most termVectorConcurrency requests in flight, instead of one request per document;
+     * documents found in the term vector store are served locally and fetched ones are added to it
+     * the calling thread fetches batches itself, helped by the threads of the index's shared fetcher pool,
+     * so concurrent calls share termVectorConcurrency - 1 helper threads and never wait for a free one
+     * the consumer is called once per document, from several threads
+     * unlike getTermVectorFromIndex, which logs and returns null, a failed document throws a RuntimeException
+     * once the batches already started are done
+     */
+    public void forEachTermVector(String field, List<String> ids, BiConsumer<String,Map<Integer,String>> consumer){
+        List<String> missing = new ArrayList<>();
+        for (String id: ids){
+            Map<Integer,String> stored = termVectorStore==null? null: termVectorStore.get(field, id);
+            if (stored!=null){
+                consumer.accept(id, stored);
+            } else {
+                missing.add(id);
+            }
+        }
+        forEachBatch(missing, batch -> fetchTermVectors(field, batch, consumer));
+    }
+
+    /**
+     * runs fetch on batches of termVectorBatchSize ids, at most termVectorConcurrency at a time:
+     * the calling thread and the helpers of the shared fetcher pool take batches until none are left
+     * the first failure is rethrown once the batches already started are done
+     */
+    private void forEachBatch(List<String> ids, Consumer<List<String>> fetch){
+        int numBatches = (ids.size()+termVectorBatchSize-1)/termVectorBatchSize;
+        if (numBatches==0){
+            return;
+        }
+        AtomicInteger nextBatch = new AtomicInteger(0);
+        CountDownLatch finished = new CountDownLatch(numBatches);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Runnable worker = () -> {
+            for (int b=nextBatch.getAndIncrement();b<numBatches;b=nextBatch.getAndIncrement()){
+                try {
+                    // after a failure, the remaining batches are only counted down
+                    if (failure.get()==null){
+                        fetch.accept(ids.subList(b*termVectorBatchSize,
+                                Math.min((b+1)*termVectorBatchSize, ids.size())));
+                    }
+                } catch (RuntimeException | Error e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    finished.countDown();
+                }
+            }
+        };
+        // helpers that start after all batches are taken find nothing to do
+        int numHelpers = termVectorExecutor==null? 0: Math.min(termVectorConcurrency, numBatches) - 1;
+        for (int t=0;t<numHelpers;t++){
+            termVectorExecutor.execute(worker);
+        }
+        worker.run();
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        Throwable cause = failure.get();
+        if (cause instanceof RuntimeException){
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error){
+            throw (Error) cause;
+        }
+    }
+
+    private void fetchTermVectors(String field, List<String> ids, BiConsumer<String,Map<Integer,String>> consumer){
+        MultiTermVectorsRequestBuilder request = client.prepareMultiTermVectors();
+        for (String id: ids){
+            request.add(new TermVectorsRequest(indexName, documentType, id)
+                    .offsets(false).positions(true).fieldStatistics(false)
+                    .termStatistics(false).selectedFields(field));
+        }
+        MultiTermVectorsResponse response = request.execute().actionGet();
+        for (MultiTermVectorsItemResponse item: response.getResponses()){
+            if (item.isFailed()){
+                throw new RuntimeException("failed to get the term vector of document "+item.getId(),
+                        item.getFailure().getCause());
+            }
+            Map<Integer,String> termVector;
+            try {
+                termVector = toTermVector(item.getResponse(), field);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            if (termVectorStore!=null){
+                termVectorStore.put(field, item.getId(), termVector);
+            }
+            consumer.accept(item.getId(), termVector);
+        }
+    }
+
     private Map<Integer,String> getTermVectorWithException(String field, String id) throws IOException {
         TermVectorsResponse response = client.prepareTermVector(indexName, documentType, id)
                 .setOffsets(false).setPositions(true).setFieldStatistics(false)
                 .setTermStatistics(false)
                 .setSelectedFields(field).
                         execute().actionGet();
+        return toTermVector(response, field);
+    }
 
+    /**
+     * position to term map of one document
+     */
+    static Map<Integer,String> toTermVector(TermVectorsResponse response, String field) throws IOException {
         Map<Integer,String> map = new HashMap<>();
         Terms terms = response.getFields().terms(field);
         if (terms==null){
@@ -662,6 +841,12 @@ public class ESIndex implements AutoCloseable{
 
 
     public void close() {
+        if (this.termVectorExecutor!=null){
+            this.termVectorExecutor.shutdownNow();
+        }
+        if (this.termVectorStore!=null){
+            this.termVectorStore.close();
+        }
         this.client.close();
         if (this.clientType.equals("node")){
             try {
@@ -1470,6 +1655,10 @@ public class ESIndex implements AutoCloseable{
         private List<String> hosts = new ArrayList<>();
         private List<Integer> ports = new ArrayList<>();
         private int termVectorCacheSize = 10000;
+        private int termVectorBatchSize = 100;
+        private int termVectorConcurrency = 4;
+        private File termVectorStoreDirectory;
+        private Client client;
 
 
 
@@ -1516,6 +1705,45 @@ public class ESIndex implements AutoCloseable{
             return this;
         }
 
+        /**
+         * number of documents per multi term vectors request
+         */
+        public Builder setTermVectorBatchSize(int termVectorBatchSize) {
+            if (termVectorBatchSize<1){
+                throw new IllegalArgumentException("termVectorBatchSize should be positive");
+            }
+            this.termVectorBatchSize = termVectorBatchSize;
+            return this;
+        }
+
+        /**
+         * max number of multi term vectors requests in flight
+         */
+        public Builder setTermVectorConcurrency(int termVectorConcurrency) {
+            if (termVectorConcurrency<1){
+                throw new IllegalArgumentException("termVectorConcurrency should be positive");
+            }
+            this.termVectorConcurrency = termVectorConcurrency;
+            return this;
+        }
+
+        /**
+         * keep the fetched term vectors in a persistent store in this directory, reused by later runs
+         */
+        public Builder setTermVectorStore(String directory) {
+            this.termVectorStoreDirectory = new File(directory);
+            return this;
+        }
+
+        /**
+         * use an existing client, e.g. of an embedded node or a mock, instead of creating a transport client;
+         * clientType, clusterName, hosts and ports are then ignored
+         */
+        public Builder setClient(Client client) {
+            this.client = client;
+            return this;
+        }
+
 
         public ESIndex build() throws Exception {
             boolean legal = (clientType.equals("node"))||(clientType.equals("transport"));
@@ -1529,8 +1757,20 @@ public class ESIndex implements AutoCloseable{
             esIndex.clientType = clientType;
             esIndex.clusterName = clusterName;
             esIndex.bodyField = bodyField;
+            esIndex.termVectorBatchSize = termVectorBatchSize;
+            esIndex.termVectorConcurrency = termVectorConcurrency;
+            if (termVectorConcurrency>1){
+                AtomicInteger threadCount = new AtomicInteger(0);
+                esIndex.termVectorExecutor = Executors.newFixedThreadPool(termVectorConcurrency-1, runnable -> {
+                    Thread thread = new Thread(runnable, "term-vector-fetcher-"+threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
 
-            if (clientType.equals("node")){
+            if (client!=null){
+                esIndex.client = client;
+            } else if (clientType.equals("node")){
                 /**
                  * don't hold data
                  */
@@ -1557,6 +1797,9 @@ public class ESIndex implements AutoCloseable{
                 }
             }
             esIndex.numDocs = esIndex.fetchNumDocs();
+            if (termVectorStoreDirectory!=null){
+                esIndex.termVectorStore = new TermVectorStore(termVectorStoreDirectory);
+            }
 
             esIndex.termVectorCache = CacheBuilder.newBuilder()
                     .maximumSize(this.termVectorCacheSize)
@@ -5,9 +5,14 @@ import edu.neu.ccs.pyramid.feature.*;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.search.SearchHit;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -16,33 +21,160 @@ import java.util.stream.IntStream;
 public class FeatureLoader {
 
 
+    /**
+     * features are fetched in parallel; values are collected without locking and written into the data set at the end
+     */
     public static void loadFeatures(ESIndex index, DataSet dataSet, FeatureList features,
                                     IdTranslator idTranslator, MatchScoreType matchScoreType, String docFilter,
                                     Map<String, float[]> fieldLength){
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
 //        ProgressBar progressBar = new ProgressBar(features.size());
         IntStream.range(0,features.size())
         		.parallel()
                 .forEach(i-> {
-                    Feature feature = features.get(i);
-                    if (feature instanceof CategoricalFeature){
-                        loadCategoricalFeature(index,dataSet,(CategoricalFeature)feature,idTranslator, docFilter);
-                    } else if (feature instanceof Ngram){
-                        loadNgramFeature(index, dataSet, (Ngram)feature, idTranslator, matchScoreType, docFilter, fieldLength);
-                    } else if (feature instanceof CodeDescription) {
-                        loadCodeDesFeatureTfidf(index, dataSet, feature, idTranslator, docFilter);
-//                        loadCodeDesFeature(index, dataSet, feature, idTranslator, docFilter);
-                    } else {
-                        loadNumericalFeature(index,dataSet,feature,idTranslator);
-                    }
-
+                    loadFeature(index, builder, features.get(i), idTranslator, matchScoreType, docFilter, fieldLength);
 //                    progressBar.incrementAndPrint();
                 }
                 );
 //        System.out.println();
+        builder.fill(dataSet);
+    }
+
+    /**
+     * same values as loadFeatures, but document centric: instead of one search per feature, the term vectors of
+     * the documents are streamed once per field and all ngram and categorical features are matched against them
+     *
+     * in order ngrams are matched with NgramMatcher, whose counts follow the span near / phrase count queries,
+     * for the BINARY, FREQUENCY and TFIFL match score types
+     * categorical features match the terms of their variable field, as termFilter
+     * ES_ORIGINAL ngram scores and code description scores depend on the similarity statistics of the index,
+     * so these features, unordered ngrams and numerical features are still loaded by search
+     */
+    public static void loadFeaturesByDocument(ESIndex index, DataSet dataSet, FeatureList features,
+                                              IdTranslator idTranslator, MatchScoreType matchScoreType, String docFilter,
+                                              Map<String, float[]> fieldLength){
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        Map<String, List<Ngram>> ngramsByField = new HashMap<>();
+        // field -> category -> feature indices
+        Map<String, Map<String, List<Integer>>> categoriesByField = new HashMap<>();
+        List<Feature> searched = new ArrayList<>();
+        for (Feature feature: features.getAll()){
+            if (feature instanceof CategoricalFeature){
+                CategoricalFeature categoricalFeature = (CategoricalFeature) feature;
+                categoriesByField.computeIfAbsent(categoricalFeature.getVariableName(), field -> new HashMap<>())
+                        .computeIfAbsent(categoricalFeature.getCategory(), category -> new ArrayList<>())
+                        .add(feature.getIndex());
+            } else if (feature instanceof Ngram && matchScoreType!=MatchScoreType.ES_ORIGINAL
+                    && ((Ngram) feature).isInOrder()){
+                Ngram ngram = (Ngram) feature;
+                ngramsByField.computeIfAbsent(ngram.getField(), field -> new ArrayList<>()).add(ngram);
+            } else {
+                searched.add(feature);
+            }
+        }
+
+        // the searches only return documents passing the filter
+        Set<String> passing = new HashSet<>(index.matchStringQuery(docFilter));
+        List<String> ids = Arrays.stream(idTranslator.getAllExtIds()).filter(passing::contains)
+                .collect(Collectors.toList());
+
+        for (Map.Entry<String, List<Ngram>> entry: ngramsByField.entrySet()){
+            String field = entry.getKey();
+            NgramMatcher matcher = new NgramMatcher(entry.getValue());
+            index.forEachTermVector(field, ids, (id, termVector) -> {
+                int algorithmId = idTranslator.toIntId(id);
+                matcher.match(termVector, (featureIndex, count) ->
+                        builder.setFeatureValue(algorithmId, featureIndex,
+                                ngramScore(count, matchScoreType, field, algorithmId, fieldLength)));
+            });
+        }
+
+        for (Map.Entry<String, Map<String, List<Integer>>> entry: categoriesByField.entrySet()){
+            Map<String, List<Integer>> categories = entry.getValue();
+            index.forEachTermVector(entry.getKey(), ids, (id, termVector) -> {
+                int algorithmId = idTranslator.toIntId(id);
+                for (String term: new HashSet<>(termVector.values())){
+                    List<Integer> featureIndices = categories.get(term);
+                    if (featureIndices!=null){
+                        for (int featureIndex: featureIndices){
+                            builder.setFeatureValue(algorithmId, featureIndex, 1);
+                        }
+                    }
+                }
+            });
+        }
+
+        searched.parallelStream().forEach(feature ->
+                loadFeature(index, builder, feature, idTranslator, matchScoreType, docFilter, fieldLength));
+        builder.fill(dataSet);
+    }
+
+    private static void loadFeature(ESIndex index, BulkDataSetBuilder builder, Feature feature,
+                                    IdTranslator idTranslator, MatchScoreType matchScoreType, String docFilter,
+                                    Map<String, float[]> fieldLength){
+        if (feature instanceof CategoricalFeature){
+            loadCategoricalFeature(index, builder,(CategoricalFeature)feature,idTranslator, docFilter);
+        } else if (feature instanceof Ngram){
+            loadNgramFeature(index, builder, (Ngram)feature, idTranslator, matchScoreType, docFilter, fieldLength);
+        } else if (feature instanceof CodeDescription) {
+            loadCodeDesFeatureTfidf(index, builder, feature, idTranslator, docFilter);
+//                        loadCodeDesFeature(index, dataSet, feature, idTranslator, docFilter);
+        } else {
+            loadNumericalFeature(index, builder,feature,idTranslator);
+        }
+    }
+
+    /**
+     * the score the ngram search of the match score type gives for a number of matches
+     */
+    private static double ngramScore(int count, MatchScoreType matchScoreType, String field, int algorithmId,
+                                     Map<String, float[]> fieldLength){
+        switch (matchScoreType){
+            case BINARY:
+                return 1;
+            case FREQUENCY:
+                return count;
+            case TFIFL:
+                float score = count;
+                float docLength = fieldLength.get(field)[algorithmId];
+                double s = score/docLength;
+                return s;
+            default:
+                throw new IllegalArgumentException("no document centric score for "+matchScoreType);
+        }
     }
 
     public static void loadCategoricalFeature(ESIndex index, DataSet dataSet, CategoricalFeature feature,
                                               IdTranslator idTranslator, String docFilter){
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        loadCategoricalFeature(index, builder, feature, idTranslator, docFilter);
+        builder.fill(dataSet);
+    }
+
+    public static void loadNgramFeature(ESIndex index, DataSet dataSet, Ngram feature,
+                                        IdTranslator idTranslator, MatchScoreType matchScoreType, String docFilter,
+                                        Map<String, float[]> fieldLength){
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        loadNgramFeature(index, builder, feature, idTranslator, matchScoreType, docFilter, fieldLength);
+        builder.fill(dataSet);
+    }
+
+    public static void loadNgramFeatureBinary(ESIndex index, DataSet dataSet, Ngram feature,
+                                              IdTranslator idTranslator, String docFilter){
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        loadNgramFeatureBinary(index, builder, feature, idTranslator, docFilter);
+        builder.fill(dataSet);
+    }
+
+    public static void loadNumericalFeature(ESIndex index, DataSet dataSet, Feature feature,
+                                              IdTranslator idTranslator){
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(dataSet.getNumDataPoints(), dataSet.getNumFeatures());
+        loadNumericalFeature(index, builder, feature, idTranslator);
+        builder.fill(dataSet);
+    }
+
+    public static void loadCategoricalFeature(ESIndex index, BulkDataSetBuilder builder, CategoricalFeature feature,
+                                              IdTranslator idTranslator, String docFilter){
 //        String[] dataIndexIds = idTranslator.getAllExtIds();
         String variableName = feature.getVariableName();
         int featureIndex = feature.getIndex();
@@ -55,7 +187,7 @@ public class FeatureLoader {
         }
         for (String matchedId: matchedIds){
             int algorithmId = idTranslator.toIntId(matchedId);
-            dataSet.setFeatureValue(algorithmId,featureIndex,1);
+            builder.setFeatureValue(algorithmId,featureIndex,1);
         }
 
 //        List<String> docMissingField = index.docsWithFieldMissing(variableName,dataIndexIds);
@@ -67,26 +199,26 @@ public class FeatureLoader {
 
     }
 
-    public static void loadNgramFeature(ESIndex index, DataSet dataSet, Ngram feature,
+    public static void loadNgramFeature(ESIndex index, BulkDataSetBuilder builder, Ngram feature,
                                         IdTranslator idTranslator, MatchScoreType matchScoreType, String docFilter,
                                         Map<String, float[]> fieldLength){
         switch (matchScoreType){
             case ES_ORIGINAL:
-                loadNgramFeatureOriginal(index, dataSet, feature, idTranslator, docFilter);
+                loadNgramFeatureOriginal(index, builder, feature, idTranslator, docFilter);
                 break;
             case BINARY:
-                loadNgramFeatureBinary(index, dataSet, feature, idTranslator, docFilter);
+                loadNgramFeatureBinary(index, builder, feature, idTranslator, docFilter);
                 break;
             case FREQUENCY:
-                loadNgramFeatureFrequency(index, dataSet, feature, idTranslator, docFilter);
+                loadNgramFeatureFrequency(index, builder, feature, idTranslator, docFilter);
                 break;
             case TFIFL:
-                loadNgramFeatureTFIFL(index, dataSet, feature, idTranslator, docFilter, fieldLength);
+                loadNgramFeatureTFIFL(index, builder, feature, idTranslator, docFilter, fieldLength);
         }
     }
 
 
-    private static void loadNgramFeatureOriginal(ESIndex index, DataSet dataSet, Ngram feature,
+    private static void loadNgramFeatureOriginal(ESIndex index, BulkDataSetBuilder builder, Ngram feature,
                                                  IdTranslator idTranslator, String docFilter){
         int featureIndex = feature.getIndex();
         SearchResponse response = index.spanNear(feature, docFilter, idTranslator.numData());
@@ -95,11 +227,11 @@ public class FeatureLoader {
             String indexId = hit.getId();
             float score = hit.getScore();
             int algorithmId = idTranslator.toIntId(indexId);
-            dataSet.setFeatureValue(algorithmId,featureIndex,score);
+            builder.setFeatureValue(algorithmId,featureIndex,score);
         }
     }
 
-    private static void loadNgramFeatureFrequency(ESIndex index, DataSet dataSet, Ngram feature,
+    private static void loadNgramFeatureFrequency(ESIndex index, BulkDataSetBuilder builder, Ngram feature,
                                                   IdTranslator idTranslator, String docFilter){
         int featureIndex = feature.getIndex();
         SearchResponse response = index.spanNearFrequency(feature, docFilter, idTranslator.numData());
@@ -108,14 +240,14 @@ public class FeatureLoader {
             String indexId = hit.getId();
             float score = hit.getScore();
             int algorithmId = idTranslator.toIntId(indexId);
-            dataSet.setFeatureValue(algorithmId,featureIndex,score);
+            builder.setFeatureValue(algorithmId,featureIndex,score);
         }
     }
 
     // term frequency inverse field length
     // field storing the length of the body field should be called body_field_length
     // todo avoid repeated retrieval of the same field length
-    private static void loadNgramFeatureTFIFL(ESIndex index, DataSet dataSet, Ngram feature,
+    private static void loadNgramFeatureTFIFL(ESIndex index, BulkDataSetBuilder builder, Ngram feature,
                                               IdTranslator idTranslator, String docFilter,
                                               Map<String, float[]> fieldLength){
         int featureIndex = feature.getIndex();
@@ -129,11 +261,11 @@ public class FeatureLoader {
             float docLength = fieldLength.get(field)[algorithmId];
             double s = score/docLength;
 
-            dataSet.setFeatureValue(algorithmId,featureIndex,s);
+            builder.setFeatureValue(algorithmId,featureIndex,s);
         }
     }
 
-    public static void loadNgramFeatureBinary(ESIndex index, DataSet dataSet, Ngram feature,
+    public static void loadNgramFeatureBinary(ESIndex index, BulkDataSetBuilder builder, Ngram feature,
                                               IdTranslator idTranslator, String docFilter){
         int featureIndex = feature.getIndex();
         SearchResponse response = index.spanNear(feature, docFilter, idTranslator.numData());
@@ -145,7 +277,7 @@ public class FeatureLoader {
             if (score>0){
                 score=1;
             }
-            dataSet.setFeatureValue(algorithmId,featureIndex,score);
+            builder.setFeatureValue(algorithmId,featureIndex,score);
         }
     }
 
@@ -180,7 +312,7 @@ public class FeatureLoader {
 //    }
 
 
-    public static void loadNumericalFeature(ESIndex index, DataSet dataSet, Feature feature,
+    public static void loadNumericalFeature(ESIndex index, BulkDataSetBuilder builder, Feature feature,
                                               IdTranslator idTranslator){
         String[] dataIndexIds = idTranslator.getAllExtIds();
         String variableName = feature.getName();
@@ -191,13 +323,13 @@ public class FeatureLoader {
                 int algorithmId = idTranslator.toIntId(id);
                 //may return NaN
                 double value = index.getFloatField(id,variableName);
-                dataSet.setFeatureValue(algorithmId, featureIndex, value);
+                builder.setFeatureValue(algorithmId, featureIndex, value);
             });
         }
     }
 
 
-    private static void loadCodeDesFeature(ESIndex index, DataSet dataSet, Feature feature,
+    private static void loadCodeDesFeature(ESIndex index, BulkDataSetBuilder builder, Feature feature,
                                            IdTranslator idTranslator, String docFilter){
 
         int featureIndex = feature.getIndex();
@@ -208,13 +340,13 @@ public class FeatureLoader {
             String indexId = hit.getId();
             float score = hit.getScore();
             int algorithmId = idTranslator.toIntId(indexId);
-            dataSet.setFeatureValue(algorithmId,featureIndex,score);
+            builder.setFeatureValue(algorithmId,featureIndex,score);
         }
 
     }
 
 
-    private static void loadCodeDesFeatureTfidf(ESIndex index, DataSet dataSet, Feature feature,
+    private static void loadCodeDesFeatureTfidf(ESIndex index, BulkDataSetBuilder builder, Feature feature,
                                                 IdTranslator idTranslator, String docFilter){
         int featureIndex = feature.getIndex();
         CodeDescription codeDescription = (CodeDescription)(feature);
@@ -227,7 +359,7 @@ public class FeatureLoader {
             String indexId = hit.getId();
             float score = hit.getScore();
             int algorithmId = idTranslator.toIntId(indexId);
-            dataSet.setFeatureValue(algorithmId,featureIndex,score);
+            builder.setFeatureValue(algorithmId,featureIndex,score);
         }
 
     }
@@ -0,0 +1,249 @@
+package edu.neu.ccs.pyramid.elasticsearch;
+
+import edu.neu.ccs.pyramid.feature.Ngram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * matches many in order ngram features of one field against the term positions of a document at once
+ *
+ * the ngrams are kept in a trie over int token ids. a match follows the ordered span semantics of the
+ * span near and phrase count queries: for every occurrence of the first term, each following term is taken at
+ * its first occurrence after the previous one, and the match counts if the total number of skipped positions
+ * is at most the slop of the ngram. since the choice for a term only depends on the terms before it, ngrams
+ * sharing a prefix share its walk, and subtrees are pruned as soon as their largest slop is exceeded
+ * a single term ngram matches at each of its occurrences
+ *
+ * thread safe; scratch counts are kept per thread
+ */
+class NgramMatcher {
+    private Map<String,Integer> termIds = new HashMap<>();
+    // children of node i are childTerms/childNodes[childStarts[i], childStarts[i+1]), sorted by term
+    private int[] childStarts;
+    private int[] childTerms;
+    private int[] childNodes;
+    // features ending at node i are entries [entryStarts[i], entryStarts[i+1])
+    private int[] entryStarts;
+    private int[] entryFeatures;
+    private int[] entrySlops;
+    // largest slop in the subtree of each node
+    private int[] maxSlops;
+    private ThreadLocal<Scratch> scratch;
+
+    interface MatchConsumer {
+        void accept(int featureIndex, int count);
+    }
+
+    /**
+     * @param ngrams in order ngrams of the same field, with feature indices
+     */
+    NgramMatcher(List<Ngram> ngrams) {
+        List<Map<Integer,Integer>> children = new ArrayList<>();
+        List<List<Ngram>> endings = new ArrayList<>();
+        children.add(new HashMap<>());
+        endings.add(new ArrayList<>());
+        for (Ngram ngram: ngrams){
+            if (!ngram.isInOrder()){
+                throw new IllegalArgumentException("only in order ngrams can be matched, got "+ngram);
+            }
+            int node = 0;
+            for (String term: ngram.getTerms()){
+                int termId = termIds.computeIfAbsent(term, t -> termIds.size());
+                Integer child = children.get(node).get(termId);
+                if (child==null){
+                    child = children.size();
+                    children.get(node).put(termId, child);
+                    children.add(new HashMap<>());
+                    endings.add(new ArrayList<>());
+                }
+                node = child;
+            }
+            endings.get(node).add(ngram);
+        }
+
+        int numNodes = children.size();
+        childStarts = new int[numNodes+1];
+        childTerms = new int[numNodes-1];
+        childNodes = new int[numNodes-1];
+        entryStarts = new int[numNodes+1];
+        entryFeatures = new int[ngrams.size()];
+        entrySlops = new int[ngrams.size()];
+        int numChildren = 0;
+        int numEntries = 0;
+        for (int node=0;node<numNodes;node++){
+            childStarts[node] = numChildren;
+            int[] terms = children.get(node).keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+            for (int term: terms){
+                childTerms[numChildren] = term;
+                childNodes[numChildren] = children.get(node).get(term);
+                numChildren += 1;
+            }
+            entryStarts[node] = numEntries;
+            for (Ngram ngram: endings.get(node)){
+                entryFeatures[numEntries] = ngram.getIndex();
+                entrySlops[numEntries] = ngram.getSlop();
+                numEntries += 1;
+            }
+        }
+        childStarts[numNodes] = numChildren;
+        entryStarts[numNodes] = numEntries;
+
+        // children are always created after their parents
+        maxSlops = new int[numNodes];
+        Arrays.fill(maxSlops, -1);
+        for (int node=numNodes-1;node>=0;node--){
+            for (int e=entryStarts[node];e<entryStarts[node+1];e++){
+                maxSlops[node] = Math.max(maxSlops[node], entrySlops[e]);
+            }
+            for (int c=childStarts[node];c<childStarts[node+1];c++){
+                maxSlops[node] = Math.max(maxSlops[node], maxSlops[childNodes[c]]);
+            }
+        }
+        int numFeatureEntries = numEntries;
+        this.scratch = ThreadLocal.withInitial(() -> new Scratch(numFeatureEntries));
+    }
+
+    /**
+     * match all ngrams against one document
+     * @param termVector position to term map of the document
+     * @param consumer called once for each matched ngram, with its number of matches
+     */
+    void match(Map<Integer,String> termVector, MatchConsumer consumer){
+        Scratch scratch = this.scratch.get();
+        scratch.load(termVector, termIds);
+        for (int t=0;t<scratch.numTokens;t++){
+            int child = findChild(0, scratch.tokens[t]);
+            if (child==-1){
+                continue;
+            }
+            for (int p=scratch.tokenStarts[t];p<scratch.tokenStarts[t+1];p++){
+                visit(scratch, child, scratch.positions[p], 0);
+            }
+        }
+        for (int i=0;i<scratch.numTouched;i++){
+            int entry = scratch.touched[i];
+            consumer.accept(entryFeatures[entry], scratch.counts[entry]);
+            scratch.counts[entry] = 0;
+        }
+        scratch.numTouched = 0;
+    }
+
+    private void visit(Scratch scratch, int node, int position, int skipped){
+        for (int e=entryStarts[node];e<entryStarts[node+1];e++){
+            if (skipped<=entrySlops[e]){
+                if (scratch.counts[e]==0){
+                    scratch.touched[scratch.numTouched] = e;
+                    scratch.numTouched += 1;
+                }
+                scratch.counts[e] += 1;
+            }
+        }
+        int start = childStarts[node];
+        int end = childStarts[node+1];
+        if (end-start<=scratch.numTokens){
+            for (int c=start;c<end;c++){
+                visitChild(scratch, childNodes[c], scratch.findToken(childTerms[c]), position, skipped);
+            }
+        } else {
+            for (int t=0;t<scratch.numTokens;t++){
+                int child = findChild(node, scratch.tokens[t]);
+                if (child!=-1){
+                    visitChild(scratch, child, t, position, skipped);
+                }
+            }
+        }
+    }
+
+    private void visitChild(Scratch scratch, int child, int token, int position, int skipped){
+        if (token==-1){
+            return;
+        }
+        int next = scratch.nextPosition(token, position);
+        if (next==-1){
+            return;
+        }
+        int childSkipped = skipped + next - position - 1;
+        if (childSkipped<=maxSlops[child]){
+            visit(scratch, child, next, childSkipped);
+        }
+    }
+
+    private int findChild(int node, int term){
+        int index = Arrays.binarySearch(childTerms, childStarts[node], childStarts[node+1], term);
+        return index>=0? childNodes[index]: -1;
+    }
+
+    /**
+     * positions of the ngram terms in the current document, grouped by token, and match counts
+     */
+    private static class Scratch {
+        // distinct tokens of the document in ascending order, positions of token t are
+        // positions[tokenStarts[t], tokenStarts[t+1]) in ascending order
+        int numTokens;
+        int[] tokens = new int[16];
+        int[] tokenStarts = new int[17];
+        int[] positions = new int[16];
+        long[] pairs = new long[16];
+        // match counts by feature entry, and the entries with non zero counts
+        int[] counts;
+        int[] touched;
+        int numTouched;
+
+        Scratch(int numEntries) {
+            this.counts = new int[numEntries];
+            this.touched = new int[numEntries];
+        }
+
+        void load(Map<Integer,String> termVector, Map<String,Integer> termIds){
+            if (pairs.length<termVector.size()){
+                pairs = new long[termVector.size()];
+                positions = new int[termVector.size()];
+                tokens = new int[termVector.size()];
+                tokenStarts = new int[termVector.size()+1];
+            }
+            int numPairs = 0;
+            for (Map.Entry<Integer,String> entry: termVector.entrySet()){
+                Integer termId = termIds.get(entry.getValue());
+                if (termId!=null){
+                    pairs[numPairs] = ((long) termId<<32) | entry.getKey();
+                    numPairs += 1;
+                }
+            }
+            Arrays.sort(pairs, 0, numPairs);
+            numTokens = 0;
+            for (int i=0;i<numPairs;i++){
+                int token = (int) (pairs[i]>>>32);
+                if (numTokens==0 || tokens[numTokens-1]!=token){
+                    tokens[numTokens] = token;
+                    tokenStarts[numTokens] = i;
+                    numTokens += 1;
+                }
+                positions[i] = (int) pairs[i];
+            }
+            tokenStarts[numTokens] = numPairs;
+        }
+
+        /**
+         * @return index of the token in the document, -1 if it does not occur
+         */
+        int findToken(int token){
+            int index = Arrays.binarySearch(tokens, 0, numTokens, token);
+            return index>=0? index: -1;
+        }
+
+        /**
+         * @return first position of the token after the given one, -1 if none
+         */
+        int nextPosition(int token, int position){
+            int index = Arrays.binarySearch(positions, tokenStarts[token], tokenStarts[token+1], position+1);
+            if (index<0){
+                index = -index - 1;
+            }
+            return index<tokenStarts[token+1]? positions[index]: -1;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package edu.neu.ccs.pyramid.elasticsearch;
+
+import edu.neu.ccs.pyramid.feature.Ngram;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * in process positional inverted index answering the phrase count queries of the phrase-count-plugin,
+ * so phrases can be counted without a running elasticsearch node
+ *
+ * each term has one compressed posting list: for each document in increasing order,
+ * vint(doc delta), vint(freq), freq x vint(position delta)
+ * the index is immutable once built and can be queried from many threads
+ *
+ * scores follow PhraseCountQuery:
+ * a single term scores its frequency;
+ * in order phrases match as NearSpansOrdered: for every occurrence of the first term, each following term is taken
+ * at its first occurrence after the previous one, and the match counts if the skipped positions are at most slop;
+ * unordered phrases match as CustomNearSpansUnordered: the window of the current position of every term
+ * moves forward by its leftmost term, positions already used by a term are skipped by all terms, and a window
+ * counts if its length minus the number of terms is at most slop;
+ * the score is the number of matches, or with weightedCount the sum of 1/(width+1) over the matches,
+ * the sloppy frequency of the default similarities
+ */
+public class PositionalIndex {
+    private String[] docIds;
+    private Map<String,Integer> termIds;
+    private byte[][] postings;
+    private int[] docFreqs;
+
+    private PositionalIndex() {
+    }
+
+    /**
+     * index the term vectors of a field, fetched in bulk
+     */
+    public static PositionalIndex build(ESIndex index, String field, List<String> ids){
+        Builder builder = new Builder();
+        index.forEachTermVector(field, ids, builder::add);
+        return builder.build();
+    }
+
+    public int getNumDocs(){
+        return docIds.length;
+    }
+
+    public int getNumTerms(){
+        return termIds.size();
+    }
+
+    public int docFreq(String term){
+        Integer termId = termIds.get(term);
+        return termId==null? 0: docFreqs[termId];
+    }
+
+    /**
+     * same as the phrase count query of ESIndex.spanNearFrequency
+     * @return doc id to score, for the matched documents
+     */
+    public Map<String,Float> phraseCount(Ngram ngram){
+        return phraseCount(ngram.getTerms(), ngram.getSlop(), ngram.isInOrder(), false);
+    }
+
+    /**
+     * @return doc id to score, for the matched documents
+     */
+    public Map<String,Float> phraseCount(String[] terms, int slop, boolean inOrder, boolean weightedCount){
+        if (terms.length==0){
+            throw new IllegalArgumentException("no terms for phrase");
+        }
+        Map<String,Float> scores = new HashMap<>();
+        int[] clauseTerms = new int[terms.length];
+        for (int i=0;i<terms.length;i++){
+            Integer termId = termIds.get(terms[i]);
+            if (termId==null){
+                return scores;
+            }
+            clauseTerms[i] = termId;
+        }
+        new PhraseMatcher(clauseTerms, slop, inOrder, weightedCount).forEachMatch(
+                (doc, score) -> scores.put(docIds[doc], score));
+        return scores;
+    }
+
+    /**
+     * number of documents matching the phrase
+     */
+    public long count(Ngram ngram){
+        return phraseCount(ngram).size();
+    }
+
+    /**
+     * phrase counts of many ngrams, in parallel
+     * @return doc id to score for each ngram, in the order of the ngrams
+     */
+    public List<Map<String,Float>> phraseCounts(List<Ngram> ngrams, boolean weightedCount){
+        return ngrams.parallelStream()
+                .map(ngram -> phraseCount(ngram.getTerms(), ngram.getSlop(), ngram.isInOrder(), weightedCount))
+                .collect(Collectors.toList());
+    }
+
+    interface MatchConsumer {
+        void accept(int doc, float score);
+    }
+
+    /**
+     * one phrase query; walks the conjunction of the posting lists of its terms
+     */
+    private class PhraseMatcher {
+        private int slop;
+        private boolean inOrder;
+        private boolean weightedCount;
+        // distinct terms of the phrase, and the term of each clause
+        private PostingsReader[] readers;
+        private int[] clauseReaders;
+        // current position index of each clause, for the unordered window
+        private int[] clausePointers;
+        private BitSet used = new BitSet();
+
+        PhraseMatcher(int[] clauseTerms, int slop, boolean inOrder, boolean weightedCount) {
+            this.slop = slop;
+            this.inOrder = inOrder;
+            this.weightedCount = weightedCount;
+            int[] distinct = Arrays.stream(clauseTerms).distinct().toArray();
+            this.readers = new PostingsReader[distinct.length];
+            for (int i=0;i<distinct.length;i++){
+                readers[i] = new PostingsReader(postings[distinct[i]]);
+            }
+            this.clauseReaders = new int[clauseTerms.length];
+            for (int c=0;c<clauseTerms.length;c++){
+                for (int i=0;i<distinct.length;i++){
+                    if (distinct[i]==clauseTerms[c]){
+                        clauseReaders[c] = i;
+                    }
+                }
+            }
+            this.clausePointers = new int[clauseTerms.length];
+        }
+
+        void forEachMatch(MatchConsumer consumer){
+            int doc = -1;
+            while (true){
+                // leapfrog: advance all posting lists to the largest current doc
+                boolean agreed = true;
+                int target = doc + 1;
+                for (PostingsReader reader: readers){
+                    int current = reader.advance(target);
+                    if (current==Integer.MAX_VALUE){
+                        return;
+                    }
+                    if (current!=target){
+                        agreed = false;
+                        target = current;
+                    }
+                }
+                if (!agreed){
+                    doc = target - 1;
+                    continue;
+                }
+                doc = target;
+                float score = score();
+                if (score>0){
+                    consumer.accept(doc, score);
+                }
+            }
+        }
+
+        private float score(){
+            if (clauseReaders.length==1){
+                return readers[0].freq;
+            }
+            return inOrder? scoreOrdered(): scoreUnordered();
+        }
+
+        private float scoreOrdered(){
+            int numMatches = 0;
+            float freq = 0;
+            PostingsReader first = readers[clauseReaders[0]];
+            Arrays.fill(clausePointers, 0);
+            for (int p=0;p<first.freq;p++){
+                int previous = first.positions[p];
+                int skipped = 0;
+                for (int c=1;c<clauseReaders.length;c++){
+                    PostingsReader reader = readers[clauseReaders[c]];
+                    // pointers only move forward, as the sub spans
+                    while (clausePointers[c]<reader.freq && reader.positions[clausePointers[c]]<=previous){
+                        clausePointers[c] += 1;
+                    }
+                    if (clausePointers[c]==reader.freq){
+                        // no later start can match either
+                        return weightedCount? freq: numMatches;
+                    }
+                    int position = reader.positions[clausePointers[c]];
+                    skipped += position - previous - 1;
+                    previous = position;
+                }
+                if (skipped<=slop){
+                    numMatches += 1;
+                    freq += 1.0f/(skipped+1);
+                }
+            }
+            return weightedCount? freq: numMatches;
+        }
+
+        private float scoreUnordered(){
+            int numClauses = clauseReaders.length;
+            used.clear();
+            int maxEnd = -1;
+            for (int c=0;c<numClauses;c++){
+                clausePointers[c] = -1;
+                if (!nextUnused(c)){
+                    // an exhausted term keeps the window end at infinity
+                    return 0;
+                }
+                maxEnd = Math.max(maxEnd, start(c)+1);
+            }
+            int numMatches = 0;
+            float freq = 0;
+            while (true){
+                int top = 0;
+                for (int c=1;c<numClauses;c++){
+                    if (start(c)<start(top)){
+                        top = c;
+                    }
+                }
+                int width = maxEnd - start(top);
+                if (width-numClauses<=slop){
+                    numMatches += 1;
+                    freq += 1.0f/(width+1);
+                }
+                if (!nextUnused(top)){
+                    break;
+                }
+                maxEnd = Math.max(maxEnd, start(top)+1);
+            }
+            return weightedCount? freq: numMatches;
+        }
+
+        private int start(int clause){
+            return readers[clauseReaders[clause]].positions[clausePointers[clause]];
+        }
+
+        /**
+         * move the clause to its next position not used by any clause yet and mark it used
+         * @return false if the clause is exhausted
+         */
+        private boolean nextUnused(int clause){
+            PostingsReader reader = readers[clauseReaders[clause]];
+            do {
+                clausePointers[clause] += 1;
+                if (clausePointers[clause]==reader.freq){
+                    return false;
+                }
+            } while (used.get(reader.positions[clausePointers[clause]]));
+            used.set(reader.positions[clausePointers[clause]]);
+            return true;
+        }
+    }
+
+    /**
+     * decodes one posting list, one document at a time
+     */
+    private static class PostingsReader {
+        private byte[] bytes;
+        private int offset;
+        int doc = -1;
+        int freq;
+        int[] positions = new int[8];
+
+        PostingsReader(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        /**
+         * move to the first document >= target and decode its positions
+         * @return the document, Integer.MAX_VALUE if there is none
+         */
+        int advance(int target){
+            while (doc<target){
+                if (offset==bytes.length){
+                    doc = Integer.MAX_VALUE;
+                    return doc;
+                }
+                doc = (doc==-1? 0: doc) + readVInt();
+                freq = readVInt();
+                if (doc<target){
+                    for (int i=0;i<freq;i++){
+                        readVInt();
+                    }
+                } else {
+                    if (positions.length<freq){
+                        positions = new int[Math.max(freq, 2*positions.length)];
+                    }
+                    int position = 0;
+                    for (int i=0;i<freq;i++){
+                        position += readVInt();
+                        positions[i] = position;
+                    }
+                }
+            }
+            return doc;
+        }
+
+        private int readVInt(){
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = bytes[offset];
+                offset += 1;
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b<0);
+            return value;
+        }
+    }
+
+    /**
+     * documents are numbered in the order they are added; add is synchronized, so the term vectors can come
+     * from several fetching threads
+     */
+    public static class Builder {
+        private List<String> docIds = new ArrayList<>();
+        private Map<String,Integer> termIds = new HashMap<>();
+        private List<PostingsWriter> writers = new ArrayList<>();
+
+        /**
+         * @param termVector position to term map of the document
+         */
+        public synchronized Builder add(String docId, Map<Integer,String> termVector){
+            int doc = docIds.size();
+            docIds.add(docId);
+            Map<String,List<Integer>> termPositions = new HashMap<>();
+            for (Map.Entry<Integer,String> entry: termVector.entrySet()){
+                termPositions.computeIfAbsent(entry.getValue(), term -> new ArrayList<>()).add(entry.getKey());
+            }
+            for (Map.Entry<String,List<Integer>> entry: termPositions.entrySet()){
+                Integer termId = termIds.get(entry.getKey());
+                if (termId==null){
+                    termId = writers.size();
+                    termIds.put(entry.getKey(), termId);
+                    writers.add(new PostingsWriter());
+                }
+                int[] positions = entry.getValue().stream().mapToInt(Integer::intValue).sorted().toArray();
+                writers.get(termId).add(doc, positions);
+            }
+            return this;
+        }
+
+        public synchronized PositionalIndex build(){
+            PositionalIndex index = new PositionalIndex();
+            index.docIds = docIds.toArray(new String[docIds.size()]);
+            index.termIds = new HashMap<>(termIds);
+            index.postings = new byte[writers.size()][];
+            index.docFreqs = new int[writers.size()];
+            for (int t=0;t<writers.size();t++){
+                index.postings[t] = writers.get(t).toBytes();
+                index.docFreqs[t] = writers.get(t).docFreq;
+            }
+            return index;
+        }
+    }
+
+    private static class PostingsWriter {
+        private byte[] bytes = new byte[16];
+        private int size;
+        private int lastDoc = -1;
+        private int docFreq;
+
+        void add(int doc, int[] sortedPositions){
+            writeVInt(lastDoc==-1? doc: doc-lastDoc);
+            writeVInt(sortedPositions.length);
+            int last = 0;
+            for (int position: sortedPositions){
+                writeVInt(position-last);
+                last = position;
+            }
+            lastDoc = doc;
+            docFreq += 1;
+        }
+
+        byte[] toBytes(){
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void writeVInt(int value){
+            if (size+5>bytes.length){
+                bytes = Arrays.copyOf(bytes, 2*bytes.length);
+            }
+            while ((value & ~0x7F)!=0){
+                bytes[size] = (byte) ((value & 0x7F) | 0x80);
+                size += 1;
+                value >>>= 7;
+            }
+            bytes[size] = (byte) value;
+            size += 1;
+        }
+    }
+}
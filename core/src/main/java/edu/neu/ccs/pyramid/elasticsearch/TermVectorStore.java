@@ -0,0 +1,238 @@
+package edu.neu.ccs.pyramid.elasticsearch;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * persistent local copy of term vectors (position to term maps), so repeated feature extraction runs
+ * do not have to fetch the same documents from elasticsearch again
+ *
+ * each field has two append only files in the directory:
+ * <field>.terms, the distinct terms as UTF strings, the id of a term is its order in the file;
+ * <field>.vectors, one record per document: [int record length][UTF doc id][int n][n positions ascending][n term ids]
+ * positions and term ids are stored as two columns, so a record is read with two bulk reads
+ * on open, the files are scanned once to index the records by doc id; a partial record at the end
+ * (from an interrupted run) is truncated
+ * all methods are synchronized, the store can be shared by the fetching threads
+ */
+public class TermVectorStore implements AutoCloseable{
+    private File directory;
+    private Map<String, FieldStore> fieldStores = new HashMap<>();
+
+    public TermVectorStore(File directory) {
+        if (!directory.exists() && !directory.mkdirs()){
+            throw new UncheckedIOException(new IOException("cannot create directory "+directory));
+        }
+        if (!directory.isDirectory()){
+            throw new IllegalArgumentException(directory+" is not a directory");
+        }
+        this.directory = directory;
+    }
+
+    public TermVectorStore(String directory) {
+        this(new File(directory));
+    }
+
+    /**
+     * @return position to term map of the document, null if the document is not in the store
+     */
+    public synchronized Map<Integer,String> get(String field, String id){
+        try {
+            return fieldStore(field).get(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * add the term vector of a document; a document already in the store is left unchanged
+     */
+    public synchronized void put(String field, String id, Map<Integer,String> termVector){
+        try {
+            fieldStore(field).put(id, termVector);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public synchronized boolean contains(String field, String id){
+        try {
+            return fieldStore(field).offsets.containsKey(id);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * number of documents stored for the field
+     */
+    public synchronized int size(String field){
+        try {
+            return fieldStore(field).offsets.size();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        IOException exception = null;
+        for (FieldStore fieldStore: fieldStores.values()){
+            try {
+                fieldStore.close();
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        fieldStores.clear();
+        if (exception!=null){
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    private FieldStore fieldStore(String field) throws IOException {
+        FieldStore fieldStore = fieldStores.get(field);
+        if (fieldStore==null){
+            fieldStore = new FieldStore(new File(directory, field+".terms"), new File(directory, field+".vectors"));
+            fieldStores.put(field, fieldStore);
+        }
+        return fieldStore;
+    }
+
+    private static class FieldStore {
+        private RandomAccessFile termFile;
+        private RandomAccessFile vectorFile;
+        private List<String> terms = new ArrayList<>();
+        private Map<String,Integer> termIds = new HashMap<>();
+        // doc id to offset of its record in the vector file
+        private Map<String,Long> offsets = new HashMap<>();
+
+        FieldStore(File termPath, File vectorPath) throws IOException {
+            this.termFile = new RandomAccessFile(termPath, "rw");
+            this.vectorFile = new RandomAccessFile(vectorPath, "rw");
+            loadTerms();
+            loadOffsets();
+        }
+
+        Map<Integer,String> get(String id) throws IOException {
+            Long offset = offsets.get(id);
+            if (offset==null){
+                return null;
+            }
+            vectorFile.seek(offset);
+            byte[] record = new byte[vectorFile.readInt()];
+            vectorFile.readFully(record);
+            DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+            input.readUTF();
+            int n = input.readInt();
+            int[] positions = new int[n];
+            for (int i=0;i<n;i++){
+                positions[i] = input.readInt();
+            }
+            Map<Integer,String> termVector = new HashMap<>();
+            for (int i=0;i<n;i++){
+                termVector.put(positions[i], terms.get(input.readInt()));
+            }
+            return termVector;
+        }
+
+        void put(String id, Map<Integer,String> termVector) throws IOException {
+            if (offsets.containsKey(id)){
+                return;
+            }
+            TreeMap<Integer,String> sorted = new TreeMap<>(termVector);
+            // new terms go to the term file first, so a stored record never refers to a missing term
+            ByteArrayOutputStream newTerms = new ByteArrayOutputStream();
+            DataOutputStream termOutput = new DataOutputStream(newTerms);
+            int[] ids = new int[sorted.size()];
+            int i = 0;
+            for (String term: sorted.values()){
+                Integer termId = termIds.get(term);
+                if (termId==null){
+                    termId = terms.size();
+                    terms.add(term);
+                    termIds.put(term, termId);
+                    termOutput.writeUTF(term);
+                }
+                ids[i] = termId;
+                i += 1;
+            }
+            if (newTerms.size()>0){
+                termFile.seek(termFile.length());
+                termFile.write(newTerms.toByteArray());
+            }
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(record);
+            output.writeUTF(id);
+            output.writeInt(sorted.size());
+            for (int position: sorted.keySet()){
+                output.writeInt(position);
+            }
+            for (int termId: ids){
+                output.writeInt(termId);
+            }
+            long offset = vectorFile.length();
+            vectorFile.seek(offset);
+            vectorFile.writeInt(record.size());
+            vectorFile.write(record.toByteArray());
+            offsets.put(id, offset);
+        }
+
+        void close() throws IOException {
+            try {
+                termFile.close();
+            } finally {
+                vectorFile.close();
+            }
+        }
+
+        private void loadTerms() throws IOException {
+            long length = termFile.length();
+            long valid = 0;
+            termFile.seek(0);
+            while (valid<length){
+                try {
+                    String term = termFile.readUTF();
+                    termIds.put(term, terms.size());
+                    terms.add(term);
+                    valid = termFile.getFilePointer();
+                } catch (EOFException e) {
+                    break;
+                }
+            }
+            if (valid<length){
+                termFile.setLength(valid);
+            }
+        }
+
+        private void loadOffsets() throws IOException {
+            long length = vectorFile.length();
+            long offset = 0;
+            while (offset+4<=length){
+                vectorFile.seek(offset);
+                int recordLength = vectorFile.readInt();
+                if (recordLength<0 || offset+4+recordLength>length){
+                    break;
+                }
+                offsets.put(vectorFile.readUTF(), offset);
+                offset += 4 + recordLength;
+            }
+            if (offset<length){
+                vectorFile.setLength(offset);
+            }
+        }
+    }
+}
@@ -3,15 +3,9 @@ package edu.neu.ccs.pyramid.eval;
 import edu.neu.ccs.pyramid.classification.Classifier;
 import edu.neu.ccs.pyramid.dataset.ClfDataSet;
 import edu.neu.ccs.pyramid.dataset.DataSet;
-import edu.neu.ccs.pyramid.util.MathUtil;
-import edu.neu.ccs.pyramid.util.Pair;
+import edu.neu.ccs.pyramid.util.ArgSort;
 
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 /**
  * Created by chengli on 9/9/14.
@@ -21,18 +15,14 @@ public class AUC {
         if (dataSet.getNumClasses()!=2){
             throw new IllegalArgumentException("dataSet.getNumClasses()!=2");
         }
-        double[] probForOne = IntStream.range(0, dataSet.getNumDataPoints()).parallel()
-                .mapToDouble(i -> probEstimator.predictClassProbs(dataSet.getRow(i))[1])
-                .toArray();
         int[] labels = dataSet.getLabels();
-        return auc(probForOne,labels);
+        return auc(probEstimator, dataSet, labels);
     }
 
     public static double auc(Classifier.ProbabilityEstimator probEstimator, DataSet dataSet, int[] labels){
-
-        double[] probForOne = IntStream.range(0, dataSet.getNumDataPoints()).parallel()
-                .mapToDouble(i -> probEstimator.predictClassProbs(dataSet.getRow(i))[1])
-                .toArray();
+        double[][] probs = new double[dataSet.getNumDataPoints()][probEstimator.getNumClasses()];
+        probEstimator.predictClassProbs(dataSet, probs);
+        double[] probForOne = Arrays.stream(probs).mapToDouble(p -> p[1]).toArray();
         return auc(probForOne,labels);
     }
 
@@ -43,71 +33,50 @@ public class AUC {
      * @return
      */
     public static double auc(double[] scores, int[] labels){
-        int sum = Arrays.stream(labels).sum();
-        // if only positive or only negative, return 1
-        if (sum ==0 || sum==labels.length){
-            return 1;
-        }
-        Comparator<Pair<Double,Integer>> comparator = Comparator.comparing(Pair::getFirst);
-        List<Pair<Double,Integer>> sortedPairs = IntStream.range(0,scores.length).parallel()
-                .mapToObj(i -> new Pair<>(scores[i], labels[i]))
-                .sorted(comparator.reversed()).collect(Collectors.toList());
-        List<List<Double>> rates = getRates(sortedPairs);
-        return area(rates);
+        return auc(scores, labels, ArgSort.argSortDescending(scores));
     }
 
     /**
-     * assume 1 is positive, 0 is negative
-     * labels are sorted based on scores, from most likely to least likely of being positive
-     * @param sortedPairs descending order by scores
+     * assume 1 is positive, everything else is negative
+     * single pass over the sorted scores; data with equal scores form one step of the roc curve,
+     * and the trapezoid area is accumulated in counts, so the result does not depend on the order within ties
+     * @param scores original order
+     * @param labels original order
+     * @param sortedIndices indices of the scores in descending order; only the first scores.length entries are read
      * @return
      */
-    private static List<List<Double>> getRates(List<Pair<Double,Integer>> sortedPairs){
-        int numData = sortedPairs.size();
-        List<Double> truePositiveRates = new ArrayList<>();
-        List<Double> falsePositiveRates = new ArrayList<>();
-        double numPositives = sortedPairs.stream().parallel()
-                .filter(pair -> pair.getSecond() == 1).count();
-        double numNegatives = numData - numPositives;
-        double truePositive = 0;
-        double falsePositive = 0;
-        truePositiveRates.add(0.0);
-        falsePositiveRates.add(0.0);
-        //start with all negative
+    static double auc(double[] scores, int[] labels, int[] sortedIndices){
+        int numData = scores.length;
+        long numPositives = 0;
         for (int i=0;i<numData;i++){
-            Pair<Double, Integer> pair = sortedPairs.get(i);
-            int label = pair.getSecond();
-            double score = pair.getFirst();
-            if (label ==1){
+            if (labels[i]==1){
+                numPositives += 1;
+            }
+        }
+        long numNegatives = numData - numPositives;
+        // if only positive or only negative, return 1
+        if (numPositives==0 || numNegatives==0){
+            return 1;
+        }
+        long truePositive = 0;
+        long falsePositive = 0;
+        long previousTruePositive = 0;
+        long previousFalsePositive = 0;
+        // twice the area, in units of 1/(numPositives*numNegatives)
+        long area = 0;
+        for (int i=0;i<numData;i++){
+            int index = sortedIndices[i];
+            if (labels[index]==1){
                 truePositive += 1;
             } else {
                 falsePositive += 1;
             }
-            boolean condition1 = (i<numData-1)&&(score!=sortedPairs.get(i+1).getFirst());
-            boolean condition2 = (i==numData-1);
-            boolean condition = condition1||condition2;
-            if (condition){
-                truePositiveRates.add(truePositive/numPositives);
-                falsePositiveRates.add(falsePositive/numNegatives);
+            if (i==numData-1 || scores[index]!=scores[sortedIndices[i+1]]){
+                area += (falsePositive-previousFalsePositive)*(truePositive+previousTruePositive);
+                previousTruePositive = truePositive;
+                previousFalsePositive = falsePositive;
             }
         }
-        List<List<Double>> rates = new ArrayList<>();
-        rates.add(truePositiveRates);
-        rates.add(falsePositiveRates);
-        return rates;
-    }
-
-    private static double area(List<List<Double>> rates){
-        List<Double> tpr = rates.get(0);
-        List<Double> fpr = rates.get(1);
-//        System.out.println("true positive rates:");
-//        System.out.println(tpr);
-//        System.out.println("false positive rates:");
-//        System.out.println(fpr);
-        double tmp = IntStream.range(0,tpr.size()-1).parallel()
-                .mapToDouble(i ->
-                        (fpr.get(i) - fpr.get(i + 1)) * (tpr.get(i) + tpr.get(i + 1))).sum();
-        double area = Math.abs(tmp)/2;
-        return area;
+        return area/(2.0*numPositives*numNegatives);
     }
 }
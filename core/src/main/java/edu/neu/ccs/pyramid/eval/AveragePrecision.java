@@ -96,12 +96,27 @@ public class AveragePrecision {
      * @return
      */
     public static double averagePrecision(int[] binaryLabels, double[] scores){
-        int[] sortedIndices = ArgSort.argSortDescending(scores);
-        int[] relevance = new int[binaryLabels.length];
-        for (int i=0;i<relevance.length;i++){
-            relevance[i] = binaryLabels[sortedIndices[i]];
+        return averagePrecision(binaryLabels, ArgSort.argSortDescending(scores), binaryLabels.length);
+    }
+
+    /**
+     * same as averagePrecision(int[] relevance), reading the relevance through the sorted indices
+     * @param binaryLabels original order
+     * @param sortedIndices indices in descending order of scores
+     * @param numData number of entries of sortedIndices to use
+     */
+    static double averagePrecision(int[] binaryLabels, int[] sortedIndices, int numData){
+        double totalRelevant = 0;
+        double relevantSoFar = 0;
+        double sumPrecisionAtK = 0;
+        for (int i=0;i<numData;i++){
+            if (binaryLabels[sortedIndices[i]]==1){
+                totalRelevant += 1;
+                relevantSoFar += 1;
+                sumPrecisionAtK += relevantSoFar/(i+1);
+            }
         }
-        return averagePrecision(relevance);
+        return SafeDivide.divide(sumPrecisionAtK,totalRelevant, 1);
     }
 
     /**
@@ -133,9 +148,9 @@ public class AveragePrecision {
     }
 
     public static double averagePrecision(Classifier.ProbabilityEstimator classifier, DataSet dataSet, int[] labels){
-        double[] probs = new double[dataSet.getNumDataPoints()];
-        IntStream.range(0, dataSet.getNumDataPoints()).parallel()
-                .forEach(i->probs[i]= classifier.predictClassProbs(dataSet.getRow(i))[1]);
+        double[][] classProbs = new double[dataSet.getNumDataPoints()][classifier.getNumClasses()];
+        classifier.predictClassProbs(dataSet, classProbs);
+        double[] probs = Arrays.stream(classProbs).mapToDouble(p -> p[1]).toArray();
         return averagePrecision(labels, probs);
     }
 
@@ -168,14 +183,21 @@ public class AveragePrecision {
         int[] binaryLabels = new int[dataSet.getNumDataPoints()*dataSet.getNumClasses()];
         double[] scores = new double[dataSet.getNumDataPoints()*dataSet.getNumClasses()];
         int numClasses = dataSet.getNumClasses();
-        IntStream.range(0, dataSet.getNumDataPoints()).parallel()
-                .forEach(i->{
-                    double[] p = classifier.predictClassProbs(dataSet.getRow(i));
-                    System.arraycopy(p, 0, scores, i * numClasses, numClasses);
-                    for (int l:dataSet.getMultiLabels()[i].getMatchedLabels()){
-                        binaryLabels[i*numClasses+l]=1;
-                    }
-                });
+        int numDataPoints = dataSet.getNumDataPoints();
+        int blockSize = 4096;
+        double[][] probs = new double[Math.min(blockSize, numDataPoints)][Math.max(numClasses, classifier.getNumClasses())];
+        for (int start=0;start<numDataPoints;start+=blockSize){
+            int blockStart = start;
+            int blockEnd = Math.min(numDataPoints, start+blockSize);
+            classifier.predictClassProbs(dataSet, blockStart, blockEnd, probs);
+            IntStream.range(blockStart, blockEnd).parallel()
+                    .forEach(i->{
+                        System.arraycopy(probs[i-blockStart], 0, scores, i * numClasses, numClasses);
+                        for (int l:dataSet.getMultiLabels()[i].getMatchedLabels()){
+                            binaryLabels[i*numClasses+l]=1;
+                        }
+                    });
+        }
         return averagePrecision(binaryLabels, scores);
     }
 
@@ -229,37 +251,18 @@ public class AveragePrecision {
         int[] sortedIndices = ArgSort.argSortDescending(scores);
 
         double sumPrecision = 0.0;
-        // the precision at k, k is the cutoff from top scores to bottom.
-//        double[] precisionAtK = new double[scores.length];
-
-        Set<Integer> positivePredict = new HashSet<>();
+        // the predicted positives are the top k+1 labels, so the precision at k is the number of relevant ones among them over k+1
+        int relevantSoFar = 0;
         for (int k=0; k<sortedIndices.length; k++) {
-            int predict = sortedIndices[k];
-            positivePredict.add(predict);  // add the current label into prediction positive set.
-            if (label.contains(predict)) {
-                sumPrecision += getPrecision(label, positivePredict);
+            if (label.contains(sortedIndices[k])) {
+                relevantSoFar += 1;
+                sumPrecision += Precision.precision(relevantSoFar, k+1-relevantSoFar);
             }
         }
 
         return 1.0 / label.size() * sumPrecision;
     }
 
-    private static double getPrecision(Set<Integer> label, Set<Integer> positivePredict) {
-        int tp = 0;
-        int fp = 0;
-        int fn = 0;
-
-        for (Integer predict : positivePredict) {
-            if (label.contains(predict)) {
-                tp++;
-            }
-        }
-        fp = positivePredict.size() - tp;
-        fn = label.size() - tp;
-
-        return Precision.precision(tp,fp);
-    }
-
     // average precision on a label; sort instances
     public static double labelAveragePrecision(MultiLabelClassifier.ClassProbEstimator classifier, MultiLabelClfDataSet dataSet, int labelIndex){
         int numClassesInModel = classifier.getNumClasses();
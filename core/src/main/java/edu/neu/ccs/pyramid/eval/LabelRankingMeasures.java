@@ -0,0 +1,129 @@
+package edu.neu.ccs.pyramid.eval;
+
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
+import edu.neu.ccs.pyramid.multilabel_classification.MultiLabelClassifier;
+import edu.neu.ccs.pyramid.util.ArgSort;
+
+import java.util.stream.IntStream;
+
+/**
+ * label wise ranking measures, AUC and average precision, of all labels from one score matrix
+ * each label sorts its score column once and reads both measures off the same order;
+ * labels are processed in parallel, and each thread reuses its column, binary label and sort arrays
+ * results are the same as AUC.auc and AveragePrecision.averagePrecision on each column
+ */
+public class LabelRankingMeasures {
+    private double[] labelWiseAUC;
+    private double[] labelWiseAveragePrecision;
+
+    /**
+     * @param scores size = num data points * num scores; a label without a score column
+     *               (a novel label in the test set) gets score 0 for all data points
+     * @param multiLabels true labels
+     * @param numLabels number of labels to evaluate
+     */
+    public LabelRankingMeasures(double[][] scores, MultiLabel[] multiLabels, int numLabels) {
+        if (scores.length!=multiLabels.length){
+            throw new IllegalArgumentException("scores.length!=multiLabels.length");
+        }
+        int numData = scores.length;
+        int numScores = numData==0? 0: scores[0].length;
+        int[][] positives = positives(multiLabels, numLabels);
+        this.labelWiseAUC = new double[numLabels];
+        this.labelWiseAveragePrecision = new double[numLabels];
+        ThreadLocal<Work> works = ThreadLocal.withInitial(() -> new Work(numData));
+        IntStream.range(0, numLabels).parallel().forEach(l -> {
+            Work work = works.get();
+            for (int i=0;i<numData;i++){
+                work.column[i] = l<numScores? scores[i][l]: 0;
+            }
+            for (int i: positives[l]){
+                work.binaryLabels[i] = 1;
+            }
+            int[] sortedIndices = work.sorter.argSortDescending(work.column);
+            labelWiseAUC[l] = AUC.auc(work.column, work.binaryLabels, sortedIndices);
+            labelWiseAveragePrecision[l] = AveragePrecision.averagePrecision(work.binaryLabels, sortedIndices, numData);
+            for (int i: positives[l]){
+                work.binaryLabels[i] = 0;
+            }
+        });
+    }
+
+    /**
+     * probabilities are predicted once for the whole data set
+     */
+    public LabelRankingMeasures(MultiLabelClassifier.ClassProbEstimator classifier, MultiLabelClfDataSet dataSet) {
+        this(predictClassProbs(classifier, dataSet), dataSet.getMultiLabels(), dataSet.getNumClasses());
+    }
+
+    public double[] getLabelWiseAUC() {
+        return labelWiseAUC;
+    }
+
+    public double[] getLabelWiseAveragePrecision() {
+        return labelWiseAveragePrecision;
+    }
+
+    public double getMeanAUC(){
+        return mean(labelWiseAUC);
+    }
+
+    /**
+     * label MAP
+     */
+    public double getMeanAveragePrecision(){
+        return mean(labelWiseAveragePrecision);
+    }
+
+    static double[][] predictClassProbs(MultiLabelClassifier.ClassProbEstimator classifier, MultiLabelClfDataSet dataSet){
+        double[][] probs = new double[dataSet.getNumDataPoints()][classifier.getNumClasses()];
+        classifier.predictClassProbs(dataSet, probs);
+        return probs;
+    }
+
+    private static double mean(double[] values){
+        double sum = 0;
+        for (double value: values){
+            sum += value;
+        }
+        return sum/values.length;
+    }
+
+    // data points of each label, ascending
+    private static int[][] positives(MultiLabel[] multiLabels, int numLabels){
+        int[] counts = new int[numLabels];
+        for (MultiLabel multiLabel: multiLabels){
+            for (int l: multiLabel.getMatchedLabels()){
+                if (l<numLabels){
+                    counts[l] += 1;
+                }
+            }
+        }
+        int[][] positives = new int[numLabels][];
+        for (int l=0;l<numLabels;l++){
+            positives[l] = new int[counts[l]];
+            counts[l] = 0;
+        }
+        for (int i=0;i<multiLabels.length;i++){
+            for (int l: multiLabels[i].getMatchedLabels()){
+                if (l<numLabels){
+                    positives[l][counts[l]] = i;
+                    counts[l] += 1;
+                }
+            }
+        }
+        return positives;
+    }
+
+    private static class Work {
+        double[] column;
+        int[] binaryLabels;
+        ArgSort.Sorter sorter = new ArgSort.Sorter();
+
+        Work(int numData) {
+            this.column = new double[numData];
+            this.binaryLabels = new int[numData];
+        }
+    }
+}
@@ -6,7 +6,6 @@ import edu.neu.ccs.pyramid.multilabel_classification.MultiLabelClassifier;
 import edu.neu.ccs.pyramid.multilabel_classification.Utils;
 
 import java.util.List;
-import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 /**
@@ -56,8 +55,8 @@ public class MAP {
      * @return
      */
     public static double map(MultiLabelClassifier.ClassProbEstimator classifier, MultiLabelClfDataSet dataSet){
-        List<Integer> labels = IntStream.range(0, dataSet.getNumClasses()).boxed().collect(Collectors.toList());
-        return map(classifier, dataSet, labels);
+        // novel labels in test set get marginal 0, as in map over given labels
+        return new LabelRankingMeasures(classifier, dataSet).getMeanAveragePrecision();
     }
 
 
@@ -65,26 +64,7 @@ public class MAP {
         if (classifier.getNumClasses()!=dataSet.getNumClasses()){
             throw new IllegalArgumentException("classifier.getNumClasses()!=dataSet.getNumClasses()");
         }
-        int numData = dataSet.getNumDataPoints();
-        double[][] probs = new double[dataSet.getNumDataPoints()][dataSet.getNumClasses()];
-
-        IntStream.range(0, dataSet.getNumDataPoints()).parallel()
-                .forEach(i->probs[i] = classifier.predictClassProbs(dataSet.getRow(i)));
-        double[] ap = new double[classifier.getNumClasses()];
-
-        for (int l=0;l<classifier.getNumClasses();l++){
-            int[] binaryLabels = new int[numData];
-            double[] marginals = new double[numData];
-            for (int i=0;i<numData;i++){
-                if (dataSet.getMultiLabels()[i].matchClass(l)){
-                    binaryLabels[i] = 1;
-                }
-                marginals[i] = probs[i][l];
-            }
-
-            ap[l] = AveragePrecision.averagePrecision(binaryLabels, marginals);
-        }
-        return ap;
+        return new LabelRankingMeasures(classifier, dataSet).getLabelWiseAveragePrecision();
     }
 
 
@@ -114,8 +114,12 @@ public class MacroAverage implements Serializable {
     }
 
     public void updateAveragePrecision(MultiLabelClassifier.ClassProbEstimator classifier, MultiLabelClfDataSet dataSet){
-        this.labelWiseAveragePrecision = new double[dataSet.getNumClasses()];
-        IntStream.range(0,dataSet.getNumClasses()).forEach(k->labelWiseAveragePrecision[k]=AveragePrecision.labelAveragePrecision(classifier,dataSet,k));
+        // one prediction pass and one sort per label, labels in parallel
+        this.labelWiseAveragePrecision = new LabelRankingMeasures(classifier, dataSet).getLabelWiseAveragePrecision();
+        // labels unknown to the model get 0, as in AveragePrecision.labelAveragePrecision
+        for (int k=classifier.getNumClasses();k<labelWiseAveragePrecision.length;k++){
+            labelWiseAveragePrecision[k] = 0;
+        }
         this.averagePrecision = MathUtil.arraySum(labelWiseAveragePrecision)/labelWiseAveragePrecision.length;
     }
 
@@ -4,7 +4,6 @@ import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
 import edu.neu.ccs.pyramid.multilabel_classification.MultiLabelClassifier;
 import edu.neu.ccs.pyramid.util.ArgSort;
-import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.math3.util.FastMath;
 
 import java.util.Arrays;
@@ -94,8 +93,12 @@ public class NDCG {
         //should not sort the original one
         double[] sortedGrades = Arrays.copyOf(gradesInRankedList, gradesInRankedList.length);
         Arrays.sort(sortedGrades);
-        ArrayUtils.reverse(sortedGrades);
-        return dcg(sortedGrades,truncation);
+        // walk the ascending copy from the end instead of reversing it
+        double sum = 0;
+        for (int i=0;i<truncation;i++){
+            sum += gain(sortedGrades[sortedGrades.length-1-i], i);
+        }
+        return sum;
     }
 
     /**
@@ -106,12 +109,18 @@ public class NDCG {
      * @return
      */
     private static double dcg(double[] gradesInRankedList, int truncation){
-        return IntStream.range(0, truncation).parallel()
-                .mapToDouble(i-> {
-                    double nominator = FastMath.pow(2, gradesInRankedList[i])-1;
-                    //rank starts at 1
-                    double denominator = FastMath.log(2,i + 2);
-                    return nominator/denominator;
-                }).sum();
+        // a plain loop; the lists are short and a parallel stream costs more than the sum
+        double sum = 0;
+        for (int i=0;i<truncation;i++){
+            sum += gain(gradesInRankedList[i], i);
+        }
+        return sum;
+    }
+
+    private static double gain(double grade, int rank){
+        double nominator = FastMath.pow(2, grade)-1;
+        //rank starts at 1
+        double denominator = FastMath.log(2,rank + 2);
+        return nominator/denominator;
     }
 }
@@ -0,0 +1,108 @@
+package edu.neu.ccs.pyramid.feature_extraction;
+
+import edu.neu.ccs.pyramid.util.IntTupleTable;
+
+import java.util.Arrays;
+
+/**
+ * document frequencies of ngrams given as fixed length tuples of int token ids
+ *
+ * tuples are interned to ids 0, 1, 2, ... by an IntTupleTable, so an ngram costs about n+6 ints instead of
+ * a String, an Ngram and a map entry
+ * an ngram is counted at most once per document: each tuple remembers the last document that counted it
+ * not thread safe, use one counter per thread and merge them at the end
+ */
+class NgramCounter {
+    private int n;
+    private IntTupleTable tuples;
+    private int[] counts = new int[16];
+    private int[] lastDocs = new int[16];
+    // documents are numbered from 1, 0 = never counted
+    private int numDocs;
+    private int[] buffer;
+
+    NgramCounter(int n) {
+        if (n<1){
+            throw new IllegalArgumentException("n should be positive");
+        }
+        this.n = n;
+        this.tuples = new IntTupleTable(16*n);
+        this.buffer = new int[n];
+    }
+
+    /**
+     * start a new document
+     * @return document number for add
+     */
+    int newDoc(){
+        numDocs += 1;
+        return numDocs;
+    }
+
+    /**
+     * reusable buffer of length n for building tuples
+     */
+    int[] buffer(){
+        return buffer;
+    }
+
+    /**
+     * count the tuple in the document, unless it has been counted in the document already
+     */
+    void add(int[] key, int doc){
+        int id = grow(tuples.add(key));
+        if (lastDocs[id]!=doc){
+            lastDocs[id] = doc;
+            counts[id] += 1;
+        }
+    }
+
+    /**
+     * add the counts of another counter over the same token ids
+     */
+    void merge(NgramCounter other){
+        if (other.n!=n){
+            throw new IllegalArgumentException("counters have different n");
+        }
+        for (int id=0;id<other.size();id++){
+            int merged = grow(tuples.add(other.tuples, id));
+            counts[merged] += other.counts[id];
+        }
+    }
+
+    /**
+     * length of the tuples
+     */
+    int getN(){
+        return n;
+    }
+
+    /**
+     * number of distinct tuples
+     */
+    int size(){
+        return tuples.size();
+    }
+
+    int getCount(int id){
+        return counts[id];
+    }
+
+    /**
+     * @return i-th token of tuple id
+     */
+    int getToken(int id, int i){
+        return tuples.get(id, i);
+    }
+
+    /**
+     * make room in the per tuple arrays for an id the table may just have given out
+     */
+    private int grow(int id){
+        if (id==counts.length){
+            counts = Arrays.copyOf(counts, 2*id);
+            lastDocs = Arrays.copyOf(lastDocs, 2*id);
+        }
+        return id;
+    }
+}
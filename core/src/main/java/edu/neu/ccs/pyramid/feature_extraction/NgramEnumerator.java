@@ -7,6 +7,7 @@ import edu.neu.ccs.pyramid.feature.Ngram;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 /**
@@ -16,27 +17,35 @@ import java.util.stream.Collectors;
 public class NgramEnumerator {
 
     public static Multiset<Ngram> gatherNgram(ESIndex index, String[] ids, NgramTemplate template){
-        Multiset<Ngram> multiset = ConcurrentHashMultiset.create();
-        String field = template.getField();
-        Arrays.stream(ids).parallel().forEach(id -> {
-            Map<Integer,String> termVector = index.getTermVectorFromIndex(field, id);
-            add(termVector,multiset,template);
-        });
-        return multiset;
+        return gatherNgram(index, ids, template, 1);
     }
 
+    /**
+     * gather ngrams of the template with document frequency >= minDF
+     * ngrams are counted as tuples of token ids in per thread counters,
+     * Ngram objects are only created for the ones that pass minDF
+     */
     public static Multiset<Ngram> gatherNgram(ESIndex index, String[] ids, NgramTemplate template, int minDF){
-        Multiset<Ngram> multiset = ConcurrentHashMultiset.create();
         String field = template.getField();
-        Arrays.stream(ids).parallel().forEach(id -> {
-            Map<Integer,String> termVector = index.getTermVectorFromIndex(field, id);
-            add(termVector,multiset,template);
+        int n = template.getN();
+        int[][] positionTemplate = template.getPositionTemplate().stream()
+                .map(list -> list.stream().mapToInt(Integer::intValue).toArray()).toArray(int[][]::new);
+        Miner miner = new Miner(n);
+        index.forEachTermVector(field, Arrays.asList(ids), (id, termVector) -> {
+            int[] tokens = miner.toTokens(termVector, null);
+            countTemplates(miner.counter(), tokens, positionTemplate);
         });
+        NgramCounter counter = miner.merge();
+        String[] terms = miner.terms();
         Multiset<Ngram> filtered = ConcurrentHashMultiset.create();
-        for (Multiset.Entry entry: multiset.entrySet()){
-            Ngram ngram = (Ngram)entry.getElement();
-            int count = entry.getCount();
+        for (int t=0;t<counter.size();t++){
+            int count = counter.getCount(t);
             if (count>=minDF){
+                Ngram ngram = new Ngram();
+                ngram.setNgram(toString(counter, t, n, terms));
+                ngram.setSlop(template.getSlop());
+                ngram.setField(field);
+                ngram.setInOrder(true);
                 filtered.add(ngram,count);
             }
         }
@@ -54,21 +63,147 @@ public class NgramEnumerator {
      */
     public static List<String> gatherNgrams(ESIndex index,String field,
                                      String[] ids, int n, int minDf) throws Exception{
-        Map<String,Integer> counts = new ConcurrentHashMap<>();
-        Arrays.stream(ids).parallel().forEach(id -> {
-            Map<Integer,String> termVector = index.getTermVectorFromIndex(field, id);
-            Map<String, Integer> localCount = NgramEnumerator.getNgramCounts(termVector,n);
-            for (Map.Entry<String, Integer> entry: localCount.entrySet()){
-                String ngram = entry.getKey();
-                int oldCount = counts.getOrDefault(ngram,0);
-                //document count += 1
-                int newCount = oldCount + 1;
-                counts.put(ngram,newCount);
-            }
+        Miner miner = new Miner(n);
+        index.forEachTermVector(field, Arrays.asList(ids), (id, termVector) -> {
+            int[] positions = new int[termVector.size()];
+            int[] tokens = miner.toTokens(termVector, positions);
+            countContiguous(miner.counter(), tokens, positions);
         });
-        return counts.entrySet().parallelStream().filter(entry -> entry.getValue()>=minDf)
-                .map(Map.Entry::getKey).collect(Collectors.toList());
+        NgramCounter counter = miner.merge();
+        String[] terms = miner.terms();
+        List<String> ngrams = new ArrayList<>();
+        for (int t=0;t<counter.size();t++){
+            if (counter.getCount(t)>=minDf){
+                ngrams.add(toString(counter, t, n, terms));
+            }
+        }
+        return ngrams;
+    }
 
+    /**
+     * count the template ngrams of one document; as in add(...), an ngram is counted once per document and position template
+     * @param tokens token ids in increasing order of position
+     */
+    static void countTemplates(NgramCounter counter, int[] tokens, int[][] positionTemplate){
+        int[] key = counter.buffer();
+        for (int[] offsets: positionTemplate){
+            int doc = counter.newDoc();
+            int span = offsets[offsets.length-1];
+            for (int i=0;i+span<tokens.length;i++){
+                for (int j=0;j<offsets.length;j++){
+                    key[j] = tokens[i+offsets[j]];
+                }
+                counter.add(key, doc);
+            }
+        }
+    }
+
+    /**
+     * count the ngrams of one document once, as in getNgramCounts; ngrams do not cross gaps in positions
+     * @param tokens token ids in increasing order of position
+     * @param positions sorted positions of the tokens
+     */
+    static void countContiguous(NgramCounter counter, int[] tokens, int[] positions){
+        int n = counter.getN();
+        int doc = counter.newDoc();
+        int[] key = counter.buffer();
+        int runStart = 0;
+        for (int i=0;i<tokens.length;i++){
+            if (i>0 && positions[i]!=positions[i-1]+1){
+                runStart = i;
+            }
+            if (i-runStart+1>=n){
+                System.arraycopy(tokens, i-n+1, key, 0, n);
+                counter.add(key, doc);
+            }
+        }
+    }
+
+    private static String toString(NgramCounter counter, int id, int n, String[] terms){
+        StringBuilder sb = new StringBuilder();
+        for (int i=0;i<n;i++){
+            if (i>0){
+                sb.append(' ');
+            }
+            sb.append(terms[counter.getToken(id, i)]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * shared token ids and one ngram counter per thread for a gathering pass
+     */
+    private static class Miner {
+        private int n;
+        private Map<String,Integer> vocabulary = new ConcurrentHashMap<>();
+        private AtomicInteger numTerms = new AtomicInteger(0);
+        private List<NgramCounter> counters = Collections.synchronizedList(new ArrayList<>());
+        private ThreadLocal<NgramCounter> counter;
+
+        Miner(int n) {
+            this.n = n;
+            this.counter = ThreadLocal.withInitial(() -> {
+                NgramCounter created = new NgramCounter(this.n);
+                counters.add(created);
+                return created;
+            });
+        }
+
+        NgramCounter counter(){
+            return counter.get();
+        }
+
+        /**
+         * token ids of the terms in increasing order of position
+         * @param positions if not null, filled with the sorted positions
+         */
+        int[] toTokens(Map<Integer,String> termVector, int[] positions){
+            int[] sorted = positions==null? new int[termVector.size()]: positions;
+            int i = 0;
+            for (int position: termVector.keySet()){
+                sorted[i] = position;
+                i += 1;
+            }
+            Arrays.sort(sorted);
+            int[] tokens = new int[sorted.length];
+            for (int j=0;j<sorted.length;j++){
+                tokens[j] = vocabulary.computeIfAbsent(termVector.get(sorted[j]), term -> numTerms.getAndIncrement());
+            }
+            return tokens;
+        }
+
+        /**
+         * terms by token id
+         */
+        String[] terms(){
+            String[] terms = new String[numTerms.get()];
+            for (Map.Entry<String,Integer> entry: vocabulary.entrySet()){
+                terms[entry.getValue()] = entry.getKey();
+            }
+            return terms;
+        }
+
+        /**
+         * all per thread counts in one counter
+         */
+        NgramCounter merge(){
+            if (counters.isEmpty()){
+                return new NgramCounter(n);
+            }
+            NgramCounter merged = counters.get(0);
+            for (NgramCounter other: counters){
+                if (other.size()>merged.size()){
+                    merged = other;
+                }
+            }
+            for (NgramCounter other: counters){
+                if (other!=merged){
+                    merged.merge(other);
+                }
+            }
+            counters.clear();
+            return merged;
+        }
     }
 
     /**
@@ -79,24 +214,23 @@ public class NgramEnumerator {
      */
     public static Map<String, Integer> getNgramCounts(Map<Integer, String> termVector, int n){
         Map<String,Integer> counts = new HashMap<>();
-        Comparator<Map.Entry<Integer,String>> comparator = Comparator.comparing(Map.Entry::getKey);
-        List<Map.Entry<Integer,String>> entryList = termVector.entrySet().stream()
-                .sorted(comparator).collect(Collectors.toList());
-        if (entryList.size()==0){
-            return counts;
+        int[] positions = new int[termVector.size()];
+        int i = 0;
+        for (int position: termVector.keySet()){
+            positions[i] = position;
+            i += 1;
         }
+        Arrays.sort(positions);
 
         List<String> sequence = new ArrayList<>();
         int last = -2;
-        for (Map.Entry<Integer, String> entry: entryList){
-            int index = entry.getKey();
-            String term = entry.getValue();
+        for (int index: positions){
             if (index!=last+1){
                 updateNgramCounts(sequence,n,counts);
                 sequence = new ArrayList<>();
             }
             last = index;
-            sequence.add(term);
+            sequence.add(termVector.get(index));
         }
         updateNgramCounts(sequence,n,counts);
         return counts;
@@ -115,9 +249,7 @@ public class NgramEnumerator {
 
         for (int start = 0;start<=sequence.size()-n;start++){
             String ngram = toNgram(sequence,start,start+n-1);
-            int oldCount = map.getOrDefault(ngram,0);
-            int newCount = oldCount + 1;
-            map.put(ngram,newCount);
+            map.merge(ngram,1,Integer::sum);
         }
     }
 
@@ -129,13 +261,7 @@ public class NgramEnumerator {
      * @return
      */
      static String toNgram(List<String> sequence, int start, int end){
-        String str = "";
-        for (int i=start;i<end;i++){
-            str = str.concat(sequence.get(i));
-            str = str.concat(" ");
-        }
-        str = str.concat(sequence.get(end));
-        return str;
+        return String.join(" ", sequence.subList(start, end+1));
     }
 
 
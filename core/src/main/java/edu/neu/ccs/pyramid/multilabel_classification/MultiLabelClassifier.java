@@ -1,6 +1,7 @@
 package edu.neu.ccs.pyramid.multilabel_classification;
 
 import edu.neu.ccs.pyramid.classification.Classifier;
+import edu.neu.ccs.pyramid.dataset.DataSet;
 import edu.neu.ccs.pyramid.dataset.LabelTranslator;
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
@@ -73,6 +74,27 @@ public interface MultiLabelClassifier extends Serializable{
         default double predictClassProb(Vector vector, int classIndex){
             return predictClassProbs(vector)[classIndex];
         }
+
+        /**
+         * batch version for all rows
+         * @param probs size = num data points * num classes, filled in place
+         */
+        default void predictClassProbs(DataSet dataSet, double[][] probs){
+            predictClassProbs(dataSet, 0, dataSet.getNumDataPoints(), probs);
+        }
+
+        /**
+         * batch version for the row block [start, end)
+         * can be implemented more efficiently in individual classifiers
+         * @param probs probabilities of row i go to probs[i-start], which has at least num classes elements;
+         *              the buffer can be reused across blocks
+         */
+        default void predictClassProbs(DataSet dataSet, int start, int end, double[][] probs){
+            IntStream.range(start, end).parallel().forEach(i -> {
+                double[] rowProbs = predictClassProbs(dataSet.getRow(i));
+                System.arraycopy(rowProbs, 0, probs[i-start], 0, rowProbs.length);
+            });
+        }
     }
 
     interface AssignmentProbEstimator extends MultiLabelClassifier{
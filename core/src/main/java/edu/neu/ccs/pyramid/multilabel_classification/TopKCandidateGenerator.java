@@ -0,0 +1,277 @@
+package edu.neu.ccs.pyramid.multilabel_classification;
+
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * reusable version of DynamicProgramming.topK for batch prediction
+ * finds the k most probable label sets under independent label marginals
+ *
+ * every set is the most probable set with some uncertain labels flipped, and its log probability is the one of
+ * the most probable set minus the flip costs |log p(y_l=1) - log p(y_l=0)| of the flipped labels.
+ * with the uncertain labels sorted by flip cost, the flipped subsets are enumerated in increasing total cost
+ * by the usual subset sum search: the successors of a subset whose largest position is i are the subset plus i+1
+ * and the subset with i replaced by i+1. every subset is reached exactly once, so no visited set is needed,
+ * and each returned set queues at most two new ones, instead of one per uncertain label as in DynamicProgramming
+ * queued subsets are stored as (prefix, last position) and only turned into label sets when they are returned
+ *
+ * all arrays are pooled and reused across calls; an instance is not thread safe, use forCurrentThread()
+ * or one instance per search
+ * besides topK, sets can be polled one at a time: start(...), then highestLogProb() and next()
+ */
+public class TopKCandidateGenerator {
+    private static final ThreadLocal<TopKCandidateGenerator> GENERATORS = ThreadLocal.withInitial(TopKCandidateGenerator::new);
+
+    private int numLabels;
+    // labels of the most probable set
+    private boolean[] startPositive = new boolean[0];
+    // uncertain labels sorted by flip cost, ascending
+    private int[] sortedLabels = new int[0];
+    private double[] sortedCosts = new double[0];
+    private int numUncertain;
+    // merge sort buffers
+    private int[] sortBuffer = new int[0];
+    private double[] costs = new double[0];
+
+    // queued subsets; subset = subset of prefix + sorted position last; the root (no flips) has last = -1
+    private int numNodes;
+    private int[] prefixes = new int[16];
+    private int[] lasts = new int[16];
+    private double[] logProbs = new double[16];
+
+    // max heap of node ids by log probability
+    private int[] heap = new int[16];
+    private int heapSize;
+
+    public static TopKCandidateGenerator forCurrentThread(){
+        return GENERATORS.get();
+    }
+
+    /**
+     * same result as new DynamicProgramming(marginals).topK(k), up to the order of ties;
+     * if there are fewer than k sets, the list is padded with empty sets of probability 0, as in DynamicProgramming
+     * @param marginals probabilities of the labels being positive
+     * @return k (set, probability) pairs, most probable first
+     */
+    public List<Pair<MultiLabel,Double>> topK(double[] marginals, int k){
+        start(marginals);
+        List<Pair<MultiLabel,Double>> candidates = new ArrayList<>(k);
+        for (int i=0;i<k;i++){
+            if (!hasNext()){
+                candidates.add(new Pair<>(new MultiLabel(), 0.0));
+                continue;
+            }
+            double prob = Math.exp(highestLogProb());
+            candidates.add(new Pair<>(next(), prob));
+        }
+        return candidates;
+    }
+
+    /**
+     * start a new search
+     * @param marginals probabilities of the labels being positive
+     */
+    public void start(double[] marginals){
+        allocate(marginals.length);
+        numUncertain = 0;
+        double logProb = 0;
+        for (int l=0;l<numLabels;l++){
+            double logProb0 = Math.log(1-marginals[l]);
+            double logProb1 = Math.log(marginals[l]);
+            startPositive[l] = marginals[l]>=0.5;
+            logProb += startPositive[l]? logProb1: logProb0;
+            addIfUncertain(l, marginals[l], logProb0, logProb1);
+        }
+        init(logProb);
+    }
+
+    /**
+     * start a new search, same sets as new DynamicProgramming(probs, logProbs)
+     * @param logClassProbs [#labels][2], log probabilities of each label being negative and positive
+     */
+    public void start(double[][] logClassProbs){
+        allocate(logClassProbs.length);
+        numUncertain = 0;
+        double logProb = 0;
+        for (int l=0;l<numLabels;l++){
+            double logProb0 = logClassProbs[l][0];
+            double logProb1 = logClassProbs[l][1];
+            double prob = Math.exp(logProb1);
+            startPositive[l] = prob>=0.5;
+            logProb += startPositive[l]? logProb1: logProb0;
+            addIfUncertain(l, prob, logProb0, logProb1);
+        }
+        init(logProb);
+    }
+
+    /**
+     * whether there are sets left in the search
+     */
+    public boolean hasNext(){
+        return heapSize>0;
+    }
+
+    /**
+     * log probability of the set next() will return; -infinity if there are no sets left
+     */
+    public double highestLogProb(){
+        if (heapSize==0){
+            return Double.NEGATIVE_INFINITY;
+        }
+        return logProbs[heap[0]];
+    }
+
+    /**
+     * the most probable set not returned yet
+     */
+    public MultiLabel next(){
+        if (heapSize==0){
+            throw new IllegalStateException("no sets left");
+        }
+        int node = poll();
+        int next = lasts[node] + 1;
+        if (next<numUncertain){
+            // add the next position
+            push(newNode(node, next, logProbs[node] - sortedCosts[next]));
+            // replace the last position by the next one
+            if (lasts[node]>=0){
+                int prefix = prefixes[node];
+                push(newNode(prefix, next, logProbs[prefix] - sortedCosts[next]));
+            }
+        }
+        return toMultiLabel(node);
+    }
+
+    private void allocate(int numLabels){
+        this.numLabels = numLabels;
+        if (startPositive.length<numLabels){
+            startPositive = new boolean[numLabels];
+            sortedLabels = new int[numLabels];
+            sortedCosts = new double[numLabels];
+            sortBuffer = new int[numLabels];
+            costs = new double[numLabels];
+        }
+    }
+
+    // only labels with probabilities strictly between 0 and 1 are flipped
+    private void addIfUncertain(int label, double prob, double logProb0, double logProb1){
+        if (prob!=0 && prob!=1){
+            sortedLabels[numUncertain] = label;
+            costs[label] = startPositive[label]? logProb1-logProb0: logProb0-logProb1;
+            numUncertain += 1;
+        }
+    }
+
+    private void init(double logProb){
+        sort(0, numUncertain);
+        for (int i=0;i<numUncertain;i++){
+            sortedCosts[i] = costs[sortedLabels[i]];
+        }
+        numNodes = 0;
+        heapSize = 0;
+        push(newNode(-1, -1, logProb));
+    }
+
+    /**
+     * stable merge sort of sortedLabels[start, end) by cost
+     */
+    private void sort(int start, int end){
+        if (end-start<2){
+            return;
+        }
+        int middle = (start+end)>>>1;
+        sort(start, middle);
+        sort(middle, end);
+        int i = start;
+        int j = middle;
+        int k = start;
+        while (i<middle && j<end){
+            if (costs[sortedLabels[j]]<costs[sortedLabels[i]]){
+                sortBuffer[k++] = sortedLabels[j++];
+            } else {
+                sortBuffer[k++] = sortedLabels[i++];
+            }
+        }
+        while (i<middle){
+            sortBuffer[k++] = sortedLabels[i++];
+        }
+        while (j<end){
+            sortBuffer[k++] = sortedLabels[j++];
+        }
+        System.arraycopy(sortBuffer, start, sortedLabels, start, end-start);
+    }
+
+    private int newNode(int prefix, int last, double logProb){
+        if (numNodes==prefixes.length){
+            int capacity = 2*numNodes;
+            prefixes = Arrays.copyOf(prefixes, capacity);
+            lasts = Arrays.copyOf(lasts, capacity);
+            logProbs = Arrays.copyOf(logProbs, capacity);
+        }
+        int node = numNodes;
+        prefixes[node] = prefix;
+        lasts[node] = last;
+        logProbs[node] = logProb;
+        numNodes += 1;
+        return node;
+    }
+
+    private void push(int node){
+        if (heapSize==heap.length){
+            heap = Arrays.copyOf(heap, 2*heapSize);
+        }
+        int i = heapSize;
+        heapSize += 1;
+        while (i>0){
+            int parent = (i-1)>>>1;
+            if (logProbs[heap[parent]]>=logProbs[node]){
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = node;
+    }
+
+    private int poll(){
+        int top = heap[0];
+        heapSize -= 1;
+        int last = heap[heapSize];
+        int i = 0;
+        while (true){
+            int child = 2*i + 1;
+            if (child>=heapSize){
+                break;
+            }
+            if (child+1<heapSize && logProbs[heap[child+1]]>logProbs[heap[child]]){
+                child += 1;
+            }
+            if (logProbs[heap[child]]<=logProbs[last]){
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (heapSize>0){
+            heap[i] = last;
+        }
+        return top;
+    }
+
+    private MultiLabel toMultiLabel(int node){
+        MultiLabel multiLabel = new MultiLabel();
+        for (int l=0;l<numLabels;l++){
+            if (startPositive[l]){
+                multiLabel.addLabel(l);
+            }
+        }
+        for (int n=node;lasts[n]>=0;n=prefixes[n]){
+            multiLabel.flipLabel(sortedLabels[lasts[n]]);
+        }
+        return multiLabel;
+    }
+}
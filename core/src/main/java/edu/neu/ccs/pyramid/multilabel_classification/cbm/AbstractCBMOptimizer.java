@@ -27,6 +27,7 @@ public abstract class AbstractCBMOptimizer {
 
     // format [#data][#components]
     protected double[][] gammas;
+    private BatchPosterior batchPosterior;
 
 
     // if the fraction of positive labels < threshold, or > 1-threshold,  skip the binary model, use prior probability
@@ -102,6 +103,14 @@ public abstract class AbstractCBMOptimizer {
         this.skipDataThreshold = skipDataThreshold;
     }
 
+    /**
+     * whether the binary classifiers of a component are updated in parallel; default true
+     * GBCBMOptimizer used to turn this off; it now keeps the default and trains its boosters concurrently
+     */
+    public void setParallelBinaryUpdates(boolean parallelBinaryUpdates) {
+        this.parallelBinaryUpdates = parallelBinaryUpdates;
+    }
+
     public void initialize(){
         gammas = BMSelector.selectGammas(dataSet.getNumClasses(),dataSet.getMultiLabels(), cbm.getNumComponents());
         if (logger.isDebugEnabled()){
@@ -150,17 +159,12 @@ public abstract class AbstractCBMOptimizer {
 
 
     protected void updateGamma() {
-        IntStream.range(0, dataSet.getNumDataPoints()).parallel()
-                .forEach(this::updateGamma);
-    }
-
-    protected void updateGamma(int n) {
-        Vector x = dataSet.getRow(n);
-        MultiLabel y = dataSet.getMultiLabels()[n];
-        double[] posterior = cbm.posteriorMembershipShortCircuit(x, y);
-        for (int k=0; k<cbm.numComponents; k++) {
-            gammas[n][k] = posterior[k];
+        if (batchPosterior==null){
+            batchPosterior = new BatchPosterior(cbm, dataSet.getNumFeatures());
+        } else {
+            batchPosterior.update();
         }
+        batchPosterior.posteriorMembership(dataSet, dataSet.getMultiLabels(), null, gammas);
     }
 
     void mStep() {
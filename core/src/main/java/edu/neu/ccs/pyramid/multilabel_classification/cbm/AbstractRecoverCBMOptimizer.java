@@ -27,6 +27,7 @@ public abstract class AbstractRecoverCBMOptimizer {
 
     // format [#data][#components]
     protected double[][] gammas;
+    private BatchPosterior batchPosterior;
 
 
     // if the fraction of positive labels < threshold, or > 1-threshold,  skip the binary model, use prior probability
@@ -303,17 +304,12 @@ public abstract class AbstractRecoverCBMOptimizer {
 
 
     protected void updateGamma() {
-        IntStream.range(0, groundTruth.getNumDataPoints()).parallel()
-                .forEach(this::updateGamma);
-    }
-
-    protected void updateGamma(int n) {
-        Vector x = groundTruth.getRow(n);
-        MultiLabel y = groundTruth.getMultiLabels()[n];
-        double[] posterior = cbm.posteriorMembershipShortCircuit(x, y);
-        for (int k=0; k<cbm.numComponents; k++) {
-            gammas[n][k] = posterior[k];
+        if (batchPosterior==null){
+            batchPosterior = new BatchPosterior(cbm, groundTruth.getNumFeatures());
+        } else {
+            batchPosterior.update();
         }
+        batchPosterior.posteriorMembership(groundTruth, groundTruth.getMultiLabels(), null, gammas);
     }
 
     void mStep() {
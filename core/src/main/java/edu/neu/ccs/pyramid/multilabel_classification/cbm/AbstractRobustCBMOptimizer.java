@@ -25,6 +25,7 @@ public abstract class AbstractRobustCBMOptimizer {
 
     // format [#data][#components]
     protected double[][] gammas;
+    private BatchPosterior batchPosterior;
 
 
     // if the fraction of positive labels < threshold, or > 1-threshold,  skip the binary model, use prior probability
@@ -157,17 +158,12 @@ public abstract class AbstractRobustCBMOptimizer {
 
 
     protected void updateGamma() {
-        IntStream.range(0, dataSet.getNumDataPoints()).parallel()
-                .forEach(this::updateGamma);
-    }
-
-    protected void updateGamma(int n) {
-        Vector x = dataSet.getRow(n);
-        MultiLabel y = dataSet.getMultiLabels()[n];
-        double[] posterior = cbm.posteriorMembership(x, y, noiseLabelWeights[n]);
-        for (int k=0; k<cbm.numComponents; k++) {
-            gammas[n][k] = posterior[k];
+        if (batchPosterior==null){
+            batchPosterior = new BatchPosterior(cbm, dataSet.getNumFeatures());
+        } else {
+            batchPosterior.update();
         }
+        batchPosterior.posteriorMembership(dataSet, dataSet.getMultiLabels(), noiseLabelWeights, gammas);
     }
 
     private void updateMarginals(){
@@ -0,0 +1,117 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import edu.neu.ccs.pyramid.dataset.DataSetUtil;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
+import edu.neu.ccs.pyramid.util.ArgMax;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * training data of the binary classifiers of one component: the rows whose gammas are at least a threshold,
+ * plus the row with the largest gamma, so at least one row is kept
+ *
+ * built once per component and M step, and shared by the binary classifiers of all labels
+ */
+class ActiveData {
+    // rows of the full data set, null if all rows are active
+    private final int[] indices;
+    private final MultiLabelClfDataSet dataSet;
+    private final double[] gammas;
+    private final double totalWeight;
+
+    private ActiveData(int[] indices, MultiLabelClfDataSet dataSet, double[] gammas, double totalWeight) {
+        this.indices = indices;
+        this.dataSet = dataSet;
+        this.gammas = gammas;
+        this.totalWeight = totalWeight;
+    }
+
+    /**
+     * a copy of the active rows, so exact trees only scan those; the full data set itself if all rows are active
+     * @param gammas gammas of the component for all rows
+     */
+    static ActiveData sample(MultiLabelClfDataSet dataSet, double[] gammas, double threshold){
+        boolean[] active = active(gammas, threshold);
+        List<Integer> activeIndices = new ArrayList<>();
+        for (int i=0;i<gammas.length;i++){
+            if (active[i]){
+                activeIndices.add(i);
+            }
+        }
+        if (activeIndices.size()==gammas.length){
+            return new ActiveData(null, dataSet, gammas, sum(gammas));
+        }
+        int[] indices = activeIndices.stream().mapToInt(i->i).toArray();
+        double[] activeGammas = new double[indices.length];
+        for (int a=0;a<indices.length;a++){
+            activeGammas[a] = gammas[indices[a]];
+        }
+        return new ActiveData(indices, DataSetUtil.sampleData(dataSet, activeIndices), activeGammas, sum(gammas));
+    }
+
+    /**
+     * the full data set, with zero weights for the inactive rows, which keeps them out of the trees;
+     * all components then share the data set, e.g. its binned features for histogram trees
+     * @param gammas gammas of the component for all rows
+     */
+    static ActiveData zeroWeights(MultiLabelClfDataSet dataSet, double[] gammas, double threshold){
+        boolean[] active = active(gammas, threshold);
+        double[] weights = new double[gammas.length];
+        for (int i=0;i<gammas.length;i++){
+            if (active[i]){
+                weights[i] = gammas[i];
+            }
+        }
+        return new ActiveData(null, dataSet, weights, sum(gammas));
+    }
+
+    private static boolean[] active(double[] gammas, double threshold){
+        int maxIndex = ArgMax.argMax(gammas);
+        boolean[] active = new boolean[gammas.length];
+        for (int i=0;i<gammas.length;i++){
+            active[i] = gammas[i]>=threshold || i==maxIndex;
+        }
+        return active;
+    }
+
+    private static double sum(double[] gammas){
+        double sum = 0;
+        for (double gamma: gammas){
+            sum += gamma;
+        }
+        return sum;
+    }
+
+    MultiLabelClfDataSet getDataSet() {
+        return dataSet;
+    }
+
+    /**
+     * weights of the rows of getDataSet()
+     */
+    double[] getGammas() {
+        return gammas;
+    }
+
+    /**
+     * sum of the gammas of all rows, active or not
+     */
+    double getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * the active rows of an array over all rows of the full data set
+     */
+    double[][] activeRows(double[][] rows){
+        if (indices==null){
+            return rows;
+        }
+        double[][] activeRows = new double[indices.length][];
+        for (int a=0;a<indices.length;a++){
+            activeRows[a] = rows[indices[a]];
+        }
+        return activeRows;
+    }
+}
@@ -1,5 +1,6 @@
 package edu.neu.ccs.pyramid.multilabel_classification.cbm;
 
+import edu.neu.ccs.pyramid.classification.Classifier;
 import edu.neu.ccs.pyramid.classification.logistic_regression.LogisticRegression;
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.util.BernoulliDistribution;
@@ -40,7 +41,7 @@ public class BMDistribution {
         this.logClassProbs = new double[numComponents][numLabels][2];
         for (int k = 0; k< numComponents; k++){
             for (int l=0;l<numLabels;l++){
-                logClassProbs[k][l] = cbm.binaryClassifiers[k][l].predictLogClassProbs(x);
+                logClassProbs(cbm.binaryClassifiers[k][l], x, logClassProbs[k][l]);
             }
         }
     }
@@ -53,6 +54,23 @@ public class BMDistribution {
         return logClassProbs;
     }
 
+    /**
+     * fill the preallocated pair with log p(y_l=0|x) and log p(y_l=1|x)
+     * a binary logistic regression only needs its logit, so no score or probability arrays are created
+     */
+    static void logClassProbs(Classifier.ProbabilityEstimator classifier, Vector x, double[] logProbs){
+        if (classifier instanceof LogisticRegression && classifier.getNumClasses()==2){
+            LogisticRegression logisticRegression = (LogisticRegression) classifier;
+            double logit = logisticRegression.predictClassScore(x, 1) - logisticRegression.predictClassScore(x, 0);
+            logProbs[0] = MathUtil.logSigmoid(-logit);
+            logProbs[1] = MathUtil.logSigmoid(logit);
+        } else {
+            double[] classLogProbs = classifier.predictLogClassProbs(x);
+            logProbs[0] = classLogProbs[0];
+            logProbs[1] = classLogProbs[1];
+        }
+    }
+
     /**
      * skip components with small contributions
      * @param cbm
@@ -73,7 +91,7 @@ public class BMDistribution {
         this.logClassProbs = new double[numComponents][numLabels][2];
         for (int k = 0; k< numComponents; k++){
             for (int l=0;l<numLabels;l++){
-                logClassProbs[k][l] = cbm.binaryClassifiers[activeComponents.get(k)][l].predictLogClassProbs(x);
+                logClassProbs(cbm.binaryClassifiers[activeComponents.get(k)][l], x, logClassProbs[k][l]);
             }
         }
 //        System.out.println(this.toString());
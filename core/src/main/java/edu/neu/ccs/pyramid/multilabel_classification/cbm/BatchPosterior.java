@@ -0,0 +1,281 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import edu.neu.ccs.pyramid.classification.Classifier;
+import edu.neu.ccs.pyramid.classification.PriorProbClassifier;
+import edu.neu.ccs.pyramid.classification.logistic_regression.LogisticRegression;
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.util.MathUtil;
+import edu.neu.ccs.pyramid.util.Vectors;
+import org.apache.mahout.math.Vector;
+
+import java.util.stream.IntStream;
+
+/**
+ * posterior memberships p(z=k|x,y) for all rows, computed block by block
+ *
+ * a binary logistic regression only needs the logit s1-s0, so the logit weights of all
+ * binary logistic regressions are stacked into one dense matrix [#features][#components * #labels];
+ * each row then takes a single sparse row x dense matrix product, instead of #components * #labels dot products
+ * features with zero weights in every classifier have no row in the matrix
+ * prior classifiers give the same log probabilities for every row, which are read once per E-step;
+ * other binary classifiers (boosting) and a non logistic multi-class classifier are called per row,
+ * and these calls allocate their result arrays
+ *
+ * one instance is kept by an optimizer; call update() after the classifiers change, which
+ * re-reads the weights into the existing arrays. scratch buffers are thread local and reused across blocks
+ */
+class BatchPosterior {
+    private static final int BLOCK_SIZE = 64;
+    // 1GB; beyond that, each logistic regression scores the blocks on its own
+    static final long MAX_STACKED_WEIGHTS = 1L<<27;
+    private CBM cbm;
+    private int numFeatures;
+    private long maxStackedWeights;
+    private int numComponents;
+    private int numLabels;
+    private int numClassifiers;
+    // [#features][#components * #labels], null for all zero features; null if not stacked
+    private double[][] stackedWeights;
+    // rows kept across updates, so a feature that becomes non zero again reuses its row
+    private double[][] stackedRows;
+    private boolean[] isNonZero;
+    // bias part of the logits
+    private double[] stackedBiases;
+    // whether binary classifier k*numLabels+l is a logistic regression
+    private boolean[] isLogistic;
+    private LogisticRegression[] logisticRegressions;
+    // log p(y_l=0), log p(y_l=1) of prior classifiers, null for other classifiers
+    private double[][] priorLogProbs;
+    private ThreadLocal<Buffers> buffers;
+
+    BatchPosterior(CBM cbm, int numFeatures) {
+        this(cbm, numFeatures, MAX_STACKED_WEIGHTS);
+    }
+
+    /**
+     * @param maxStackedWeights largest number of stacked weights; beyond that the logistic regressions score blocks one by one
+     */
+    BatchPosterior(CBM cbm, int numFeatures, long maxStackedWeights) {
+        this.cbm = cbm;
+        this.numFeatures = numFeatures;
+        this.maxStackedWeights = maxStackedWeights;
+        this.numComponents = cbm.numComponents;
+        this.numLabels = cbm.numLabels;
+        this.numClassifiers = numComponents*numLabels;
+        this.isLogistic = new boolean[numClassifiers];
+        this.logisticRegressions = new LogisticRegression[numClassifiers];
+        this.priorLogProbs = new double[numClassifiers][];
+        this.stackedBiases = new double[numClassifiers];
+        this.isNonZero = new boolean[numFeatures];
+        this.stackedRows = new double[numFeatures][];
+        this.buffers = ThreadLocal.withInitial(Buffers::new);
+        update();
+    }
+
+    /**
+     * re-read the classifiers of the cbm; binary classifiers may have been replaced since the last update
+     */
+    void update(){
+        for (int c=0;c<numClassifiers;c++){
+            Classifier.ProbabilityEstimator classifier = cbm.binaryClassifiers[c/numLabels][c%numLabels];
+            isLogistic[c] = classifier instanceof LogisticRegression && ((LogisticRegression) classifier).getNumFeatures()==numFeatures;
+            logisticRegressions[c] = isLogistic[c]? (LogisticRegression) classifier: null;
+            if (classifier instanceof PriorProbClassifier){
+                // same as the default predictLogClassProbs
+                double[] probs = ((PriorProbClassifier) classifier).getClassProbs();
+                if (priorLogProbs[c]==null){
+                    priorLogProbs[c] = new double[2];
+                }
+                priorLogProbs[c][0] = Math.log(probs[0]);
+                priorLogProbs[c][1] = Math.log(probs[1]);
+            } else {
+                priorLogProbs[c] = null;
+            }
+        }
+        int stride = numFeatures + 1;
+        for (int c=0;c<numClassifiers;c++){
+            if (isLogistic[c]){
+                Vector weights = logisticRegressions[c].getWeights().getAllWeights();
+                stackedBiases[c] = weights.getQuick(stride) - weights.getQuick(0);
+            } else {
+                stackedBiases[c] = 0;
+            }
+        }
+        IntStream.range(0, numFeatures).parallel().forEach(j -> {
+            isNonZero[j] = false;
+            for (int c=0;c<numClassifiers;c++){
+                if (isLogistic[c]){
+                    Vector weights = logisticRegressions[c].getWeights().getAllWeights();
+                    if (weights.getQuick(stride+j+1)!=weights.getQuick(j+1)){
+                        isNonZero[j] = true;
+                        return;
+                    }
+                }
+            }
+        });
+        long numStacked = 0;
+        for (boolean nonZero: isNonZero){
+            if (nonZero){
+                numStacked += numClassifiers;
+            }
+        }
+        if (numStacked>maxStackedWeights){
+            this.stackedWeights = null;
+            return;
+        }
+        if (stackedWeights==null){
+            this.stackedWeights = new double[numFeatures][];
+        }
+        IntStream.range(0, numFeatures).parallel().forEach(j -> {
+            if (!isNonZero[j]){
+                stackedWeights[j] = null;
+                return;
+            }
+            if (stackedRows[j]==null){
+                stackedRows[j] = new double[numClassifiers];
+            }
+            double[] row = stackedRows[j];
+            for (int c=0;c<numClassifiers;c++){
+                if (isLogistic[c]){
+                    Vector weights = logisticRegressions[c].getWeights().getAllWeights();
+                    row[c] = weights.getQuick(stride+j+1) - weights.getQuick(j+1);
+                } else {
+                    row[c] = 0;
+                }
+            }
+            stackedWeights[j] = row;
+        });
+    }
+
+    /**
+     * @param noiseLabelWeights per row and label weights of log p(y_l|z=k); null for no weights
+     * @param gammas [#data][#components], filled in place
+     */
+    void posteriorMembership(DataSet dataSet, MultiLabel[] multiLabels, double[][] noiseLabelWeights, double[][] gammas){
+        int numDataPoints = dataSet.getNumDataPoints();
+        int numBlocks = (numDataPoints + BLOCK_SIZE - 1)/BLOCK_SIZE;
+        IntStream.range(0, numBlocks).parallel().forEach(b -> {
+            int start = b*BLOCK_SIZE;
+            int end = Math.min(numDataPoints, start+BLOCK_SIZE);
+            Buffers buffer = buffers.get();
+            logProportions(dataSet, start, end, buffer);
+            logits(dataSet, start, end, buffer);
+            for (int i=start;i<end;i++){
+                posteriorMembership(dataSet, i, i-start, multiLabels[i], noiseLabelWeights==null? null: noiseLabelWeights[i], buffer, gammas[i]);
+            }
+        });
+    }
+
+    private void logProportions(DataSet dataSet, int start, int end, Buffers buffer){
+        double[][] logProportions = buffer.logProportions;
+        if (cbm.multiClassClassifier instanceof LogisticRegression){
+            ((LogisticRegression) cbm.multiClassClassifier).predictClassScores(dataSet, start, end, logProportions);
+            for (int r=0;r<end-start;r++){
+                logNormalize(logProportions[r]);
+            }
+        } else {
+            for (int i=start;i<end;i++){
+                double[] logProbs = cbm.multiClassClassifier.predictLogClassProbs(dataSet.getRow(i));
+                System.arraycopy(logProbs, 0, logProportions[i-start], 0, numComponents);
+            }
+        }
+    }
+
+    /**
+     * logits of all logistic regressions
+     */
+    private void logits(DataSet dataSet, int start, int end, Buffers buffer){
+        double[][] logits = buffer.logits;
+        if (stackedWeights!=null){
+            for (int i=start;i<end;i++){
+                double[] rowLogits = logits[i-start];
+                System.arraycopy(stackedBiases, 0, rowLogits, 0, numClassifiers);
+                Vectors.forEachNonZero(dataSet.getRow(i), (j, value) -> {
+                    double[] weights = stackedWeights[j];
+                    if (weights!=null){
+                        for (int c=0;c<numClassifiers;c++){
+                            rowLogits[c] += value*weights[c];
+                        }
+                    }
+                });
+            }
+        } else {
+            double[][] scores = buffer.binaryScores;
+            for (int c=0;c<numClassifiers;c++){
+                if (isLogistic[c]){
+                    logisticRegressions[c].predictClassScores(dataSet, start, end, scores);
+                    for (int r=0;r<end-start;r++){
+                        logits[r][c] = scores[r][1] - scores[r][0];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param r position of row i in the block
+     */
+    private void posteriorMembership(DataSet dataSet, int i, int r, MultiLabel y, double[] noiseLabelWeight, Buffers buffer, double[] gamma){
+        double[] logProportions = buffer.logProportions[r];
+        double[] rowLogits = buffer.logits[r];
+        Vector x = null;
+        for (int k=0;k<numComponents;k++){
+            double logYGivenComponent = 0;
+            for (int l=0;l<numLabels;l++){
+                int c = k*numLabels + l;
+                double logProb;
+                if (isLogistic[c]){
+                    logProb = y.matchClass(l)? MathUtil.logSigmoid(rowLogits[c]): MathUtil.logSigmoid(-rowLogits[c]);
+                } else if (priorLogProbs[c]!=null){
+                    logProb = priorLogProbs[c][y.matchClass(l)? 1: 0];
+                } else {
+                    if (x==null){
+                        x = dataSet.getRow(i);
+                    }
+                    logProb = cbm.binaryClassifiers[k][l].predictLogClassProbs(x)[y.matchClass(l)? 1: 0];
+                }
+                if (noiseLabelWeight!=null){
+                    logProb *= noiseLabelWeight[l];
+                }
+                logYGivenComponent += logProb;
+            }
+            gamma[k] = logProportions[k] + logYGivenComponent;
+        }
+        normalize(gamma);
+    }
+
+    /**
+     * scores to log probabilities, in place
+     */
+    private void logNormalize(double[] scores){
+        double max = Double.NEGATIVE_INFINITY;
+        for (int k=0;k<numComponents;k++){
+            max = Math.max(max, scores[k]);
+        }
+        double sum = 0;
+        for (int k=0;k<numComponents;k++){
+            sum += Math.exp(scores[k]-max);
+        }
+        double logDenominator = Math.log(sum) + max;
+        for (int k=0;k<numComponents;k++){
+            scores[k] -= logDenominator;
+        }
+    }
+
+    /**
+     * log numerators to probabilities, in place
+     */
+    private void normalize(double[] logNumerators){
+        logNormalize(logNumerators);
+        for (int k=0;k<numComponents;k++){
+            logNumerators[k] = Math.exp(logNumerators[k]);
+        }
+    }
+
+    private class Buffers {
+        private double[][] logProportions = new double[BLOCK_SIZE][numComponents];
+        private double[][] logits = new double[BLOCK_SIZE][numClassifiers];
+        private double[][] binaryScores = new double[BLOCK_SIZE][2];
+    }
+}
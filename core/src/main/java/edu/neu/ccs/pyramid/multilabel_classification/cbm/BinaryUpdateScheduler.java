@@ -0,0 +1,36 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.IntStream;
+
+/**
+ * runs the independent (component, label) binary updates of the M step concurrently
+ *
+ * a fixed number of workers pull the next pair from a shared counter, so slow pairs do not hold up the others,
+ * and at most numWorkers updates (with their score and gradient arrays) are alive at the same time
+ * workers run in the common ForkJoin pool; parallel work inside each update (e.g. tree feature scans)
+ * goes to the same pool and is stolen by idle threads
+ */
+class BinaryUpdateScheduler {
+
+    /**
+     * @param numWorkers number of concurrent updates; 0 = pool parallelism
+     * @param update called with (component, label)
+     */
+    static void run(int numComponents, int numLabels, int numWorkers, BiConsumer<Integer, Integer> update){
+        if (numWorkers<0){
+            throw new IllegalArgumentException("numWorkers must be non-negative");
+        }
+        int numTasks = numComponents*numLabels;
+        int workers = numWorkers==0? ForkJoinPool.getCommonPoolParallelism(): numWorkers;
+        workers = Math.max(1, Math.min(workers, numTasks));
+        AtomicInteger next = new AtomicInteger();
+        IntStream.range(0, workers).parallel().forEach(w -> {
+            for (int t=next.getAndIncrement();t<numTasks;t=next.getAndIncrement()){
+                update.accept(t/numLabels, t%numLabels);
+            }
+        });
+    }
+}
@@ -2,6 +2,7 @@ package edu.neu.ccs.pyramid.multilabel_classification.cbm;
 
 import edu.neu.ccs.pyramid.classification.lkboost.LKBoost;
 import edu.neu.ccs.pyramid.classification.logistic_regression.LogisticRegression;
+import edu.neu.ccs.pyramid.dataset.DataSet;
 import edu.neu.ccs.pyramid.dataset.LabelTranslator;
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.feature.FeatureList;
@@ -30,6 +31,10 @@ import java.util.stream.IntStream;
  */
 public class CBM implements MultiLabelClassifier.ClassProbEstimator, MultiLabelClassifier.AssignmentProbEstimator, Serializable {
     private static final long serialVersionUID = 2L;
+    // components with smaller proportions are skipped when computing marginals
+    private static final double MARGINAL_THRESHOLD = 0.001;
+    // rows per block in batch prediction
+    private static final int BATCH_SIZE = 256;
     int numLabels;
     int numComponents;
     private int numFeatures;
@@ -201,6 +206,10 @@ public class CBM implements MultiLabelClassifier.ClassProbEstimator, MultiLabelC
                 return predictBySupport(vector);
             case "marginal":
                 return predictByMarginals(vector);
+            case "lazy":
+                LazyCBMPredictor lazyCBMPredictor = new LazyCBMPredictor(this, vector);
+                lazyCBMPredictor.setAllowEmpty(allowEmpty);
+                return lazyCBMPredictor.predict();
         }
 
 
@@ -247,10 +256,50 @@ public class CBM implements MultiLabelClassifier.ClassProbEstimator, MultiLabelC
      */
     public double[] predictClassProbs(Vector vector){
         //todo threshold
-        BMDistribution bmDistribution = new BMDistribution(this, vector, 0.001);
+        BMDistribution bmDistribution = new BMDistribution(this, vector, MARGINAL_THRESHOLD);
         return bmDistribution.marginals();
     }
 
+    /**
+     * same marginals as predictClassProbs(Vector), computed one classifier at a time over blocks of rows,
+     * so the component classifiers can use their batch kernels
+     */
+    @Override
+    public void predictClassProbs(DataSet dataSet, int start, int end, double[][] probs) {
+        int numBlocks = (end - start + BATCH_SIZE - 1)/BATCH_SIZE;
+        IntStream.range(0, numBlocks).parallel().forEach(b -> {
+            int blockStart = start + b*BATCH_SIZE;
+            int blockEnd = Math.min(end, blockStart + BATCH_SIZE);
+            int numRows = blockEnd - blockStart;
+            double[][] proportions = new double[numRows][numComponents];
+            multiClassClassifier.predictClassProbs(dataSet, blockStart, blockEnd, proportions);
+            for (int r=0;r<numRows;r++){
+                Arrays.fill(probs[blockStart-start+r], 0, numLabels, 0);
+            }
+            double[][] binaryProbs = new double[numRows][2];
+            for (int k=0;k<numComponents;k++){
+                boolean active = false;
+                for (int r=0;r<numRows;r++){
+                    if (proportions[r][k]>=MARGINAL_THRESHOLD){
+                        active = true;
+                        break;
+                    }
+                }
+                if (!active){
+                    continue;
+                }
+                for (int l=0;l<numLabels;l++){
+                    binaryClassifiers[k][l].predictClassProbs(dataSet, blockStart, blockEnd, binaryProbs);
+                    for (int r=0;r<numRows;r++){
+                        if (proportions[r][k]>=MARGINAL_THRESHOLD){
+                            probs[blockStart-start+r][l] += proportions[r][k]*binaryProbs[r][1];
+                        }
+                    }
+                }
+            }
+        });
+    }
+
 
     @Override
     public double predictClassProb(Vector vector, int classIndex) {
@@ -14,7 +14,6 @@ import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeConfig;
 import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.apache.mahout.math.Vector;
 
 import java.util.stream.IntStream;
 
@@ -41,6 +40,7 @@ public class CBMOptimizer {
 
     // format [#data][#components]
     double[][] gammas;
+    private BatchPosterior batchPosterior;
     // format [#components][#data]
     double[][] gammasT;
 
@@ -77,6 +77,15 @@ public class CBMOptimizer {
     private double shrinkageMultiClass = 0.1;
     private int numIterationsBinary = 20;
     private int numIterationsMultiClass = 20;
+    // if gamma_i^k is smaller than this threshold, skip data point i when boosting the binary classifiers in component k
+    // 0 (default) skips none
+    private double skipDataThreshold = 0;
+    // number of binary boosters trained at the same time; 0 = pool parallelism
+    private int binaryParallelism = 0;
+    // whether the binary boosters grow their trees on histograms of binned features instead of exact splits
+    private boolean histogramBinaryTrees = false;
+    // shared by all binary boosters; in histogram mode the features are then binned only once
+    private RegTreeFactory binaryTreeFactory;
 
     private double noiseGammaSet = 0;
     private double[] noiseSetWeights;
@@ -194,6 +203,7 @@ public class CBMOptimizer {
 
     public void setNumLeavesBinary(int numLeavesBinary) {
         this.numLeavesBinary = numLeavesBinary;
+        this.binaryTreeFactory = null;
     }
 
     public void setNumLeavesMultiClass(int numLeavesMultiClass) {
@@ -216,6 +226,32 @@ public class CBMOptimizer {
         this.numIterationsMultiClass = numIterationsMultiClass;
     }
 
+    public void setSkipDataThreshold(double skipDataThreshold) {
+        this.skipDataThreshold = skipDataThreshold;
+    }
+
+    /**
+     * binary boosters used to be trained one at a time; by default they are now trained concurrently,
+     * set 1 for the old behavior
+     * @param binaryParallelism number of binary boosters trained at the same time; 0 = pool parallelism (default)
+     */
+    public void setBinaryParallelism(int binaryParallelism) {
+        if (binaryParallelism<0){
+            throw new IllegalArgumentException("binaryParallelism must be non-negative");
+        }
+        this.binaryParallelism = binaryParallelism;
+    }
+
+    /**
+     * @param histogramBinaryTrees whether the trees of the binary boosters split on histograms of features binned
+     *                             once per training run (see RegTreeConfig.setHistogram), instead of exact splits;
+     *                             default false
+     */
+    public void setHistogramBinaryTrees(boolean histogramBinaryTrees) {
+        this.histogramBinaryTrees = histogramBinaryTrees;
+        this.binaryTreeFactory = null;
+    }
+
     public void setParameterUpdatesPerIter(int parameterUpdatesPerIter) {
         this.parameterUpdatesPerIter = parameterUpdatesPerIter;
     }
@@ -270,18 +306,18 @@ public class CBMOptimizer {
 
 
     private void updateGamma() {
-        IntStream.range(0, dataSet.getNumDataPoints()).parallel()
-                .forEach(this::updateGamma);
-    }
-
-    private void updateGamma(int n) {
-        Vector x = dataSet.getRow(n);
-        MultiLabel y = dataSet.getMultiLabels()[n];
-        double[] posterior = cbm.posteriorMembership(x, y, noiseLabelWeights[n]);
-        for (int k=0; k<cbm.numComponents; k++) {
-            gammas[n][k] = posterior[k];
-            gammasT[k][n] = posterior[k];
+        // kept across E-steps; the classifiers have changed in the M-step, so the weights are re-read
+        if (batchPosterior==null){
+            batchPosterior = new BatchPosterior(cbm, dataSet.getNumFeatures());
+        } else {
+            batchPosterior.update();
         }
+        batchPosterior.posteriorMembership(dataSet, dataSet.getMultiLabels(), noiseLabelWeights, gammas);
+        IntStream.range(0, cbm.numComponents).parallel().forEach(k -> {
+            for (int n=0;n<dataSet.getNumDataPoints();n++){
+                gammasT[k][n] = gammas[n][k];
+            }
+        });
     }
 
     void mStep() {
@@ -300,7 +336,11 @@ public class CBMOptimizer {
         if (logger.isDebugEnabled()){
             logger.debug("start updateBinaryClassifiers");
         }
-        IntStream.range(0, cbm.numComponents).forEach(this::updateBinaryClassifiers);
+        if (cbm.getBinaryClassifierType().equals("boost")){
+            updateBinaryBoostings();
+        } else {
+            IntStream.range(0, cbm.numComponents).forEach(this::updateBinaryClassifiers);
+        }
         if (logger.isDebugEnabled()){
             logger.debug("finish updateBinaryClassifiers");
         }
@@ -313,10 +353,6 @@ public class CBMOptimizer {
             case "lr":
                 IntStream.range(0, cbm.numLabels).parallel().forEach(l-> updateBinaryLogisticRegression(component,l));
                 break;
-            case "boost":
-                // no parallel for boosting
-                IntStream.range(0, cbm.numLabels).forEach(l -> updateBinaryBoosting(component, l));
-                break;
             case "elasticnet":
                 IntStream.range(0, cbm.numLabels).parallel().forEach(l-> updateBinaryLogisticRegressionEL(component,l));
                 break;
@@ -325,16 +361,40 @@ public class CBMOptimizer {
         }
     }
 
-    private void updateBinaryBoosting(int componentIndex, int labelIndex){
+    /**
+     * the K*L binary boosters are independent, so they are all trained at the same time
+     * with exact trees, each component copies its active data once, and its L boosters share the copy;
+     * with histogram trees, rows with small gammas get zero weights instead, which keeps them out of the trees,
+     * so all boosters share the full data set and its binned features
+     */
+    private void updateBinaryBoostings(){
+        ActiveData[] activeData = new ActiveData[cbm.numComponents];
+        IntStream.range(0, cbm.numComponents).parallel().forEach(k -> activeData[k] = histogramBinaryTrees?
+                ActiveData.zeroWeights(dataSet, gammasT[k], skipDataThreshold):
+                ActiveData.sample(dataSet, gammasT[k], skipDataThreshold));
+        RegTreeFactory regTreeFactory = getBinaryTreeFactory();
+        BinaryUpdateScheduler.run(cbm.numComponents, cbm.numLabels, binaryParallelism,
+                (k, l) -> updateBinaryBoosting(k, l, regTreeFactory, activeData[k]));
+    }
+
+    private synchronized RegTreeFactory getBinaryTreeFactory(){
+        if (binaryTreeFactory==null){
+            RegTreeConfig regTreeConfig = new RegTreeConfig()
+                    .setMaxNumLeaves(numLeavesBinary)
+                    .setHistogram(histogramBinaryTrees);
+            binaryTreeFactory = new RegTreeFactory(regTreeConfig);
+            binaryTreeFactory.setLeafOutputCalculator(new LKBOutputCalculator(2));
+        }
+        return binaryTreeFactory;
+    }
+
+    private void updateBinaryBoosting(int componentIndex, int labelIndex, RegTreeFactory regTreeFactory,
+                                      ActiveData activeData){
         int numIterations = numIterationsBinary;
         double shrinkage = shrinkageBinary;
         LKBoost boost = (LKBoost)this.cbm.binaryClassifiers[componentIndex][labelIndex];
-        RegTreeConfig regTreeConfig = new RegTreeConfig()
-                .setMaxNumLeaves(numLeavesBinary);
-        RegTreeFactory regTreeFactory = new RegTreeFactory(regTreeConfig);
-        regTreeFactory.setLeafOutputCalculator(new LKBOutputCalculator(2));
-        LKBoostOptimizer optimizer = new LKBoostOptimizer(boost,dataSet, regTreeFactory,
-                gammasT[componentIndex],targetsDistributions[labelIndex]);
+        LKBoostOptimizer optimizer = new LKBoostOptimizer(boost,activeData.getDataSet(), regTreeFactory,
+                activeData.getGammas(),activeData.activeRows(targetsDistributions[labelIndex]));
         optimizer.setShrinkage(shrinkage);
         optimizer.initialize();
         optimizer.iterate(numIterations);
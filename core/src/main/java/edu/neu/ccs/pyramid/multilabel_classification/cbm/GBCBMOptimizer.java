@@ -12,6 +12,8 @@ import org.apache.commons.lang3.time.StopWatch;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.stream.IntStream;
+
 /**
  * Created by chengli on 4/29/17.
  */
@@ -19,20 +21,87 @@ public class GBCBMOptimizer extends AbstractCBMOptimizer{
     private static final Logger logger = LogManager.getLogger();
     private int numLeaves=2;
     private double shrinkage=1;
+    // number of binary boosters trained at the same time; 0 = pool parallelism
+    private int binaryParallelism = 0;
+    // whether the binary boosters grow their trees on histograms of binned features instead of exact splits
+    private boolean histogramBinaryTrees = false;
+    // shared by all binary boosters; in histogram mode the features are then binned only once
+    private RegTreeFactory binaryTreeFactory;
 
     public GBCBMOptimizer(CBM cbm, MultiLabelClfDataSet dataSet) {
         super(cbm, dataSet);
-        this.parallelBinaryUpdates =false;
     }
 
     public void setNumLeaves(int numLeaves) {
         this.numLeaves = numLeaves;
+        this.binaryTreeFactory = null;
     }
 
     public void setShrinkage(double shrinkage) {
         this.shrinkage = shrinkage;
     }
 
+    /**
+     * this optimizer used to turn parallelBinaryUpdates off and train the binary boosters one at a time;
+     * by default they are now trained concurrently, set 1 or setParallelBinaryUpdates(false) for the old behavior
+     * @param binaryParallelism number of binary boosters trained at the same time; 0 = pool parallelism (default)
+     */
+    public void setBinaryParallelism(int binaryParallelism) {
+        if (binaryParallelism<0){
+            throw new IllegalArgumentException("binaryParallelism must be non-negative");
+        }
+        this.binaryParallelism = binaryParallelism;
+    }
+
+    /**
+     * @param histogramBinaryTrees whether the trees of the binary boosters split on histograms of features binned
+     *                             once per training run (see RegTreeConfig.setHistogram), instead of exact splits;
+     *                             default false
+     */
+    public void setHistogramBinaryTrees(boolean histogramBinaryTrees) {
+        this.histogramBinaryTrees = histogramBinaryTrees;
+        this.binaryTreeFactory = null;
+    }
+
+    /**
+     * the K*L binary boosters are independent, so they are all trained at the same time
+     * with exact trees, each component copies its active data once, and its L boosters share the copy;
+     * with histogram trees, rows with small gammas get zero weights instead, which keeps them out of the trees,
+     * so all boosters share the full data set and its binned features
+     * without parallelBinaryUpdates, the boosters are trained one at a time
+     */
+    @Override
+    protected void updateBinaryClassifiers() {
+        if (logger.isDebugEnabled()){
+            logger.debug("start updateBinaryClassifiers");
+        }
+        int numDataPoints = dataSet.getNumDataPoints();
+        ActiveData[] activeData = new ActiveData[cbm.numComponents];
+        IntStream.range(0, cbm.numComponents).parallel().forEach(k -> {
+            double[] gammasForComponent = IntStream.range(0, numDataPoints).mapToDouble(i->gammas[i][k]).toArray();
+            activeData[k] = histogramBinaryTrees? ActiveData.zeroWeights(dataSet, gammasForComponent, skipDataThreshold):
+                    ActiveData.sample(dataSet, gammasForComponent, skipDataThreshold);
+        });
+        int numWorkers = parallelBinaryUpdates? binaryParallelism: 1;
+        BinaryUpdateScheduler.run(cbm.numComponents, cbm.numLabels, numWorkers,
+                (k, l) -> skipOrUpdateBinaryClassifier(k, l, activeData[k].getDataSet(), activeData[k].getGammas(),
+                        activeData[k].getTotalWeight()));
+        if (logger.isDebugEnabled()){
+            logger.debug("finish updateBinaryClassifiers");
+        }
+    }
+
+    private synchronized RegTreeFactory getBinaryTreeFactory(){
+        if (binaryTreeFactory==null){
+            RegTreeConfig regTreeConfig = new RegTreeConfig()
+                    .setMaxNumLeaves(numLeaves)
+                    .setHistogram(histogramBinaryTrees);
+            binaryTreeFactory = new RegTreeFactory(regTreeConfig);
+            binaryTreeFactory.setLeafOutputCalculator(new LKBOutputCalculator(2));
+        }
+        return binaryTreeFactory;
+    }
+
     @Override
     protected void updateBinaryClassifier(int component, int label, MultiLabelClfDataSet activeDataset, double[] activeGammas) {
         StopWatch stopWatch = new StopWatch();
@@ -46,11 +115,7 @@ public class GBCBMOptimizer extends AbstractCBMOptimizer{
         double[][] targetsDistributions = DataSetUtil.labelsToDistributions(binaryLabels, 2);
 
         LKBoost boost = (LKBoost)this.cbm.binaryClassifiers[component][label];
-        RegTreeConfig regTreeConfig = new RegTreeConfig()
-                .setMaxNumLeaves(numLeaves);
-        RegTreeFactory regTreeFactory = new RegTreeFactory(regTreeConfig);
-        regTreeFactory.setLeafOutputCalculator(new LKBOutputCalculator(2));
-        LKBoostOptimizer optimizer = new LKBoostOptimizer(boost,activeDataset, regTreeFactory,
+        LKBoostOptimizer optimizer = new LKBoostOptimizer(boost,activeDataset, getBinaryTreeFactory(),
                 activeGammas,targetsDistributions);
         optimizer.setShrinkage(shrinkage);
         optimizer.initialize();
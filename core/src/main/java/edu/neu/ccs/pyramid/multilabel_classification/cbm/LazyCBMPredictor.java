@@ -0,0 +1,341 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import edu.neu.ccs.pyramid.classification.Classifier;
+import edu.neu.ccs.pyramid.classification.logistic_regression.LogisticRegression;
+import edu.neu.ccs.pyramid.dataset.LabelSetDictionary;
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.multilabel_classification.TopKCandidateGenerator;
+import edu.neu.ccs.pyramid.util.ArgSort;
+import edu.neu.ccs.pyramid.util.MathUtil;
+import edu.neu.ccs.pyramid.util.Vectors;
+import org.apache.mahout.math.Vector;
+
+import java.util.Arrays;
+
+/**
+ * latency oriented version of CBMPredictor.predictByDynamic:
+ * the binary classifiers of a component are only evaluated when the search needs that component
+ *
+ * components are evaluated in decreasing order of proportion. with E the evaluated components and
+ * R the total proportion of the others, every set y seen so far has
+ * L(y) = sum_{k in E} pi_k p(y|k) <= p(y) <= L(y) + R,
+ * and every set not seen yet has p(y) <= sum_{k in E} pi_k q_k + R, where q_k is the probability of the next set
+ * in the queue of component k.
+ * the search stops as soon as the best seen set has a lower bound above both the unseen bound and the upper bounds
+ * of all other seen sets, so it is the exact argmax; otherwise it shrinks the largest term of the bound that blocks,
+ * by evaluating the next component or by polling the next set from a component queue
+ * after maxPolls polls, the remaining components are evaluated and the best seen set is returned, as the
+ * iteration cap in predictByDynamic
+ *
+ * all seen sets share R, so the other upper bounds are decided by the second best lower bound; the two best seen
+ * sets are tracked as sets are added, and only recomputed when a component is evaluated. the evaluated components
+ * sit in a max heap by their unseen term, and only the polled one changes per step
+ */
+public class LazyCBMPredictor {
+    private CBM cbm;
+    private Vector x;
+    // non-zeros of x, extracted once for all binary logistic regressions
+    private int[] indices;
+    private double[] values;
+    private int numComponents;
+    private int numLabels;
+    private boolean allowEmpty = false;
+    private int maxPolls;
+
+    private double[] logProportions;
+    // components by decreasing proportion
+    private int[] order;
+    // total proportion of components not evaluated yet, suffix sums over order
+    private double[] remainingProportions;
+    private int numEvaluated;
+
+    // for evaluated components, by position in order
+    private double[][][] logClassProbs;
+    // log p(empty set|k)
+    private double[] logEmptyProbs;
+    // most probable sets of each component, in decreasing order
+    private TopKCandidateGenerator[] generators;
+
+    // log pi_k q_k of the evaluated components by position; the slot after them holds log R during a step
+    private double[] unseenLogTerms;
+    // evaluated positions, max heap by unseen term
+    private int[] pollHeap;
+    private int pollHeapSize;
+
+    // seen sets with log L(y), by dictionary id
+    private LabelSetDictionary seen;
+    private double[] logLowerBounds;
+    // valid seen sets with the largest and second largest lower bounds, -1 if none
+    private int best = -1;
+    private int second = -1;
+    // reused for the lower bound of a new set
+    private double[] seenLogTerms;
+    private int numPolls;
+
+    public LazyCBMPredictor(CBM cbm, Vector x) {
+        this.cbm = cbm;
+        this.x = x;
+        this.numComponents = cbm.numComponents;
+        this.numLabels = cbm.numLabels;
+        this.maxPolls = 10*numComponents;
+        this.logProportions = cbm.multiClassClassifier.predictLogClassProbs(x);
+        this.order = ArgSort.argSortDescending(logProportions);
+        this.remainingProportions = new double[numComponents+1];
+        for (int i=numComponents-1;i>=0;i--){
+            remainingProportions[i] = remainingProportions[i+1] + Math.exp(logProportions[order[i]]);
+        }
+        this.logClassProbs = new double[numComponents][][];
+        this.logEmptyProbs = new double[numComponents];
+        this.generators = new TopKCandidateGenerator[numComponents];
+        this.unseenLogTerms = new double[numComponents+1];
+        this.pollHeap = new int[numComponents];
+        this.seen = new LabelSetDictionary();
+        this.logLowerBounds = new double[16];
+        this.seenLogTerms = new double[numComponents];
+        int[] count = {0};
+        Vectors.forEachNonZero(x, (j, value) -> count[0] += 1);
+        this.indices = new int[count[0]];
+        this.values = new double[count[0]];
+        count[0] = 0;
+        Vectors.forEachNonZero(x, (j, value) -> {
+            indices[count[0]] = j;
+            values[count[0]] = value;
+            count[0] += 1;
+        });
+    }
+
+    public void setAllowEmpty(boolean allowEmpty) {
+        this.allowEmpty = allowEmpty;
+    }
+
+    public void setMaxPolls(int maxPolls) {
+        this.maxPolls = maxPolls;
+    }
+
+    /**
+     * number of components whose binary classifiers have been evaluated
+     */
+    public int getNumEvaluated() {
+        return numEvaluated;
+    }
+
+    public MultiLabel predict(){
+        evaluateNext();
+        while (true){
+            double logRemaining = Math.log(remainingProportions[numEvaluated]);
+            double bestLogLowerBound = best==-1? Double.NEGATIVE_INFINITY: logLowerBounds[best];
+            // largest upper bound among the other seen sets
+            double otherLogUpperBound = second==-1? Double.NEGATIVE_INFINITY: logAdd(logLowerBounds[second], logRemaining);
+            // largest term of the unseen bound among the evaluated components
+            int pollPosition = pollHeap[0];
+            double pollLogTerm = unseenLogTerms[pollPosition];
+            unseenLogTerms[numEvaluated] = logRemaining;
+            double unseenLogBound = logSumExp(unseenLogTerms, numEvaluated+1);
+
+            boolean separated = bestLogLowerBound>=otherLogUpperBound;
+            if (best!=-1 && separated && bestLogLowerBound>=unseenLogBound){
+                return toMultiLabel(best);
+            }
+            boolean canEvaluate = numEvaluated<numComponents;
+            boolean canPoll = pollLogTerm>Double.NEGATIVE_INFINITY;
+            if (!canEvaluate && !canPoll){
+                // every set with non-zero probability has been seen
+                return toMultiLabel(best);
+            }
+            if (numPolls>=maxPolls){
+                while (numEvaluated<numComponents){
+                    evaluateNext();
+                }
+                return toMultiLabel(best);
+            }
+            // the seen sets can only be separated by evaluating more components
+            if (canEvaluate && (!separated || !canPoll || logRemaining>=pollLogTerm)){
+                evaluateNext();
+            } else {
+                MultiLabel multiLabel = generators[pollPosition].next();
+                numPolls += 1;
+                unseenLogTerms[pollPosition] = logProportions[order[pollPosition]] + generators[pollPosition].highestLogProb();
+                siftDown(0);
+                addSeen(multiLabel);
+            }
+        }
+    }
+
+    private boolean isValid(int id){
+        return allowEmpty || seen.getNumLabels(id)>0;
+    }
+
+    /**
+     * update the two best seen sets with a set whose lower bound has been set; sets are offered in id order,
+     * so ties go to the lower id
+     */
+    private void offer(int id){
+        if (!isValid(id)){
+            return;
+        }
+        if (best==-1 || logLowerBounds[id]>logLowerBounds[best]){
+            second = best;
+            best = id;
+        } else if (second==-1 || logLowerBounds[id]>logLowerBounds[second]){
+            second = id;
+        }
+    }
+
+    private MultiLabel toMultiLabel(int id){
+        return id==-1? new MultiLabel(): seen.getMultiLabel(id);
+    }
+
+    /**
+     * evaluate the binary classifiers of the next component and add its share to the lower bounds of the seen sets
+     */
+    private void evaluateNext(){
+        int position = numEvaluated;
+        int k = order[position];
+        double[][] logProbs = new double[numLabels][2];
+        double logEmptyProb = 0;
+        for (int l=0;l<numLabels;l++){
+            logClassProbs(cbm.binaryClassifiers[k][l], logProbs[l]);
+            logEmptyProb += logProbs[l][0];
+        }
+        logClassProbs[position] = logProbs;
+        logEmptyProbs[position] = logEmptyProb;
+        generators[position] = new TopKCandidateGenerator();
+        generators[position].start(logProbs);
+        unseenLogTerms[position] = logProportions[k] + generators[position].highestLogProb();
+        pollHeap[pollHeapSize] = position;
+        pollHeapSize += 1;
+        siftUp(pollHeapSize-1);
+        numEvaluated += 1;
+        // all lower bounds grow by different amounts
+        best = -1;
+        second = -1;
+        for (int id=0;id<seen.size();id++){
+            double logProb = logProportions[k] + logProb(position, id);
+            logLowerBounds[id] = logAdd(logLowerBounds[id], logProb);
+            offer(id);
+        }
+    }
+
+    /**
+     * same as BMDistribution.logClassProbs, with the logit of a binary logistic regression
+     * computed directly from its weights over the extracted non-zeros
+     */
+    private void logClassProbs(Classifier.ProbabilityEstimator classifier, double[] logProbs){
+        if (classifier instanceof LogisticRegression && classifier.getNumClasses()==2
+                && ((LogisticRegression) classifier).getNumFeatures()==x.size()){
+            Vector weights = ((LogisticRegression) classifier).getWeights().getAllWeights();
+            int stride = x.size() + 1;
+            double logit = weights.getQuick(stride) - weights.getQuick(0);
+            for (int i=0;i<indices.length;i++){
+                int j = indices[i];
+                logit += values[i]*(weights.getQuick(stride+j+1) - weights.getQuick(j+1));
+            }
+            logProbs[0] = MathUtil.logSigmoid(-logit);
+            logProbs[1] = MathUtil.logSigmoid(logit);
+        } else {
+            BMDistribution.logClassProbs(classifier, x, logProbs);
+        }
+    }
+
+    private void addSeen(MultiLabel multiLabel){
+        int size = seen.size();
+        int id = seen.add(multiLabel);
+        if (id<size){
+            return;
+        }
+        if (id==logLowerBounds.length){
+            logLowerBounds = Arrays.copyOf(logLowerBounds, 2*id);
+        }
+        for (int i=0;i<numEvaluated;i++){
+            seenLogTerms[i] = logProportions[order[i]] + logProb(i, id);
+        }
+        logLowerBounds[id] = logSumExp(seenLogTerms, numEvaluated);
+        offer(id);
+    }
+
+    /**
+     * log p(y|k) for the component at the given position, from the empty set probability in O(|y|)
+     */
+    private double logProb(int position, int id){
+        double[][] logProbs = logClassProbs[position];
+        if (logEmptyProbs[position]==Double.NEGATIVE_INFINITY){
+            // some label is certain to be positive, the empty set cannot be the base
+            double logProb = 0;
+            for (int l=0;l<numLabels;l++){
+                logProb += seen.matchClass(id, l)? logProbs[l][1]: logProbs[l][0];
+            }
+            return logProb;
+        }
+        double logProb = logEmptyProbs[position];
+        for (int i=0;i<seen.getNumLabels(id);i++){
+            int l = seen.getLabel(id, i);
+            logProb += logProbs[l][1] - logProbs[l][0];
+        }
+        return logProb;
+    }
+
+    /**
+     * whether position a comes before position b in the poll heap; ties go to the lower position
+     */
+    private boolean higher(int a, int b){
+        return unseenLogTerms[a]>unseenLogTerms[b] || (unseenLogTerms[a]==unseenLogTerms[b] && a<b);
+    }
+
+    private void siftUp(int i){
+        int position = pollHeap[i];
+        while (i>0){
+            int parent = (i-1)/2;
+            if (!higher(position, pollHeap[parent])){
+                break;
+            }
+            pollHeap[i] = pollHeap[parent];
+            i = parent;
+        }
+        pollHeap[i] = position;
+    }
+
+    private void siftDown(int i){
+        int position = pollHeap[i];
+        while (true){
+            int child = 2*i+1;
+            if (child>=pollHeapSize){
+                break;
+            }
+            if (child+1<pollHeapSize && higher(pollHeap[child+1], pollHeap[child])){
+                child += 1;
+            }
+            if (!higher(pollHeap[child], position)){
+                break;
+            }
+            pollHeap[i] = pollHeap[child];
+            i = child;
+        }
+        pollHeap[i] = position;
+    }
+
+    /**
+     * log sum exp over the first length entries
+     */
+    private static double logSumExp(double[] logTerms, int length){
+        double max = Double.NEGATIVE_INFINITY;
+        for (int i=0;i<length;i++){
+            max = Math.max(max, logTerms[i]);
+        }
+        if (max==Double.NEGATIVE_INFINITY){
+            return max;
+        }
+        double sum = 0;
+        for (int i=0;i<length;i++){
+            sum += Math.exp(logTerms[i]-max);
+        }
+        return Math.log(sum) + max;
+    }
+
+    private static double logAdd(double a, double b){
+        double max = Math.max(a, b);
+        if (max==Double.NEGATIVE_INFINITY){
+            return max;
+        }
+        return max + Math.log(Math.exp(a-max) + Math.exp(b-max));
+    }
+}
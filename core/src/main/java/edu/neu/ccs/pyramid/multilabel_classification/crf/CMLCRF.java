@@ -1,12 +1,12 @@
 package edu.neu.ccs.pyramid.multilabel_classification.crf;
 
+import edu.neu.ccs.pyramid.dataset.LabelSetDictionary;
 import edu.neu.ccs.pyramid.dataset.LabelTranslator;
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
 import edu.neu.ccs.pyramid.feature.FeatureList;
 import edu.neu.ccs.pyramid.multilabel_classification.Enumerator;
 import edu.neu.ccs.pyramid.multilabel_classification.MultiLabelClassifier;
-import edu.neu.ccs.pyramid.util.ArgMax;
 import edu.neu.ccs.pyramid.util.MathUtil;
 import org.apache.mahout.math.Vector;
 
@@ -48,6 +48,15 @@ public class CMLCRF implements MultiLabelClassifier, MultiLabelClassifier.Assign
     // Since it doesn't depend on features, it can be re-used by all data points
     private double[] combinationLabelPartScores;
 
+    // built on demand from combinationLabelPartScores; dropped whenever they change
+    private transient SupportIndex supportIndex;
+
+    // built on demand; interns the support combinations
+    private transient LabelSetDictionary supportDictionary;
+
+    // dictionary id -> first position of the combination in the support
+    private transient int[] supportPositions;
+
     private boolean considerPair = true;
 
     private double lossStrength = 1;
@@ -230,6 +239,70 @@ public class CMLCRF implements MultiLabelClassifier, MultiLabelClassifier.Assign
     void updateCombLabelPartScores(){
         IntStream.range(0, supportCombinations.size()).parallel()
                 .forEach(c -> combinationLabelPartScores[c]=computeLabelPartScore(c));
+        synchronized (this){
+            supportIndex = null;
+        }
+    }
+
+    /**
+     * index for top k and truncated support queries; reflects the weights as of the last label part update
+     */
+    public synchronized SupportIndex getSupportIndex(){
+        if (supportIndex==null){
+            double[] labelPartScores = considerPair? combinationLabelPartScores: new double[numSupports];
+            supportIndex = new SupportIndex(numClasses, supportCombinations, labelPartScores);
+        }
+        return supportIndex;
+    }
+
+    /**
+     * distinct support combinations, for id lookups without hashing MultiLabel objects;
+     * ids are compact, so they differ from support positions once a combination is listed twice,
+     * use getSupportPosition for positions
+     */
+    public synchronized LabelSetDictionary getSupportDictionary(){
+        if (supportDictionary==null){
+            supportDictionary = new LabelSetDictionary();
+            int[] positions = new int[numSupports];
+            for (int c=0;c<numSupports;c++){
+                int numDistinct = supportDictionary.size();
+                int id = supportDictionary.add(supportCombinations.get(c));
+                // first occurrence
+                if (id==numDistinct){
+                    positions[id] = c;
+                }
+            }
+            supportPositions = Arrays.copyOf(positions, supportDictionary.size());
+        }
+        return supportDictionary;
+    }
+
+    /**
+     * @return position of the combination in the support, its first one if it is listed more than once;
+     * -1 if it is not in the support
+     */
+    public int getSupportPosition(MultiLabel multiLabel){
+        int id = getSupportDictionary().getId(multiLabel);
+        if (id<0){
+            return -1;
+        }
+        return supportPositions[id];
+    }
+
+    /**
+     * exact top k support combinations, without scoring all of them
+     * @return combination indices with scores, best first
+     */
+    public SupportIndex.Candidates predictTopCombinations(Vector vector, int k){
+        return getSupportIndex().topK(predictClassScores(vector), k);
+    }
+
+    /**
+     * the high scoring support combinations that hold all but an epsilon fraction of the probability mass
+     * probabilities and log partition function are approximated within the returned combinations
+     */
+    public SupportIndex.Candidates predictTruncatedCombinations(Vector vector, double epsilon){
+        return getSupportIndex().truncatedSupport(predictClassScores(vector), epsilon);
     }
 
 
@@ -301,8 +374,7 @@ public class CMLCRF implements MultiLabelClassifier, MultiLabelClassifier.Assign
     @Override
     public MultiLabel predict(Vector vector) {
 //        return predictByArgmax(vector);
-        double[] scores = predictCombinationScores(vector);
-        int predictedCombination = ArgMax.argMax(scores);
+        int predictedCombination = predictTopCombinations(vector, 1).getIndex(0);
 
         return this.supportCombinations.get(predictedCombination).copy();
     }
@@ -113,13 +113,12 @@ public class CMLCRFElasticNet {
 
         this.combProbSums = new double[numSupport];
 
-        Map<MultiLabel,Integer> map = new HashMap<>();
-        for (int s=0;s< numSupport;s++){
-            map.put(supportedCombinations.get(s),s);
-        }
         this.labelComIndices = new int[dataSet.getNumDataPoints()];
         for (int i=0;i<dataSet.getNumDataPoints();i++){
-            labelComIndices[i] = map.get(dataSet.getMultiLabels()[i]);
+            labelComIndices[i] = cmlcrf.getSupportPosition(dataSet.getMultiLabels()[i]);
+            if (labelComIndices[i]<0){
+                throw new IllegalArgumentException("label set "+dataSet.getMultiLabels()[i]+" of data point "+i+" is not in the support");
+            }
         }
     }
 
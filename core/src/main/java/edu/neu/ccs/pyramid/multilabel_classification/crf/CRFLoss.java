@@ -4,6 +4,7 @@ import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
 import edu.neu.ccs.pyramid.optimization.Optimizable;
 import edu.neu.ccs.pyramid.util.MathUtil;
+import edu.neu.ccs.pyramid.util.Vectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.mahout.math.DenseVector;
@@ -11,6 +12,7 @@ import org.apache.mahout.math.Vector;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
 
 /**
@@ -18,6 +20,7 @@ import java.util.stream.IntStream;
  */
 public class CRFLoss implements Optimizable.ByGradientValue {
     private static final Logger logger = LogManager.getLogger();
+    private static final int MIN_ROWS_PER_BLOCK = 1000;
     private CMLCRF cmlcrf;
     private List<MultiLabel> supportedCombinations;
     private int numSupport;
@@ -69,6 +72,13 @@ public class CRFLoss implements Optimizable.ByGradientValue {
     // for each data point, store the position of the true combination in the support list
     private int[] labelComIndices;
 
+    // if positive, each data point only uses the high scoring combinations that hold all but this fraction
+    // of its probability mass, plus its true combination; 0 = use all combinations
+    private double supportTruncation = 0;
+
+    // truncated supports of all data points, used instead of combScoreMatrix and combProbMatrix
+    private SupportIndex.Candidates[] truncatedSupports;
+
 
 
 
@@ -85,8 +95,9 @@ public class CRFLoss implements Optimizable.ByGradientValue {
         this.numWeightsForLabelPairs = cmlcrf.getWeights().getNumWeightsForLabels();
         this.classScoreMatrix = new double[numData][numClasses];
         this.classProbMatrix = new double[numData][numClasses];
-        this.combScoreMatrix = new double[numData][numSupport];
-        this.combProbMatrix = new double[numData][numSupport];
+        // rows are filled on demand
+        this.combScoreMatrix = new double[numData][];
+        this.combProbMatrix = new double[numData][];
         this.isGradientCacheValid = false;
         this.isValueCacheValid = false;
         this.empiricalCounts = new double[numParameters];
@@ -100,13 +111,12 @@ public class CRFLoss implements Optimizable.ByGradientValue {
         this.mapPairToCombination();
         this.combProbSums = new double[numSupport];
 
-        Map<MultiLabel,Integer> map = new HashMap<>();
-        for (int s=0;s< numSupport;s++){
-            map.put(supportedCombinations.get(s),s);
-        }
         this.labelComIndices = new int[dataSet.getNumDataPoints()];
         for (int i=0;i<dataSet.getNumDataPoints();i++){
-            labelComIndices[i] = map.get(dataSet.getMultiLabels()[i]);
+            labelComIndices[i] = cmlcrf.getSupportPosition(dataSet.getMultiLabels()[i]);
+            if (labelComIndices[i]<0){
+                throw new IllegalArgumentException("label set "+dataSet.getMultiLabels()[i]+" of data point "+i+" is not in the support");
+            }
         }
     }
 
@@ -114,6 +124,21 @@ public class CRFLoss implements Optimizable.ByGradientValue {
         this.regularizeAll = regularizeAll;
     }
 
+    /**
+     * truncated-support mode: value and gradient are computed over the high scoring combinations of each data point,
+     * found through the support index without scoring all combinations
+     * the partition function of each data point is under-estimated by a factor of at most 1+supportTruncation
+     * @param supportTruncation fraction of probability mass that may be left out; 0 = use all combinations
+     */
+    public void setSupportTruncation(double supportTruncation) {
+        if (supportTruncation<0){
+            throw new IllegalArgumentException("supportTruncation must be non-negative");
+        }
+        this.supportTruncation = supportTruncation;
+        this.isValueCacheValid = false;
+        this.isGradientCacheValid = false;
+    }
+
 
 
     /**
@@ -130,10 +155,16 @@ public class CRFLoss implements Optimizable.ByGradientValue {
         }
         // O(NdL)
         updateClassScoreMatrix();
-        updateAssignmentScoreMatrix();
-        updateAssignmentProbMatrix();
-        updateCombProbSums();
-        updateClassProbMatrix();
+        if (supportTruncation>0){
+            updateTruncatedSupports();
+            updateTruncatedCombProbSums();
+            updateTruncatedClassProbMatrix();
+        } else {
+            updateAssignmentScoreMatrix();
+            updateAssignmentProbMatrix();
+            updateCombProbSums();
+            updateClassProbMatrix();
+        }
         updateGradient();
         this.isGradientCacheValid = true;
         if (logger.isDebugEnabled()){
@@ -166,13 +197,74 @@ public class CRFLoss implements Optimizable.ByGradientValue {
         if (logger.isDebugEnabled()){
             logger.debug("start method updatedFeatureLabelGradient()");
         }
-        IntStream.range(0,numWeightsForFeatures).parallel()
-                .forEach(i -> gradient.set(i,calGradientForFeature(i)));
+        int numBlocks = 1;
+        if (isParallel){
+            numBlocks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(),
+                    dataSet.getNumDataPoints()/MIN_ROWS_PER_BLOCK));
+        }
+        updateFeatureLabelGradient(numBlocks);
         if (logger.isDebugEnabled()){
             logger.debug("finish method updatedFeatureLabelGradient()");
         }
     }
 
+    /**
+     * gradient of the feature-label weights; the rows are cut into blocks, each block accumulates the expected
+     * counts of all classes over its own rows, and the counts of the blocks are added up
+     * every row is read once; each block holds counts as large as the feature-label weights
+     */
+    void updateFeatureLabelGradient(int numBlocks){
+        int numDataPoints = dataSet.getNumDataPoints();
+        int numFeatures = dataSet.getNumFeatures();
+        IntStream intStream = IntStream.range(0, numBlocks);
+        if (numBlocks>1){
+            intStream = intStream.parallel();
+        }
+        double[] expectedCounts = intStream.mapToObj(b -> expectedCounts((int) ((long) numDataPoints*b/numBlocks),
+                (int) ((long) numDataPoints*(b+1)/numBlocks)))
+                .reduce(CRFLoss::addTo).get();
+        IntStream classes = IntStream.range(0, numClasses);
+        if (isParallel){
+            classes = classes.parallel();
+        }
+        classes.forEach(k -> {
+            for (int j=-1;j<numFeatures;j++){
+                int parameterIndex = k*(numFeatures+1) + j + 1;
+                double count = expectedCounts[(j+1)*numClasses + k];
+                gradient.set(parameterIndex, featureLabelGradient(parameterIndex, count));
+            }
+        });
+    }
+
+    /**
+     * expected counts of the rows [start, end), format [feature+1][class]; position 0 is for the bias
+     * counts are accumulated feature by feature, so each non-zero x_ij updates a contiguous run of classes,
+     * instead of walking column j once per class
+     */
+    private double[] expectedCounts(int start, int end){
+        double[] expectedCounts = new double[(dataSet.getNumFeatures()+1)*numClasses];
+        for (int i=start; i<end; i++) {
+            double[] classProbs = this.classProbMatrix[i];
+            for (int k=0;k<numClasses;k++){
+                expectedCounts[k] += classProbs[k];
+            }
+            Vectors.forEachNonZero(dataSet.getRow(i), (j, featureValue) -> {
+                int offset = (j+1)*numClasses;
+                for (int k=0;k<numClasses;k++){
+                    expectedCounts[offset+k] += classProbs[k] * featureValue;
+                }
+            });
+        }
+        return expectedCounts;
+    }
+
+    private static double[] addTo(double[] counts, double[] other){
+        for (int p=0;p<counts.length;p++){
+            counts[p] += other[p];
+        }
+        return counts;
+    }
+
 
     private void updateLabelLabelGradient(){
         if (logger.isDebugEnabled()){
@@ -210,25 +302,10 @@ public class CRFLoss implements Optimizable.ByGradientValue {
     // this calculation uses a short cut for equation (4) of
     // the paper "Collective Multi-Label Classification"
     // the sum of y can be pushed in and gives the marginal
-    private double calGradientForFeature(int parameterIndex) {
-        double count = 0.0;
-        int classIndex = parameterToClass[parameterIndex];
+    // expectedCount = sum_i p(y_k=1|x_i) x_ij
+    private double featureLabelGradient(int parameterIndex, double expectedCount) {
         int featureIndex = parameterToFeature[parameterIndex];
-
-        if (featureIndex == -1) {
-            for (int i=0; i<dataSet.getNumDataPoints(); i++) {
-                count += this.classProbMatrix[i][classIndex];
-            }
-        } else {
-            Vector featureColumn = dataSet.getColumn(featureIndex);
-            for (Vector.Element element: featureColumn.nonZeroes()) {
-                int dataPointIndex = element.index();
-                double featureValue = element.get();
-                count += this.classProbMatrix[dataPointIndex][classIndex] * featureValue;
-            }
-        }
-
-        count -= this.empiricalCounts[parameterIndex];
+        double count = expectedCount - this.empiricalCounts[parameterIndex];
 
         // regularize
         if (regularizeAll){
@@ -383,6 +460,13 @@ public class CRFLoss implements Optimizable.ByGradientValue {
 
     private double getValueForAllData() {
         updateClassScoreMatrix();
+        if (supportTruncation>0){
+            updateTruncatedSupports();
+            SupportIndex supportIndex = cmlcrf.getSupportIndex();
+            return IntStream.range(0,dataSet.getNumDataPoints()).parallel()
+                    .mapToDouble(i -> truncatedSupports[i].getLogPartition() - supportIndex.score(labelComIndices[i], classScoreMatrix[i]))
+                    .sum();
+        }
         updateAssignmentScoreMatrix();
         IntStream intStream;
         if (isParallel) {
@@ -454,6 +538,50 @@ public class CRFLoss implements Optimizable.ByGradientValue {
         }
     }
 
+    private void updateTruncatedSupports(){
+        if (logger.isDebugEnabled()){
+            logger.debug("start updateTruncatedSupports()");
+        }
+        if (truncatedSupports==null){
+            truncatedSupports = new SupportIndex.Candidates[numData];
+        }
+        SupportIndex supportIndex = cmlcrf.getSupportIndex();
+        IntStream.range(0,dataSet.getNumDataPoints()).parallel().forEach(i -> {
+            SupportIndex.Candidates candidates = supportIndex.truncatedSupport(classScoreMatrix[i], supportTruncation);
+            // the true combination is needed for the likelihood
+            int trueIndex = labelComIndices[i];
+            candidates.include(trueIndex, supportIndex.score(trueIndex, classScoreMatrix[i]));
+            truncatedSupports[i] = candidates;
+        });
+        if (logger.isDebugEnabled()){
+            logger.debug("finish updateTruncatedSupports()");
+        }
+    }
+
+    private void updateTruncatedCombProbSums(){
+        Arrays.fill(combProbSums, 0);
+        for (int i=0;i<dataSet.getNumDataPoints();i++){
+            SupportIndex.Candidates candidates = truncatedSupports[i];
+            for (int j=0;j<candidates.size();j++){
+                combProbSums[candidates.getIndex(j)] += candidates.getProb(j);
+            }
+        }
+    }
+
+    private void updateTruncatedClassProbMatrix(){
+        IntStream.range(0,dataSet.getNumDataPoints()).parallel().forEach(i -> {
+            SupportIndex.Candidates candidates = truncatedSupports[i];
+            double[] classProbs = new double[numClasses];
+            for (int j=0;j<candidates.size();j++){
+                double prob = candidates.getProb(j);
+                for (int label: supportedCombinations.get(candidates.getIndex(j)).getMatchedLabels()){
+                    classProbs[label] += prob;
+                }
+            }
+            classProbMatrix[i] = classProbs;
+        });
+    }
+
     private void updateClassProbMatrix(){
         if (logger.isDebugEnabled()){
             logger.debug("start updateClassProbMatrix()");
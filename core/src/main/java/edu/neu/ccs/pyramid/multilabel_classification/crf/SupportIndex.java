@@ -0,0 +1,314 @@
+package edu.neu.ccs.pyramid.multilabel_classification.crf;
+
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.util.ArgSort;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * index over the support combinations of a CMLCRF, for finding high scoring combinations without a full scan
+ *
+ * the score of combination c is sum_{l in c} s_l + labelPart(c), where s is the feature part of the class scores
+ * combinations are grouped by the number of labels m; within group m, they are sorted by labelPart.
+ * for any combination in group m, sum_{l in c} s_l is at most the sum of the m largest class scores,
+ * so labelPart(c) + top-m sum bounds the scores of c and all combinations after it in the group.
+ * groups are visited best bound first, and the visit stops as soon as the bound shows that the rest cannot matter:
+ * for top k, when no remaining combination can beat the k-th best score;
+ * for the partition function, when the remaining combinations together are at most epsilon times the visited mass.
+ *
+ * the index depends on the label part scores, so it has to be rebuilt after the label pair weights change
+ */
+public class SupportIndex {
+    // guards the bounds against rounding, since the top-m sums are added in a different order
+    private static final double SLACK = 1E-9;
+
+    private int numClasses;
+    // matched labels of each combination, ascending
+    private int[][] combinationLabels;
+    private double[] labelPartScores;
+    // [number of labels] -> combination indices sorted by label part score, descending
+    private int[][] groups;
+
+    /**
+     * @param labelPartScores the label part of each combination score, 0 if pairs are not considered
+     */
+    public SupportIndex(int numClasses, List<MultiLabel> supportCombinations, double[] labelPartScores) {
+        this.numClasses = numClasses;
+        int numSupports = supportCombinations.size();
+        this.labelPartScores = Arrays.copyOf(labelPartScores, numSupports);
+        this.combinationLabels = new int[numSupports][];
+        int[] groupSizes = new int[numClasses+1];
+        for (int c=0;c<numSupports;c++){
+            combinationLabels[c] = supportCombinations.get(c).getMatchedLabelsArray();
+            groupSizes[combinationLabels[c].length] += 1;
+        }
+        this.groups = new int[numClasses+1][];
+        for (int m=0;m<=numClasses;m++){
+            groups[m] = new int[groupSizes[m]];
+        }
+        // one stable sort of all combinations, then a counting sort pass into the groups keeps each group sorted
+        int[] sorted = ArgSort.argSortDescending(this.labelPartScores);
+        int[] filled = new int[numClasses+1];
+        for (int c: sorted){
+            int m = combinationLabels[c].length;
+            groups[m][filled[m]] = c;
+            filled[m] += 1;
+        }
+    }
+
+    public int getNumSupports(){
+        return combinationLabels.length;
+    }
+
+    /**
+     * same value as CMLCRF.predictCombinationScores(classScores)[combinationIndex]
+     */
+    public double score(int combinationIndex, double[] classScores){
+        double score = 0.0;
+        for (int l: combinationLabels[combinationIndex]){
+            score += classScores[l];
+        }
+        score += labelPartScores[combinationIndex];
+        return score;
+    }
+
+    /**
+     * exact top k combinations
+     * @param classScores feature part of the class scores
+     * @param k number of combinations to return
+     * @return top k combinations sorted by score, descending; ties are broken by the lower index
+     */
+    public Candidates topK(double[] classScores, int k){
+        if (k<=0){
+            throw new IllegalArgumentException("k must be positive");
+        }
+        Cursor cursor = new Cursor(classScores);
+        // the worst of the current top k on top
+        PriorityQueue<Candidate> best = new PriorityQueue<>(Math.min(k, getNumSupports())+1, Candidate.WORST_FIRST);
+        while (cursor.hasNext()){
+            if (best.size()==k && cursor.bound() < best.peek().score){
+                break;
+            }
+            int c = cursor.next();
+            Candidate candidate = new Candidate(c, score(c, classScores));
+            if (best.size()<k){
+                best.add(candidate);
+            } else if (Candidate.WORST_FIRST.compare(candidate, best.peek())>0){
+                best.poll();
+                best.add(candidate);
+            }
+        }
+        Candidate[] sorted = best.toArray(new Candidate[0]);
+        Arrays.sort(sorted, Candidate.WORST_FIRST.reversed());
+        Candidates candidates = new Candidates(sorted.length);
+        for (Candidate candidate: sorted){
+            candidates.add(candidate.index, candidate.score);
+        }
+        candidates.logPartition = candidates.logSumExp();
+        candidates.numVisited = cursor.numVisited;
+        return candidates;
+    }
+
+    /**
+     * the smallest best-first prefix of the combinations that holds all but an epsilon fraction of the probability mass
+     * the log partition function over the prefix is within log(1+epsilon) of the exact one
+     * @param classScores feature part of the class scores
+     * @param epsilon relative bound on the mass left out; 0 visits everything
+     * @return visited combinations in visiting order, with their scores and log partition function
+     */
+    public Candidates truncatedSupport(double[] classScores, double epsilon){
+        if (epsilon<0){
+            throw new IllegalArgumentException("epsilon must be non-negative");
+        }
+        double logEpsilon = Math.log(epsilon);
+        Cursor cursor = new Cursor(classScores);
+        Candidates candidates = new Candidates(16);
+        // running log sum exp over the visited scores
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+        while (cursor.hasNext()){
+            if (candidates.size>0){
+                double logZ = Math.log(sum) + max;
+                // at most numRemaining combinations left, each with score at most bound
+                double logRemaining = Math.log(cursor.numRemaining()) + cursor.bound();
+                if (logRemaining <= logEpsilon + logZ){
+                    break;
+                }
+            }
+            int c = cursor.next();
+            double score = score(c, classScores);
+            candidates.add(c, score);
+            if (score>max){
+                sum = sum*Math.exp(max-score) + 1;
+                max = score;
+            } else {
+                sum += Math.exp(score-max);
+            }
+        }
+        candidates.logPartition = candidates.size==0? Double.NEGATIVE_INFINITY: Math.log(sum) + max;
+        candidates.numVisited = cursor.numVisited;
+        return candidates;
+    }
+
+    /**
+     * visits the combinations in best bound first order
+     */
+    private class Cursor {
+        // topSums[m] = sum of the m largest class scores
+        private double[] topSums;
+        private int[] positions;
+        // groups with combinations left, highest bound on top
+        private PriorityQueue<Integer> groupQueue;
+        private int numVisited;
+
+        Cursor(double[] classScores) {
+            double[] sorted = Arrays.copyOf(classScores, numClasses);
+            Arrays.sort(sorted);
+            this.topSums = new double[numClasses+1];
+            for (int m=1;m<=numClasses;m++){
+                topSums[m] = topSums[m-1] + sorted[numClasses-m];
+            }
+            this.positions = new int[numClasses+1];
+            this.groupQueue = new PriorityQueue<>(numClasses+1, Comparator.comparingDouble((Integer m) -> -groupBound(m)));
+            for (int m=0;m<=numClasses;m++){
+                if (groups[m].length>0){
+                    groupQueue.add(m);
+                }
+            }
+        }
+
+        private double groupBound(int m){
+            double bound = labelPartScores[groups[m][positions[m]]] + topSums[m];
+            return bound + SLACK*(1+Math.abs(bound));
+        }
+
+        boolean hasNext(){
+            return !groupQueue.isEmpty();
+        }
+
+        /**
+         * upper bound on the scores of all combinations not visited yet
+         */
+        double bound(){
+            return groupBound(groupQueue.peek());
+        }
+
+        int numRemaining(){
+            return getNumSupports() - numVisited;
+        }
+
+        int next(){
+            int m = groupQueue.poll();
+            int c = groups[m][positions[m]];
+            positions[m] += 1;
+            if (positions[m]<groups[m].length){
+                groupQueue.add(m);
+            }
+            numVisited += 1;
+            return c;
+        }
+    }
+
+    private static class Candidate {
+        // lower score first; for equal scores, higher index first
+        private static final Comparator<Candidate> WORST_FIRST = Comparator.comparingDouble((Candidate a) -> a.score)
+                .thenComparing((a, b) -> Integer.compare(b.index, a.index));
+        private int index;
+        private double score;
+
+        Candidate(int index, double score) {
+            this.index = index;
+            this.score = score;
+        }
+    }
+
+    /**
+     * a subset of the support combinations with their scores
+     */
+    public static class Candidates {
+        private int[] indices;
+        private double[] scores;
+        private int size;
+        private double logPartition;
+        private int numVisited;
+
+        Candidates(int capacity) {
+            this.indices = new int[Math.max(capacity, 1)];
+            this.scores = new double[Math.max(capacity, 1)];
+        }
+
+        private void add(int index, double score){
+            if (size==indices.length){
+                indices = Arrays.copyOf(indices, 2*size);
+                scores = Arrays.copyOf(scores, 2*size);
+            }
+            indices[size] = index;
+            scores[size] = score;
+            size += 1;
+        }
+
+        /**
+         * add a combination that is not in the set yet, e.g. the true combination of a training point
+         */
+        void include(int index, double score){
+            for (int i=0;i<size;i++){
+                if (indices[i]==index){
+                    return;
+                }
+            }
+            add(index, score);
+            logPartition = logSumExp();
+        }
+
+        private double logSumExp(){
+            double max = Double.NEGATIVE_INFINITY;
+            for (int i=0;i<size;i++){
+                max = Math.max(max, scores[i]);
+            }
+            if (max==Double.NEGATIVE_INFINITY){
+                return max;
+            }
+            double sum = 0;
+            for (int i=0;i<size;i++){
+                sum += Math.exp(scores[i]-max);
+            }
+            return Math.log(sum) + max;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int getIndex(int i){
+            return indices[i];
+        }
+
+        public double getScore(int i){
+            return scores[i];
+        }
+
+        /**
+         * probability of the i-th candidate, normalized within the candidates
+         */
+        public double getProb(int i){
+            return Math.exp(scores[i]-logPartition);
+        }
+
+        /**
+         * log partition function over the candidates
+         */
+        public double getLogPartition() {
+            return logPartition;
+        }
+
+        /**
+         * number of combinations scored to find the candidates
+         */
+        public int getNumVisited() {
+            return numVisited;
+        }
+    }
+}
@@ -1,11 +1,14 @@
 package edu.neu.ccs.pyramid.multilabel_classification.imlgb;
 
 import edu.neu.ccs.pyramid.dataset.CachedAccessOnlyVector;
+import edu.neu.ccs.pyramid.dataset.DataSet;
 import edu.neu.ccs.pyramid.dataset.LabelTranslator;
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
 import edu.neu.ccs.pyramid.feature.FeatureList;
 import edu.neu.ccs.pyramid.multilabel_classification.MultiLabelClassifier;
 import edu.neu.ccs.pyramid.regression.Regressor;
+import edu.neu.ccs.pyramid.regression.regression_tree.CompiledTreeEnsemble;
 import edu.neu.ccs.pyramid.util.MathUtil;
 import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.RandomAccessSparseVector;
@@ -29,6 +32,12 @@ public class IMLGradientBoosting implements MultiLabelClassifier.ClassScoreEstim
 
     private FeatureList featureList;
     private LabelTranslator labelTranslator;
+    // number of changes through addRegressor and cutTail, so the compiled copy can tell it is stale;
+    // bumped after the change and under the lock, as classes are added to in parallel
+    private transient volatile int version;
+    // cached by compile(); compiledVersion is written after compiled and read before it
+    private transient volatile CompiledTreeEnsemble compiled;
+    private transient volatile int compiledVersion;
 
     public IMLGradientBoosting(int numClasses) {
         this.numClasses = numClasses;
@@ -46,6 +55,9 @@ public class IMLGradientBoosting implements MultiLabelClassifier.ClassScoreEstim
 
     void addRegressor(Regressor regressor, int k){
         this.regressors.get(k).add(regressor);
+        synchronized (this){
+            this.version += 1;
+        }
     }
 
 
@@ -83,29 +95,23 @@ public class IMLGradientBoosting implements MultiLabelClassifier.ClassScoreEstim
      * @return
      */
     public double predictClassScore(Vector vector, int k){
-        List<Regressor> regressorsClassK = this.regressors.get(k);
-        double score = 0;
-        for (Regressor regressor: regressorsClassK){
-            score += regressor.predict(vector);
-        }
-        return score;
+        return compile().score(vector, k);
     }
 
+    /**
+     * through the cached compiled trees
+     */
     public double[] predictClassScores(Vector vector){
-        int numClasses = this.numClasses;
-        double[] scores = new double[numClasses];
-        for (int k=0;k<numClasses;k++){
-            scores[k] = this.predictClassScore(vector, k);
-        }
-        return scores;
+        return compile().scores(vector);
     }
 
     public double[] predictClassScores(Vector vector, boolean[] shouldStop){
+        CompiledTreeEnsemble compiled = compile();
         int numClasses = this.numClasses;
         double[] scores = new double[numClasses];
         for (int k=0;k<numClasses;k++){
             if (!shouldStop[k]){
-                scores[k] = this.predictClassScore(vector, k);
+                scores[k] = compiled.score(vector, k);
             }
         }
         return scores;
@@ -127,16 +133,44 @@ public class IMLGradientBoosting implements MultiLabelClassifier.ClassScoreEstim
         return this.regressors.get(k);
     }
 
+    /**
+     * flatten the current regressors for fast prediction
+     * the compiled model is cached and rebuilt on the next call after addRegressor or cutTail;
+     * regressors changed through getRegressors are not noticed
+     */
+    public CompiledTreeEnsemble compile(){
+        int version = this.version;
+        if (compiledVersion==version){
+            CompiledTreeEnsemble snapshot = compiled;
+            if (snapshot!=null){
+                return snapshot;
+            }
+        }
+        synchronized (this){
+            if (compiled==null || compiledVersion!=version){
+                compiled = CompiledTreeEnsemble.compile(regressors);
+                compiledVersion = version;
+            }
+            return compiled;
+        }
+    }
+
     public void cutTail(int classIndex, int numTreesToKeep){
         int size = getRegressors(classIndex).size();
         // assuming the first regressor is the prior
         getRegressors(classIndex).subList(numTreesToKeep+1, size).clear();
+        synchronized (this){
+            this.version += 1;
+        }
     }
 
 
     //todo think about this when having assignments, maybe doesn't matter much
     public double predictClassProb(Vector vector, int classIndex){
-        double score = predictClassScore(vector,classIndex);
+        return classProb(predictClassScore(vector,classIndex));
+    }
+
+    private static double classProb(double score){
         double logNumerator = score;
         double[] scores = new double[2];
         scores[0] = 0;
@@ -161,6 +195,39 @@ public class IMLGradientBoosting implements MultiLabelClassifier.ClassScoreEstim
                 .mapToDouble(k -> predictClassProb(vector,k)).toArray();
     }
 
+    /**
+     * batch predictions go through the cached compiled trees
+     */
+    @Override
+    public void predictClassProbs(DataSet dataSet, int start, int end, double[][] probs){
+        CompiledTreeEnsemble compiled = compile();
+        IntStream.range(start, end).parallel().forEach(i -> {
+            double[] rowProbs = probs[i-start];
+            compiled.scores(dataSet.getRow(i), rowProbs);
+            for (int k=0;k<numClasses;k++){
+                rowProbs[k] = classProb(rowProbs[k]);
+            }
+        });
+    }
+
+    /**
+     * Hamming Loss optimal predictions, through the cached compiled trees
+     */
+    @Override
+    public MultiLabel[] predict(MultiLabelClfDataSet dataSet){
+        CompiledTreeEnsemble compiled = compile();
+        return IntStream.range(0, dataSet.getNumDataPoints()).parallel().mapToObj(i -> {
+            double[] scores = compiled.scores(dataSet.getRow(i));
+            MultiLabel prediction = new MultiLabel();
+            for (int k=0;k<numClasses;k++){
+                if (scores[k] > 0){
+                    prediction.addLabel(k);
+                }
+            }
+            return prediction;
+        }).toArray(MultiLabel[]::new);
+    }
+
 
 
 
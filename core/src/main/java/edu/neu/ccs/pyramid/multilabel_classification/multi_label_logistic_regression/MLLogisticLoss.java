@@ -3,6 +3,8 @@ package edu.neu.ccs.pyramid.multilabel_classification.multi_label_logistic_regre
 import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
 import edu.neu.ccs.pyramid.optimization.Optimizable;
+import edu.neu.ccs.pyramid.util.MathUtil;
+import edu.neu.ccs.pyramid.util.Vectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.mahout.math.DenseVector;
@@ -18,48 +20,38 @@ public class MLLogisticLoss implements Optimizable.ByGradient, Optimizable.ByGra
     private MLLogisticRegression mlLogisticRegression;
     private MultiLabelClfDataSet dataSet;
     private double gaussianPriorVariance;
-    private Vector empiricalCounts;
-    private Vector predictedCounts;
     private Vector gradient;
     private int numParameters;
-    /**
-     * F_k(x), used to speed up training. classScoreMatrix.[i][k] = F_k(x_i)
-     */
-    private double[][] classScoreMatrix;
+    private int numClasses;
     /**
      * numDataPoints by numClasses;
      */
     private double[][] classProbMatrix;
-
     /**
-     * [i][a]=prob of assignment a for x_i
+     * numDataPoints by numClasses; predicted class probability - 1 if the class is matched
      */
-    private double[][] assignmentProbMatrix;
-
-    private double[][] assignmentScoreMatrix;
+    private double[][] residualMatrix;
+    // log likelihood of each data point
+    private double[] logLikelihoods;
     private double value;
     private boolean isGradientCacheValid;
     private boolean isValueCacheValid;
+    private boolean isProbabilityCacheValid;
 
     public MLLogisticLoss(MLLogisticRegression mlLogisticRegression,
                         MultiLabelClfDataSet dataSet, double gaussianPriorVariance) {
         int numDataPoints = dataSet.getNumDataPoints();
-        int numAssignments = mlLogisticRegression.getAssignments().size();
-        int numClasses = dataSet.getNumClasses();
+        this.numClasses = dataSet.getNumClasses();
         this.mlLogisticRegression = mlLogisticRegression;
         numParameters = mlLogisticRegression.getWeights().totalSize();
         this.dataSet = dataSet;
         this.gaussianPriorVariance = gaussianPriorVariance;
-        this.empiricalCounts = new DenseVector(numParameters);
-        this.predictedCounts = new DenseVector(numParameters);
-        this.classScoreMatrix = new double[numDataPoints][numClasses];
-        this.classProbMatrix = new double[dataSet.getNumDataPoints()][dataSet.getNumClasses()];
-
-        this.assignmentProbMatrix = new double[numDataPoints][numAssignments];
-        this.assignmentScoreMatrix = new double[numDataPoints][numAssignments];
-        this.updateEmpricalCounts();
+        this.classProbMatrix = new double[numDataPoints][numClasses];
+        this.residualMatrix = new double[numDataPoints][numClasses];
+        this.logLikelihoods = new double[numDataPoints];
         this.isValueCacheValid=false;
         this.isGradientCacheValid=false;
+        this.isProbabilityCacheValid=false;
     }
 
 
@@ -72,14 +64,22 @@ public class MLLogisticLoss implements Optimizable.ByGradient, Optimizable.ByGra
         this.mlLogisticRegression.getWeights().setWeightVector(parameters);
         this.isValueCacheValid=false;
         this.isGradientCacheValid=false;
+        this.isProbabilityCacheValid=false;
     }
 
     public double getValue(){
         if (isValueCacheValid){
             return this.value;
         }
+        if (!isProbabilityCacheValid){
+            updateClassProbMatrix();
+        }
+        double logLikelihood = 0;
+        for (double l: logLikelihoods){
+            logLikelihood += l;
+        }
         Vector parameters = getParameters();
-        this.value =  -1*mlLogisticRegression.dataSetLogLikelihood(dataSet) + parameters.dot(parameters)/(2*gaussianPriorVariance);
+        this.value =  -1*logLikelihood + parameters.dot(parameters)/(2*gaussianPriorVariance);
         this.isValueCacheValid = true;
         return this.value;
     }
@@ -89,107 +89,108 @@ public class MLLogisticLoss implements Optimizable.ByGradient, Optimizable.ByGra
         if (isGradientCacheValid){
             return this.gradient;
         }
-        updateClassScoreMatrix();
-        updateAssignmentScoreMatrix();
-        updateAssignmentProbMatrix();
-        updateClassProbMatrix();
-        updatePredictedCounts();
+        // shared with getValue when the parameters have not changed
+        if (!isProbabilityCacheValid){
+            updateClassProbMatrix();
+        }
         updateGradient();
         this.isGradientCacheValid = true;
         return this.gradient;
     }
 
 
+    /**
+     * gradient = predicted counts - empirical counts + weights/variance
+     * each feature column is scanned once for all classes, against the row major residuals
+     */
     private void updateGradient(){
-        Vector weights = this.mlLogisticRegression.getWeights().getAllWeights();
-        this.gradient = this.predictedCounts.minus(empiricalCounts).plus(weights.divide(gaussianPriorVariance));
-    }
-
-    private void updateEmpricalCounts(){
-        IntStream.range(0, numParameters).parallel()
-                .forEach(i -> this.empiricalCounts.set(i, calEmpricalCount(i)));
-    }
-
-    private void updatePredictedCounts(){
         if (logger.isDebugEnabled()){
-            logger.debug("start method  updatePredictedCounts");
+            logger.debug("start method  updateGradient");
         }
-        IntStream.range(0,numParameters).parallel()
-                .forEach(i -> this.predictedCounts.set(i, calPredictedCount(i)));
-        if (logger.isDebugEnabled()){
-            logger.debug("finish method  updatePredictedCounts");
-        }
-    }
-
-    private double calEmpricalCount(int parameterIndex){
-        int classIndex = mlLogisticRegression.getWeights().getClassIndex(parameterIndex);
-        MultiLabel[] labels = dataSet.getMultiLabels();
-        int featureIndex = mlLogisticRegression.getWeights().getFeatureIndex(parameterIndex);
-        double count = 0;
-        //bias
-        if (featureIndex == -1){
-            for (int i=0;i<dataSet.getNumDataPoints();i++){
-                if (labels[i].matchClass(classIndex)){
-                    count +=1;
+        int numFeatures = dataSet.getNumFeatures();
+        double[] parameters = parameterArray();
+        double[] gradientArray = new double[numParameters];
+        IntStream.range(0, numFeatures).parallel().forEach(j -> {
+            double[] counts = new double[numClasses];
+            Vectors.forEachNonZero(dataSet.getColumn(j), (dataPointIndex, featureValue) -> {
+                double[] residuals = residualMatrix[dataPointIndex];
+                for (int k=0;k<numClasses;k++){
+                    counts[k] += featureValue*residuals[k];
                 }
+            });
+            for (int k=0;k<numClasses;k++){
+                int parameterIndex = k*(numFeatures+1)+j+1;
+                gradientArray[parameterIndex] = counts[k] + parameters[parameterIndex]/gaussianPriorVariance;
             }
-        } else {
-            Vector featureColumn = dataSet.getColumn(featureIndex);
-            for (Vector.Element element: featureColumn.nonZeroes()){
-                int dataPointIndex = element.index();
-                double featureValue = element.get();
-                MultiLabel label = labels[dataPointIndex];
-                if (label.matchClass(classIndex)){
-                    count += featureValue;
-                }
-            }
-        }
-        return count;
-    }
-
-    private double calPredictedCount(int parameterIndex){
-        int classIndex = mlLogisticRegression.getWeights().getClassIndex(parameterIndex);
-        int featureIndex = mlLogisticRegression.getWeights().getFeatureIndex(parameterIndex);
-        double count = 0;
+        });
         //bias
-        if (featureIndex == -1){
-            for (int i=0;i<dataSet.getNumDataPoints();i++){
-                count += this.classProbMatrix[i][classIndex];
-            }
-        } else {
-            Vector featureColumn = dataSet.getColumn(featureIndex);
-            for (Vector.Element element: featureColumn.nonZeroes()){
-                int dataPointIndex = element.index();
-                double featureValue = element.get();
-                count += this.classProbMatrix[dataPointIndex][classIndex] * featureValue;
+        for (int k=0;k<numClasses;k++){
+            int parameterIndex = k*(numFeatures+1);
+            gradientArray[parameterIndex] = parameters[parameterIndex]/gaussianPriorVariance;
+        }
+        for (int i=0;i<dataSet.getNumDataPoints();i++){
+            double[] residuals = residualMatrix[i];
+            for (int k=0;k<numClasses;k++){
+                gradientArray[k*(numFeatures+1)] += residuals[k];
             }
         }
-        return count;
+        this.gradient = new DenseVector(gradientArray, true);
+        if (logger.isDebugEnabled()){
+            logger.debug("finish method  updateGradient");
+        }
     }
 
-
     public double[] getClassProbs(int dataPointIndex){
         return classProbMatrix[dataPointIndex];
     }
 
-    private void updateClassScoreMatrix(){
-        IntStream.range(0,dataSet.getNumDataPoints()).parallel()
-                .forEach(i-> classScoreMatrix[i] = mlLogisticRegression.predictClassScores(dataSet.getRow(i)));
-    }
-
-    private void updateAssignmentScoreMatrix(){
-        IntStream.range(0,dataSet.getNumDataPoints()).parallel()
-                .forEach(i -> assignmentScoreMatrix[i] = mlLogisticRegression.calAssignmentScores(classScoreMatrix[i]));
+    /**
+     * one pass over the non-zeros of the row gives all class scores;
+     * assignment probabilities, class probabilities, log likelihood and residuals follow from them
+     */
+    private void updateClassProbs(int dataPointIndex, double[] parameters){
+        int numFeatures = dataSet.getNumFeatures();
+        double[] classScores = new double[numClasses];
+        for (int k=0;k<numClasses;k++){
+            classScores[k] = parameters[k*(numFeatures+1)];
+        }
+        Vectors.forEachNonZero(dataSet.getRow(dataPointIndex), (featureIndex, featureValue) -> {
+            for (int k=0;k<numClasses;k++){
+                classScores[k] += parameters[k*(numFeatures+1)+featureIndex+1]*featureValue;
+            }
+        });
+        double[] assignmentScores = mlLogisticRegression.calAssignmentScores(classScores);
+        double[] assignmentProbs = mlLogisticRegression.calAssignmentProbs(assignmentScores);
+        double[] classProbs = mlLogisticRegression.calClassProbs(assignmentProbs);
+        classProbMatrix[dataPointIndex] = classProbs;
+
+        MultiLabel multiLabel = dataSet.getMultiLabels()[dataPointIndex];
+        double[] residuals = residualMatrix[dataPointIndex];
+        for (int k=0;k<numClasses;k++){
+            residuals[k] = classProbs[k];
+        }
+        for (int label: multiLabel.getMatchedLabels()){
+            residuals[label] -= 1;
+        }
+        logLikelihoods[dataPointIndex] = mlLogisticRegression.calAssignmentScore(multiLabel, classScores)
+                - MathUtil.logSumExp(assignmentScores);
     }
 
-    private void updateAssignmentProbMatrix(){
+    private void updateClassProbMatrix(){
+        double[] parameters = parameterArray();
         IntStream.range(0,dataSet.getNumDataPoints()).parallel()
-                .forEach(i -> assignmentProbMatrix[i] = mlLogisticRegression.calAssignmentProbs(assignmentScoreMatrix[i]));
+                .forEach(i -> updateClassProbs(i, parameters));
+        this.isProbabilityCacheValid = true;
     }
 
-    private void updateClassProbMatrix(){
-        IntStream.range(0,dataSet.getNumDataPoints()).parallel()
-                .forEach(i -> classProbMatrix[i] = mlLogisticRegression.calClassProbs(assignmentProbMatrix[i]));
+    // plain array, so the inner loops avoid vector views
+    private double[] parameterArray(){
+        Vector weightVector = mlLogisticRegression.getWeights().getAllWeights();
+        double[] parameters = new double[numParameters];
+        for (int p=0;p<numParameters;p++){
+            parameters[p] = weightVector.getQuick(p);
+        }
+        return parameters;
     }
 
 
@@ -16,6 +16,8 @@ public class Ensemble implements Serializable{
     private static final long serialVersionUID = 1L;
 
     private List<Regressor> regressors;
+    // number of regressors added through add(), so a compiled copy can tell it is stale
+    private transient int version;
 
     public Ensemble() {
         this.regressors = new ArrayList<>();
@@ -23,6 +25,11 @@ public class Ensemble implements Serializable{
 
     public void add(Regressor regressor){
         this.regressors.add(regressor);
+        this.version += 1;
+    }
+
+    int getVersion() {
+        return version;
     }
 
     public Regressor get(int index){
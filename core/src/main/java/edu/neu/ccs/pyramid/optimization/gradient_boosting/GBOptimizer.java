@@ -10,12 +10,16 @@ import edu.neu.ccs.pyramid.regression.regression_tree.RegressionTree;
 import org.apache.mahout.math.Vector;
 
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 import java.util.stream.IntStream;
 
 /**
  * Created by chengli on 10/1/15.
  */
 public abstract class GBOptimizer {
+    // below this many features per task, splitting a tree's feature scan further does not pay off
+    private static final int MIN_FEATURES_PER_TASK = 64;
+
     protected ScoreMatrix scoreMatrix;
 
     protected GradientBoosting boosting;
@@ -25,6 +29,8 @@ public abstract class GBOptimizer {
     protected boolean isInitialized;
     protected double shrinkage = 1;
     protected int[][] monotonicity=null;
+    // number of ensembles fitted concurrently in one iteration; 0 = decided by data shape
+    protected int classParallelism = 0;
 
 
     protected GBOptimizer(GradientBoosting boosting, DataSet dataSet,  RegressorFactory factory, double[] weights) {
@@ -43,6 +49,20 @@ public abstract class GBOptimizer {
         this.monotonicity = monotonicity;
     }
 
+    /**
+     * ensembles are fitted independently within one iteration, since gradients only depend on
+     * the state of the previous iteration (updateOthers is called once all ensembles are done);
+     * this sets how many of them are fitted at the same time
+     * the rest of the ForkJoin pool is left to the feature level parallelism inside each tree
+     * @param classParallelism 1 = one ensemble at a time; 0 = decided by the number of ensembles and features
+     */
+    public void setClassParallelism(int classParallelism) {
+        if (classParallelism<0){
+            throw new IllegalArgumentException("classParallelism must be non-negative");
+        }
+        this.classParallelism = classParallelism;
+    }
+
     /**
      * model specific initialization
      * should be called after constructor
@@ -94,6 +114,19 @@ public abstract class GBOptimizer {
 
     protected void updateStagedScores(Regressor regressor, int ensembleIndex){
         int numDataPoints = dataSet.getNumDataPoints();
+        if (regressor instanceof RegressionTree){
+            RegressionTree tree = (RegressionTree) regressor;
+            int[] leafAssignment = tree.getTrainingLeafAssignment();
+            tree.clearTrainingLeafAssignment();
+            if (leafAssignment!=null && leafAssignment.length==numDataPoints){
+                // the trainer already knows the leaf of each training data point
+                // only re-predict the ones routed probabilistically
+                this.scoreMatrix.increment(ensembleIndex,leafAssignment,tree.getLeafOutputs());
+                IntStream.range(0, numDataPoints).parallel().filter(dataIndex -> leafAssignment[dataIndex]<0)
+                        .forEach(dataIndex -> this.updateStagedScore(regressor,ensembleIndex,dataIndex));
+                return;
+            }
+        }
         IntStream.range(0, numDataPoints).parallel()
                 .forEach(dataIndex -> this.updateStagedScore(regressor,ensembleIndex,dataIndex));
     }
@@ -102,15 +135,48 @@ public abstract class GBOptimizer {
         if (!isInitialized){
             throw new RuntimeException("GBOptimizer is not initialized");
         }
-        for (int k=0;k<boosting.getNumEnsembles();k++){
-            Regressor regressor = fitRegressor(k);
-            shrink(regressor);
-            boosting.getEnsemble(k).add(regressor);
-            updateStagedScores(regressor,k);
+        int numEnsembles = boosting.getNumEnsembles();
+        int numWorkers = numClassWorkers();
+        if (numWorkers<=1){
+            for (int k=0;k<numEnsembles;k++){
+                updateEnsemble(k);
+            }
+        } else {
+            // worker w takes ensembles w, w+numWorkers, ...; nested feature level tasks run in the same pool
+            // and are picked up by idle threads
+            IntStream.range(0, numWorkers).parallel().forEach(w -> {
+                for (int k=w;k<numEnsembles;k+=numWorkers){
+                    updateEnsemble(k);
+                }
+            });
         }
         updateOthers();
     }
 
+    private void updateEnsemble(int ensembleIndex){
+        Regressor regressor = fitRegressor(ensembleIndex);
+        shrink(regressor);
+        boosting.getEnsemble(ensembleIndex).add(regressor);
+        updateStagedScores(regressor,ensembleIndex);
+    }
+
+    /**
+     * split the pool: feature level parallelism takes what the number of features can use,
+     * ensembles get the remaining share
+     */
+    private int numClassWorkers(){
+        int numEnsembles = boosting.getNumEnsembles();
+        if (classParallelism>0){
+            return Math.min(classParallelism, numEnsembles);
+        }
+        if (numEnsembles==1){
+            return 1;
+        }
+        int poolSize = ForkJoinPool.getCommonPoolParallelism();
+        int featureWorkers = Math.max(1, Math.min(poolSize, dataSet.getNumFeatures()/MIN_FEATURES_PER_TASK));
+        return Math.max(1, Math.min(numEnsembles, poolSize/featureWorkers));
+    }
+
     public void iterate(int numIterations){
         for (int i=0;i<numIterations;i++){
             iterate();
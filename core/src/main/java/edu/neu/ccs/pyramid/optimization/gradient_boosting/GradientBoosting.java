@@ -1,6 +1,8 @@
 package edu.neu.ccs.pyramid.optimization.gradient_boosting;
 
 import edu.neu.ccs.pyramid.feature.FeatureList;
+import edu.neu.ccs.pyramid.regression.Regressor;
+import edu.neu.ccs.pyramid.regression.regression_tree.CompiledTreeEnsemble;
 import org.apache.mahout.math.Vector;
 
 import java.io.Serializable;
@@ -15,6 +17,9 @@ public class GradientBoosting implements Serializable{
     protected int numEnsembles;
     protected List<Ensemble> ensembles;
     protected FeatureList featureList;
+    // cached by compile(); compiledVersion is written after compiled and read before it
+    private transient volatile CompiledTreeEnsemble compiled;
+    private transient volatile long compiledVersion;
 
     
     public GradientBoosting(int numEnsembles) {
@@ -46,6 +51,40 @@ public class GradientBoosting implements Serializable{
         return scores;
     }
 
+    /**
+     * flatten the current ensembles for fast prediction
+     * the compiled model is cached and rebuilt on the next call after a regressor is added through Ensemble.add;
+     * regressors changed through Ensemble.getRegressors() are not noticed
+     */
+    public CompiledTreeEnsemble compile(){
+        long version = version();
+        if (compiledVersion==version){
+            CompiledTreeEnsemble snapshot = compiled;
+            if (snapshot!=null){
+                return snapshot;
+            }
+        }
+        synchronized (this){
+            if (compiled==null || compiledVersion!=version){
+                List<List<Regressor>> regressors = new ArrayList<>();
+                for (Ensemble ensemble: ensembles){
+                    regressors.add(ensemble.getRegressors());
+                }
+                compiled = CompiledTreeEnsemble.compile(regressors);
+                compiledVersion = version;
+            }
+            return compiled;
+        }
+    }
+
+    private long version(){
+        long version = 0;
+        for (Ensemble ensemble: ensembles){
+            version += ensemble.getVersion();
+        }
+        return version;
+    }
+
     public FeatureList getFeatureList() {
         return featureList;
     }
@@ -1,10 +1,11 @@
 package edu.neu.ccs.pyramid.ranking;
 
 import edu.neu.ccs.pyramid.dataset.DataSet;
-import edu.neu.ccs.pyramid.eval.NDCG;
 import edu.neu.ccs.pyramid.optimization.gradient_boosting.GBOptimizer;
 import edu.neu.ccs.pyramid.optimization.gradient_boosting.GradientBoosting;
 import edu.neu.ccs.pyramid.regression.RegressorFactory;
+import edu.neu.ccs.pyramid.util.ArgSort;
+import org.apache.commons.math3.util.FastMath;
 
 import java.util.Arrays;
 import java.util.List;
@@ -34,43 +35,66 @@ public class LambdaMARTOptimizer extends GBOptimizer {
         return instanceIdsInEachQuery.get(queryId);
     }
 
-    // calculate gradients for all instances in a query
-    private double gradientForInstanceInQuery(double[] predictedScores, double[] relevance, int dataIndexInQuery){
-        double grade = relevance[dataIndexInQuery];
-        double score = predictedScores[dataIndexInQuery];
-        double gradient = 0;
-        //todo times ndcg delta
-        for (int i=0;i<relevance.length;i++){
-            if (grade>relevance[i]){
-                gradient += 1.0/(1+Math.exp(score - predictedScores[i]))*delta(predictedScores,relevance, dataIndexInQuery, i, ndcgTruncationLevel);
-            }
-
-            if (grade< relevance[i]){
-                gradient -= 1.0/(1+Math.exp(predictedScores[i]- score))*delta(predictedScores,relevance, dataIndexInQuery, i, ndcgTruncationLevel);
-            }
-        }
-        return gradient;
-    }
-
-    private double delta(double[] predictedScores, double[] relevance, int data1, int data2, int truncation){
-        double ndcg = NDCG.ndcg(relevance,predictedScores,truncation);
-        double[] swapped = Arrays.copyOf(relevance, relevance.length);
-        double data1Rel = relevance[data1];
-        double data2Rel = relevance[data2];
-        swapped[data1] = data2Rel;
-        swapped[data2] = data1Rel;
-        double swappedNDCG = NDCG.ndcg(swapped, predictedScores, truncation);
-        return Math.abs(swappedNDCG-ndcg);
-    }
-
-    // calculate gradients for all instances in a query
+    /**
+     * calculate gradients for all instances in a query
+     * documents are ranked once by score; swapping the grades of two documents leaves the ranking and the ideal dcg
+     * unchanged, so |delta ndcg| of a pair is |(gain_i - gain_j) * (discount_i - discount_j)| / ideal dcg
+     * pairs ranked below the truncation level on both sides have delta ndcg = 0 and are skipped
+     */
     private double[] gradientForQuery(int queryIndex){
         List<Integer> instancesForQuery = instancesForQuery(queryIndex);
         double[] predictedScores = instancesForQuery.stream().mapToDouble(i->scoreMatrix.getScoresForData(i)[0]).toArray();
         double[] relevance = instancesForQuery.stream().mapToDouble(i->relevanceGrades[i]).toArray();
-        double[] gradients = new double[instancesForQuery.size()];
-        for (int i=0;i<gradients.length;i++){
-            gradients[i] = gradientForInstanceInQuery(predictedScores,relevance,i);
+        int numDocs = relevance.length;
+        double[] gradients = new double[numDocs];
+        int truncation = Math.min(ndcgTruncationLevel, numDocs);
+
+        double[] gains = new double[numDocs];
+        for (int i=0;i<numDocs;i++){
+            gains[i] = FastMath.pow(2, relevance[i])-1;
+        }
+        // positions beyond truncation get discount 0
+        double[] discounts = new double[numDocs];
+        for (int r=0;r<truncation;r++){
+            //rank starts at 1
+            discounts[r] = 1.0/FastMath.log(2, r+2);
+        }
+        double[] idealGains = Arrays.copyOf(gains, numDocs);
+        Arrays.sort(idealGains);
+        double idealDCG = 0;
+        for (int r=0;r<truncation;r++){
+            idealDCG += idealGains[numDocs-1-r]*discounts[r];
+        }
+        if (idealDCG==0){
+            return gradients;
+        }
+
+        // same tie breaking as NDCG.ndcg
+        int[] ranked = ArgSort.argSortDescending(predictedScores);
+        int[] ranks = new int[numDocs];
+        for (int r=0;r<numDocs;r++){
+            ranks[ranked[r]] = r;
+        }
+
+        for (int i=0;i<numDocs;i++){
+            double grade = relevance[i];
+            double score = predictedScores[i];
+            double discount = discounts[ranks[i]];
+            int numPartners = ranks[i]<truncation? numDocs: truncation;
+            double gradient = 0;
+            for (int r=0;r<numPartners;r++){
+                int j = ranked[r];
+                if (grade==relevance[j]){
+                    continue;
+                }
+                double delta = Math.abs((gains[i]-gains[j])*(discount-discounts[r]))/idealDCG;
+                if (grade>relevance[j]){
+                    gradient += 1.0/(1+Math.exp(score - predictedScores[j]))*delta;
+                } else {
+                    gradient -= 1.0/(1+Math.exp(predictedScores[j]- score))*delta;
+                }
+            }
+            gradients[i] = gradient;
         }
         return gradients;
     }
@@ -1,11 +1,12 @@
 package edu.neu.ccs.pyramid.regression.linear_regression;
 
 import edu.neu.ccs.pyramid.dataset.DataSet;
-import edu.neu.ccs.pyramid.dataset.MultiLabel;
 import edu.neu.ccs.pyramid.dataset.RegDataSet;
 import edu.neu.ccs.pyramid.optimization.Terminator;
+import edu.neu.ccs.pyramid.util.Vectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Vector;
 
 import java.util.*;
@@ -15,12 +16,28 @@ import java.util.stream.IntStream;
  * Friedman, Jerome, Trevor Hastie, and Rob Tibshirani.
  * "Regularization paths for generalized linear models via coordinate descent."
  * Journal of statistical software 33.1 (2010): 1.
+ *
+ * Tibshirani, Robert, et al.
+ * "Strong rules for discarding predictors in lasso-type problems."
+ * Journal of the Royal Statistical Society: Series B 74.2 (2012): 245-266.
  * Created by chengli on 2/18/15.
  * There is no restriction on instance weights
  * The loss function is weighted square error/total weight + penalty
+ *
+ * coordinate descent uses covariance updates: the gradient of every feature is kept up to date,
+ * so visiting a feature costs O(1) unless its coefficient changes;
+ * when it changes, the gradients move by the (cached) weighted inner products between features, and no residual is touched
+ * this pays off when few coefficients are non-zero; for ridge, or once the cache is full, it falls back to
+ * naive updates, which keep the residuals instead and compute gradients from them
+ * features are screened with the sequential strong rule, and the screened out features are checked
+ * against the KKT conditions after convergence
  */
 public class ElasticNetLinearRegOptimizer {
     private static final Logger logger = LogManager.getLogger();
+    // about 200MB of cached inner products; beyond that, updates switch to the naive mode
+    private static final long MAX_CACHED_COVARIANCES = 1L<<24;
+    // glmnet's choice for the largest regularization of a ridge path
+    private static final double MIN_PATH_L1_RATIO = 0.001;
     private double regularization = 0;
     private double l1Ratio = 0;
     private Terminator terminator;
@@ -31,6 +48,33 @@ public class ElasticNetLinearRegOptimizer {
     double sumWeights;
     private boolean isActiveSet = false;
 
+    // state of the coordinate updates, built by initialize()
+    private boolean useCovariance;
+    private double[] coefficients;
+    // y_i - score_i; only kept up to date in naive mode
+    private double[] residuals;
+    // sum_i w_i x_ij r_i; stale by biasShift*weightedColumnSums[j], see gradient()
+    // in naive mode, only valid right after refreshGradients()
+    private double[] gradients;
+    // sum_i w_i x_ij
+    private double[] weightedColumnSums;
+    // sum_i w_i x_ij^2
+    private double[] weightedSquareSums;
+    // bias change not yet applied to gradients
+    private double biasShift;
+    // sum_i w_i r_i
+    private double residualSum;
+    // sum_i w_i r_i^2
+    private double weightedSquaredError;
+    private double l1Norm;
+    private double squaredL2Norm;
+    private Map<Integer,Covariance> covariances;
+    private long numCachedCovariances;
+    // scratch space for computing covariances
+    private double[] covarianceBuffer;
+    private int[] touchedFeatures;
+    private boolean[] isTouched;
+
     public boolean isActiveSet() {
         return isActiveSet;
     }
@@ -83,7 +127,12 @@ public class ElasticNetLinearRegOptimizer {
 
 
     public void optimize(){
-
+        // if no weight at all, only minimize the penalty
+        if (sumWeights==0){
+            zeroWeightsIfPenalized();
+            return;
+        }
+        initialize();
         if (!isActiveSet) {
             normalOptimize();
         } else {
@@ -94,12 +143,92 @@ public class ElasticNetLinearRegOptimizer {
 
     }
 
+    /**
+     * solve for a decreasing sequence of regularizations; each solution warm starts the next one,
+     * and the previous regularization drives the sequential strong rule
+     * the terminator of this optimizer is used for the last regularization;
+     * earlier ones use copies of its thresholds
+     * @param regularizations non-increasing
+     * @return weights (bias first) after each regularization; the model and getRegularization() end at the last one
+     */
+    public List<Vector> optimizePath(double[] regularizations){
+        for (int l=0;l<regularizations.length;l++){
+            if (regularizations[l]<0 || (l>0 && regularizations[l]>regularizations[l-1])){
+                throw new IllegalArgumentException("regularizations should be non-negative and non-increasing");
+            }
+        }
+        List<Vector> solutions = new ArrayList<>();
+        if (regularizations.length==0){
+            return solutions;
+        }
+        if (sumWeights==0){
+            this.regularization = regularizations[regularizations.length-1];
+            zeroWeightsIfPenalized();
+            for (int l=0;l<regularizations.length;l++){
+                solutions.add(new DenseVector(linearRegression.getWeights().getWeights()));
+            }
+            return solutions;
+        }
+        initialize();
+        double previousRegularization = Math.max(regularizations[0], currentMaxRegularization());
+        for (int l=0;l<regularizations.length;l++){
+            this.regularization = regularizations[l];
+            Terminator pathTerminator = terminator;
+            if (l<regularizations.length-1){
+                pathTerminator = freshCopy(terminator);
+            }
+            solve(previousRegularization, pathTerminator);
+            solutions.add(new DenseVector(linearRegression.getWeights().getWeights()));
+            if (logger.isDebugEnabled()){
+                logger.debug("regularization = "+regularization+", non-zeros = "+numNonZeros());
+            }
+            previousRegularization = regularizations[l];
+        }
+        return solutions;
+    }
+
+    /**
+     * geometric path of pathLength regularizations from getMaxRegularization() down to the current regularization
+     */
+    public void optimizePath(int pathLength){
+        if (pathLength<1){
+            throw new IllegalArgumentException("pathLength>=1");
+        }
+        double max = Math.max(getMaxRegularization(), regularization);
+        double[] regularizations = new double[pathLength];
+        for (int l=0;l<pathLength;l++){
+            if (pathLength==1 || regularization==0){
+                // a geometric sequence can not reach 0; finish with it
+                regularizations[l] = l==pathLength-1? regularization: max*Math.pow(0.001, (double) l/(pathLength-1));
+            } else {
+                regularizations[l] = max*Math.pow(regularization/max, (double) l/(pathLength-1));
+            }
+        }
+        optimizePath(regularizations);
+    }
+
+    /**
+     * the smallest regularization at which all coefficients are 0 (for l1Ratio>0)
+     * for ridge, where there is no such value, glmnet's convention l1Ratio=0.001 is used
+     */
+    public double getMaxRegularization(){
+        if (sumWeights==0){
+            return 0;
+        }
+        // with all coefficients at 0, the bias is the weighted mean of labels
+        double mean = IntStream.range(0,dataSet.getNumDataPoints()).parallel()
+                .mapToDouble(i -> instanceWeights[i]*labels[i]).sum()/sumWeights;
+        double max = IntStream.range(0,dataSet.getNumFeatures()).parallel().mapToDouble(j -> {
+            double[] sum = new double[1];
+            Vectors.forEachNonZero(dataSet.getColumn(j), (i, x) -> sum[0] += instanceWeights[i]*x*(labels[i]-mean));
+            return Math.abs(sum[0]);
+        }).max().orElse(0);
+        return max/(sumWeights*Math.max(l1Ratio, MIN_PATH_L1_RATIO));
+    }
+
     private void activeSetOptimize() {
-        double[] scores = new double[dataSet.getNumDataPoints()];
-        IntStream.range(0,dataSet.getNumDataPoints()).parallel().forEach(i->
-                scores[i] = linearRegression.predict(dataSet.getRow(i)));
         // initialize iterations
-        iterate(scores);
+        iterate();
         terminator.add(1.0);
         BitSet activeSet = updateActiveSet();
         // only when activeSet does not change
@@ -107,13 +236,13 @@ public class ElasticNetLinearRegOptimizer {
         while (!shouldTerminate) {
             int maxIter = 0;
             while (true) {
-                activeSetIterate(scores, activeSet);
+                iterate(activeSet);
                 terminator.add(1.0);
                 if (terminator.shouldTerminate() || (++maxIter>5)){
                     break;
                 }
             }
-            iterate(scores);
+            iterate();
             terminator.add(1.0);
             if (terminator.shouldTerminate()) {
                 break;
@@ -136,139 +265,357 @@ public class ElasticNetLinearRegOptimizer {
 
     private BitSet updateActiveSet() {
         BitSet activeSet = new BitSet();
-        for (Vector.Element element : linearRegression.getWeights().getWeightsWithoutBias().nonZeroes()) {
-            activeSet.set(element.index());
+        for (int j=0;j<coefficients.length;j++){
+            if (coefficients[j]!=0){
+                activeSet.set(j);
+            }
         }
         return activeSet;
     }
 
     private void normalOptimize() {
-        double[] scores = new double[dataSet.getNumDataPoints()];
-        IntStream.range(0,dataSet.getNumDataPoints()).parallel().forEach(i->
-                scores[i] = linearRegression.predict(dataSet.getRow(i)));
-
-        double lastLoss = loss(linearRegression,scores,labels,instanceWeights, sumWeights);
         if (logger.isDebugEnabled()){
-            logger.debug("initial loss = "+lastLoss);
+            logger.debug("initial loss = "+loss());
+        }
+        // without a previous solution on a path, the largest gradient plays the role of the previous regularization;
+        // from all zeros, this is the basic strong rule
+        solve(Math.max(regularization, currentMaxRegularization()), terminator);
+        if (logger.isDebugEnabled()){
+            logger.debug("final loss = "+terminator.getLastValue());
         }
+    }
 
+    /**
+     * coordinate descent over the strong set until convergence, then add the KKT violators and continue
+     * the given terminator sees every iteration and bounds the total number of them;
+     * convergence is tracked per round, since the terminator is already stable when violators are added
+     */
+    private void solve(double previousRegularization, Terminator terminator){
+        BitSet strongSet = strongSet(previousRegularization);
+        if (logger.isDebugEnabled()){
+            logger.debug("strong set size = "+strongSet.cardinality());
+        }
+        Terminator round = freshCopy(terminator);
         while(true){
-            iterate(scores);
-            double loss = loss(linearRegression,scores,labels,instanceWeights,sumWeights);
+            iterate(strongSet);
+            double loss = loss();
             if (logger.isDebugEnabled()){
                 logger.debug("loss = "+loss);
             }
             terminator.add(loss);
-            if (terminator.shouldTerminate()){
+            round.add(loss);
+            if (terminator.getNumIterations()>=terminator.getMaxIteration()
+                    || (terminator.shouldTerminate() && !terminator.isConverged())){
+                break;
+            }
+            if (round.shouldTerminate()){
+                BitSet violations = violations(strongSet);
+                if (violations.isEmpty()){
+                    break;
+                }
                 if (logger.isDebugEnabled()){
-                    logger.debug("final loss = "+loss);
+                    logger.debug("number of KKT violations = "+violations.cardinality());
                 }
-                break;
+                strongSet.or(violations);
+                round = freshCopy(terminator);
             }
         }
     }
 
+    /**
+     * same thresholds, empty history
+     */
+    private static Terminator freshCopy(Terminator terminator){
+        return new Terminator()
+                .setRelativeEpsilon(terminator.getRelativeEpsilon())
+                .setAbsoluteEpsilon(terminator.getAbsoluteEpsilon())
+                .setMaxIteration(terminator.getMaxIteration())
+                .setMode(terminator.getMode());
+    }
 
-    private void activeSetIterate(double[] scores, BitSet activeSet) {
-        // if no weight at all, only minimize the penalty
-        if (sumWeights==0){
-            // if there is a penalty
-            if (regularization>0){
-                for (int j=0;j<dataSet.getNumFeatures();j++){
-                    linearRegression.getWeights().setWeight(j,0);
-                }
+    /**
+     * sequential strong rule: discard feature j if |gradient_j| < l1Ratio*(2*regularization - previousRegularization)
+     * non-zero coefficients are always kept
+     */
+    private BitSet strongSet(double previousRegularization){
+        BitSet strongSet = new BitSet(coefficients.length);
+        // nothing to screen for ridge
+        if (l1Ratio==0){
+            strongSet.set(0, coefficients.length);
+            return strongSet;
+        }
+        refreshGradients();
+        double threshold = l1Ratio*(2*regularization-previousRegularization)*sumWeights;
+        for (int j=0;j<coefficients.length;j++){
+            if (coefficients[j]!=0 || Math.abs(gradient(j))>=threshold){
+                strongSet.set(j);
             }
-            return;
         }
-        double oldBias = linearRegression.getWeights().getBias();
-        double newBias = IntStream.range(0,dataSet.getNumDataPoints()).parallel().mapToDouble(i ->
-                instanceWeights[i]*(labels[i]-scores[i] + oldBias)).sum()/sumWeights;
-        linearRegression.getWeights().setBias(newBias);
-        //update scores
-        double difference = newBias - oldBias;
-        if (difference != 0) {
-            IntStream.range(0,dataSet.getNumDataPoints()).parallel().forEach(i -> scores[i] = scores[i] + difference);
+        return strongSet;
+    }
+
+    /**
+     * features outside the strong set that would move away from 0
+     */
+    private BitSet violations(BitSet strongSet){
+        refreshGradients();
+        double threshold = l1Ratio*regularization*sumWeights;
+        BitSet violations = new BitSet(coefficients.length);
+        for (int j=strongSet.nextClearBit(0);j<coefficients.length;j=strongSet.nextClearBit(j+1)){
+            if (weightedSquareSums[j]!=0 && Math.abs(gradient(j))>threshold){
+                violations.set(j);
+            }
         }
-        for (int j = activeSet.nextSetBit(0); j >= 0; j = activeSet.nextSetBit(j+1)) {
-            optimizeOneFeature(scores,j);
+        return violations;
+    }
+
+    /**
+     * the regularization at which the current solution would be all zeros, given the current gradients
+     */
+    private double currentMaxRegularization(){
+        if (l1Ratio==0){
+            return regularization;
+        }
+        refreshGradients();
+        double max = 0;
+        for (int j=0;j<coefficients.length;j++){
+            max = Math.max(max, Math.abs(gradient(j)));
         }
+        return max/(sumWeights*l1Ratio);
     }
 
-    private void iterate(double[] scores){
-        // if no weight at all, only minimize the penalty
-        if (sumWeights==0){
-            // if there is a penalty
-            if (regularization>0){
-                for (int j=0;j<dataSet.getNumFeatures();j++){
-                    linearRegression.getWeights().setWeight(j,0);
-                }
-            }
+    /**
+     * one pass over the data, everything else is maintained incrementally
+     */
+    private void initialize(){
+        int numFeatures = dataSet.getNumFeatures();
+        Vector weights = linearRegression.getWeights().getWeights();
+        coefficients = new double[numFeatures];
+        l1Norm = 0;
+        squaredL2Norm = 0;
+        for (int j=0;j<numFeatures;j++){
+            double coefficient = weights.get(j+1);
+            coefficients[j] = coefficient;
+            l1Norm += Math.abs(coefficient);
+            squaredL2Norm += coefficient*coefficient;
+        }
+
+        updateResiduals();
+
+        gradients = new double[numFeatures];
+        weightedColumnSums = new double[numFeatures];
+        weightedSquareSums = new double[numFeatures];
+        IntStream.range(0,numFeatures).parallel().forEach(j -> {
+            double[] sums = new double[3];
+            Vectors.forEachNonZero(dataSet.getColumn(j), (i, x) -> {
+                double tmp = instanceWeights[i]*x;
+                sums[0] += tmp*residuals[i];
+                sums[1] += tmp;
+                sums[2] += tmp*x;
+            });
+            gradients[j] = sums[0];
+            weightedColumnSums[j] = sums[1];
+            weightedSquareSums[j] = sums[2];
+        });
+        biasShift = 0;
+        covariances = new HashMap<>();
+        numCachedCovariances = 0;
+        // ridge solutions are dense, so every feature would need its covariances
+        useCovariance = l1Ratio>0;
+    }
+
+    /**
+     * residuals from the current model
+     */
+    private void updateResiduals(){
+        int numDataPoints = dataSet.getNumDataPoints();
+        residuals = new double[numDataPoints];
+        IntStream.range(0,numDataPoints).parallel().forEach(i->
+                residuals[i] = labels[i] - linearRegression.predict(dataSet.getRow(i)));
+        residualSum = IntStream.range(0,numDataPoints).parallel().mapToDouble(i -> instanceWeights[i]*residuals[i]).sum();
+        weightedSquaredError = IntStream.range(0,numDataPoints).parallel()
+                .mapToDouble(i -> instanceWeights[i]*residuals[i]*residuals[i]).sum();
+    }
+
+    /**
+     * in naive mode, recompute all gradients from the residuals
+     */
+    private void refreshGradients(){
+        if (useCovariance){
             return;
         }
-        double oldBias = linearRegression.getWeights().getBias();
-        double newBias = IntStream.range(0,dataSet.getNumDataPoints()).parallel().mapToDouble(i ->
-                instanceWeights[i]*(labels[i]-scores[i] + oldBias)).sum()/sumWeights;
-        linearRegression.getWeights().setBias(newBias);
-        //update scores
-        double difference = newBias - oldBias;
-        if (difference != 0) {
-            IntStream.range(0,dataSet.getNumDataPoints()).parallel().forEach(i -> scores[i] = scores[i] + difference);
+        IntStream.range(0,coefficients.length).parallel().forEach(j -> gradients[j] = columnGradient(j));
+        biasShift = 0;
+    }
+
+    private double columnGradient(int featureIndex){
+        double[] sum = new double[1];
+        Vectors.forEachNonZero(dataSet.getColumn(featureIndex), (i, x) -> sum[0] += instanceWeights[i]*x*residuals[i]);
+        return sum[0];
+    }
+
+    private void switchToNaive(){
+        if (logger.isDebugEnabled()){
+            logger.debug("covariance cache is full, switch to naive updates");
         }
-        for (int j=0;j<dataSet.getNumFeatures();j++){
-            optimizeOneFeature(scores,j);
+        useCovariance = false;
+        covariances = new HashMap<>();
+        numCachedCovariances = 0;
+        updateResiduals();
+        biasShift = 0;
+    }
+
+    private double gradient(int featureIndex){
+        return gradients[featureIndex] - biasShift*weightedColumnSums[featureIndex];
+    }
+
+    private void iterate(){
+        updateBias();
+        for (int j=0;j<coefficients.length;j++){
+            optimizeOneFeature(j);
         }
     }
 
+    private void iterate(BitSet features){
+        updateBias();
+        for (int j = features.nextSetBit(0); j >= 0; j = features.nextSetBit(j+1)) {
+            optimizeOneFeature(j);
+        }
+    }
 
-    private void optimizeOneFeature(double[] scores, int featureIndex){
-        double oldCoeff = linearRegression.getWeights().getWeightsWithoutBias().get(featureIndex);
-        double fit = 0;
-        double denominator = 0;
-        Vector featureColumn = dataSet.getColumn(featureIndex);
-        for (Vector.Element element: featureColumn.nonZeroes()){
-            int i = element.index();
-            double x = element.get();
-            double partialResidual = labels[i] - scores[i] + x*oldCoeff;
-            double tmp = instanceWeights[i]*x;
-            fit += tmp*partialResidual;
-            denominator += x*tmp;
+    private void updateBias(){
+        double difference = residualSum/sumWeights;
+        if (difference==0){
+            return;
+        }
+        linearRegression.getWeights().setBias(linearRegression.getWeights().getBias() + difference);
+        weightedSquaredError -= residualSum*difference;
+        residualSum = 0;
+        if (useCovariance){
+            biasShift += difference;
+        } else {
+            IntStream.range(0,residuals.length).parallel().forEach(i -> residuals[i] -= difference);
+        }
+    }
+
+
+    private void optimizeOneFeature(int featureIndex){
+        double oldCoeff = coefficients[featureIndex];
+        double squareSum = weightedSquareSums[featureIndex];
+        // an empty column stays at 0
+        if (squareSum==0 && oldCoeff==0){
+            return;
         }
-        fit /= sumWeights;
+        double gradient = useCovariance? gradient(featureIndex): columnGradient(featureIndex);
+        double fit = (gradient + squareSum*oldCoeff)/sumWeights;
         double numerator = softThreshold(fit);
         // TODO: regularization*(1-l1Ratio): repeated calculations
-        denominator = denominator/sumWeights + regularization*(1-l1Ratio);
+        double denominator = squareSum/sumWeights + regularization*(1-l1Ratio);
         // if denominator = 0, this feature is useless, assign 0 to the coefficient
         double newCoeff = 0;
         if (denominator!=0){
             newCoeff = numerator/denominator;
         }
 
-
-        linearRegression.getWeights().setWeight(featureIndex,newCoeff);
-        //update scores
         double difference = newCoeff - oldCoeff;
-        if (difference!=0){
-            for (Vector.Element element: featureColumn.nonZeroes()){
-                int i = element.index();
-                double x = element.get();
-                scores[i] = scores[i] +  difference*x;
+        if (difference==0){
+            return;
+        }
+        coefficients[featureIndex] = newCoeff;
+        linearRegression.getWeights().setWeight(featureIndex,newCoeff);
+        l1Norm += Math.abs(newCoeff) - Math.abs(oldCoeff);
+        squaredL2Norm += newCoeff*newCoeff - oldCoeff*oldCoeff;
+        // residuals move by -difference*x_j
+        weightedSquaredError += difference*(difference*squareSum - 2*gradient);
+        residualSum -= difference*weightedColumnSums[featureIndex];
+        if (useCovariance){
+            Covariance covariance = covariance(featureIndex);
+            if (covariance==null){
+                // residuals are rebuilt from the model, which already has the new coefficient
+                switchToNaive();
+                return;
+            }
+            for (int p=0;p<covariance.indices.length;p++){
+                gradients[covariance.indices[p]] -= difference*covariance.values[p];
+            }
+        } else {
+            Vectors.forEachNonZero(dataSet.getColumn(featureIndex), (i, x) -> residuals[i] -= difference*x);
+        }
+    }
+
+    /**
+     * sum_i w_i x_ij x_ik over all k sharing a row with j
+     * @return null if the cache is full
+     */
+    private Covariance covariance(int featureIndex){
+        Covariance covariance = covariances.get(featureIndex);
+        if (covariance!=null){
+            return covariance;
+        }
+        if (covarianceBuffer==null){
+            covarianceBuffer = new double[coefficients.length];
+            touchedFeatures = new int[coefficients.length];
+            isTouched = new boolean[coefficients.length];
+        }
+        int[] numTouched = new int[1];
+        Vectors.forEachNonZero(dataSet.getColumn(featureIndex), (i, x) -> {
+            double tmp = instanceWeights[i]*x;
+            if (tmp==0){
+                return;
             }
+            Vectors.forEachNonZero(dataSet.getRow(i), (k, value) -> {
+                if (!isTouched[k]){
+                    isTouched[k] = true;
+                    touchedFeatures[numTouched[0]] = k;
+                    numTouched[0] += 1;
+                }
+                covarianceBuffer[k] += tmp*value;
+            });
+        });
+        int[] indices = Arrays.copyOf(touchedFeatures, numTouched[0]);
+        double[] values = new double[indices.length];
+        for (int p=0;p<indices.length;p++){
+            int k = indices[p];
+            values[p] = covarianceBuffer[k];
+            covarianceBuffer[k] = 0;
+            isTouched[k] = false;
         }
+        if (numCachedCovariances + indices.length > MAX_CACHED_COVARIANCES){
+            return null;
+        }
+        covariance = new Covariance(indices, values);
+        covariances.put(featureIndex, covariance);
+        numCachedCovariances += indices.length;
+        return covariance;
     }
 
+    private void zeroWeightsIfPenalized(){
+        // if there is a penalty
+        if (regularization>0){
+            for (int j=0;j<dataSet.getNumFeatures();j++){
+                linearRegression.getWeights().setWeight(j,0);
+            }
+        }
+    }
 
-    private double loss(LinearRegression linearRegression, double[] scores, double[] labels, double[] instanceWeights, double sumWeights){
-        double mse = IntStream.range(0,scores.length).parallel().mapToDouble(i ->
-                instanceWeights[i] * Math.pow(labels[i] - scores[i], 2))
-                .sum();
-        double penalty = penalty(linearRegression);
-        return mse/(2*sumWeights) + penalty;
+    private int numNonZeros(){
+        int count = 0;
+        for (double coefficient: coefficients){
+            if (coefficient!=0){
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+
+    private double loss(){
+        return weightedSquaredError/(2*sumWeights) + penalty();
     }
 
-    private double penalty(LinearRegression linearRegression){
-        Vector vector = linearRegression.getWeights().getWeightsWithoutBias();
-        double normCombination = (1-l1Ratio)*0.5*Math.pow(vector.norm(2),2) +
-                l1Ratio*vector.norm(1);
+    private double penalty(){
+        double normCombination = (1-l1Ratio)*0.5*squaredL2Norm +
+                l1Ratio*l1Norm;
         return regularization * normCombination;
     }
 
@@ -295,7 +642,15 @@ public class ElasticNetLinearRegOptimizer {
         return weights;
     }
 
+    private static class Covariance {
+        private int[] indices;
+        private double[] values;
 
+        Covariance(int[] indices, double[] values) {
+            this.indices = indices;
+            this.values = values;
+        }
+    }
 
 
-}
\ No newline at end of file
+}
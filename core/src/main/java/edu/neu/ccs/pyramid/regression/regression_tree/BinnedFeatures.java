@@ -0,0 +1,281 @@
+package edu.neu.ccs.pyramid.regression.regression_tree;
+
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import org.apache.mahout.math.Vector;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * pre-binned copy of the feature matrix for histogram tree training
+ * each feature is quantized once into equal-width bins between its global min and max,
+ * the same way IntervalSplitter builds intervals at the root
+ * only non-empty bins are kept, and the boundaries between them are moved to the middle of the gap,
+ * which is what IntervalSplitter.compress would do
+ * zeros are implicit, NaN is stored as bin -1
+ * the stored bins are kept both by column, for the root histogram, and by row, for the histograms of child nodes
+ * the binned copy is read only; if the data set changes, it should be rebuilt
+ */
+public class BinnedFeatures {
+    static final int MISSING_BIN = -1;
+
+    private DataSet dataSet;
+    private int numBins;
+    private BinnedFeature[] features;
+    // stored bins by row: row i holds positions rowStarts[i] until rowStarts[i+1], in increasing feature order
+    private int[] rowStarts;
+    private int[] rowFeatures;
+    private short[] rowBins;
+
+    private BinnedFeatures(DataSet dataSet, int numBins) {
+        this.dataSet = dataSet;
+        this.numBins = numBins;
+    }
+
+    /**
+     * quantize all features in parallel
+     * @param dataSet
+     * @param numBins number of equal-width bins per feature
+     * @return binned features
+     */
+    public static BinnedFeatures build(DataSet dataSet, int numBins){
+        if (numBins>Short.MAX_VALUE){
+            throw new IllegalArgumentException("numBins should be at most "+Short.MAX_VALUE);
+        }
+        BinnedFeatures binnedFeatures = new BinnedFeatures(dataSet, numBins);
+        binnedFeatures.features = new BinnedFeature[dataSet.getNumFeatures()];
+        IntStream.range(0, dataSet.getNumFeatures()).parallel()
+                .forEach(j -> binnedFeatures.features[j] = new BinnedFeature(dataSet.getColumn(j),
+                        dataSet.getNumDataPoints(), numBins));
+        binnedFeatures.transpose();
+        return binnedFeatures;
+    }
+
+    private void transpose(){
+        int numDataPoints = dataSet.getNumDataPoints();
+        int[] rowCounts = new int[numDataPoints];
+        long numStored = 0;
+        for (BinnedFeature feature: features){
+            for (int i: feature.getIndices()){
+                rowCounts[i] += 1;
+            }
+            numStored += feature.getNumStored();
+        }
+        if (numStored>Integer.MAX_VALUE){
+            throw new IllegalArgumentException("too many non-zero values to bin: "+numStored);
+        }
+        this.rowStarts = new int[numDataPoints+1];
+        for (int i=0;i<numDataPoints;i++){
+            rowStarts[i+1] = rowStarts[i] + rowCounts[i];
+        }
+        this.rowFeatures = new int[(int) numStored];
+        this.rowBins = new short[(int) numStored];
+        // next free position of each row
+        int[] cursors = Arrays.copyOf(rowStarts, numDataPoints);
+        for (int j=0;j<features.length;j++){
+            BinnedFeature feature = features[j];
+            int[] indices = feature.getIndices();
+            for (int k=0;k<indices.length;k++){
+                int position = cursors[indices[k]];
+                rowFeatures[position] = j;
+                rowBins[position] = (short) feature.getBin(k);
+                cursors[indices[k]] += 1;
+            }
+        }
+    }
+
+    public DataSet getDataSet() {
+        return dataSet;
+    }
+
+    public int getNumBins() {
+        return numBins;
+    }
+
+    int getNumFeatures(){
+        return features.length;
+    }
+
+    BinnedFeature getFeature(int featureIndex){
+        return features[featureIndex];
+    }
+
+    int getRowStart(int dataIndex){
+        return rowStarts[dataIndex];
+    }
+
+    int getRowFeature(int position){
+        return rowFeatures[position];
+    }
+
+    int getRowBin(int position){
+        return rowBins[position];
+    }
+
+    /**
+     * one quantized feature column
+     */
+    static class BinnedFeature {
+        // data points with non-zero (including NaN) values
+        private int[] indices;
+        // compact bin ids, one of them is used depending on the number of bins
+        private byte[] byteBins;
+        private short[] shortBins;
+        // boundaries of the compact bins
+        private double[] lowers;
+        private double[] uppers;
+        // the compact bin of value 0; -1 if the feature has no zero
+        private int zeroBin = -1;
+
+        BinnedFeature(Vector column, int numDataPoints, int numBins) {
+            double min = Double.POSITIVE_INFINITY;
+            double max = Double.NEGATIVE_INFINITY;
+            int numStored = 0;
+            int numPresent = 0;
+            for (Vector.Element element: column.nonZeroes()){
+                double value = element.get();
+                if (value==0){
+                    continue;
+                }
+                numStored += 1;
+                if (!Double.isNaN(value)){
+                    numPresent += 1;
+                    if (value<min){
+                        min = value;
+                    }
+                    if (value>max){
+                        max = value;
+                    }
+                }
+            }
+            boolean hasZero = numStored<numDataPoints;
+            if (hasZero){
+                min = Math.min(min,0);
+                max = Math.max(max,0);
+            }
+
+            this.indices = new int[numStored];
+            int[] globalBins = new int[numStored];
+            int cursor = 0;
+            for (Vector.Element element: column.nonZeroes()){
+                double value = element.get();
+                if (value==0){
+                    continue;
+                }
+                indices[cursor] = element.index();
+                globalBins[cursor] = MISSING_BIN;
+                cursor += 1;
+            }
+
+            // no range, the feature can not be used for split
+            if (numPresent==0 || min==max){
+                this.lowers = new double[0];
+                this.uppers = new double[0];
+                this.byteBins = new byte[numStored];
+                for (int k=0;k<numStored;k++){
+                    byteBins[k] = MISSING_BIN;
+                }
+                return;
+            }
+
+            double intervalLength = (max-min)/numBins;
+            boolean[] occupied = new boolean[numBins];
+            cursor = 0;
+            for (Vector.Element element: column.nonZeroes()){
+                double value = element.get();
+                if (value==0){
+                    continue;
+                }
+                if (!Double.isNaN(value)){
+                    int bin = IntervalSplitter.getIntervalIndex(value,min,intervalLength,numBins);
+                    globalBins[cursor] = bin;
+                    occupied[bin] = true;
+                }
+                cursor += 1;
+            }
+            int globalZeroBin = -1;
+            if (hasZero){
+                globalZeroBin = IntervalSplitter.getIntervalIndex(0,min,intervalLength,numBins);
+                occupied[globalZeroBin] = true;
+            }
+
+            // map global bins to compact bins
+            int[] compactIds = new int[numBins];
+            int numCompact = 0;
+            for (int b=0;b<numBins;b++){
+                if (occupied[b]){
+                    compactIds[b] = numCompact;
+                    numCompact += 1;
+                } else {
+                    compactIds[b] = -1;
+                }
+            }
+            this.lowers = new double[numCompact];
+            this.uppers = new double[numCompact];
+            for (int b=0;b<numBins;b++){
+                if (occupied[b]){
+                    int c = compactIds[b];
+                    lowers[c] = min + b*intervalLength;
+                    uppers[c] = lowers[c] + intervalLength;
+                }
+            }
+            // close the gaps left by globally empty bins
+            for (int c=0;c<numCompact-1;c++){
+                if (uppers[c]<lowers[c+1]){
+                    double mid = (uppers[c]+lowers[c+1])/2;
+                    uppers[c] = mid;
+                    lowers[c+1] = mid;
+                }
+            }
+            if (hasZero){
+                this.zeroBin = compactIds[globalZeroBin];
+            }
+
+            if (numCompact<=Byte.MAX_VALUE){
+                this.byteBins = new byte[numStored];
+                for (int k=0;k<numStored;k++){
+                    int bin = globalBins[k];
+                    byteBins[k] = (byte)(bin==MISSING_BIN ? MISSING_BIN : compactIds[bin]);
+                }
+            } else {
+                this.shortBins = new short[numStored];
+                for (int k=0;k<numStored;k++){
+                    int bin = globalBins[k];
+                    shortBins[k] = (short)(bin==MISSING_BIN ? MISSING_BIN : compactIds[bin]);
+                }
+            }
+        }
+
+        int getNumBins(){
+            return lowers.length;
+        }
+
+        int getNumStored(){
+            return indices.length;
+        }
+
+        int[] getIndices() {
+            return indices;
+        }
+
+        int getBin(int k){
+            if (byteBins!=null){
+                return byteBins[k];
+            } else {
+                return shortBins[k];
+            }
+        }
+
+        int getZeroBin() {
+            return zeroBin;
+        }
+
+        double getLower(int bin){
+            return lowers[bin];
+        }
+
+        double getUpper(int bin){
+            return uppers[bin];
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package edu.neu.ccs.pyramid.regression.regression_tree;
+
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.regression.ConstantRegressor;
+import edu.neu.ccs.pyramid.regression.Regressor;
+import org.apache.mahout.math.Vector;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * read-only, flattened form of tree ensembles for fast prediction
+ * nodes of all trees are stored in primitive arrays (struct of arrays);
+ * scoring does not allocate, apart from a per-thread buffer reused for sparse input
+ * one ensemble per class; constant regressors are folded into a per-class bias
+ * missing values are handled the same way as RegressionTree.predict
+ * a compiled ensemble does not see trees added after compilation
+ */
+public class CompiledTreeEnsemble implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int LEAF = -1;
+
+    private int numClasses;
+    // only features with index < numFeatures are used by the trees
+    private int numFeatures;
+    private double[] biases;
+    // trees of class k are treeStarts[k] to treeStarts[k+1]-1
+    private int[] treeStarts;
+    private int[] roots;
+
+    // per node
+    private int[] featureIndices;
+    private double[] thresholds;
+    private int[] leftChildren;
+    private int[] rightChildren;
+    private double[] leftProbs;
+    private double[] rightProbs;
+    private double[] values;
+
+    // set in the constructor and in readObject, so it is never published half initialized
+    private transient ThreadLocal<double[]> buffers;
+
+    private CompiledTreeEnsemble() {
+        this.buffers = newBuffers();
+    }
+
+    /**
+     * @param regressors regressors of each class; only RegressionTree and ConstantRegressor are supported
+     */
+    public static CompiledTreeEnsemble compile(List<List<Regressor>> regressors){
+        CompiledTreeEnsemble compiled = new CompiledTreeEnsemble();
+        int numClasses = regressors.size();
+        compiled.numClasses = numClasses;
+        compiled.biases = new double[numClasses];
+        compiled.treeStarts = new int[numClasses+1];
+
+        List<RegressionTree> trees = new ArrayList<>();
+        int numNodes = 0;
+        for (int k=0;k<numClasses;k++){
+            compiled.treeStarts[k] = trees.size();
+            for (Regressor regressor: regressors.get(k)){
+                if (regressor instanceof ConstantRegressor){
+                    compiled.biases[k] += ((ConstantRegressor) regressor).getScore();
+                } else if (regressor instanceof RegressionTree){
+                    RegressionTree tree = (RegressionTree) regressor;
+                    trees.add(tree);
+                    numNodes += tree.traverse().size();
+                } else {
+                    throw new IllegalArgumentException("can not compile regressor of type "+regressor.getClass().getName());
+                }
+            }
+        }
+        compiled.treeStarts[numClasses] = trees.size();
+
+        compiled.roots = new int[trees.size()];
+        compiled.featureIndices = new int[numNodes];
+        compiled.thresholds = new double[numNodes];
+        compiled.leftChildren = new int[numNodes];
+        compiled.rightChildren = new int[numNodes];
+        compiled.leftProbs = new double[numNodes];
+        compiled.rightProbs = new double[numNodes];
+        compiled.values = new double[numNodes];
+
+        int offset = 0;
+        int maxFeatureIndex = -1;
+        for (int t=0;t<trees.size();t++){
+            // pre-order, so the root comes first and children follow their parents
+            List<Node> nodes = trees.get(t).traverse();
+            compiled.roots[t] = offset;
+            Map<Node,Integer> positions = new IdentityHashMap<>();
+            for (int n=0;n<nodes.size();n++){
+                positions.put(nodes.get(n), offset + n);
+            }
+            for (int n=0;n<nodes.size();n++){
+                Node node = nodes.get(n);
+                int position = offset + n;
+                if (node.isLeaf()){
+                    compiled.featureIndices[position] = LEAF;
+                    compiled.values[position] = node.getValue();
+                } else {
+                    compiled.featureIndices[position] = node.getFeatureIndex();
+                    compiled.thresholds[position] = node.getThreshold();
+                    compiled.leftProbs[position] = node.getLeftProb();
+                    compiled.rightProbs[position] = node.getRightProb();
+                    compiled.leftChildren[position] = positions.get(node.getLeftChild());
+                    compiled.rightChildren[position] = positions.get(node.getRightChild());
+                    maxFeatureIndex = Math.max(maxFeatureIndex, node.getFeatureIndex());
+                }
+            }
+            offset += nodes.size();
+        }
+        compiled.numFeatures = maxFeatureIndex+1;
+        return compiled;
+    }
+
+    public int getNumClasses() {
+        return numClasses;
+    }
+
+    public int getNumTrees(){
+        return roots.length;
+    }
+
+    public int getNumNodes(){
+        return featureIndices.length;
+    }
+
+    public double score(double[] vector, int classIndex){
+        double score = biases[classIndex];
+        for (int t=treeStarts[classIndex];t<treeStarts[classIndex+1];t++){
+            score += predictTree(vector, roots[t]);
+        }
+        return score;
+    }
+
+    public double score(Vector vector, int classIndex){
+        double score = biases[classIndex];
+        for (int t=treeStarts[classIndex];t<treeStarts[classIndex+1];t++){
+            score += predictTree(vector, roots[t]);
+        }
+        return score;
+    }
+
+    /**
+     * @param vector dense input
+     * @param scores output, one score per class
+     */
+    public void scores(double[] vector, double[] scores){
+        for (int k=0;k<numClasses;k++){
+            scores[k] = score(vector, k);
+        }
+    }
+
+    /**
+     * @param vector random access input; a RandomAccessSparseVector or DenseVector is preferred
+     * @param scores output, one score per class
+     */
+    public void scores(Vector vector, double[] scores){
+        for (int k=0;k<numClasses;k++){
+            scores[k] = score(vector, k);
+        }
+    }
+
+    /**
+     * sparse input in index/value form
+     * @param indices feature indices of non-zero values
+     * @param featureValues non-zero values
+     * @param scores output, one score per class
+     */
+    public void scores(int[] indices, double[] featureValues, double[] scores){
+        double[] buffer = getBuffer();
+        for (int i=0;i<indices.length;i++){
+            if (indices[i]<numFeatures){
+                buffer[indices[i]] = featureValues[i];
+            }
+        }
+        scores(buffer, scores);
+        for (int i=0;i<indices.length;i++){
+            if (indices[i]<numFeatures){
+                buffer[indices[i]] = 0;
+            }
+        }
+    }
+
+    public double[] scores(Vector vector){
+        double[] scores = new double[numClasses];
+        scores(vector, scores);
+        return scores;
+    }
+
+    /**
+     * batch scoring, parallel by rows
+     * @param vectors dense rows
+     * @param scores output, [row][class]
+     */
+    public void scores(double[][] vectors, double[][] scores){
+        IntStream.range(0, vectors.length).parallel()
+                .forEach(i -> scores(vectors[i], scores[i]));
+    }
+
+    /**
+     * batch scoring, parallel by rows
+     * @param dataSet
+     * @param scores output, [data point][class]
+     */
+    public void scores(DataSet dataSet, double[][] scores){
+        IntStream.range(0, dataSet.getNumDataPoints()).parallel()
+                .forEach(i -> scores(dataSet.getRow(i), scores[i]));
+    }
+
+    public double[][] scores(DataSet dataSet){
+        double[][] scores = new double[dataSet.getNumDataPoints()][numClasses];
+        scores(dataSet, scores);
+        return scores;
+    }
+
+    private double predictTree(double[] vector, int node){
+        while (featureIndices[node]!=LEAF){
+            double featureValue = vector[featureIndices[node]];
+            if (featureValue<=thresholds[node]){
+                node = leftChildren[node];
+            } else if (featureValue>thresholds[node]){
+                node = rightChildren[node];
+            } else {
+                // missing value
+                return leftProbs[node]*predictTree(vector, leftChildren[node])
+                        + rightProbs[node]*predictTree(vector, rightChildren[node]);
+            }
+        }
+        return values[node];
+    }
+
+    private double predictTree(Vector vector, int node){
+        while (featureIndices[node]!=LEAF){
+            double featureValue = vector.get(featureIndices[node]);
+            if (featureValue<=thresholds[node]){
+                node = leftChildren[node];
+            } else if (featureValue>thresholds[node]){
+                node = rightChildren[node];
+            } else {
+                // missing value
+                return leftProbs[node]*predictTree(vector, leftChildren[node])
+                        + rightProbs[node]*predictTree(vector, rightChildren[node]);
+            }
+        }
+        return values[node];
+    }
+
+    private double[] getBuffer(){
+        return buffers.get();
+    }
+
+    // numFeatures is read when a thread first asks for its buffer, after compilation
+    private ThreadLocal<double[]> newBuffers(){
+        return ThreadLocal.withInitial(() -> new double[numFeatures]);
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.buffers = newBuffers();
+    }
+}
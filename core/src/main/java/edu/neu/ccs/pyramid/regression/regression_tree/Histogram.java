@@ -0,0 +1,273 @@
+package edu.neu.ccs.pyramid.regression.regression_tree;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * per-node gradient/weight histograms over pre-binned features
+ * for each feature and each bin, store \sum_i p_i and \sum_i p_i * y_i
+ * zeros are folded into the zero bin, missing values are kept aside
+ * the histogram of a child can be obtained by subtracting its sibling's histogram from the parent's
+ * the root is built from the binned columns, a child from the binned rows of its own data points
+ */
+class Histogram {
+    // relative to the count of the node the histogram was computed from
+    private static final double RELATIVE_TOLERANCE = 1e-8;
+    // below this, a row scan is not worth a task and a block histogram
+    private static final int MIN_ROWS_PER_BLOCK = 10000;
+    // \sum _i p_i * y_i
+    private double weightedLabelSum;
+    // \sum _i p_i
+    private double probabilisticCount;
+    // [feature][bin]
+    private double[][] counts;
+    private double[][] sums;
+    private double[] nanCounts;
+    private double[] nanSums;
+    // counts at or below this are round-off residue of a subtraction or of the zero bin, not data
+    private double tolerance;
+
+    private Histogram(int numFeatures) {
+        this.counts = new double[numFeatures][];
+        this.sums = new double[numFeatures][];
+        this.nanCounts = new double[numFeatures];
+        this.nanSums = new double[numFeatures];
+    }
+
+    /**
+     * scan the binned columns once for the data points in the node
+     * @param binnedFeatures
+     * @param labels
+     * @param probs probability of each data point falling into the node
+     * @param parallel whether to process features in parallel
+     */
+    static Histogram build(BinnedFeatures binnedFeatures, double[] labels, double[] probs, boolean parallel){
+        int numFeatures = binnedFeatures.getNumFeatures();
+        Histogram histogram = new Histogram(numFeatures);
+        for (int i=0;i<probs.length;i++){
+            double prob = probs[i];
+            if (prob!=0){
+                histogram.probabilisticCount += prob;
+                histogram.weightedLabelSum += prob*labels[i];
+            }
+        }
+        IntStream intStream = IntStream.range(0, numFeatures);
+        if (parallel){
+            intStream = intStream.parallel();
+        }
+        intStream.forEach(j -> histogram.fill(binnedFeatures.getFeature(j), j, labels, probs));
+        histogram.tolerance = RELATIVE_TOLERANCE*histogram.probabilisticCount;
+        return histogram;
+    }
+
+    /**
+     * scan the binned rows of the data points in the node only
+     * with parallel, large nodes are cut into blocks of rows whose histograms are added up
+     * @param binnedFeatures
+     * @param labels
+     * @param partition
+     * @param membership data points in the node
+     * @param parallel whether to process blocks of rows in parallel
+     */
+    static Histogram build(BinnedFeatures binnedFeatures, double[] labels, RowPartition partition,
+                           RowPartition.Membership membership, boolean parallel){
+        int size = membership.size();
+        int numBlocks = 1;
+        if (parallel){
+            numBlocks = Math.max(1, Math.min(ForkJoinPool.getCommonPoolParallelism(), size/MIN_ROWS_PER_BLOCK));
+        }
+        int finalNumBlocks = numBlocks;
+        IntStream intStream = IntStream.range(0, numBlocks);
+        if (numBlocks>1){
+            intStream = intStream.parallel();
+        }
+        Histogram histogram = intStream.mapToObj(b -> {
+            Histogram block = empty(binnedFeatures);
+            block.addRows(binnedFeatures, labels, partition, membership,
+                    (int) ((long) size*b/finalNumBlocks), (int) ((long) size*(b+1)/finalNumBlocks));
+            return block;
+        }).reduce(Histogram::addTo).get();
+        histogram.fillZeroBins(binnedFeatures);
+        histogram.tolerance = RELATIVE_TOLERANCE*histogram.probabilisticCount;
+        return histogram;
+    }
+
+    /**
+     * histogram of the sibling = parent - child
+     */
+    static Histogram subtract(Histogram parent, Histogram child, boolean parallel){
+        int numFeatures = parent.counts.length;
+        Histogram histogram = new Histogram(numFeatures);
+        histogram.probabilisticCount = parent.probabilisticCount - child.probabilisticCount;
+        histogram.weightedLabelSum = parent.weightedLabelSum - child.weightedLabelSum;
+        // the residue scales with the parent, not with the difference
+        histogram.tolerance = RELATIVE_TOLERANCE*parent.probabilisticCount;
+        IntStream intStream = IntStream.range(0, numFeatures);
+        if (parallel){
+            intStream = intStream.parallel();
+        }
+        intStream.forEach(j -> {
+            double[] parentCounts = parent.counts[j];
+            double[] parentSums = parent.sums[j];
+            double[] childCounts = child.counts[j];
+            double[] childSums = child.sums[j];
+            int numBins = parentCounts.length;
+            double[] featureCounts = new double[numBins];
+            double[] featureSums = new double[numBins];
+            for (int b=0;b<numBins;b++){
+                featureCounts[b] = parentCounts[b] - childCounts[b];
+                featureSums[b] = parentSums[b] - childSums[b];
+            }
+            histogram.counts[j] = featureCounts;
+            histogram.sums[j] = featureSums;
+            histogram.nanCounts[j] = parent.nanCounts[j] - child.nanCounts[j];
+            histogram.nanSums[j] = parent.nanSums[j] - child.nanSums[j];
+        });
+        return histogram;
+    }
+
+    private static Histogram empty(BinnedFeatures binnedFeatures){
+        int numFeatures = binnedFeatures.getNumFeatures();
+        Histogram histogram = new Histogram(numFeatures);
+        for (int j=0;j<numFeatures;j++){
+            int numBins = binnedFeatures.getFeature(j).getNumBins();
+            histogram.counts[j] = new double[numBins];
+            histogram.sums[j] = new double[numBins];
+        }
+        return histogram;
+    }
+
+    /**
+     * add the stored bins of the k-th data points of the node, from <= k < to; zero bins are filled afterwards
+     */
+    private void addRows(BinnedFeatures binnedFeatures, double[] labels, RowPartition partition,
+                         RowPartition.Membership membership, int from, int to){
+        for (int k=from;k<to;k++){
+            double prob = partition.getProb(membership, k);
+            if (prob==0){
+                continue;
+            }
+            int i = partition.getDataIndex(membership, k);
+            double weightedLabel = prob*labels[i];
+            probabilisticCount += prob;
+            weightedLabelSum += weightedLabel;
+            int rowEnd = binnedFeatures.getRowStart(i+1);
+            for (int p=binnedFeatures.getRowStart(i);p<rowEnd;p++){
+                int j = binnedFeatures.getRowFeature(p);
+                int bin = binnedFeatures.getRowBin(p);
+                if (bin==BinnedFeatures.MISSING_BIN){
+                    nanCounts[j] += prob;
+                    nanSums[j] += weightedLabel;
+                } else {
+                    counts[j][bin] += prob;
+                    sums[j][bin] += weightedLabel;
+                }
+            }
+        }
+    }
+
+    /**
+     * add the rows of another block into this one
+     */
+    private static Histogram addTo(Histogram histogram, Histogram other){
+        histogram.probabilisticCount += other.probabilisticCount;
+        histogram.weightedLabelSum += other.weightedLabelSum;
+        for (int j=0;j<histogram.counts.length;j++){
+            double[] featureCounts = histogram.counts[j];
+            double[] featureSums = histogram.sums[j];
+            for (int b=0;b<featureCounts.length;b++){
+                featureCounts[b] += other.counts[j][b];
+                featureSums[b] += other.sums[j][b];
+            }
+            histogram.nanCounts[j] += other.nanCounts[j];
+            histogram.nanSums[j] += other.nanSums[j];
+        }
+        return histogram;
+    }
+
+    /**
+     * the rows only store non-zero values; the rest of the node goes to the zero bin
+     */
+    private void fillZeroBins(BinnedFeatures binnedFeatures){
+        for (int j=0;j<counts.length;j++){
+            int zeroBin = binnedFeatures.getFeature(j).getZeroBin();
+            if (zeroBin==-1){
+                continue;
+            }
+            double nonZeroCount = 0;
+            double nonZeroSum = 0;
+            for (int b=0;b<counts[j].length;b++){
+                nonZeroCount += counts[j][b];
+                nonZeroSum += sums[j][b];
+            }
+            counts[j][zeroBin] += probabilisticCount - nonZeroCount - nanCounts[j];
+            sums[j][zeroBin] += weightedLabelSum - nonZeroSum - nanSums[j];
+        }
+    }
+
+    private void fill(BinnedFeatures.BinnedFeature feature, int featureIndex, double[] labels, double[] probs){
+        int numBins = feature.getNumBins();
+        double[] featureCounts = new double[numBins];
+        double[] featureSums = new double[numBins];
+        double nonZeroCount = 0;
+        double nonZeroSum = 0;
+        double nanCount = 0;
+        double nanSum = 0;
+        int[] indices = feature.getIndices();
+        for (int k=0;k<indices.length;k++){
+            int i = indices[k];
+            double prob = probs[i];
+            if (prob==0){
+                continue;
+            }
+            double weightedLabel = prob*labels[i];
+            int bin = feature.getBin(k);
+            if (bin==BinnedFeatures.MISSING_BIN){
+                nanCount += prob;
+                nanSum += weightedLabel;
+            } else {
+                featureCounts[bin] += prob;
+                featureSums[bin] += weightedLabel;
+                nonZeroCount += prob;
+                nonZeroSum += weightedLabel;
+            }
+        }
+        int zeroBin = feature.getZeroBin();
+        if (zeroBin!=-1){
+            featureCounts[zeroBin] += probabilisticCount - nonZeroCount - nanCount;
+            featureSums[zeroBin] += weightedLabelSum - nonZeroSum - nanSum;
+        }
+        counts[featureIndex] = featureCounts;
+        sums[featureIndex] = featureSums;
+        nanCounts[featureIndex] = nanCount;
+        nanSums[featureIndex] = nanSum;
+    }
+
+    double getWeightedLabelSum() {
+        return weightedLabelSum;
+    }
+
+    double getProbabilisticCount() {
+        return probabilisticCount;
+    }
+
+    double getTolerance() {
+        return tolerance;
+    }
+
+    double[] getCounts(int featureIndex){
+        return counts[featureIndex];
+    }
+
+    double[] getSums(int featureIndex){
+        return sums[featureIndex];
+    }
+
+    double getNanCount(int featureIndex){
+        return nanCounts[featureIndex];
+    }
+
+    double getNanSum(int featureIndex){
+        return nanSums[featureIndex];
+    }
+}
@@ -0,0 +1,78 @@
+package edu.neu.ccs.pyramid.regression.regression_tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * find the best split of one feature from the node histogram
+ * intervals are the pre-computed bins, so no column scan is needed
+ * missing values are handled the same way as in IntervalSplitter
+ */
+class HistogramSplitter {
+
+    static Optional<SplitResult> split(RegTreeConfig regTreeConfig,
+                                       BinnedFeatures binnedFeatures,
+                                       Histogram histogram,
+                                       int featureIndex){
+        List<Interval> intervals = generateIntervals(binnedFeatures, histogram, featureIndex);
+        if (intervals.size()<2){
+            return Optional.empty();
+        }
+        List<Interval> compressedIntervals = IntervalSplitter.compress(intervals);
+        return IntervalSplitter.findBest(regTreeConfig,compressedIntervals,featureIndex);
+    }
+
+    static Optional<SplitResult> split(RegTreeConfig regTreeConfig,
+                                       BinnedFeatures binnedFeatures,
+                                       Histogram histogram,
+                                       int featureIndex,
+                                       int[] monotonicity){
+        List<Interval> intervals = generateIntervals(binnedFeatures, histogram, featureIndex);
+        if (intervals.size()<2){
+            return Optional.empty();
+        }
+        List<Interval> compressedIntervals = IntervalSplitter.compress(intervals);
+        return IntervalSplitter.findBest(regTreeConfig,compressedIntervals,featureIndex, monotonicity);
+    }
+
+    static List<Interval> generateIntervals(BinnedFeatures binnedFeatures,
+                                            Histogram histogram,
+                                            int featureIndex){
+        BinnedFeatures.BinnedFeature feature = binnedFeatures.getFeature(featureIndex);
+        int numBins = feature.getNumBins();
+        List<Interval> intervals = new ArrayList<>(numBins);
+        if (numBins==0){
+            return intervals;
+        }
+        double[] counts = histogram.getCounts(featureIndex);
+        double[] sums = histogram.getSums(featureIndex);
+        double totalCount = histogram.getProbabilisticCount();
+        double tolerance = histogram.getTolerance();
+        for (int b=0;b<numBins;b++){
+            Interval interval = new Interval();
+            interval.setLower(feature.getLower(b));
+            interval.setUpper(feature.getUpper(b));
+            // subtraction may leave round-off residue, of either sign, in empty bins
+            if (counts[b]>tolerance){
+                interval.setProbabilisticCount(counts[b]);
+                interval.setWeightedSum(sums[b]);
+                interval.setPercentage(counts[b]/totalCount);
+            }
+            intervals.add(interval);
+        }
+
+        // assign missing values to every interval probabilistically
+        double nanCount = histogram.getNanCount(featureIndex);
+        double nanSum = histogram.getNanSum(featureIndex);
+        if (nanCount>tolerance){
+            for (Interval interval: intervals){
+                double oldCount = interval.getProbabilisticCount();
+                interval.setProbabilisticCount(oldCount + interval.getPercentage() * nanCount);
+                double oldSum = interval.getWeightedSum();
+                interval.setWeightedSum(oldSum + interval.getPercentage() * nanSum);
+            }
+        }
+        return intervals;
+    }
+}
@@ -1,6 +1,7 @@
 package edu.neu.ccs.pyramid.regression.regression_tree;
 
 import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.util.Vectors;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.apache.mahout.math.Vector;
@@ -103,9 +104,7 @@ class IntervalSplitter {
 
         // for non-zero values
         if (featureStats.getNonZeroBinaryCount()>0){
-            for (Vector.Element element: featureValues.nonZeroes()){
-                int i = element.index();
-                double featureValue = element.get();
+            Vectors.forEachNonZero(featureValues, (i, featureValue) -> {
                 double label = labels[i];
                 // if probs[i]==0, its feature value may be bigger than max or smaller than min,
                 // so we should skip it
@@ -119,7 +118,7 @@ class IntervalSplitter {
                     double oldWeightedLabelSum = interval.getWeightedSum();
                     interval.setWeightedSum(oldWeightedLabelSum + label*probability);
                 }
-            }
+            });
         }
 
         // for zero values, do all of them together, as they all go to the same interval
@@ -222,7 +221,7 @@ class IntervalSplitter {
         return compressed;
     }
 
-    private static Optional<SplitResult> findBest(RegTreeConfig regTreeConfig,
+    static Optional<SplitResult> findBest(RegTreeConfig regTreeConfig,
                                         List<Interval> intervals,
                                         int featureIndex){
         List<SplitResult> splitResults = new ArrayList<>(intervals.size());
@@ -261,7 +260,7 @@ class IntervalSplitter {
     }
 
 
-    private static Optional<SplitResult> findBest(RegTreeConfig regTreeConfig,
+    static Optional<SplitResult> findBest(RegTreeConfig regTreeConfig,
                                                   List<Interval> intervals,
                                                   int featureIndex,
                                                   int[] monotonicity){
@@ -366,11 +365,9 @@ class IntervalSplitter {
             min = Double.POSITIVE_INFINITY;
             max = Double.NEGATIVE_INFINITY;
             // the iterator considers non zero and NaN
-            for (Vector.Element element: featureValues.nonZeroes()){
-                int index = element.index();
+            Vectors.forEachNonZero(featureValues, (index, value) -> {
                 double prob = probs[index];
                 if (prob>0){
-                    double value = element.get();
                     double label = labels[index];
                     if (Double.isNaN(value)){
                         nanBinaryCount += 1;
@@ -388,7 +385,7 @@ class IntervalSplitter {
                         }
                     }
                 }
-            }
+            });
 
             zeroBinaryCount = globalStats.getBinaryCount() - nonZeroBinaryCount - nanBinaryCount;
             zeroProbCount = globalStats.getProbabilisticCount() - nonZeroProbCount - nanProbCount;
@@ -47,6 +47,12 @@ public class Node implements Serializable {
     //todo this should be transient? maybe doesn't matter as it is cleaned
     private double[] probs;
 
+    // data points at this node while growing the tree
+    private transient RowPartition.Membership membership;
+
+    // only used in histogram mode
+    private transient Histogram histogram;
+
     private transient double lowerBound = Double.NEGATIVE_INFINITY;
     private transient double upperBound = Double.POSITIVE_INFINITY;
 
@@ -135,6 +141,24 @@ public class Node implements Serializable {
         return this;
     }
 
+    RowPartition.Membership getMembership() {
+        return membership;
+    }
+
+    Node setMembership(RowPartition.Membership membership) {
+        this.membership = membership;
+        return this;
+    }
+
+    Histogram getHistogram() {
+        return histogram;
+    }
+
+    Node setHistogram(Histogram histogram) {
+        this.histogram = histogram;
+        return this;
+    }
+
     public double getValue() {
         return value;
     }
@@ -175,6 +199,8 @@ public class Node implements Serializable {
      */
     void clearProbs(){
         this.probs=null;
+        this.membership=null;
+        this.histogram=null;
     }
 
     double getLeftProb() {
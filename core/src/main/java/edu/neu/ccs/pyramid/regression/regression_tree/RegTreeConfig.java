@@ -14,6 +14,8 @@ public class RegTreeConfig {
     private int numActiveFeatures=10;
     //"none", "weak", "strong", "xgboost"
     private String monotonicityType="none";
+    // quantize features once and split on per-node histograms
+    private boolean histogram=false;
 
 
     public RegTreeConfig setMaxNumLeaves(int maxNumLeaves) {
@@ -49,6 +51,15 @@ public class RegTreeConfig {
         return this;
     }
 
+    /**
+     * in histogram mode, each feature is binned once into numSplitIntervals equal-width bins
+     * between its global min and max, instead of re-binning at every node
+     */
+    public RegTreeConfig setHistogram(boolean histogram) {
+        this.histogram = histogram;
+        return this;
+    }
+
     int getMaxNumLeaves() {
         return maxNumLeaves;
     }
@@ -76,4 +87,8 @@ public class RegTreeConfig {
     public String getMonotonicityType() {
         return monotonicityType;
     }
+
+    public boolean isHistogram() {
+        return histogram;
+    }
 }
@@ -10,6 +10,8 @@ import edu.neu.ccs.pyramid.regression.RegressorFactory;
 public class RegTreeFactory implements RegressorFactory {
     private RegTreeConfig regTreeConfig;
     private LeafOutputCalculator leafOutputCalculator;
+    // histogram mode only; binned once and reused by all trees on the same data set
+    private transient BinnedFeatures binnedFeatures;
 
     public RegTreeFactory(RegTreeConfig regTreeConfig) {
         this.regTreeConfig = regTreeConfig;
@@ -22,16 +24,32 @@ public class RegTreeFactory implements RegressorFactory {
 
     @Override
     public Regressor fit(DataSet dataSet, double[] labels) {
+        if (regTreeConfig.isHistogram()){
+            return RegressorFactory.super.fit(dataSet,labels);
+        }
         return RegTreeTrainer.fit(regTreeConfig,dataSet,labels,leafOutputCalculator);
     }
 
     @Override
     public Regressor fit(DataSet dataSet, double[] labels, double[] weights) {
+        if (regTreeConfig.isHistogram()){
+            return RegTreeTrainer.fit(regTreeConfig,getBinnedFeatures(dataSet),labels,weights, leafOutputCalculator);
+        }
         return RegTreeTrainer.fit(regTreeConfig,dataSet,labels,weights, leafOutputCalculator);
     }
 
 
     public Regressor fit(DataSet dataSet, double[] labels, double[] weights, int[] monotonicity) {
+        if (regTreeConfig.isHistogram()){
+            return RegTreeTrainer.fit(regTreeConfig,getBinnedFeatures(dataSet),labels,weights, leafOutputCalculator, monotonicity);
+        }
         return RegTreeTrainer.fit(regTreeConfig,dataSet,labels,weights, leafOutputCalculator, monotonicity);
     }
+
+    private synchronized BinnedFeatures getBinnedFeatures(DataSet dataSet){
+        if (binnedFeatures==null || binnedFeatures.getDataSet()!=dataSet){
+            binnedFeatures = BinnedFeatures.build(dataSet,regTreeConfig.getNumSplitIntervals());
+        }
+        return binnedFeatures;
+    }
 }
@@ -2,13 +2,10 @@ package edu.neu.ccs.pyramid.regression.regression_tree;
 
 import edu.neu.ccs.pyramid.dataset.DataSet;
 import edu.neu.ccs.pyramid.dataset.RegDataSet;
-import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.Vector;
 
 import java.util.*;
 
-import java.util.stream.IntStream;
-import java.util.stream.Stream;
 
 /**
  * Created by chengli on 8/11/14.
@@ -42,6 +39,28 @@ public class RegTreeTrainer {
                                      double[] labels,
                                      double[] weights,
                                      LeafOutputCalculator leafOutputCalculator){
+        requireNoHistogram(regTreeConfig);
+        return fit(regTreeConfig,dataSet,null,labels,weights,leafOutputCalculator);
+    }
+
+    /**
+     * histogram mode with features binned beforehand
+     * binnedFeatures can be reused for all trees trained on the same data set
+     */
+    public static RegressionTree fit(RegTreeConfig regTreeConfig,
+                                     BinnedFeatures binnedFeatures,
+                                     double[] labels,
+                                     double[] weights,
+                                     LeafOutputCalculator leafOutputCalculator){
+        return fit(regTreeConfig,binnedFeatures.getDataSet(),binnedFeatures,labels,weights,leafOutputCalculator);
+    }
+
+    private static RegressionTree fit(RegTreeConfig regTreeConfig,
+                                      DataSet dataSet,
+                                      BinnedFeatures binnedFeatures,
+                                      double[] labels,
+                                      double[] weights,
+                                      LeafOutputCalculator leafOutputCalculator){
         RegressionTree tree = new RegressionTree();
         tree.setFeatureList(dataSet.getFeatureList());
 
@@ -52,13 +71,13 @@ public class RegTreeTrainer {
 
 
         //root gets all active data points
-        double[] rootProbs = new double[dataSet.getNumDataPoints()];
-        for (int dataPoint=0; dataPoint<dataSet.getNumDataPoints();dataPoint++){
-            rootProbs[dataPoint]=weights[dataPoint];
+        RowPartition partition = new RowPartition(weights);
+        tree.root.setMembership(partition.root());
+        if (binnedFeatures!=null){
+            tree.root.setHistogram(buildHistogram(tree.root,partition,regTreeConfig,binnedFeatures,labels));
         }
-        tree.root.setProbs(rootProbs);
         //parallel
-        updateNode(tree.root, regTreeConfig,dataSet,labels);
+        updateNode(tree.root, regTreeConfig,dataSet,binnedFeatures,partition,labels);
         tree.leaves.add(tree.root);
         tree.root.setLeaf(true);
         tree.allNodes.add(tree.root);
@@ -74,14 +93,15 @@ public class RegTreeTrainer {
             Optional<Node> leafToSplitOptional = findLeafToSplit(tree.leaves);
             if (leafToSplitOptional.isPresent()){
                 Node leafToSplit = leafToSplitOptional.get();
-                splitNode(tree, leafToSplit,regTreeConfig,dataSet,labels);
+                splitNode(tree, leafToSplit,regTreeConfig,dataSet,binnedFeatures,partition,labels);
             } else {
                 break;
             }
         }
 
         //parallel
-        setLeavesOutputs(regTreeConfig, tree.leaves,leafOutputCalculator, labels);
+        setLeavesOutputs(regTreeConfig, tree.leaves,partition,leafOutputCalculator, labels);
+        setLeafAssignment(tree,partition);
         cleanLeaves(tree.leaves);
         normalizeReductions(tree,dataSet);
         return tree;
@@ -94,6 +114,30 @@ public class RegTreeTrainer {
                                      double[] weights,
                                      LeafOutputCalculator leafOutputCalculator,
                                      int[] monotonicity){
+        requireNoHistogram(regTreeConfig);
+        return fit(regTreeConfig,dataSet,null,labels,weights,leafOutputCalculator,monotonicity);
+    }
+
+    /**
+     * histogram mode with features binned beforehand
+     * binnedFeatures can be reused for all trees trained on the same data set
+     */
+    public static RegressionTree fit(RegTreeConfig regTreeConfig,
+                                     BinnedFeatures binnedFeatures,
+                                     double[] labels,
+                                     double[] weights,
+                                     LeafOutputCalculator leafOutputCalculator,
+                                     int[] monotonicity){
+        return fit(regTreeConfig,binnedFeatures.getDataSet(),binnedFeatures,labels,weights,leafOutputCalculator,monotonicity);
+    }
+
+    private static RegressionTree fit(RegTreeConfig regTreeConfig,
+                                      DataSet dataSet,
+                                      BinnedFeatures binnedFeatures,
+                                      double[] labels,
+                                      double[] weights,
+                                      LeafOutputCalculator leafOutputCalculator,
+                                      int[] monotonicity){
         RegressionTree tree = new RegressionTree();
         tree.setFeatureList(dataSet.getFeatureList());
 
@@ -104,20 +148,20 @@ public class RegTreeTrainer {
 
 
         //root gets all active data points
-        double[] rootProbs = new double[dataSet.getNumDataPoints()];
-        for (int dataPoint=0; dataPoint<dataSet.getNumDataPoints();dataPoint++){
-            rootProbs[dataPoint]=weights[dataPoint];
+        RowPartition partition = new RowPartition(weights);
+        tree.root.setMembership(partition.root());
+        if (binnedFeatures!=null){
+            tree.root.setHistogram(buildHistogram(tree.root,partition,regTreeConfig,binnedFeatures,labels));
         }
-        tree.root.setProbs(rootProbs);
         //parallel
         if (regTreeConfig.getMonotonicityType().equals("xgboost")){
-            updateNode(tree.root, regTreeConfig,dataSet,labels, monotonicity);
+            updateNode(tree.root, regTreeConfig,dataSet,binnedFeatures,partition,labels, monotonicity);
         } else {
-            updateNode(tree.root, regTreeConfig,dataSet,labels);
+            updateNode(tree.root, regTreeConfig,dataSet,binnedFeatures,partition,labels);
         }
 
         leafOutputCalculator.setParallel(regTreeConfig.isParallel());
-        setLeafOutput(tree.root,leafOutputCalculator,labels);
+        setLeafOutput(tree.root,partition,leafOutputCalculator,labels);
 
         tree.leaves.add(tree.root);
         tree.root.setLeaf(true);
@@ -135,9 +179,9 @@ public class RegTreeTrainer {
             if (leafToSplitOptional.isPresent()){
                 Node leafToSplit = leafToSplitOptional.get();
                 if (regTreeConfig.getMonotonicityType().equals("xgboost")){
-                    splitNode(tree, leafToSplit,regTreeConfig,dataSet,labels, monotonicity, leafOutputCalculator);
+                    splitNode(tree, leafToSplit,regTreeConfig,dataSet,binnedFeatures,partition,labels, monotonicity, leafOutputCalculator);
                 } else {
-                    splitNode(tree, leafToSplit,regTreeConfig,dataSet,labels);
+                    splitNode(tree, leafToSplit,regTreeConfig,dataSet,binnedFeatures,partition,labels);
                 }
 
             } else {
@@ -145,7 +189,7 @@ public class RegTreeTrainer {
             }
         }
 
-        setLeavesOutputs(regTreeConfig, tree.leaves,leafOutputCalculator, labels);
+        setLeavesOutputs(regTreeConfig, tree.leaves,partition,leafOutputCalculator, labels);
 
         if (regTreeConfig.getMonotonicityType().equals("weak")){
             MonotonicityPostProcessor.changeOutput(tree.leaves,monotonicity,false);
@@ -156,6 +200,7 @@ public class RegTreeTrainer {
         }
 
 
+        setLeafAssignment(tree,partition);
         cleanLeaves(tree.leaves);
         normalizeReductions(tree,dataSet);
         return tree;
@@ -178,21 +223,13 @@ public class RegTreeTrainer {
      * @param dataSet
      */
     private static void splitNode(RegressionTree tree, Node leafToSplit, RegTreeConfig regTreeConfig,
-                                  DataSet dataSet, double[] labels) {
-        int numDataPoints = dataSet.getNumDataPoints();
-
+                                  DataSet dataSet, BinnedFeatures binnedFeatures, RowPartition partition, double[] labels) {
         /**
          * split this leaf node
          */
         int featureIndex = leafToSplit.getFeatureIndex();
         double threshold = leafToSplit.getThreshold();
-        Vector inputVector = dataSet.getColumn(featureIndex);
-        Vector columnVector;
-        if (inputVector.isDense()){
-            columnVector = inputVector;
-        } else {
-            columnVector = new DenseVector(inputVector);
-        }
+        Vector columnVector = dataSet.getColumn(featureIndex);
         /**
          * create children
          */
@@ -203,41 +240,21 @@ public class RegTreeTrainer {
         rightChild.setId(tree.numNodes);
         tree.numNodes += 1;
 
-        double[] parentProbs = leafToSplit.getProbs();
-        double[] leftProbs = new double[numDataPoints];
-        double[] rightProbs = new double[numDataPoints];
-        IntStream intStream = IntStream.range(0,numDataPoints);
-        if (regTreeConfig.isParallel()){
-            intStream = intStream.parallel();
-        }
-        intStream.forEach(i->{
-            double featureValue = columnVector.get(i);
-            if (Double.isNaN(featureValue)){
-                // go to both branches probabilistically
-                leftProbs[i] = parentProbs[i]*leafToSplit.getLeftProb();
-                rightProbs[i] = parentProbs[i]*leafToSplit.getRightProb();
-            } else {
-                //<= go left, > go right
-                if (featureValue<=threshold){
-                    leftProbs[i] = parentProbs[i];
-                    rightProbs[i] = 0;
-                } else {
-                    leftProbs[i] = 0;
-                    rightProbs[i] = parentProbs[i];
-                }
-            }
-        });
-
-        leftChild.setProbs(leftProbs);
-        rightChild.setProbs(rightProbs);
+        RowPartition.Membership[] childMemberships = partition.split(leafToSplit.getMembership(),
+                columnVector,threshold,leafToSplit.getLeftProb(),leafToSplit.getRightProb());
+        leftChild.setMembership(childMemberships[0]);
+        rightChild.setMembership(childMemberships[1]);
 
 
         //the last two leaves need not to be updated completely
         //as we don't need to split them later
         int maxNumLeaves = regTreeConfig.getMaxNumLeaves();
         if (tree.leaves.size()!=maxNumLeaves-1){
-            updateNode(leftChild,regTreeConfig,dataSet,labels);
-            updateNode(rightChild,regTreeConfig,dataSet,labels);
+            if (binnedFeatures!=null){
+                setChildrenHistograms(leafToSplit,leftChild,rightChild,regTreeConfig,binnedFeatures,partition,labels);
+            }
+            updateNode(leftChild,regTreeConfig,dataSet,binnedFeatures,partition,labels);
+            updateNode(rightChild,regTreeConfig,dataSet,binnedFeatures,partition,labels);
         }
 
 
@@ -269,21 +286,13 @@ public class RegTreeTrainer {
      * @param dataSet
      */
     private static void splitNode(RegressionTree tree, Node leafToSplit, RegTreeConfig regTreeConfig,
-                                  DataSet dataSet, double[] labels, int[] monotonicity, LeafOutputCalculator leafOutputCalculator) {
-        int numDataPoints = dataSet.getNumDataPoints();
-
+                                  DataSet dataSet, BinnedFeatures binnedFeatures, RowPartition partition, double[] labels, int[] monotonicity, LeafOutputCalculator leafOutputCalculator) {
         /**
          * split this leaf node
          */
         int featureIndex = leafToSplit.getFeatureIndex();
         double threshold = leafToSplit.getThreshold();
-        Vector inputVector = dataSet.getColumn(featureIndex);
-        Vector columnVector;
-        if (inputVector.isDense()){
-            columnVector = inputVector;
-        } else {
-            columnVector = new DenseVector(inputVector);
-        }
+        Vector columnVector = dataSet.getColumn(featureIndex);
         /**
          * create children
          */
@@ -294,41 +303,21 @@ public class RegTreeTrainer {
         rightChild.setId(tree.numNodes);
         tree.numNodes += 1;
 
-        double[] parentProbs = leafToSplit.getProbs();
-        double[] leftProbs = new double[numDataPoints];
-        double[] rightProbs = new double[numDataPoints];
-        IntStream intStream = IntStream.range(0,numDataPoints);
-        if (regTreeConfig.isParallel()){
-            intStream = intStream.parallel();
-        }
-        intStream.forEach(i->{
-            double featureValue = columnVector.get(i);
-            if (Double.isNaN(featureValue)){
-                // go to both branches probabilistically
-                leftProbs[i] = parentProbs[i]*leafToSplit.getLeftProb();
-                rightProbs[i] = parentProbs[i]*leafToSplit.getRightProb();
-            } else {
-                //<= go left, > go right
-                if (featureValue<=threshold){
-                    leftProbs[i] = parentProbs[i];
-                    rightProbs[i] = 0;
-                } else {
-                    leftProbs[i] = 0;
-                    rightProbs[i] = parentProbs[i];
-                }
-            }
-        });
-
-        leftChild.setProbs(leftProbs);
-        rightChild.setProbs(rightProbs);
+        RowPartition.Membership[] childMemberships = partition.split(leafToSplit.getMembership(),
+                columnVector,threshold,leafToSplit.getLeftProb(),leafToSplit.getRightProb());
+        leftChild.setMembership(childMemberships[0]);
+        rightChild.setMembership(childMemberships[1]);
 
 
         //the last two leaves need not to be updated completely
         //as we don't need to split them later
         int maxNumLeaves = regTreeConfig.getMaxNumLeaves();
         if (tree.leaves.size()!=maxNumLeaves-1){
-            updateNode(leftChild,regTreeConfig,dataSet,labels, monotonicity);
-            updateNode(rightChild,regTreeConfig,dataSet,labels, monotonicity);
+            if (binnedFeatures!=null){
+                setChildrenHistograms(leafToSplit,leftChild,rightChild,regTreeConfig,binnedFeatures,partition,labels);
+            }
+            updateNode(leftChild,regTreeConfig,dataSet,binnedFeatures,partition,labels, monotonicity);
+            updateNode(rightChild,regTreeConfig,dataSet,binnedFeatures,partition,labels, monotonicity);
         }
 
 
@@ -353,8 +342,8 @@ public class RegTreeTrainer {
 
         int mono = monotonicity[featureIndex];
         leafOutputCalculator.setParallel(regTreeConfig.isParallel());
-        setLeafOutput(leftChild,leafOutputCalculator,labels);
-        setLeafOutput(rightChild,leafOutputCalculator,labels);
+        setLeafOutput(leftChild,partition,leafOutputCalculator,labels);
+        setLeafOutput(rightChild,partition,leafOutputCalculator,labels);
 
         setBoundForChildren(leafToSplit,mono);
 
@@ -416,9 +405,18 @@ public class RegTreeTrainer {
     private static void updateNode(Node node,
                                    RegTreeConfig regTreeConfig,
                                    DataSet dataSet,
+                                   BinnedFeatures binnedFeatures,
+                                   RowPartition partition,
                                    double[] labels) {
-        Optional<SplitResult> splitResultOptional = Splitter.split(regTreeConfig,
-                dataSet,labels,node.getProbs());
+        Optional<SplitResult> splitResultOptional;
+        if (binnedFeatures!=null){
+            splitResultOptional = Splitter.split(regTreeConfig,binnedFeatures,node.getHistogram());
+        } else {
+            double[] probs = partition.toProbs(node.getMembership());
+            splitResultOptional = Splitter.split(regTreeConfig,
+                    dataSet,labels,probs);
+            partition.release(node.getMembership());
+        }
         if (splitResultOptional.isPresent()){
             SplitResult splitResult = splitResultOptional.get();
             node.setFeatureIndex(splitResult.getFeatureIndex());
@@ -432,6 +430,8 @@ public class RegTreeTrainer {
             node.setSplitable(true);
         } else{
             node.setSplitable(false);
+            // never split, so the histogram is no longer needed
+            node.setHistogram(null);
         }
     }
 
@@ -444,10 +444,19 @@ public class RegTreeTrainer {
     private static void updateNode(Node node,
                                    RegTreeConfig regTreeConfig,
                                    DataSet dataSet,
+                                   BinnedFeatures binnedFeatures,
+                                   RowPartition partition,
                                    double[] labels,
                                    int[] monotonicity) {
-        Optional<SplitResult> splitResultOptional = Splitter.split(regTreeConfig,
-                dataSet,labels,node.getProbs(), monotonicity);
+        Optional<SplitResult> splitResultOptional;
+        if (binnedFeatures!=null){
+            splitResultOptional = Splitter.split(regTreeConfig,binnedFeatures,node.getHistogram(),monotonicity);
+        } else {
+            double[] probs = partition.toProbs(node.getMembership());
+            splitResultOptional = Splitter.split(regTreeConfig,
+                    dataSet,labels,probs, monotonicity);
+            partition.release(node.getMembership());
+        }
         if (splitResultOptional.isPresent()){
             SplitResult splitResult = splitResultOptional.get();
             node.setFeatureIndex(splitResult.getFeatureIndex());
@@ -461,9 +470,61 @@ public class RegTreeTrainer {
             node.setSplitable(true);
         } else{
             node.setSplitable(false);
+            // never split, so the histogram is no longer needed
+            node.setHistogram(null);
         }
     }
 
+    /**
+     * histogram mode
+     * only scan the rows of the smaller child;
+     * the histogram of the larger child = parent - smaller child
+     */
+    private static void setChildrenHistograms(Node parent, Node leftChild, Node rightChild,
+                                              RegTreeConfig regTreeConfig, BinnedFeatures binnedFeatures,
+                                              RowPartition partition, double[] labels){
+        Node smallerChild;
+        Node largerChild;
+        if (leftChild.getMembership().size()<=rightChild.getMembership().size()){
+            smallerChild = leftChild;
+            largerChild = rightChild;
+        } else {
+            smallerChild = rightChild;
+            largerChild = leftChild;
+        }
+        Histogram smallerHistogram = Histogram.build(binnedFeatures,labels,partition,smallerChild.getMembership(),
+                regTreeConfig.isParallel());
+        smallerChild.setHistogram(smallerHistogram);
+        largerChild.setHistogram(Histogram.subtract(parent.getHistogram(),smallerHistogram,regTreeConfig.isParallel()));
+    }
+
+    private static Histogram buildHistogram(Node node, RowPartition partition, RegTreeConfig regTreeConfig,
+                                            BinnedFeatures binnedFeatures, double[] labels){
+        double[] probs = partition.toProbs(node.getMembership());
+        Histogram histogram = Histogram.build(binnedFeatures,labels,probs,regTreeConfig.isParallel());
+        partition.release(node.getMembership());
+        return histogram;
+    }
+
+    /**
+     * histogram trees take features binned once per data set, through the BinnedFeatures overloads or
+     * RegTreeFactory, which caches them; binning here would quantize the whole data set again for every tree
+     */
+    private static void requireNoHistogram(RegTreeConfig regTreeConfig){
+        if (regTreeConfig.isHistogram()){
+            throw new IllegalArgumentException("histogram mode needs BinnedFeatures, built once per data set; " +
+                    "use the BinnedFeatures overload or RegTreeFactory");
+        }
+    }
+
+    private static void setLeafAssignment(RegressionTree tree, RowPartition partition){
+        List<RowPartition.Membership> memberships = new ArrayList<>(tree.leaves.size());
+        for (Node leaf: tree.leaves){
+            memberships.add(leaf.getMembership());
+        }
+        tree.trainingLeafAssignment = partition.leafAssignment(memberships);
+    }
+
     private static void cleanLeaves(List<Node> leaves){
         for (Node leaf: leaves){
             leaf.clearProbs();
@@ -472,20 +533,21 @@ public class RegTreeTrainer {
 
 
     /**
-     * parallel
+     * leaves are processed one by one as they share the probability buffer;
+     * the calculator can still be parallel inside
      */
-    private static void setLeavesOutputs(RegTreeConfig regTreeConfig, List<Node> leaves, LeafOutputCalculator calculator, double[] labels){
-        Stream<Node> stream = leaves.stream();
-        if (regTreeConfig.isParallel()){
-            stream = stream.parallel();
+    private static void setLeavesOutputs(RegTreeConfig regTreeConfig, List<Node> leaves, RowPartition partition,
+                                         LeafOutputCalculator calculator, double[] labels){
+        calculator.setParallel(regTreeConfig.isParallel());
+        for (Node leaf: leaves){
+            setLeafOutput(leaf, partition, calculator, labels);
         }
-
-        stream.forEach(leaf -> setLeafOutput(leaf, calculator, labels));
     }
 
-    private static void setLeafOutput(Node leaf, LeafOutputCalculator calculator, double[] labels){
-        double[] probs = leaf.getProbs();
+    private static void setLeafOutput(Node leaf, RowPartition partition, LeafOutputCalculator calculator, double[] labels){
+        double[] probs = partition.toProbs(leaf.getMembership());
         double output = calculator.getLeafOutput(probs, labels);
+        partition.release(leaf.getMembership());
         leaf.setValue(output);
     }
 
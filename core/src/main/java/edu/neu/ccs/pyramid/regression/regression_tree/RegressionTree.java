@@ -50,6 +50,12 @@ public class RegressionTree implements Regressor, Serializable {
 
     private FeatureList featureList;
 
+    /**
+     * index of the leaf each training data point falls into, set by RegTreeTrainer
+     * -1 if the data point is not routed to a single leaf (zero weight, or missing value on the path)
+     */
+    transient int[] trainingLeafAssignment;
+
     protected RegressionTree() {
         this.numNodes = 0;
         this.leaves = new ArrayList<>();
@@ -68,6 +74,28 @@ public class RegressionTree implements Regressor, Serializable {
         return leaves;
     }
 
+    /**
+     * outputs of the leaves, in the order used by getTrainingLeafAssignment()
+     */
+    public double[] getLeafOutputs(){
+        return leaves.stream().mapToDouble(Node::getValue).toArray();
+    }
+
+    /**
+     * @return leaf index of each training data point, -1 if not routed to a single leaf;
+     * null if not available
+     */
+    public int[] getTrainingLeafAssignment() {
+        return trainingLeafAssignment;
+    }
+
+    /**
+     * the assignment is only useful right after training; free memory
+     */
+    public void clearTrainingLeafAssignment(){
+        this.trainingLeafAssignment = null;
+    }
+
     //todo deal with reduction and probabilities
     public static RegressionTree newStump(int featureIndex, double threshold,
                                           double leftOutput, double rightOutput){
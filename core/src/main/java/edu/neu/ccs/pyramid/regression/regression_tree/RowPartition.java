@@ -0,0 +1,267 @@
+package edu.neu.ccs.pyramid.regression.regression_tree;
+
+import edu.neu.ccs.pyramid.util.Vectors;
+import org.apache.mahout.math.Vector;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * leaf membership of data points during tree growing
+ * all data points with positive weights are kept in one shared index array;
+ * each node owns a contiguous block of it, which is split in place when the node is split
+ * data points whose split feature is missing go to both children with fractional probabilities;
+ * only those are stored explicitly, outside of the shared array
+ * the memory is O(N) per tree instead of O(N * number of nodes)
+ *
+ * dense probability vectors are only materialized on demand into a scratch buffer,
+ * one node at a time, so this class is not thread safe
+ */
+class RowPartition {
+    private int numDataPoints;
+    private double[] weights;
+    private int[] dataIndices;
+    // all zeros between uses
+    private double[] probsBuffer;
+    // all zeros between uses, for sparse columns
+    private double[] valuesBuffer;
+
+    RowPartition(double[] weights) {
+        this.numDataPoints = weights.length;
+        this.weights = weights;
+        int size = 0;
+        for (double weight: weights){
+            if (weight>0){
+                size += 1;
+            }
+        }
+        this.dataIndices = new int[size];
+        int cursor = 0;
+        for (int i=0;i<numDataPoints;i++){
+            if (weights[i]>0){
+                dataIndices[cursor] = i;
+                cursor += 1;
+            }
+        }
+        this.probsBuffer = new double[numDataPoints];
+    }
+
+    /**
+     * @return all data points with positive weights
+     */
+    Membership root(){
+        return new Membership(0, dataIndices.length, new int[0], new double[0]);
+    }
+
+    /**
+     * split in place, <= go left, > go right, missing values go to both sides
+     * @param parent membership of the node to split
+     * @param column feature column of the split feature
+     * @return left and right memberships
+     */
+    Membership[] split(Membership parent, Vector column, double threshold, double leftProb, double rightProb){
+        double[] values = loadValues(column);
+        try {
+            // first pass: [left | right or missing]
+            int start = parent.start;
+            int end = parent.end;
+            int i = start;
+            int j = end - 1;
+            while (i<=j){
+                if (goesLeft(value(column, values, dataIndices[i]), threshold)){
+                    i += 1;
+                } else {
+                    swap(i, j);
+                    j -= 1;
+                }
+            }
+            int mid = i;
+            // second pass: [right | missing]
+            j = end - 1;
+            while (i<=j){
+                if (!Double.isNaN(value(column, values, dataIndices[i]))){
+                    i += 1;
+                } else {
+                    swap(i, j);
+                    j -= 1;
+                }
+            }
+            int missingStart = i;
+
+            int numMissing = end - missingStart;
+            int numFractional = parent.fractionalIndices.length;
+            int[] leftFractionalIndices = new int[numMissing + numFractional];
+            double[] leftFractionalProbs = new double[numMissing + numFractional];
+            int[] rightFractionalIndices = new int[numMissing + numFractional];
+            double[] rightFractionalProbs = new double[numMissing + numFractional];
+            int numLeft = 0;
+            int numRight = 0;
+            for (int k=missingStart;k<end;k++){
+                int dataIndex = dataIndices[k];
+                leftFractionalIndices[numLeft] = dataIndex;
+                leftFractionalProbs[numLeft] = weights[dataIndex] * leftProb;
+                numLeft += 1;
+                rightFractionalIndices[numRight] = dataIndex;
+                rightFractionalProbs[numRight] = weights[dataIndex] * rightProb;
+                numRight += 1;
+            }
+            for (int k=0;k<numFractional;k++){
+                int dataIndex = parent.fractionalIndices[k];
+                double prob = parent.fractionalProbs[k];
+                double value = value(column, values, dataIndex);
+                if (Double.isNaN(value)){
+                    leftFractionalIndices[numLeft] = dataIndex;
+                    leftFractionalProbs[numLeft] = prob * leftProb;
+                    numLeft += 1;
+                    rightFractionalIndices[numRight] = dataIndex;
+                    rightFractionalProbs[numRight] = prob * rightProb;
+                    numRight += 1;
+                } else if (value<=threshold){
+                    leftFractionalIndices[numLeft] = dataIndex;
+                    leftFractionalProbs[numLeft] = prob;
+                    numLeft += 1;
+                } else {
+                    rightFractionalIndices[numRight] = dataIndex;
+                    rightFractionalProbs[numRight] = prob;
+                    numRight += 1;
+                }
+            }
+            Membership left = new Membership(start, mid,
+                    Arrays.copyOf(leftFractionalIndices, numLeft), Arrays.copyOf(leftFractionalProbs, numLeft));
+            Membership right = new Membership(mid, missingStart,
+                    Arrays.copyOf(rightFractionalIndices, numRight), Arrays.copyOf(rightFractionalProbs, numRight));
+            return new Membership[]{left, right};
+        } finally {
+            releaseValues(column, values);
+        }
+    }
+
+    /**
+     * materialize the probability of each data point falling into the node
+     * the returned array is shared and must be given back by release(membership) before the next call
+     */
+    double[] toProbs(Membership membership){
+        for (int k=membership.start;k<membership.end;k++){
+            int dataIndex = dataIndices[k];
+            probsBuffer[dataIndex] = weights[dataIndex];
+        }
+        for (int k=0;k<membership.fractionalIndices.length;k++){
+            probsBuffer[membership.fractionalIndices[k]] = membership.fractionalProbs[k];
+        }
+        return probsBuffer;
+    }
+
+    /**
+     * reset the shared probability array
+     */
+    void release(Membership membership){
+        for (int k=membership.start;k<membership.end;k++){
+            probsBuffer[dataIndices[k]] = 0;
+        }
+        for (int k=0;k<membership.fractionalIndices.length;k++){
+            probsBuffer[membership.fractionalIndices[k]] = 0;
+        }
+    }
+
+    /**
+     * @param k 0 <= k < membership.size()
+     * @return the k-th data point of the node, in no particular order
+     */
+    int getDataIndex(Membership membership, int k){
+        int blockSize = membership.end - membership.start;
+        return k<blockSize? dataIndices[membership.start+k]: membership.fractionalIndices[k-blockSize];
+    }
+
+    /**
+     * @param k 0 <= k < membership.size()
+     * @return probability of the k-th data point falling into the node
+     */
+    double getProb(Membership membership, int k){
+        int blockSize = membership.end - membership.start;
+        return k<blockSize? weights[dataIndices[membership.start+k]]: membership.fractionalProbs[k-blockSize];
+    }
+
+    /**
+     * @param leaves memberships of the leaves
+     * @return leaf index of each data point, -1 for data points not fully in one leaf
+     */
+    int[] leafAssignment(List<Membership> leaves){
+        int[] assignment = new int[numDataPoints];
+        Arrays.fill(assignment,-1);
+        for (int l=0;l<leaves.size();l++){
+            Membership membership = leaves.get(l);
+            for (int k=membership.start;k<membership.end;k++){
+                assignment[dataIndices[k]] = l;
+            }
+        }
+        return assignment;
+    }
+
+    private static boolean goesLeft(double value, double threshold){
+        // NaN <= threshold is false
+        return value <= threshold;
+    }
+
+    private void swap(int i, int j){
+        int tmp = dataIndices[i];
+        dataIndices[i] = dataIndices[j];
+        dataIndices[j] = tmp;
+    }
+
+    /**
+     * dense columns are read directly;
+     * sparse columns are scattered into the zero-initialized buffer for O(1) access
+     * @return the buffer, or null for dense columns
+     */
+    private double[] loadValues(Vector column){
+        if (column.isDense()){
+            return null;
+        }
+        if (valuesBuffer==null){
+            valuesBuffer = new double[numDataPoints];
+        }
+        double[] buffer = valuesBuffer;
+        Vectors.forEachNonZero(column, (index, value) -> buffer[index] = value);
+        return buffer;
+    }
+
+    private static double value(Vector column, double[] values, int dataIndex){
+        if (values==null){
+            return column.getQuick(dataIndex);
+        } else {
+            return values[dataIndex];
+        }
+    }
+
+    private void releaseValues(Vector column, double[] values){
+        if (values!=null){
+            Vectors.forEachNonZero(column, (index, value) -> values[index] = 0);
+        }
+    }
+
+    /**
+     * data points of one node
+     */
+    static class Membership {
+        // block [start, end) of the shared index array, with probability = weight
+        private int start;
+        private int end;
+        // data points with fractional probabilities
+        private int[] fractionalIndices;
+        private double[] fractionalProbs;
+
+        private Membership(int start, int end, int[] fractionalIndices, double[] fractionalProbs) {
+            this.start = start;
+            this.end = end;
+            this.fractionalIndices = fractionalIndices;
+            this.fractionalProbs = fractionalProbs;
+        }
+
+        /**
+         * @return number of data points with non-zero probabilities
+         */
+        int size(){
+            return end - start + fractionalIndices.length;
+        }
+    }
+}
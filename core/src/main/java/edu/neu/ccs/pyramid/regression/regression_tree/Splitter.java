@@ -82,6 +82,49 @@ public class Splitter {
 
 
 
+    /**
+     * histogram mode
+     * @param regTreeConfig
+     * @param histogram histogram of the node
+     * @return best valid splitResult, possibly nothing
+     */
+    static Optional<SplitResult> split(RegTreeConfig regTreeConfig,
+                                       BinnedFeatures binnedFeatures,
+                                       Histogram histogram){
+        IntStream intStream = IntStream.range(0, binnedFeatures.getNumFeatures());
+        if (regTreeConfig.isParallel()){
+            intStream = intStream.parallel();
+        }
+        // the list might be empty
+        return intStream.mapToObj(featureIndex -> HistogramSplitter.split(regTreeConfig, binnedFeatures, histogram, featureIndex))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .max(Comparator.comparing(SplitResult::getReduction));
+    }
+
+    /**
+     * histogram mode
+     * @param regTreeConfig
+     * @param histogram histogram of the node
+     * @return best valid splitResult, possibly nothing
+     */
+    static Optional<SplitResult> split(RegTreeConfig regTreeConfig,
+                                       BinnedFeatures binnedFeatures,
+                                       Histogram histogram,
+                                       int[] monotonicity){
+        IntStream intStream = IntStream.range(0, binnedFeatures.getNumFeatures());
+        if (regTreeConfig.isParallel()){
+            intStream = intStream.parallel();
+        }
+        // the list might be empty
+        return intStream.mapToObj(featureIndex -> HistogramSplitter.split(regTreeConfig, binnedFeatures, histogram, featureIndex, monotonicity))
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .max(Comparator.comparing(SplitResult::getReduction));
+    }
+
+
+
     // this is for active feature faster boosting
 
     static Optional<SplitResult> split(RegTreeConfig regTreeConfig,
@@ -8,12 +8,11 @@ import java.util.stream.IntStream;
  * Created by chengli on 8/20/14.
  */
 public class ArgSort {
+    /**
+     * stable: equal values keep their original order; values compare as Double.compare
+     */
     public static int[] argSortAscending(double[] arr){
-        Comparator<Pair<Integer,Double>> comparator = Comparator.comparing(Pair::getSecond);
-        return IntStream.range(0,arr.length)
-                .mapToObj(i-> new Pair<>(i,arr[i]))
-                .sorted(comparator)
-                .mapToInt(Pair::getFirst).toArray();
+        return new Sorter().argSortAscending(arr).clone();
     }
 
     public static int[] argSortAscending(List<Double> arr){
@@ -24,12 +23,11 @@ public class ArgSort {
                 .mapToInt(Pair::getFirst).toArray();
     }
 
+    /**
+     * stable: equal values keep their original order; values compare as Double.compare
+     */
     public static int[] argSortDescending(double[] arr){
-        Comparator<Pair<Integer,Double>> comparator = Comparator.comparing(Pair::getSecond);
-        return IntStream.range(0,arr.length)
-                .mapToObj(i-> new Pair<>(i,arr[i]))
-                .sorted(comparator.reversed())
-                .mapToInt(Pair::getFirst).toArray();
+        return new Sorter().argSortDescending(arr).clone();
     }
 
     public static int[] argSortDescending(List<Double> arr){
@@ -43,20 +41,114 @@ public class ArgSort {
 
 
     public static int[] argSortAscending(float[] arr){
-        Comparator<Pair<Integer,Float>> comparator = Comparator.comparing(Pair::getSecond);
-        return IntStream.range(0,arr.length)
-                .mapToObj(i-> new Pair<>(i,arr[i]))
-                .sorted(comparator)
-                .mapToInt(Pair::getFirst).toArray();
+        return argSortAscending(toDouble(arr));
     }
 
     public static int[] argSortDescending(float[] arr){
-        Comparator<Pair<Integer,Float>> comparator = Comparator.comparing(Pair::getSecond);
-        return IntStream.range(0,arr.length)
-                .mapToObj(i-> new Pair<>(i,arr[i]))
-                .sorted(comparator.reversed())
-                .mapToInt(Pair::getFirst).toArray();
+        return argSortDescending(toDouble(arr));
+    }
+
+    // widening keeps the order of Float.compare
+    private static double[] toDouble(float[] arr){
+        double[] values = new double[arr.length];
+        for (int i=0;i<arr.length;i++){
+            values[i] = arr[i];
+        }
+        return values;
     }
 
+    /**
+     * stable merge sort of indices on primitive arrays, with reusable work arrays;
+     * keys are sorted along with the indices so the merges read memory sequentially
+     * not thread safe, use one sorter per thread
+     */
+    public static class Sorter {
+        private static final int RUN_LENGTH = 32;
+        private int[] indices = new int[0];
+        private double[] keys = new double[0];
+        private int[] indexBuffer = new int[0];
+        private double[] keyBuffer = new double[0];
+
+        /**
+         * @return indices from the largest value to the smallest, equal values in original order;
+         * the array is owned by the sorter and only its first arr.length entries are valid until the next call
+         */
+        public int[] argSortDescending(double[] arr){
+            sort(arr, true);
+            return indices;
+        }
 
+        /**
+         * @return indices from the smallest value to the largest, equal values in original order;
+         * the array is owned by the sorter and only its first arr.length entries are valid until the next call
+         */
+        public int[] argSortAscending(double[] arr){
+            sort(arr, false);
+            return indices;
+        }
+
+        private void sort(double[] arr, boolean descending){
+            int n = arr.length;
+            if (indices.length<n){
+                indices = new int[n];
+                keys = new double[n];
+                indexBuffer = new int[n];
+                keyBuffer = new double[n];
+            }
+            // a descending sort is an ascending sort of the negated order, written as a flipped comparison
+            int sign = descending? -1: 1;
+            for (int i=0;i<n;i++){
+                indices[i] = i;
+                keys[i] = arr[i];
+            }
+            for (int start=0;start<n;start+=RUN_LENGTH){
+                insertionSort(start, Math.min(n, start+RUN_LENGTH), sign);
+            }
+            for (int width=RUN_LENGTH;width<n;width*=2){
+                for (int start=0;start<n;start+=2*width){
+                    int middle = Math.min(n, start+width);
+                    int end = Math.min(n, start+2*width);
+                    merge(start, middle, end, sign);
+                }
+                int[] tmpIndices = indices;
+                indices = indexBuffer;
+                indexBuffer = tmpIndices;
+                double[] tmpKeys = keys;
+                keys = keyBuffer;
+                keyBuffer = tmpKeys;
+            }
+        }
+
+        private void insertionSort(int start, int end, int sign){
+            for (int i=start+1;i<end;i++){
+                int index = indices[i];
+                double key = keys[i];
+                int j = i - 1;
+                while (j>=start && sign*Double.compare(keys[j], key)>0){
+                    indices[j+1] = indices[j];
+                    keys[j+1] = keys[j];
+                    j -= 1;
+                }
+                indices[j+1] = index;
+                keys[j+1] = key;
+            }
+        }
+
+        // merge [start, middle) and [middle, end) into the buffers; ties take the left run first
+        private void merge(int start, int middle, int end, int sign){
+            int left = start;
+            int right = middle;
+            for (int k=start;k<end;k++){
+                if (left<middle && (right==end || sign*Double.compare(keys[left], keys[right])<=0)){
+                    indexBuffer[k] = indices[left];
+                    keyBuffer[k] = keys[left];
+                    left += 1;
+                } else {
+                    indexBuffer[k] = indices[right];
+                    keyBuffer[k] = keys[right];
+                    right += 1;
+                }
+            }
+        }
+    }
 }
@@ -0,0 +1,175 @@
+package edu.neu.ccs.pyramid.util;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * interns int tuples of any length to ids 0, 1, 2, ... in insertion order
+ *
+ * all tuples are kept in one int arena, tuple id occupies [offsets[id], offsets[id+1]);
+ * lookups go through an open addressing table of ids, so a tuple costs its length + 3 ints
+ * instead of an array object and a map entry
+ * callers keep per tuple values in their own arrays indexed by id
+ * not thread safe
+ */
+public class IntTupleTable implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private int size;
+    private int[] arena;
+    private int arenaSize;
+    // size+1 entries in use
+    private int[] offsets = new int[17];
+    private int[] hashes = new int[16];
+    // open addressing table of id + 1, 0 = empty slot
+    private int[] table = new int[32];
+
+    public IntTupleTable() {
+        this(16);
+    }
+
+    /**
+     * @param arenaCapacity initial number of ints for all tuples
+     */
+    public IntTupleTable(int arenaCapacity) {
+        this.arena = new int[Math.max(1, arenaCapacity)];
+    }
+
+    /**
+     * @return id of the tuple, a new one if the tuple is not in the table yet
+     */
+    public int add(int[] tuple){
+        return add(tuple, 0, tuple.length, hash(tuple, 0, tuple.length));
+    }
+
+    /**
+     * add tuple id of another table, without copying it out or hashing it again
+     * @return id of the tuple in this table
+     */
+    public int add(IntTupleTable other, int id){
+        int start = other.offsets[id];
+        return add(other.arena, start, other.offsets[id+1]-start, other.hashes[id]);
+    }
+
+    /**
+     * @return id of the tuple, -1 if the tuple is not in the table
+     */
+    public int getId(int[] tuple){
+        return find(tuple, 0, tuple.length, hash(tuple, 0, tuple.length));
+    }
+
+    /**
+     * number of distinct tuples
+     */
+    public int size(){
+        return size;
+    }
+
+    public int getLength(int id){
+        return offsets[id+1] - offsets[id];
+    }
+
+    /**
+     * @return i-th value of tuple id
+     */
+    public int get(int id, int i){
+        return arena[offsets[id]+i];
+    }
+
+    /**
+     * @return values of tuple id, a copy
+     */
+    public int[] toArray(int id){
+        return Arrays.copyOfRange(arena, offsets[id], offsets[id+1]);
+    }
+
+    /**
+     * for tuples in ascending order
+     * @return index of the value in tuple id, as Arrays.binarySearch
+     */
+    public int binarySearch(int id, int value){
+        int start = offsets[id];
+        int index = Arrays.binarySearch(arena, start, offsets[id+1], value);
+        return index>=0? index-start: index+start;
+    }
+
+    private int add(int[] values, int from, int length, int hash){
+        int id = find(values, from, length, hash);
+        if (id>=0){
+            return id;
+        }
+        if (size==hashes.length){
+            hashes = Arrays.copyOf(hashes, 2*size);
+            offsets = Arrays.copyOf(offsets, 2*size+1);
+        }
+        if (arenaSize+length>arena.length){
+            arena = Arrays.copyOf(arena, Math.max(2*arena.length, arenaSize+length));
+        }
+        System.arraycopy(values, from, arena, arenaSize, length);
+        arenaSize += length;
+        id = size;
+        hashes[id] = hash;
+        size += 1;
+        offsets[size] = arenaSize;
+        if (2*size>table.length){
+            rehash();
+        } else {
+            insert(id);
+        }
+        return id;
+    }
+
+    private int find(int[] values, int from, int length, int hash){
+        int mask = table.length - 1;
+        for (int slot=mix(hash) & mask; table[slot]!=0; slot=(slot+1) & mask){
+            int id = table[slot] - 1;
+            if (hashes[id]==hash && equals(id, values, from, length)){
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    private boolean equals(int id, int[] values, int from, int length){
+        int start = offsets[id];
+        if (offsets[id+1]-start!=length){
+            return false;
+        }
+        for (int i=0;i<length;i++){
+            if (arena[start+i]!=values[from+i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int id){
+        int mask = table.length - 1;
+        int slot = mix(hashes[id]) & mask;
+        while (table[slot]!=0){
+            slot = (slot+1) & mask;
+        }
+        table[slot] = id + 1;
+    }
+
+    private void rehash(){
+        table = new int[2*table.length];
+        for (int id=0;id<size;id++){
+            insert(id);
+        }
+    }
+
+    // same as Arrays.hashCode
+    private static int hash(int[] values, int from, int length){
+        int hash = 1;
+        for (int i=from;i<from+length;i++){
+            hash = 31*hash + values[i];
+        }
+        return hash;
+    }
+
+    // spreads the bits, since the table index only uses the low ones
+    private static int mix(int hash){
+        int h = hash*0x9E3779B9;
+        return h ^ (h>>>16);
+    }
+}
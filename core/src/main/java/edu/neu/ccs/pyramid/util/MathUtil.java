@@ -250,9 +250,15 @@ public class MathUtil {
 
 
 
+    /**
+     * log(1/(1+exp(-score))), without overflow or allocation
+     */
     public static double logSigmoid(double score){
-        double[] arr = {0, score};
-        return logSoftmax(arr)[1];
+        if (score>=0){
+            return -Math.log1p(Math.exp(-score));
+        } else {
+            return score - Math.log1p(Math.exp(score));
+        }
     }
 
 
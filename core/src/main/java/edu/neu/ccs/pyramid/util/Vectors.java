@@ -1,5 +1,6 @@
 package edu.neu.ccs.pyramid.util;
 
+import edu.neu.ccs.pyramid.dataset.CompressedSparseVector;
 import org.apache.mahout.math.DenseVector;
 import org.apache.mahout.math.RandomAccessSparseVector;
 import org.apache.mahout.math.SequentialAccessSparseVector;
@@ -156,6 +157,14 @@ public class Vectors {
 
     private static double dotDenseSparse(Vector denseVector, Vector sparseVector){
         double sum = 0;
+        if (sparseVector instanceof CompressedSparseVector){
+            CompressedSparseVector compressed = (CompressedSparseVector) sparseVector;
+            int numNonZeros = compressed.getNumNonZeroElements();
+            for (int p=0;p<numNonZeros;p++){
+                sum += compressed.valueAt(p)*denseVector.getQuick(compressed.indexAt(p));
+            }
+            return sum;
+        }
         for (Vector.Element element: sparseVector.nonZeroes()){
             int index = element.index();
             double value = element.get();
@@ -163,4 +172,18 @@ public class Vectors {
         }
         return sum;
     }
+
+    /**
+     * visit non-zero (including NaN) elements
+     * compressed sparse vectors are read directly, without Element objects
+     */
+    public static void forEachNonZero(Vector vector, CompressedSparseVector.IntDoubleConsumer consumer){
+        if (vector instanceof CompressedSparseVector){
+            ((CompressedSparseVector) vector).forEachNonZero(consumer);
+        } else {
+            for (Vector.Element element: vector.nonZeroes()){
+                consumer.accept(element.index(), element.get());
+            }
+        }
+    }
 }
@@ -0,0 +1,59 @@
+package edu.neu.ccs.pyramid.calibration;
+
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.multilabel_classification.TopKCandidateGenerator;
+import edu.neu.ccs.pyramid.util.Pair;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * batch extraction over bitsets vs per candidate extraction
+ */
+public class PredictionFeatureExtractorTest {
+
+    @Test
+    public void sameFeatures() {
+        Random random = new Random(0);
+        List<PredictionCandidate> candidates = new ArrayList<>();
+        for (int row=0;row<50;row++){
+            // more than 64 labels, so the bitsets take several words
+            double[] marginals = new double[1+random.nextInt(100)];
+            for (int l=0;l<marginals.length;l++){
+                marginals[l] = random.nextDouble()<0.8 ? random.nextDouble()*0.05 : random.nextDouble();
+            }
+            List<Pair<MultiLabel,Double>> sparseJoint = TopKCandidateGenerator.forCurrentThread().topK(marginals, 20);
+            for (Pair<MultiLabel,Double> pair: sparseJoint){
+                PredictionCandidate candidate = new PredictionCandidate();
+                candidate.multiLabel = pair.getFirst();
+                candidate.labelProbs = marginals;
+                candidate.sparseJoint = sparseJoint;
+                candidates.add(candidate);
+            }
+            // an empty prediction
+            PredictionCandidate empty = new PredictionCandidate();
+            empty.multiLabel = new MultiLabel();
+            empty.labelProbs = marginals;
+            empty.sparseJoint = sparseJoint;
+            candidates.add(empty);
+        }
+        PredictionFeatureExtractor extractor = new CombinedPredictionFeatureExtractor(Arrays.asList(
+                new ExpectedF1FeatureExtractor(), new ExpectedPrecisionFeatureExtractor(),
+                new ExpectedRecallFeatureExtractor()));
+        List<Vector> features = extractor.extractFeatures(candidates);
+        assertEquals(candidates.size(), features.size());
+        for (int c=0;c<candidates.size();c++){
+            Vector expected = extractor.extractFeatures(candidates.get(c));
+            assertEquals(expected.size(), features.get(c).size());
+            for (int j=0;j<expected.size();j++){
+                assertEquals(expected.get(j), features.get(c).get(j), 1e-12);
+            }
+        }
+    }
+}
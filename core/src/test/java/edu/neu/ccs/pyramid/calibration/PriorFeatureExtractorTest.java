@@ -0,0 +1,64 @@
+package edu.neu.ccs.pyramid.calibration;
+
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.dataset.MLClfDataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
+import edu.neu.ccs.pyramid.util.Serialization;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * dictionary lookups vs the label set frequencies of the training set, before and after serialization
+ */
+public class PriorFeatureExtractorTest {
+    private static final int NUM_DATA_POINTS = 300;
+    private static final int NUM_CLASSES = 6;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void samePriors() throws Exception {
+        Random random = new Random(0);
+        MultiLabelClfDataSet dataSet = MLClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS)
+                .numFeatures(1).numClasses(NUM_CLASSES).density(Density.SPARSE_RANDOM).build();
+        Map<MultiLabel,Integer> counts = new HashMap<>();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int l=0;l<NUM_CLASSES;l++){
+                if (random.nextDouble()<0.2){
+                    dataSet.addLabel(i,l);
+                }
+            }
+            counts.merge(dataSet.getMultiLabels()[i], 1, Integer::sum);
+        }
+        PriorFeatureExtractor extractor = new PriorFeatureExtractor(dataSet);
+        check(extractor, counts, random);
+        File file = folder.newFile();
+        Serialization.serialize(extractor, file);
+        check((PriorFeatureExtractor) Serialization.deserialize(file), counts, random);
+    }
+
+    private static void check(PriorFeatureExtractor extractor, Map<MultiLabel,Integer> counts, Random random){
+        for (int t=0;t<500;t++){
+            MultiLabel multiLabel = new MultiLabel();
+            for (int l=0;l<NUM_CLASSES;l++){
+                if (random.nextDouble()<0.2){
+                    multiLabel.addLabel(l);
+                }
+            }
+            PredictionCandidate candidate = new PredictionCandidate();
+            candidate.multiLabel = multiLabel;
+            double expected = counts.getOrDefault(multiLabel, 0)/(double) NUM_DATA_POINTS;
+            assertEquals(expected, extractor.extractFeatures(candidate).get(0), 1e-12);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package edu.neu.ccs.pyramid.classification.logistic_regression;
+
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.eval.KLDivergence;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * fused value and gradient vs a per parameter computation from predicted probabilities
+ */
+public class LogisticLossTest {
+    private static final int NUM_DATA_POINTS = 300;
+    private static final int NUM_FEATURES = 20;
+    private static final int NUM_CLASSES = 4;
+    private static final double VARIANCE = 2;
+
+    @Test
+    public void sequential() {
+        check(false);
+    }
+
+    @Test
+    public void parallel() {
+        check(true);
+    }
+
+    private static void check(boolean parallel){
+        Random random = new Random(0);
+        DataSet dataSet = DataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .density(Density.SPARSE_RANDOM).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (random.nextDouble()<0.3){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+        }
+        // soft targets, and some data points with zero weight
+        double[][] targets = new double[NUM_DATA_POINTS][NUM_CLASSES];
+        double[] weights = new double[NUM_DATA_POINTS];
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            if (random.nextBoolean()){
+                targets[i][random.nextInt(NUM_CLASSES)] = 1;
+            } else {
+                int k = random.nextInt(NUM_CLASSES);
+                targets[i][k] = 0.7;
+                targets[i][(k+1)%NUM_CLASSES] = 0.3;
+            }
+            weights[i] = random.nextDouble()<0.1 ? 0 : random.nextDouble()*2;
+        }
+        LogisticRegression logisticRegression = new LogisticRegression(NUM_CLASSES, NUM_FEATURES, true);
+        LogisticLoss loss = new LogisticLoss(logisticRegression, dataSet, weights, targets, VARIANCE, parallel);
+        Weights parameters = logisticRegression.getWeights();
+
+        double[][] probs = new double[NUM_DATA_POINTS][];
+        double kl = 0;
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            probs[i] = logisticRegression.predictClassProbs(dataSet.getRow(i));
+            kl += weights[i]*KLDivergence.kl(targets[i], probs[i]);
+        }
+        double penalty = 0;
+        for (int k=0;k<NUM_CLASSES;k++){
+            Vector vector = parameters.getWeightsWithoutBiasForClass(k);
+            penalty += vector.dot(vector)/(2*VARIANCE);
+        }
+        assertEquals(kl + penalty, loss.getValue(), 1e-10);
+        assertEquals(penalty, loss.penaltyValue(), 1e-12);
+
+        Vector gradient = loss.getGradient();
+        assertEquals(parameters.totalSize(), gradient.size());
+        for (int p=0;p<parameters.totalSize();p++){
+            int k = parameters.getClassIndex(p);
+            int j = parameters.getFeatureIndex(p);
+            double expected = 0;
+            for (int i=0;i<NUM_DATA_POINTS;i++){
+                double featureValue = j==-1 ? 1 : dataSet.getRow(i).get(j);
+                expected += weights[i]*(probs[i][k] - targets[i][k])*featureValue;
+            }
+            if (j!=-1){
+                expected += parameters.getAllWeights().get(p)/VARIANCE;
+            }
+            assertEquals(expected, gradient.get(p), 1e-10);
+        }
+
+        // caches are dropped when the parameters change
+        Vector moved = parameters.getAllWeights().times(0.5);
+        loss.setParameters(moved);
+        double movedKL = 0;
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            movedKL += weights[i]*KLDivergence.kl(targets[i], logisticRegression.predictClassProbs(dataSet.getRow(i)));
+        }
+        assertEquals(movedKL + loss.penaltyValue(), loss.getValue(), 1e-10);
+    }
+}
@@ -0,0 +1,74 @@
+package edu.neu.ccs.pyramid.classification.logistic_regression;
+
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.Density;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * batch scoring into caller-provided buffers vs per row predictions
+ */
+public class LogisticRegressionBatchTest {
+    private static final int NUM_DATA_POINTS = 700;
+    private static final int NUM_FEATURES = 25;
+    private static final int NUM_CLASSES = 5;
+
+    @Test
+    public void sameScoresAndProbs() {
+        Random random = new Random(0);
+        DataSet dataSet = DataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .density(Density.SPARSE_RANDOM).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (random.nextDouble()<0.2){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian()*3);
+                }
+            }
+        }
+        LogisticRegression logisticRegression = new LogisticRegression(NUM_CLASSES, NUM_FEATURES);
+        Vector weights = logisticRegression.getWeights().getAllWeights();
+        for (int p=0;p<weights.size();p++){
+            weights.set(p, random.nextGaussian());
+        }
+
+        double[][] probs = new double[NUM_DATA_POINTS][NUM_CLASSES];
+        logisticRegression.predictClassProbs(dataSet, probs);
+        List<double[]> probList = logisticRegression.predictClassProbs(dataSet);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            double[] expected = logisticRegression.predictClassProbs(dataSet.getRow(i));
+            assertArrayEquals(expected, probs[i], 1e-12);
+            assertArrayEquals(expected, probList.get(i), 1e-12);
+        }
+
+        // a block in the middle, into a reused buffer with longer rows; extra entries are left alone
+        int start = 123;
+        int end = 456;
+        double[][] buffer = new double[end-start][NUM_CLASSES+2];
+        for (double[] row: buffer){
+            row[NUM_CLASSES] = -1;
+            row[NUM_CLASSES+1] = -1;
+        }
+        logisticRegression.predictClassScores(dataSet, start, end, buffer);
+        for (int i=start;i<end;i++){
+            double[] expected = logisticRegression.predictClassScores(dataSet.getRow(i));
+            for (int k=0;k<NUM_CLASSES;k++){
+                assertEquals(expected[k], buffer[i-start][k], 1e-12);
+            }
+            assertEquals(-1, buffer[i-start][NUM_CLASSES], 0);
+        }
+        logisticRegression.predictClassProbs(dataSet, start, end, buffer);
+        for (int i=start;i<end;i++){
+            double[] expected = logisticRegression.predictClassProbs(dataSet.getRow(i));
+            for (int k=0;k<NUM_CLASSES;k++){
+                assertEquals(expected[k], buffer[i-start][k], 1e-12);
+            }
+            assertEquals(-1, buffer[i-start][NUM_CLASSES+1], 0);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * save and load round trips; values are generated as floats, which is what the format stores
+ */
+public class BinaryFormatTest {
+    private static final int NUM_DATA_POINTS = 200;
+    private static final int NUM_FEATURES = 15;
+    private static final int NUM_CLASSES = 4;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void clfDataSet() throws Exception {
+        Random random = new Random(0);
+        ClfDataSet dataSet = ClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .numClasses(NUM_CLASSES).missingValue(true).build();
+        fill(dataSet, random);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            dataSet.setLabel(i, random.nextInt(NUM_CLASSES));
+        }
+        dataSet.setLabelTranslator(new LabelTranslator(new String[]{"a","b","c","d"}));
+        File file = folder.newFile();
+        BinaryFormat.save(dataSet, file);
+        ClfDataSet loaded = BinaryFormat.loadClfDataSet(file.getAbsolutePath());
+        sameFeatures(dataSet, loaded);
+        assertEquals(NUM_CLASSES, loaded.getNumClasses());
+        assertArrayEquals(dataSet.getLabels(), loaded.getLabels());
+        for (int k=0;k<NUM_CLASSES;k++){
+            assertEquals(dataSet.getLabelTranslator().toExtLabel(k), loaded.getLabelTranslator().toExtLabel(k));
+        }
+    }
+
+    @Test
+    public void regDataSet() throws Exception {
+        Random random = new Random(1);
+        RegDataSet dataSet = RegDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .missingValue(true).build();
+        fill(dataSet, random);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            dataSet.setLabel(i, random.nextGaussian());
+        }
+        File file = folder.newFile();
+        BinaryFormat.save(dataSet, file);
+        RegDataSet loaded = BinaryFormat.loadRegDataSet(file.getAbsolutePath());
+        sameFeatures(dataSet, loaded);
+        // labels are kept in double
+        assertArrayEquals(dataSet.getLabels(), loaded.getLabels(), 0);
+    }
+
+    @Test
+    public void multiLabelClfDataSet() throws Exception {
+        Random random = new Random(2);
+        MultiLabelClfDataSet dataSet = MLClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS)
+                .numFeatures(NUM_FEATURES).numClasses(NUM_CLASSES).density(Density.SPARSE_RANDOM)
+                .missingValue(true).build();
+        fill(dataSet, random);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int k=0;k<NUM_CLASSES;k++){
+                if (random.nextDouble()<0.3){
+                    dataSet.addLabel(i, k);
+                }
+            }
+        }
+        File file = folder.newFile();
+        BinaryFormat.save(dataSet, file);
+        MultiLabelClfDataSet loaded = BinaryFormat.loadMultiLabelClfDataSet(file.getAbsolutePath());
+        sameFeatures(dataSet, loaded);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertEquals(dataSet.getMultiLabels()[i], loaded.getMultiLabels()[i]);
+        }
+    }
+
+    @Test
+    public void trecConversion() throws Exception {
+        Random random = new Random(3);
+        ClfDataSet dataSet = ClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .numClasses(NUM_CLASSES).missingValue(false).build();
+        fill(dataSet, random);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            dataSet.setLabel(i, random.nextInt(NUM_CLASSES));
+        }
+        File trec = new File(folder.getRoot(), "data.trec");
+        TRECFormat.save(dataSet, trec);
+        File binary = new File(folder.getRoot(), "data.bin");
+        BinaryFormat.fromTREC(trec.getAbsolutePath(), DataSetType.CLF_SPARSE, binary.getAbsolutePath());
+        ClfDataSet loaded = BinaryFormat.loadClfDataSet(binary.getAbsolutePath());
+        sameFeatures(dataSet, loaded);
+        assertArrayEquals(dataSet.getLabels(), loaded.getLabels());
+    }
+
+    @Test(expected = IOException.class)
+    public void notABinaryDataSet() throws Exception {
+        File file = folder.newFile();
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")){
+            out.write(new byte[4096]);
+        }
+        BinaryFormat.load(file);
+    }
+
+    private static void fill(DataSet dataSet, Random random){
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                double u = random.nextDouble();
+                if (u<0.05 && dataSet.hasMissingValue()){
+                    dataSet.setFeatureValue(i,j,Double.NaN);
+                } else if (u<0.4){
+                    dataSet.setFeatureValue(i,j,(float) random.nextGaussian());
+                }
+            }
+        }
+    }
+
+    private static void sameFeatures(DataSet expected, DataSet loaded){
+        assertEquals(expected.getNumDataPoints(), loaded.getNumDataPoints());
+        assertEquals(expected.getNumFeatures(), loaded.getNumFeatures());
+        assertEquals(expected.hasMissingValue(), loaded.hasMissingValue());
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertEquals(expected.getIdTranslator().toExtId(i), loaded.getIdTranslator().toExtId(i));
+            assertEquals(expected.getRow(i).getNumNonZeroElements(), loaded.getRow(i).getNumNonZeroElements());
+            for (int j=0;j<NUM_FEATURES;j++){
+                assertEquals(expected.getRow(i).get(j), loaded.getRow(i).get(j), 0);
+                assertEquals(expected.getColumn(j).get(i), loaded.getColumn(j).get(i), 0);
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * values collected from many threads vs the same values set one by one
+ */
+public class BulkDataSetBuilderTest {
+    private static final int NUM_DATA_POINTS = 500;
+    private static final int NUM_FEATURES = 30;
+
+    @Test
+    public void sparseRandom() {
+        check(Density.SPARSE_RANDOM);
+    }
+
+    @Test
+    public void sparseSequential() {
+        check(Density.SPARSE_SEQUENTIAL);
+    }
+
+    @Test
+    public void dense() {
+        check(Density.DENSE);
+    }
+
+    @Test
+    public void compressed() {
+        double[][] cells = cells(new Random(3));
+        DataSet expected = reference(cells, Density.SPARSE_RANDOM);
+        CompressedSparseDataSet compressed = collect(cells).buildCompressed(true);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                assertEquals((float) expected.getRow(i).get(j), compressed.getRow(i).get(j), 0);
+                assertEquals((float) expected.getColumn(j).get(i), compressed.getColumn(j).get(i), 0);
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void missingValueNotAllowed() {
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(NUM_DATA_POINTS, NUM_FEATURES);
+        builder.setFeatureValue(0,0,Double.NaN);
+        builder.fill(DataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .density(Density.SPARSE_RANDOM).missingValue(false).build());
+    }
+
+    private static void check(Density density){
+        double[][] cells = cells(new Random(density.ordinal()));
+        DataSet expected = reference(cells, density);
+        DataSet dataSet = empty(density);
+        // an existing value that is not overwritten is kept
+        dataSet.setFeatureValue(0, 0, 7);
+        expected.setFeatureValue(0, 0, 7);
+        BulkDataSetBuilder builder = collect(cells);
+        builder.fill(dataSet);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertEquals(expected.getRow(i).getNumNonZeroElements(), dataSet.getRow(i).getNumNonZeroElements());
+            for (int j=0;j<NUM_FEATURES;j++){
+                assertEquals(expected.getRow(i).get(j), dataSet.getRow(i).get(j), 0);
+            }
+        }
+        for (int j=0;j<NUM_FEATURES;j++){
+            assertEquals(expected.getColumn(j).getNumNonZeroElements(), dataSet.getColumn(j).getNumNonZeroElements());
+            for (int i=0;i<NUM_DATA_POINTS;i++){
+                assertEquals(expected.getColumn(j).get(i), dataSet.getColumn(j).get(i), 0);
+            }
+        }
+    }
+
+    // 0 = not set
+    private static double[][] cells(Random random){
+        double[][] cells = new double[NUM_DATA_POINTS][NUM_FEATURES];
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                double u = random.nextDouble();
+                if (u<0.05){
+                    cells[i][j] = Double.NaN;
+                } else if (u<0.3){
+                    cells[i][j] = random.nextGaussian();
+                }
+            }
+        }
+        return cells;
+    }
+
+    private static DataSet empty(Density density){
+        return DataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .density(density).missingValue(true).build();
+    }
+
+    private static DataSet reference(double[][] cells, Density density){
+        DataSet dataSet = empty(density);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (cells[i][j]!=0){
+                    dataSet.setFeatureValue(i,j,cells[i][j]);
+                }
+            }
+        }
+        return dataSet;
+    }
+
+    // rows are written by many threads, in descending feature order, and every cell is first set to a wrong value
+    private static BulkDataSetBuilder collect(double[][] cells){
+        BulkDataSetBuilder builder = new BulkDataSetBuilder(NUM_DATA_POINTS, NUM_FEATURES);
+        IntStream.range(0, NUM_DATA_POINTS).parallel().forEach(i -> {
+            for (int j=NUM_FEATURES-1;j>=0;j--){
+                if (cells[i][j]!=0){
+                    builder.setFeatureValue(i,j,-100);
+                    builder.setFeatureValue(i,j,cells[i][j]);
+                }
+            }
+        });
+        return builder;
+    }
+}
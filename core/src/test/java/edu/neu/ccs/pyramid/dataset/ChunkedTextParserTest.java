@@ -0,0 +1,152 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * numbers parsed from bytes vs Double.parseDouble, and rows vs line numbers
+ */
+public class ChunkedTextParserTest {
+    private static final String[] SPECIAL = {"0", "-0", "-0.0", "+2.5", "5.", ".5", "1e5", "1E-3", "2.5e+2",
+            "NaN", "Infinity", "-Infinity", "0.1234567890123456789", "123456789012345678901",
+            "9007199254740993", "4.9e-324", "1.7976931348623157e308", "1e23", "1e-23", "0.30000000000000004"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sameNumbers() throws Exception {
+        Random random = new Random(0);
+        List<String[]> lines = new ArrayList<>();
+        for (String special: SPECIAL){
+            lines.add(new String[]{special});
+        }
+        for (int l=0;l<20000;l++){
+            String[] tokens = new String[1+random.nextInt(5)];
+            for (int t=0;t<tokens.length;t++){
+                tokens[t] = randomNumber(random);
+            }
+            lines.add(tokens);
+        }
+        StringBuilder text = new StringBuilder();
+        for (int l=0;l<lines.size();l++){
+            text.append(String.join(random.nextBoolean()? " ": "\t", lines.get(l)));
+            // mixed line breaks, and no line break at the end
+            if (l<lines.size()-1){
+                text.append(l%7==0? "\r\n": l%5==0? "\r": "\n");
+            }
+        }
+        File file = write(text.toString());
+        ChunkedTextParser parser = new ChunkedTextParser(file);
+        assertEquals(lines.size(), parser.getNumRows());
+        double[][] parsed = new double[lines.size()][];
+        parser.parse((dataIndex, cursor) -> {
+            List<Double> values = new ArrayList<>();
+            while (cursor.nextToken()){
+                values.add(cursor.parseDouble());
+            }
+            parsed[dataIndex] = values.stream().mapToDouble(Double::doubleValue).toArray();
+        });
+        for (int l=0;l<lines.size();l++){
+            String[] tokens = lines.get(l);
+            assertEquals(tokens.length, parsed[l].length);
+            for (int t=0;t<tokens.length;t++){
+                assertEquals(tokens[t], Double.doubleToLongBits(Double.parseDouble(tokens[t])),
+                        Double.doubleToLongBits(parsed[l][t]));
+            }
+        }
+    }
+
+    @Test
+    public void libSvm() throws Exception {
+        File file = write("1 1:0.5 3:-2\n-1 2:1e-3\n1\n-1 1:3 2:4 3:5 # comment\n");
+        ClfDataSet dataSet = LibSvmFormat.loadClfDataSet(file.getAbsolutePath(), 3, 2, false);
+        assertEquals(4, dataSet.getNumDataPoints());
+        assertArrayEquals(new int[]{1,0,1,0}, dataSet.getLabels());
+        assertEquals(0.5, dataSet.getRow(0).get(0), 0);
+        assertEquals(-2, dataSet.getRow(0).get(2), 0);
+        assertEquals(0.001, dataSet.getRow(1).get(1), 0);
+        assertEquals(0, dataSet.getRow(2).getNumNonZeroElements());
+        assertEquals(3, dataSet.getRow(3).getNumNonZeroElements());
+        assertEquals(5, dataSet.getColumn(2).get(3), 0);
+    }
+
+    /**
+     * repeated, leading and trailing commas in label lists are skipped
+     */
+    @Test
+    public void libSvmLabelLists() throws Exception {
+        File file = write("1,,2 1:1\n,1 2:2\r\n3, 1:3\r 2:4\n,, 1:5\n2,3,1 2:6");
+        MultiLabelClfDataSet dataSet = LibSvmFormat.loadMultiLabelClfDataSet(file.getAbsolutePath(), false, 2, 3);
+        assertEquals(6, dataSet.getNumDataPoints());
+        sameLabels(dataSet, new int[][]{{0,1}, {0}, {2}, {}, {}, {0,1,2}});
+        assertEquals(3, dataSet.getRow(2).get(0), 0);
+        assertEquals(4, dataSet.getRow(3).get(1), 0);
+        assertEquals(6, dataSet.getRow(5).get(1), 0);
+    }
+
+    @Test
+    public void trecLabelLists() throws Exception {
+        MultiLabelClfDataSet saved = new MLClfDataSetBuilder().numDataPoints(6).numFeatures(2).numClasses(3)
+                .density(Density.SPARSE_RANDOM).build();
+        File trecFile = folder.newFolder();
+        TRECFormat.save(saved, trecFile);
+        Files.write(new File(trecFile, "feature_matrix.txt").toPath(),
+                "0,,1 0:1\n,0 1:2\r\n2, 0:3\r 1:4\n,, 0:5\n1,2,0 1:6".getBytes(StandardCharsets.US_ASCII));
+        MultiLabelClfDataSet dataSet = TRECFormat.loadMultiLabelClfDataSet(trecFile, DataSetType.ML_CLF_SPARSE, false);
+        sameLabels(dataSet, new int[][]{{0,1}, {0}, {2}, {}, {}, {0,1,2}});
+        assertEquals(3, dataSet.getRow(2).get(0), 0);
+        assertEquals(4, dataSet.getRow(3).get(1), 0);
+        assertEquals(5, dataSet.getRow(4).get(0), 0);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void badLabel() throws Exception {
+        File file = write("1,x 1:1\n");
+        LibSvmFormat.loadMultiLabelClfDataSet(file.getAbsolutePath(), false, 2, 3);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void badNumber() throws Exception {
+        File file = write("1 1:0.5x\n");
+        LibSvmFormat.loadRegDataSet(file.getAbsolutePath(), 3, false);
+    }
+
+    private static void sameLabels(MultiLabelClfDataSet dataSet, int[][] expected){
+        MultiLabel[] multiLabels = dataSet.getMultiLabels();
+        for (int i=0;i<expected.length;i++){
+            assertArrayEquals(expected[i], multiLabels[i].getMatchedLabelsOrdered().stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
+    private File write(String text) throws Exception {
+        File file = folder.newFile();
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.US_ASCII));
+        return file;
+    }
+
+    private static String randomNumber(Random random){
+        double value = random.nextGaussian()*Math.pow(10, random.nextInt(30)-15);
+        switch (random.nextInt(4)){
+            case 0:
+                return Double.toString(value);
+            case 1:
+                return String.format(Locale.ROOT, "%."+random.nextInt(10)+"f", value);
+            case 2:
+                return String.format(Locale.ROOT, "%."+random.nextInt(18)+"e", value);
+            default:
+                return Integer.toString(random.nextInt());
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import edu.neu.ccs.pyramid.classification.lkboost.LKBoost;
+import edu.neu.ccs.pyramid.classification.lkboost.LKBoostOptimizer;
+import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeConfig;
+import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeFactory;
+import edu.neu.ccs.pyramid.util.Vectors;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * compressed copies vs the sparse data sets they are made from
+ * values are generated as floats, which is what the compressed format stores
+ */
+public class CompressedSparseDataSetTest {
+    private static final int NUM_DATA_POINTS = 400;
+    private static final int NUM_FEATURES = 12;
+    private static final int NUM_CLASSES = 3;
+
+    @Test
+    public void sameRowsAndColumns() {
+        ClfDataSet dataSet = dataSet(new Random(0));
+        CompressedSparseClfDataSet compressed = CompressedSparseClfDataSet.copyOf(dataSet);
+        assertArrayEquals(dataSet.getLabels(), compressed.getLabels());
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            sameVector(dataSet.getRow(i), compressed.getRow(i));
+        }
+        for (int j=0;j<NUM_FEATURES;j++){
+            sameVector(dataSet.getColumn(j), compressed.getColumn(j));
+        }
+        Vector dense = new DenseVector(NUM_FEATURES);
+        for (int j=0;j<NUM_FEATURES;j++){
+            dense.set(j, j-5);
+        }
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertEquals(Vectors.dot(dataSet.getRow(i),dense), Vectors.dot(compressed.getRow(i),dense), 1e-9);
+        }
+    }
+
+    @Test
+    public void sameLKBoost() {
+        ClfDataSet dataSet = dataSet(new Random(1));
+        CompressedSparseClfDataSet compressed = CompressedSparseClfDataSet.copyOf(dataSet);
+        LKBoost lkBoost = train(dataSet);
+        LKBoost compressedLKBoost = train(compressed);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertArrayEquals(lkBoost.predictClassScores(dataSet.getRow(i)),
+                    compressedLKBoost.predictClassScores(dataSet.getRow(i)), 1e-9);
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void readOnly() {
+        CompressedSparseDataSet.copyOf(dataSet(new Random(2))).setFeatureValue(0,0,1);
+    }
+
+    private static void sameVector(Vector expected, Vector vector){
+        assertEquals(expected.size(), vector.size());
+        assertEquals(expected.getNumNonZeroElements(), vector.getNumNonZeroElements());
+        for (int j=0;j<expected.size();j++){
+            assertEquals(expected.get(j), vector.get(j), 0);
+        }
+        // non-zeros are visited in ascending index order, NaN included
+        List<Integer> indices = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        Vectors.forEachNonZero(vector, (index, value) -> {
+            indices.add(index);
+            values.add(value);
+        });
+        assertEquals(expected.getNumNonZeroElements(), indices.size());
+        for (int p=0;p<indices.size();p++){
+            if (p>0){
+                assertTrue(indices.get(p-1)<indices.get(p));
+            }
+            assertEquals(expected.get(indices.get(p)), values.get(p), 0);
+        }
+    }
+
+    private static LKBoost train(ClfDataSet dataSet){
+        LKBoost lkBoost = new LKBoost(NUM_CLASSES);
+        LKBoostOptimizer optimizer = new LKBoostOptimizer(lkBoost, dataSet,
+                new RegTreeFactory(new RegTreeConfig().setMaxNumLeaves(5).setMinDataPerLeaf(3)));
+        optimizer.setShrinkage(0.3);
+        optimizer.initialize();
+        optimizer.iterate(5);
+        return lkBoost;
+    }
+
+    private static ClfDataSet dataSet(Random random){
+        ClfDataSet dataSet = ClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .numClasses(NUM_CLASSES).missingValue(true).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                double u = random.nextDouble();
+                if (u<0.1){
+                    dataSet.setFeatureValue(i,j,Double.NaN);
+                } else if (u<0.4){
+                    dataSet.setFeatureValue(i,j,(float) random.nextGaussian());
+                }
+            }
+            double value = dataSet.getRow(i).get(1);
+            dataSet.setLabel(i,Double.isNaN(value) ? random.nextInt(NUM_CLASSES) : (value>0 ? 1 : 2));
+        }
+        return dataSet;
+    }
+}
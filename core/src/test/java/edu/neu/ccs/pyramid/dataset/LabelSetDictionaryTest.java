@@ -0,0 +1,87 @@
+package edu.neu.ccs.pyramid.dataset;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * id lookups and per id queries vs a HashMap over MultiLabel objects
+ */
+public class LabelSetDictionaryTest {
+
+    @Test
+    public void sameAsHashMap() {
+        Random random = new Random(0);
+        LabelSetDictionary dictionary = new LabelSetDictionary();
+        Map<MultiLabel,Integer> map = new HashMap<>();
+        List<MultiLabel> distinct = new ArrayList<>();
+        // enough sets to rehash several times, many repeated
+        for (int t=0;t<5000;t++){
+            MultiLabel multiLabel = randomMultiLabel(random);
+            int id = dictionary.add(multiLabel);
+            Integer expected = map.get(multiLabel);
+            if (expected==null){
+                expected = map.size();
+                map.put(multiLabel, expected);
+                distinct.add(multiLabel);
+            }
+            assertEquals(expected.intValue(), id);
+        }
+        assertEquals(map.size(), dictionary.size());
+        assertEquals(distinct, dictionary.getMultiLabels());
+        for (int t=0;t<2000;t++){
+            MultiLabel multiLabel = randomMultiLabel(random);
+            assertEquals(map.getOrDefault(multiLabel, -1).intValue(), dictionary.getId(multiLabel));
+            assertEquals(map.containsKey(multiLabel), dictionary.contains(multiLabel));
+        }
+        for (int t=0;t<2000;t++){
+            int id1 = random.nextInt(distinct.size());
+            int id2 = random.nextInt(distinct.size());
+            MultiLabel multiLabel = distinct.get(id1);
+            assertEquals(multiLabel, dictionary.getMultiLabel(id1));
+            assertArrayEquals(multiLabel.getMatchedLabelsArray(), dictionary.getLabels(id1));
+            assertEquals(multiLabel.getNumMatchedLabels(), dictionary.getNumLabels(id1));
+            for (int l=0;l<100;l++){
+                assertEquals(multiLabel.matchClass(l), dictionary.matchClass(id1, l));
+            }
+            int intersection = 0;
+            for (int l: multiLabel.getMatchedLabels()){
+                if (distinct.get(id2).matchClass(l)){
+                    intersection += 1;
+                }
+            }
+            assertEquals(intersection, dictionary.intersectionSize(id1, id2));
+        }
+    }
+
+    @Test
+    public void duplicatesInTheList() {
+        List<MultiLabel> list = new ArrayList<>();
+        list.add(new MultiLabel(new int[]{3, 1}));
+        list.add(new MultiLabel());
+        list.add(new MultiLabel(new int[]{1, 3}));
+        list.add(new MultiLabel(new int[]{70}));
+        LabelSetDictionary dictionary = new LabelSetDictionary(list);
+        assertEquals(3, dictionary.size());
+        assertEquals(0, dictionary.getId(list.get(2)));
+        assertEquals(1, dictionary.getId(new MultiLabel()));
+        // ids are compact, not positions in the list
+        assertEquals(2, dictionary.getId(list.get(3)));
+    }
+
+    private static MultiLabel randomMultiLabel(Random random){
+        MultiLabel multiLabel = new MultiLabel();
+        int numLabels = random.nextInt(5);
+        for (int i=0;i<numLabels;i++){
+            // mostly a few labels, sometimes far ones
+            multiLabel.addLabel(random.nextDouble()<0.9 ? random.nextInt(12) : random.nextInt(100));
+        }
+        return multiLabel;
+    }
+}
@@ -0,0 +1,321 @@
+package edu.neu.ccs.pyramid.elasticsearch;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.Fields;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.elasticsearch.action.Action;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionRequestBuilder;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.ShardSearchFailure;
+import org.elasticsearch.action.termvectors.MultiTermVectorsAction;
+import org.elasticsearch.action.termvectors.MultiTermVectorsItemResponse;
+import org.elasticsearch.action.termvectors.MultiTermVectorsRequest;
+import org.elasticsearch.action.termvectors.MultiTermVectorsResponse;
+import org.elasticsearch.action.termvectors.TermVectorsRequest;
+import org.elasticsearch.action.termvectors.TermVectorsResponse;
+import org.elasticsearch.client.support.AbstractClient;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.SearchHits;
+import org.elasticsearch.search.internal.InternalSearchResponse;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * forEachTermVector and getTermStats against a stub client that answers multi term vectors requests from a local lucene index
+ */
+public class ESIndexTermVectorsTest {
+    private static final String FIELD = "body";
+    // no stop words, so the analyzer keeps every token at its own position
+    private static final String[] VOCABULARY = {"heart", "failure", "acute", "chronic", "kidney", "disease"};
+    private static final int NUM_DOCS = 250;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private ThreadPool threadPool;
+    private Map<String,Map<Integer,String>> expected;
+    private Map<String,Fields> fields;
+    private Directory directory;
+    private DirectoryReader reader;
+
+    @Before
+    public void setUp() throws Exception {
+        threadPool = new ThreadPool(Settings.builder().put("node.name", "test").build());
+        Random random = new Random(0);
+        expected = new HashMap<>();
+        FieldType fieldType = new FieldType(TextField.TYPE_NOT_STORED);
+        fieldType.setStoreTermVectors(true);
+        fieldType.setStoreTermVectorPositions(true);
+        fieldType.freeze();
+        directory = new RAMDirectory();
+        try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())){
+            for (int d=0;d<NUM_DOCS;d++){
+                String id = "doc"+d;
+                Map<Integer,String> termVector = new HashMap<>();
+                List<String> tokens = new ArrayList<>();
+                int length = 1 + random.nextInt(20);
+                for (int i=0;i<length;i++){
+                    String token = VOCABULARY[random.nextInt(VOCABULARY.length)];
+                    tokens.add(token);
+                    termVector.put(i, token);
+                }
+                expected.put(id, termVector);
+                Document document = new Document();
+                document.add(new StringField("id", id, Field.Store.YES));
+                document.add(new Field(FIELD, String.join(" ", tokens), fieldType));
+                writer.addDocument(document);
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        fields = new HashMap<>();
+        for (int doc=0;doc<reader.maxDoc();doc++){
+            fields.put(reader.document(doc).get("id"), reader.getTermVectors(doc));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        directory.close();
+        ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void batchesAndConcurrency() throws Exception {
+        StubClient client = new StubClient();
+        ESIndex index = index(client, 7, 4, null);
+        List<String> ids = new ArrayList<>(expected.keySet());
+        Map<String,Map<Integer,String>> fetched = new ConcurrentHashMap<>();
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        index.forEachTermVector(FIELD, ids, (id, termVector) -> {
+            assertNull(id, fetched.put(id, termVector));
+            threads.add(Thread.currentThread().getName());
+        });
+        assertEquals(expected, fetched);
+        assertEquals((NUM_DOCS+6)/7, client.batchSizes.size());
+        for (int size: client.batchSizes){
+            assertTrue(size<=7);
+        }
+        assertEquals(NUM_DOCS, client.requestedIds.size());
+        assertEquals(new HashSet<>(ids), new HashSet<>(client.requestedIds));
+        assertTrue(client.maxInFlight.get()<=4);
+        assertTrue(client.maxInFlight.get()>1);
+
+        // the helpers are the same few threads on every call, also from concurrent calls
+        Thread other = new Thread(() -> index.forEachTermVector(FIELD, ids, (id, termVector) ->
+                threads.add(Thread.currentThread().getName())));
+        other.start();
+        index.forEachTermVector(FIELD, ids, (id, termVector) -> threads.add(Thread.currentThread().getName()));
+        other.join();
+        int numHelpers = 0;
+        for (String thread: threads){
+            if (thread.startsWith("term-vector-fetcher-")){
+                numHelpers += 1;
+            }
+        }
+        assertTrue(numHelpers>0);
+        assertTrue(numHelpers<=3);
+        index.close();
+    }
+
+    @Test
+    public void noConcurrency() throws Exception {
+        StubClient client = new StubClient();
+        ESIndex index = index(client, 10, 1, null);
+        assertEquals(expected, index.getTermVectorsFromIndex(FIELD, new ArrayList<>(expected.keySet())));
+        assertEquals(1, client.maxInFlight.get());
+        assertNull(index.termVectorExecutor);
+        index.close();
+    }
+
+    @Test
+    public void storedDocumentsAreNotFetched() throws Exception {
+        StubClient client = new StubClient();
+        ESIndex index = index(client, 20, 3, folder.newFolder().getAbsolutePath());
+        List<String> ids = new ArrayList<>(expected.keySet());
+        List<String> firstHalf = ids.subList(0, NUM_DOCS/2);
+        index.getTermVectorsFromIndex(FIELD, firstHalf);
+        assertEquals(firstHalf.size(), client.requestedIds.size());
+        client.requestedIds.clear();
+        assertEquals(expected, index.getTermVectorsFromIndex(FIELD, ids));
+        assertEquals(new HashSet<>(ids.subList(NUM_DOCS/2, NUM_DOCS)), new HashSet<>(client.requestedIds));
+        index.close();
+    }
+
+    /**
+     * the single document path logs and returns null; a failed item of a batch throws
+     */
+    @Test
+    public void failedItemThrows() throws Exception {
+        StubClient client = new StubClient();
+        client.failing.add("doc42");
+        ESIndex index = index(client, 7, 4, null);
+        Set<String> fetched = ConcurrentHashMap.newKeySet();
+        try {
+            index.forEachTermVector(FIELD, new ArrayList<>(expected.keySet()), (id, termVector) -> fetched.add(id));
+            fail("a failed item should throw");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("doc42"));
+            assertEquals("stub failure", e.getCause().getMessage());
+        }
+        assertFalse(fetched.contains("doc42"));
+        // the index is still usable, and the helpers are not stuck
+        client.failing.clear();
+        assertEquals(expected, index.getTermVectorsFromIndex(FIELD, new ArrayList<>(expected.keySet())));
+        index.close();
+    }
+
+    @Test
+    public void termStatsInBatches() throws Exception {
+        StubClient client = new StubClient();
+        ESIndex index = index(client, 7, 4, null);
+        List<String> ids = new ArrayList<>(expected.keySet());
+        Map<String,Set<TermStat>> termStats = index.getTermStats(FIELD, ids);
+        assertEquals(expected.keySet(), termStats.keySet());
+        ClassicSimilarity similarity = new ClassicSimilarity();
+        for (String id: ids){
+            Map<String,Integer> tfs = new HashMap<>();
+            for (String term: expected.get(id).values()){
+                tfs.merge(term, 1, Integer::sum);
+            }
+            assertEquals(tfs.size(), termStats.get(id).size());
+            for (TermStat termStat: termStats.get(id)){
+                int tf = tfs.get(termStat.getTerm());
+                int df = reader.docFreq(new Term(FIELD, termStat.getTerm()));
+                assertEquals(tf, termStat.getTf());
+                assertEquals(df, termStat.getDf());
+                assertEquals(tf*similarity.idf(df, NUM_DOCS), termStat.getTfidf(), 0);
+            }
+        }
+        assertEquals((NUM_DOCS+6)/7, client.batchSizes.size());
+        assertTrue(client.maxInFlight.get()<=4);
+
+        // a single document goes through the same path
+        client.batchSizes.clear();
+        Set<TermStat> single = index.getTermStats(FIELD, "doc3");
+        assertEquals(termStats.get("doc3"), single);
+        assertEquals(Collections.singletonList(1), client.batchSizes);
+        index.close();
+    }
+
+    private ESIndex index(StubClient client, int batchSize, int concurrency, String store) throws Exception {
+        ESIndex.Builder builder = new ESIndex.Builder().setClient(client).setIndexName("index")
+                .setBodyField(FIELD).setTermVectorBatchSize(batchSize).setTermVectorConcurrency(concurrency);
+        if (store!=null){
+            builder.setTermVectorStore(store);
+        }
+        ESIndex index = builder.build();
+        assertEquals(NUM_DOCS, index.getNumDocs());
+        return index;
+    }
+
+    /**
+     * answers the document count search and multi term vectors requests; anything else fails
+     */
+    private class StubClient extends AbstractClient {
+        private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<>());
+        private final List<String> requestedIds = Collections.synchronizedList(new ArrayList<>());
+        private final Set<String> failing = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger inFlight = new AtomicInteger(0);
+        private final AtomicInteger maxInFlight = new AtomicInteger(0);
+
+        StubClient() {
+            super(Settings.EMPTY, threadPool);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        protected <Request extends ActionRequest, Response extends ActionResponse,
+                RequestBuilder extends ActionRequestBuilder<Request, Response, RequestBuilder>> void doExecute(
+                Action<Request, Response, RequestBuilder> action, Request request, ActionListener<Response> listener) {
+            if (action==SearchAction.INSTANCE){
+                InternalSearchResponse internal = new InternalSearchResponse(new SearchHits(new SearchHit[0], NUM_DOCS, 0),
+                        null, null, null, false, null, 1);
+                listener.onResponse((Response) new SearchResponse(internal, null, 1, 1, 0, new ShardSearchFailure[0]));
+            } else if (action==MultiTermVectorsAction.INSTANCE){
+                try {
+                    listener.onResponse((Response) answer((MultiTermVectorsRequest) request));
+                } catch (Exception e) {
+                    listener.onFailure(e);
+                }
+            } else {
+                listener.onFailure(new UnsupportedOperationException(action.name()));
+            }
+        }
+
+        private MultiTermVectorsResponse answer(MultiTermVectorsRequest request) throws Exception {
+            int current = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(current, Math::max);
+            try {
+                // long enough for the requests of several threads to overlap
+                Thread.sleep(5);
+                batchSizes.add(request.getRequests().size());
+                List<MultiTermVectorsItemResponse> items = new ArrayList<>();
+                for (TermVectorsRequest item: request.getRequests()){
+                    requestedIds.add(item.id());
+                    assertEquals(Collections.singleton(FIELD), item.selectedFields());
+                    if (failing.contains(item.id())){
+                        items.add(new MultiTermVectorsItemResponse(null, new MultiTermVectorsResponse.Failure(
+                                item.index(), item.type(), item.id(), new IllegalStateException("stub failure"))));
+                    } else {
+                        TermVectorsResponse response = new TermVectorsResponse(item.index(), item.type(), item.id());
+                        response.setExists(true);
+                        Fields termVectors = fields.get(item.id());
+                        EnumSet<TermVectorsRequest.Flag> flags = EnumSet.noneOf(TermVectorsRequest.Flag.class);
+                        if (item.positions()){
+                            flags.add(TermVectorsRequest.Flag.Positions);
+                        }
+                        // document frequencies come from the whole index
+                        if (item.termStatistics()){
+                            flags.add(TermVectorsRequest.Flag.TermStatistics);
+                        }
+                        response.setFields(termVectors, item.selectedFields(), flags, MultiFields.getFields(reader));
+                        items.add(new MultiTermVectorsItemResponse(response, null));
+                    }
+                }
+                return new MultiTermVectorsResponse(items.toArray(new MultiTermVectorsItemResponse[items.size()]));
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
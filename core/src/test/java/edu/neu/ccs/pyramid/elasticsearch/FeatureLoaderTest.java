@@ -0,0 +1,211 @@
+package edu.neu.ccs.pyramid.elasticsearch;
+
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.IdTranslator;
+import edu.neu.ccs.pyramid.esplugins.PhraseCountQueryPlugin;
+import edu.neu.ccs.pyramid.feature.CategoricalFeature;
+import edu.neu.ccs.pyramid.feature.Feature;
+import edu.neu.ccs.pyramid.feature.FeatureList;
+import edu.neu.ccs.pyramid.feature.Ngram;
+import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.node.InternalSettingsPreparer;
+import org.elasticsearch.node.Node;
+import org.elasticsearch.plugins.Plugin;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * loadFeaturesByDocument vs the per feature searches of loadFeatures, on the same documents in an embedded node
+ */
+public class FeatureLoaderTest {
+    // "x" is a stop word of the body analyzer, so positions have gaps
+    private static final String[] VOCABULARY = {"a", "b", "c", "d", "x"};
+    private static final String[] CODES = {"c1", "c2", "c3", "c4"};
+    private static final int NUM_DOCS = 120;
+    private static final String TRAIN = "{\"term\":{\"split\":\"train\"}}";
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    private static Node node;
+    private static ESIndex index;
+    private static IdTranslator idTranslator;
+    private static Map<String,float[]> fieldLength;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        // the os probe of this version asserts on the cgroup v1 layout, which hosts with cgroup v2 do not have
+        FeatureLoaderTest.class.getClassLoader().setPackageAssertionStatus("org.elasticsearch.monitor.os", false);
+        Settings settings = Settings.builder()
+                .put("path.home", folder.getRoot().getAbsolutePath())
+                .put("cluster.name", "feature-loader-test")
+                .put("node.name", "feature-loader-test")
+                .put("transport.type", "local")
+                .put("http.enabled", false)
+                .put("discovery.type", "single-node")
+                .build();
+        Collection<Class<? extends Plugin>> plugins = Collections.singletonList(PhraseCountQueryPlugin.class);
+        node = new Node(InternalSettingsPreparer.prepareEnvironment(settings, null), plugins){};
+        node.start();
+        Client client = node.client();
+
+        client.admin().indices().prepareCreate("index")
+                .setSettings(Settings.builder()
+                        .put("number_of_shards", 1)
+                        .put("number_of_replicas", 0)
+                        .put("analysis.filter.x_stop.type", "stop")
+                        .putArray("analysis.filter.x_stop.stopwords", "x")
+                        .put("analysis.analyzer.body_analyzer.tokenizer", "whitespace")
+                        .putArray("analysis.analyzer.body_analyzer.filter", "x_stop"))
+                .addMapping("document", XContentFactory.jsonBuilder().startObject()
+                        .startObject("properties")
+                        .startObject("body").field("type", "text").field("analyzer", "body_analyzer")
+                        .field("term_vector", "with_positions").endObject()
+                        .startObject("codes").field("type", "keyword").endObject()
+                        .startObject("split").field("type", "keyword").endObject()
+                        .endObject().endObject())
+                .get();
+
+        Random random = new Random(0);
+        idTranslator = new IdTranslator();
+        float[] bodyLength = new float[NUM_DOCS];
+        BulkRequestBuilder bulk = client.prepareBulk();
+        for (int d=0;d<NUM_DOCS;d++){
+            String id = "doc"+d;
+            idTranslator.addData(d, id);
+            List<String> tokens = new ArrayList<>();
+            int length = 1 + random.nextInt(30);
+            for (int i=0;i<length;i++){
+                tokens.add(VOCABULARY[random.nextInt(VOCABULARY.length)]);
+            }
+            bodyLength[d] = length;
+            List<String> codes = new ArrayList<>();
+            for (String code: CODES){
+                if (random.nextDouble()<0.4){
+                    codes.add(code);
+                }
+            }
+            bulk.add(client.prepareIndex("index", "document", id).setSource(XContentFactory.jsonBuilder().startObject()
+                    .field("body", String.join(" ", tokens))
+                    .array("codes", codes.toArray(new String[codes.size()]))
+                    .field("split", random.nextDouble()<0.7? "train": "test")
+                    .endObject()));
+        }
+        assertFalse(bulk.setRefreshPolicy("true").get().hasFailures());
+        fieldLength = new HashMap<>();
+        fieldLength.put("body", bodyLength);
+
+        index = new ESIndex.Builder().setClient(client).setIndexName("index").setBodyField("body")
+                .setTermVectorBatchSize(16).setTermVectorConcurrency(3).build();
+        assertEquals(NUM_DOCS, index.getNumDocs());
+    }
+
+    @AfterClass
+    public static void tearDown() throws Exception {
+        if (index!=null){
+            index.close();
+        }
+        if (node!=null){
+            node.close();
+        }
+    }
+
+    @Test
+    public void binary() {
+        sameValues(FeatureLoader.MatchScoreType.BINARY);
+    }
+
+    @Test
+    public void frequency() {
+        sameValues(FeatureLoader.MatchScoreType.FREQUENCY);
+    }
+
+    @Test
+    public void tfifl() {
+        sameValues(FeatureLoader.MatchScoreType.TFIFL);
+    }
+
+    /**
+     * everything goes through the searches, as a check of the comparison itself
+     */
+    @Test
+    public void original() {
+        sameValues(FeatureLoader.MatchScoreType.ES_ORIGINAL);
+    }
+
+    private static void sameValues(FeatureLoader.MatchScoreType matchScoreType){
+        FeatureList features = features(new Random(1));
+        DataSet bySearch = dataSet(features);
+        FeatureLoader.loadFeatures(index, bySearch, features, idTranslator, matchScoreType, TRAIN, fieldLength);
+        DataSet byDocument = dataSet(features);
+        FeatureLoader.loadFeaturesByDocument(index, byDocument, features, idTranslator, matchScoreType, TRAIN,
+                fieldLength);
+        int nonZeros = 0;
+        for (int i=0;i<NUM_DOCS;i++){
+            for (int j=0;j<features.size();j++){
+                double expected = bySearch.getRow(i).get(j);
+                assertEquals(features.get(j)+" in doc"+i, expected, byDocument.getRow(i).get(j), 0);
+                if (expected!=0){
+                    nonZeros += 1;
+                }
+            }
+        }
+        // the filter and the features leave enough to compare
+        assertTrue(nonZeros>NUM_DOCS);
+    }
+
+    /**
+     * random in order ngrams of one to three terms with slops up to 2, and a categorical feature per code
+     */
+    private static FeatureList features(Random random){
+        FeatureList features = new FeatureList();
+        for (int f=0;f<60;f++){
+            int n = 1 + random.nextInt(3);
+            String[] terms = new String[n];
+            for (int i=0;i<n;i++){
+                // never the stop word
+                terms[i] = VOCABULARY[random.nextInt(VOCABULARY.length-1)];
+            }
+            Ngram ngram = new Ngram();
+            ngram.setNgram(String.join(" ", terms));
+            ngram.setField("body");
+            ngram.setSlop(random.nextInt(3));
+            ngram.setInOrder(true);
+            features.add(ngram);
+        }
+        for (String code: CODES){
+            CategoricalFeature feature = new CategoricalFeature();
+            feature.setVariableName("codes");
+            feature.setCategory(code);
+            feature.setName("codes="+code);
+            features.add(feature);
+        }
+        CategoricalFeature missing = new CategoricalFeature();
+        missing.setVariableName("codes");
+        missing.setCategory("c9");
+        missing.setName("codes=c9");
+        features.add(missing);
+        return features;
+    }
+
+    private static DataSet dataSet(FeatureList features){
+        return DataSetBuilder.getBuilder().numDataPoints(NUM_DOCS).numFeatures(features.size()).dense(true).build();
+    }
+}
@@ -0,0 +1,83 @@
+package edu.neu.ccs.pyramid.elasticsearch;
+
+import edu.neu.ccs.pyramid.feature.Ngram;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * trie matches of one document vs the direct walk of PositionalIndexTest; FeatureLoaderTest compares the loaded
+ * values with the searches
+ */
+public class NgramMatcherTest {
+    // a small vocabulary, so ngrams share prefixes and repeat terms
+    private static final String[] VOCABULARY = {"a", "b", "c", "d", "e"};
+
+    @Test
+    public void sameCountsAsDirectWalk() {
+        Random random = new Random(0);
+        List<Ngram> ngrams = new ArrayList<>();
+        for (int f=0;f<300;f++){
+            int n = 1 + random.nextInt(4);
+            String[] terms = new String[n];
+            for (int i=0;i<n;i++){
+                terms[i] = VOCABULARY[random.nextInt(VOCABULARY.length)];
+            }
+            Ngram ngram = new Ngram();
+            ngram.setNgram(String.join(" ", terms));
+            ngram.setField("body");
+            ngram.setSlop(random.nextInt(4));
+            ngram.setInOrder(true);
+            ngram.setIndex(f);
+            ngrams.add(ngram);
+        }
+        // a term no document has
+        Ngram missing = new Ngram();
+        missing.setNgram("a z");
+        missing.setField("body");
+        missing.setIndex(ngrams.size());
+        ngrams.add(missing);
+
+        NgramMatcher matcher = new NgramMatcher(ngrams);
+        for (int d=0;d<200;d++){
+            Map<Integer,String> termVector = new HashMap<>();
+            int length = random.nextInt(40);
+            for (int i=0;i<length;i++){
+                // gaps in positions, as left by stop words
+                termVector.put(random.nextInt(60), VOCABULARY[random.nextInt(VOCABULARY.length)]);
+            }
+            Map<Integer,Integer> counts = new HashMap<>();
+            matcher.match(termVector, (featureIndex, count) -> {
+                assertNull(counts.put(featureIndex, count));
+                assertTrue(count>0);
+            });
+            for (Ngram ngram: ngrams){
+                float expected = PositionalIndexTest.orderedScore(termVector, ngram.getTerms(), ngram.getSlop(), false);
+                Integer count = counts.get(ngram.getIndex());
+                String message = ngram.getNgram()+" slop "+ngram.getSlop()+" in "+termVector;
+                if (expected>0){
+                    assertNotNull(message, count);
+                    assertEquals(message, expected, count.floatValue(), 0);
+                } else {
+                    assertNull(message, count);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unorderedNgramsAreRejected() {
+        Ngram ngram = new Ngram();
+        ngram.setNgram("a b");
+        ngram.setInOrder(false);
+        List<Ngram> ngrams = new ArrayList<>();
+        ngrams.add(ngram);
+        new NgramMatcher(ngrams);
+    }
+}
@@ -0,0 +1,344 @@
+package edu.neu.ccs.pyramid.elasticsearch;
+
+import edu.neu.ccs.pyramid.esplugins.CustomSpanTermQuery;
+import edu.neu.ccs.pyramid.esplugins.PhraseCountQuery;
+import edu.neu.ccs.pyramid.feature.Ngram;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.SimpleCollector;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * phrase counts vs PhraseCountQuery on a local lucene index, and the compressed postings vs a direct walk
+ */
+public class PositionalIndexTest {
+    private static final String[] VOCABULARY = {"a", "b", "c", "d"};
+
+    @Test
+    public void orderedSameAsDirectWalk() {
+        Random random = new Random(0);
+        Map<String,Map<Integer,String>> termVectors = randomTermVectors(random, 300);
+        PositionalIndex index = build(termVectors);
+        for (int t=0;t<200;t++){
+            int n = 1 + random.nextInt(4);
+            String[] terms = new String[n];
+            for (int i=0;i<n;i++){
+                terms[i] = VOCABULARY[random.nextInt(VOCABULARY.length)];
+            }
+            int slop = random.nextInt(5);
+            for (boolean weightedCount: new boolean[]{false, true}){
+                Map<String,Float> scores = index.phraseCount(terms, slop, true, weightedCount);
+                for (Map.Entry<String,Map<Integer,String>> entry: termVectors.entrySet()){
+                    float expected = orderedScore(entry.getValue(), terms, slop, weightedCount);
+                    if (expected>0){
+                        assertEquals(expected, scores.get(entry.getKey()), 1e-6);
+                    } else {
+                        assertFalse(scores.containsKey(entry.getKey()));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * far apart documents and positions take several bytes per varint
+     */
+    @Test
+    public void largeGaps() {
+        Map<String,Map<Integer,String>> termVectors = new HashMap<>();
+        List<String> withBoth = new ArrayList<>();
+        for (int d=0;d<2000;d++){
+            Map<Integer,String> termVector = new HashMap<>();
+            if (d%97==0){
+                termVector.put(d*1000, "a");
+                termVector.put(d*1000+1, "b");
+                withBoth.add(""+d);
+            } else if (d%89==0){
+                termVector.put(d*1000+1, "b");
+            }
+            termVectors.put(""+d, termVector);
+        }
+        PositionalIndex index = build(termVectors);
+        assertEquals(2000, index.getNumDocs());
+        assertEquals(2, index.getNumTerms());
+        assertEquals(withBoth.size(), index.docFreq("a"));
+        assertEquals(withBoth.size()+22, index.docFreq("b"));
+        assertEquals(0, index.docFreq("c"));
+        Map<String,Float> scores = index.phraseCount(new String[]{"a", "b"}, 0, true, false);
+        assertEquals(withBoth.size(), scores.size());
+        for (String id: withBoth){
+            assertEquals(1, scores.get(id), 0);
+        }
+    }
+
+    @Test
+    public void unordered() {
+        Map<String,Map<Integer,String>> termVectors = new HashMap<>();
+        termVectors.put("ba", vector("b", "a"));
+        termVectors.put("bxa", vector("b", "x", "a"));
+        termVectors.put("ab", vector("a", "b"));
+        PositionalIndex index = build(termVectors);
+        Map<String,Float> ordered = index.phraseCount(new String[]{"a", "b"}, 0, true, false);
+        assertEquals(1, ordered.size());
+        assertEquals(1, ordered.get("ab"), 0);
+        Map<String,Float> unordered = index.phraseCount(new String[]{"a", "b"}, 0, false, false);
+        assertEquals(2, unordered.size());
+        assertEquals(1, unordered.get("ab"), 0);
+        assertEquals(1, unordered.get("ba"), 0);
+        Map<String,Float> sloppy = index.phraseCount(new String[]{"a", "b"}, 1, false, true);
+        assertEquals(3, sloppy.size());
+        // the window of b x a is 3 wide
+        assertEquals(1.0f/4, sloppy.get("bxa"), 1e-6);
+        assertEquals(1.0f/3, sloppy.get("ab"), 1e-6);
+    }
+
+    @Test
+    public void phraseCountsSameAsPhraseCount() {
+        Random random = new Random(1);
+        PositionalIndex index = build(randomTermVectors(random, 100));
+        List<Ngram> ngrams = new ArrayList<>();
+        for (int f=0;f<50;f++){
+            Ngram ngram = new Ngram();
+            ngram.setNgram(VOCABULARY[random.nextInt(VOCABULARY.length)]+" "+VOCABULARY[random.nextInt(VOCABULARY.length)]);
+            ngram.setSlop(random.nextInt(3));
+            ngram.setInOrder(random.nextBoolean());
+            ngrams.add(ngram);
+        }
+        List<Map<String,Float>> scores = index.phraseCounts(ngrams, false);
+        for (int f=0;f<ngrams.size();f++){
+            assertEquals(index.phraseCount(ngrams.get(f)), scores.get(f));
+            assertEquals(scores.get(f).size(), index.count(ngrams.get(f)));
+        }
+    }
+
+    @Test(timeout = 60000)
+    public void orderedSameAsPhraseCountQuery() throws IOException {
+        Random random = new Random(2);
+        Map<String,Map<Integer,String>> termVectors = randomTermVectors(random, 300);
+        sameAsPhraseCountQuery(termVectors, true, random);
+    }
+
+    /**
+     * the unordered spans of the plugin assume every term of the phrase can take its own position in a document
+     * that has all terms (it asserts, or loops, when a repeated term runs out of occurrences),
+     * so each term of a document occurs there at least as often as in any phrase
+     */
+    @Test(timeout = 60000)
+    public void unorderedSameAsPhraseCountQuery() throws IOException {
+        Random random = new Random(3);
+        Map<String,Map<Integer,String>> termVectors = randomTermVectors(random, 300);
+        for (Map<Integer,String> termVector: termVectors.values()){
+            Map<String,Integer> termCounts = new HashMap<>();
+            for (String term: termVector.values()){
+                termCounts.merge(term, 1, Integer::sum);
+            }
+            int position = 100;
+            for (Map.Entry<String,Integer> entry: termCounts.entrySet()){
+                for (int i=entry.getValue();i<4;i++){
+                    termVector.put(position, entry.getKey());
+                    position += 1 + random.nextInt(3);
+                }
+            }
+        }
+        sameAsPhraseCountQuery(termVectors, false, random);
+    }
+
+    private static void sameAsPhraseCountQuery(Map<String,Map<Integer,String>> termVectors, boolean inOrder,
+                                               Random random) throws IOException {
+        PositionalIndex index = build(termVectors);
+        try (Directory directory = new RAMDirectory()){
+            try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())){
+                for (Map.Entry<String,Map<Integer,String>> entry: termVectors.entrySet()){
+                    Document document = new Document();
+                    document.add(new StringField("id", entry.getKey(), Field.Store.YES));
+                    document.add(new Field("body", new TermVectorTokenStream(entry.getValue()), TextField.TYPE_NOT_STORED));
+                    writer.addDocument(document);
+                }
+            }
+            try (DirectoryReader reader = DirectoryReader.open(directory)){
+                IndexSearcher searcher = new IndexSearcher(reader);
+                for (int t=0;t<200;t++){
+                    int n = 1 + random.nextInt(4);
+                    String[] terms = new String[n];
+                    for (int i=0;i<n;i++){
+                        terms[i] = VOCABULARY[random.nextInt(VOCABULARY.length)];
+                    }
+                    int slop = random.nextInt(5);
+                    for (boolean weightedCount: new boolean[]{false, true}){
+                        CustomSpanTermQuery[] clauses = new CustomSpanTermQuery[n];
+                        for (int i=0;i<n;i++){
+                            clauses[i] = new CustomSpanTermQuery(new Term("body", terms[i]));
+                        }
+                        Map<String,Float> expected = search(searcher,
+                                new PhraseCountQuery(clauses, slop, inOrder, weightedCount));
+                        Map<String,Float> scores = index.phraseCount(terms, slop, inOrder, weightedCount);
+                        String query = String.join(" ", terms)+" slop "+slop+" weighted "+weightedCount;
+                        assertEquals(query, expected.keySet(), scores.keySet());
+                        for (Map.Entry<String,Float> entry: expected.entrySet()){
+                            assertEquals(query+" in "+entry.getKey(), entry.getValue(), scores.get(entry.getKey()), 1e-5);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * score of every matched document, keyed by id
+     */
+    private static Map<String,Float> search(IndexSearcher searcher, Query query) throws IOException {
+        Map<String,Float> scores = new HashMap<>();
+        searcher.search(query, new SimpleCollector() {
+            private Scorer scorer;
+            private LeafReaderContext context;
+
+            @Override
+            protected void doSetNextReader(LeafReaderContext context) {
+                this.context = context;
+            }
+
+            @Override
+            public void setScorer(Scorer scorer) {
+                this.scorer = scorer;
+            }
+
+            @Override
+            public void collect(int doc) throws IOException {
+                String id = context.reader().document(doc).get("id");
+                float score = scorer.score();
+                // a document with all terms but no match in the window is still visited with score 0
+                if (score>0){
+                    scores.put(id, score);
+                }
+            }
+
+            @Override
+            public boolean needsScores() {
+                return true;
+            }
+        });
+        return scores;
+    }
+
+    private static PositionalIndex build(Map<String,Map<Integer,String>> termVectors){
+        PositionalIndex.Builder builder = new PositionalIndex.Builder();
+        for (Map.Entry<String,Map<Integer,String>> entry: termVectors.entrySet()){
+            builder.add(entry.getKey(), entry.getValue());
+        }
+        return builder.build();
+    }
+
+    private static Map<String,Map<Integer,String>> randomTermVectors(Random random, int numDocs){
+        Map<String,Map<Integer,String>> termVectors = new HashMap<>();
+        for (int d=0;d<numDocs;d++){
+            Map<Integer,String> termVector = new HashMap<>();
+            int length = random.nextInt(30);
+            for (int i=0;i<length;i++){
+                termVector.put(random.nextInt(50), VOCABULARY[random.nextInt(VOCABULARY.length)]);
+            }
+            termVectors.put(""+d, termVector);
+        }
+        return termVectors;
+    }
+
+    private static Map<Integer,String> vector(String... terms){
+        Map<Integer,String> termVector = new HashMap<>();
+        for (int i=0;i<terms.length;i++){
+            termVector.put(i, terms[i]);
+        }
+        return termVector;
+    }
+
+    /**
+     * for every occurrence of the first term, take each following term at its first occurrence after the previous one
+     * also the reference of NgramMatcherTest
+     */
+    static float orderedScore(Map<Integer,String> termVector, String[] terms, int slop, boolean weightedCount){
+        TreeMap<Integer,String> sorted = new TreeMap<>(termVector);
+        float score = 0;
+        for (Map.Entry<Integer,String> start: sorted.entrySet()){
+            if (!start.getValue().equals(terms[0])){
+                continue;
+            }
+            int previous = start.getKey();
+            int skipped = 0;
+            boolean found = true;
+            for (int c=1;c<terms.length && found;c++){
+                found = false;
+                for (Map.Entry<Integer,String> next: sorted.tailMap(previous, false).entrySet()){
+                    if (next.getValue().equals(terms[c])){
+                        skipped += next.getKey() - previous - 1;
+                        previous = next.getKey();
+                        found = true;
+                        break;
+                    }
+                }
+            }
+            if (found && skipped<=slop){
+                score += weightedCount? 1.0f/(skipped+1): 1;
+            }
+        }
+        return score;
+    }
+
+    /**
+     * the tokens of a term vector at their positions, gaps included
+     */
+    private static class TermVectorTokenStream extends TokenStream {
+        private final CharTermAttribute termAttribute = addAttribute(CharTermAttribute.class);
+        private final PositionIncrementAttribute incrementAttribute = addAttribute(PositionIncrementAttribute.class);
+        private final TreeMap<Integer,String> termVector;
+        private Iterator<Map.Entry<Integer,String>> iterator;
+        private int previous;
+
+        TermVectorTokenStream(Map<Integer,String> termVector) {
+            this.termVector = new TreeMap<>(termVector);
+        }
+
+        @Override
+        public void reset() throws IOException {
+            super.reset();
+            iterator = termVector.entrySet().iterator();
+            previous = -1;
+        }
+
+        @Override
+        public boolean incrementToken() {
+            if (!iterator.hasNext()){
+                return false;
+            }
+            clearAttributes();
+            Map.Entry<Integer,String> entry = iterator.next();
+            termAttribute.append(entry.getValue());
+            incrementAttribute.setPositionIncrement(entry.getKey()-previous);
+            previous = entry.getKey();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package edu.neu.ccs.pyramid.elasticsearch;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * store, reopen and recover after an interrupted write
+ */
+public class TermVectorStoreTest {
+    private static final String[] VOCABULARY = {"the", "heart", "failure", "acute", "chronic", "kidney", "ß", "年", ""};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void sameVectorsAfterReopen() throws Exception {
+        File directory = folder.newFolder();
+        Random random = new Random(0);
+        Map<String,Map<Integer,String>> body = new HashMap<>();
+        Map<String,Map<Integer,String>> title = new HashMap<>();
+        try (TermVectorStore store = new TermVectorStore(directory)){
+            for (int d=0;d<100;d++){
+                String id = ""+d;
+                body.put(id, randomVector(random, 50));
+                store.put("body", id, body.get(id));
+                if (d%2==0){
+                    title.put(id, randomVector(random, 5));
+                    store.put("title", id, title.get(id));
+                }
+            }
+            // a document already in the store is left unchanged
+            store.put("body", "0", randomVector(random, 50));
+            sameVectors(store, "body", body);
+            sameVectors(store, "title", title);
+        }
+        try (TermVectorStore store = new TermVectorStore(directory)){
+            sameVectors(store, "body", body);
+            sameVectors(store, "title", title);
+            assertFalse(store.contains("title", "1"));
+            assertNull(store.get("title", "1"));
+            assertNull(store.get("abstract", "0"));
+        }
+    }
+
+    @Test
+    public void partialWritesAreTruncated() throws Exception {
+        File directory = folder.newFolder();
+        Random random = new Random(1);
+        Map<String,Map<Integer,String>> body = new HashMap<>();
+        try (TermVectorStore store = new TermVectorStore(directory)){
+            for (int d=0;d<20;d++){
+                body.put(""+d, randomVector(random, 30));
+                store.put("body", ""+d, body.get(""+d));
+            }
+        }
+        File termFile = new File(directory, "body.terms");
+        File vectorFile = new File(directory, "body.vectors");
+        long termLength = termFile.length();
+        long vectorLength = vectorFile.length();
+        // a term whose bytes were not all written, and a record cut after its length
+        try (RandomAccessFile file = new RandomAccessFile(termFile, "rw")){
+            file.seek(termLength);
+            file.writeShort(10);
+            file.write(new byte[]{'a', 'b'});
+        }
+        try (RandomAccessFile file = new RandomAccessFile(vectorFile, "rw")){
+            file.seek(vectorLength);
+            file.writeInt(100);
+            file.write(new byte[7]);
+        }
+        try (TermVectorStore store = new TermVectorStore(directory)){
+            // the files of a field are opened on first use
+            sameVectors(store, "body", body);
+            assertEquals(termLength, termFile.length());
+            assertEquals(vectorLength, vectorFile.length());
+            // new records go after the last complete one
+            body.put("new", randomVector(random, 30));
+            body.get("new").put(1000, "unseen");
+            store.put("body", "new", body.get("new"));
+        }
+        try (TermVectorStore store = new TermVectorStore(directory)){
+            sameVectors(store, "body", body);
+        }
+    }
+
+    private static void sameVectors(TermVectorStore store, String field, Map<String,Map<Integer,String>> expected){
+        assertEquals(expected.size(), store.size(field));
+        for (Map.Entry<String,Map<Integer,String>> entry: expected.entrySet()){
+            assertTrue(store.contains(field, entry.getKey()));
+            assertEquals(entry.getValue(), store.get(field, entry.getKey()));
+        }
+    }
+
+    private static Map<Integer,String> randomVector(Random random, int maxLength){
+        Map<Integer,String> termVector = new HashMap<>();
+        int length = random.nextInt(maxLength+1);
+        for (int i=0;i<length;i++){
+            // positions are not contiguous and not inserted in order
+            termVector.put(random.nextInt(10*maxLength+1), VOCABULARY[random.nextInt(VOCABULARY.length)]);
+        }
+        return termVector;
+    }
+}
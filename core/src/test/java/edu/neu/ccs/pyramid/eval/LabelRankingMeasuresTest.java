@@ -0,0 +1,152 @@
+package edu.neu.ccs.pyramid.eval;
+
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.util.ArgSort;
+import org.junit.Test;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * sort once kernels vs a boxed sort, pairwise AUC and per column calls
+ */
+public class LabelRankingMeasuresTest {
+    // few distinct values, so there are many ties; 0.0 and -0.0 are equal scores but different sort keys
+    private static final double[] VALUES = {0.9, 0.5, 0.5, 0.1, 0.0, -0.0, -1};
+
+    @Test
+    public void argSortSameAsBoxedSort() {
+        Random random = new Random(0);
+        ArgSort.Sorter sorter = new ArgSort.Sorter();
+        // sizes across the insertion sort run length and the merge widths
+        for (int n: new int[]{0, 1, 2, 31, 32, 33, 64, 100, 1000}){
+            for (int t=0;t<5;t++){
+                double[] scores = randomScores(random, n, true);
+                Comparator<Integer> comparator = Comparator.comparing(i -> scores[i]);
+                int[] ascending = IntStream.range(0, n).boxed().sorted(comparator).mapToInt(i -> i).toArray();
+                int[] descending = IntStream.range(0, n).boxed().sorted(comparator.reversed()).mapToInt(i -> i).toArray();
+                assertArrayEquals(ascending, ArgSort.argSortAscending(scores));
+                assertArrayEquals(descending, ArgSort.argSortDescending(scores));
+                // the sorter keeps larger work arrays from earlier calls
+                int[] reused = sorter.argSortDescending(scores);
+                for (int i=0;i<n;i++){
+                    assertEquals(descending[i], reused[i]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void aucSameAsPairwise() {
+        Random random = new Random(1);
+        for (int t=0;t<200;t++){
+            int n = 1 + random.nextInt(60);
+            double[] scores = randomScores(random, n, false);
+            int[] labels = randomLabels(random, n);
+            double positives = 0;
+            double negatives = 0;
+            double wins = 0;
+            for (int i=0;i<n;i++){
+                if (labels[i]==1){
+                    positives += 1;
+                } else {
+                    negatives += 1;
+                }
+                for (int j=0;j<n;j++){
+                    if (labels[i]==1 && labels[j]!=1){
+                        if (scores[i]>scores[j]){
+                            wins += 1;
+                        } else if (scores[i]==scores[j]){
+                            wins += 0.5;
+                        }
+                    }
+                }
+            }
+            double expected = (positives==0 || negatives==0)? 1: wins/(positives*negatives);
+            assertEquals(expected, AUC.auc(scores, labels), 1e-12);
+        }
+    }
+
+    @Test
+    public void averagePrecisionSameAsBoxedSort() {
+        Random random = new Random(2);
+        for (int t=0;t<200;t++){
+            int n = 1 + random.nextInt(60);
+            double[] scores = randomScores(random, n, true);
+            int[] labels = randomLabels(random, n);
+            Comparator<Integer> comparator = Comparator.comparing(i -> scores[i]);
+            int[] relevance = IntStream.range(0, n).boxed().sorted(comparator.reversed())
+                    .mapToInt(i -> labels[i]).toArray();
+            assertEquals(AveragePrecision.averagePrecision(relevance), AveragePrecision.averagePrecision(labels, scores), 0);
+        }
+    }
+
+    @Test
+    public void labelWiseSameAsColumns() {
+        Random random = new Random(3);
+        int numData = 300;
+        int numScores = 8;
+        // the last two labels have no score column
+        int numLabels = 10;
+        double[][] scores = new double[numData][];
+        MultiLabel[] multiLabels = new MultiLabel[numData];
+        for (int i=0;i<numData;i++){
+            scores[i] = randomScores(random, numScores, true);
+            multiLabels[i] = new MultiLabel();
+            for (int l=0;l<numLabels;l++){
+                if (random.nextDouble()<0.2){
+                    multiLabels[i].addLabel(l);
+                }
+            }
+        }
+        LabelRankingMeasures measures = new LabelRankingMeasures(scores, multiLabels, numLabels);
+        double sumAUC = 0;
+        double sumAP = 0;
+        for (int l=0;l<numLabels;l++){
+            double[] column = new double[numData];
+            int[] binaryLabels = new int[numData];
+            for (int i=0;i<numData;i++){
+                if (l<numScores){
+                    column[i] = scores[i][l];
+                }
+                if (multiLabels[i].matchClass(l)){
+                    binaryLabels[i] = 1;
+                }
+            }
+            double auc = AUC.auc(column, binaryLabels);
+            double ap = AveragePrecision.averagePrecision(binaryLabels, column);
+            assertEquals(auc, measures.getLabelWiseAUC()[l], 0);
+            assertEquals(ap, measures.getLabelWiseAveragePrecision()[l], 0);
+            sumAUC += auc;
+            sumAP += ap;
+        }
+        assertEquals(sumAUC/numLabels, measures.getMeanAUC(), 1e-12);
+        assertEquals(sumAP/numLabels, measures.getMeanAveragePrecision(), 1e-12);
+    }
+
+    private static double[] randomScores(Random random, int n, boolean withNaN){
+        double[] scores = new double[n];
+        for (int i=0;i<n;i++){
+            double u = random.nextDouble();
+            if (withNaN && u<0.05){
+                scores[i] = Double.NaN;
+            } else if (u<0.6){
+                scores[i] = VALUES[random.nextInt(VALUES.length)];
+            } else {
+                scores[i] = random.nextDouble();
+            }
+        }
+        return scores;
+    }
+
+    private static int[] randomLabels(Random random, int n){
+        int[] labels = new int[n];
+        for (int i=0;i<n;i++){
+            labels[i] = random.nextDouble()<0.4? 1: 0;
+        }
+        return labels;
+    }
+}
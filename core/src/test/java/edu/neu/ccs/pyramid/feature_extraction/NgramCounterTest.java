@@ -0,0 +1,149 @@
+package edu.neu.ccs.pyramid.feature_extraction;
+
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.Multiset;
+import edu.neu.ccs.pyramid.feature.Ngram;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * int tuple counts vs the string ngram paths, add(...) and getNgramCounts
+ */
+public class NgramCounterTest {
+    private static final String[] VOCABULARY = {"a", "b", "c", "d", "e", "f"};
+
+    @Test
+    public void documentFrequencies() {
+        Random random = new Random(0);
+        int n = 3;
+        Map<List<Integer>,Set<Integer>> expected = new HashMap<>();
+        // three counters merged, as the threads of a gathering pass
+        NgramCounter[] counters = {new NgramCounter(n), new NgramCounter(n), new NgramCounter(n)};
+        for (int d=0;d<500;d++){
+            NgramCounter counter = counters[random.nextInt(counters.length)];
+            int doc = counter.newDoc();
+            for (int t=0;t<30;t++){
+                int[] key = counter.buffer();
+                for (int j=0;j<n;j++){
+                    // enough distinct tuples to grow the arena and rehash the table
+                    key[j] = random.nextInt(20);
+                }
+                counter.add(key, doc);
+                List<Integer> tuple = new ArrayList<>();
+                for (int token: key){
+                    tuple.add(token);
+                }
+                expected.computeIfAbsent(tuple, k -> new HashSet<>()).add(d);
+            }
+        }
+        counters[0].merge(counters[1]);
+        counters[0].merge(counters[2]);
+        NgramCounter merged = counters[0];
+        assertEquals(expected.size(), merged.size());
+        for (int id=0;id<merged.size();id++){
+            List<Integer> tuple = new ArrayList<>();
+            for (int j=0;j<n;j++){
+                tuple.add(merged.getToken(id, j));
+            }
+            assertEquals(expected.get(tuple).size(), merged.getCount(id));
+        }
+    }
+
+    @Test
+    public void templatesSameAsAdd() {
+        Random random = new Random(1);
+        for (int n=1;n<=3;n++){
+            for (int slop=0;slop<=2;slop++){
+                NgramTemplate template = new NgramTemplate("body", n, slop);
+                int[][] positionTemplate = template.getPositionTemplate().stream()
+                        .map(list -> list.stream().mapToInt(Integer::intValue).toArray()).toArray(int[][]::new);
+                Multiset<Ngram> multiset = ConcurrentHashMultiset.create();
+                NgramCounter counter = new NgramCounter(n);
+                Map<String,Integer> tokenIds = new HashMap<>();
+                for (int d=0;d<100;d++){
+                    Map<Integer,String> termVector = randomTermVector(random);
+                    NgramEnumerator.add(termVector, multiset, template);
+                    int[] positions = sortedPositions(termVector);
+                    NgramEnumerator.countTemplates(counter, tokens(termVector, positions, tokenIds), positionTemplate);
+                }
+                Map<String,Integer> expected = new HashMap<>();
+                for (Multiset.Entry<Ngram> entry: multiset.entrySet()){
+                    expected.put(entry.getElement().getNgram(), entry.getCount());
+                }
+                assertEquals(expected, counts(counter, tokenIds));
+            }
+        }
+    }
+
+    @Test
+    public void contiguousSameAsGetNgramCounts() {
+        Random random = new Random(2);
+        for (int n=1;n<=4;n++){
+            Map<String,Integer> expected = new HashMap<>();
+            NgramCounter counter = new NgramCounter(n);
+            Map<String,Integer> tokenIds = new HashMap<>();
+            for (int d=0;d<100;d++){
+                Map<Integer,String> termVector = randomTermVector(random);
+                // document frequency, as gatherNgrams counted it
+                for (String ngram: NgramEnumerator.getNgramCounts(termVector, n).keySet()){
+                    expected.merge(ngram, 1, Integer::sum);
+                }
+                int[] positions = sortedPositions(termVector);
+                NgramEnumerator.countContiguous(counter, tokens(termVector, positions, tokenIds), positions);
+            }
+            assertEquals(expected, counts(counter, tokenIds));
+        }
+    }
+
+    /**
+     * positions with gaps, so contiguous runs are short
+     */
+    private static Map<Integer,String> randomTermVector(Random random){
+        Map<Integer,String> termVector = new HashMap<>();
+        int length = random.nextInt(25);
+        for (int i=0;i<length;i++){
+            termVector.put(random.nextInt(40), VOCABULARY[random.nextInt(VOCABULARY.length)]);
+        }
+        return termVector;
+    }
+
+    private static int[] sortedPositions(Map<Integer,String> termVector){
+        int[] positions = termVector.keySet().stream().mapToInt(Integer::intValue).toArray();
+        Arrays.sort(positions);
+        return positions;
+    }
+
+    private static int[] tokens(Map<Integer,String> termVector, int[] positions, Map<String,Integer> tokenIds){
+        int[] tokens = new int[positions.length];
+        for (int i=0;i<positions.length;i++){
+            tokens[i] = tokenIds.computeIfAbsent(termVector.get(positions[i]), term -> tokenIds.size());
+        }
+        return tokens;
+    }
+
+    private static Map<String,Integer> counts(NgramCounter counter, Map<String,Integer> tokenIds){
+        String[] terms = new String[tokenIds.size()];
+        for (Map.Entry<String,Integer> entry: tokenIds.entrySet()){
+            terms[entry.getValue()] = entry.getKey();
+        }
+        Map<String,Integer> counts = new HashMap<>();
+        for (int id=0;id<counter.size();id++){
+            String[] ngram = new String[counter.getN()];
+            for (int j=0;j<ngram.length;j++){
+                ngram[j] = terms[counter.getToken(id, j)];
+            }
+            counts.put(String.join(" ", ngram), counter.getCount(id));
+        }
+        return counts;
+    }
+}
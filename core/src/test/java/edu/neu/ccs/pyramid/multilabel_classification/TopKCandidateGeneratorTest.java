@@ -0,0 +1,117 @@
+package edu.neu.ccs.pyramid.multilabel_classification;
+
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.util.Pair;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * pooled subset search vs DynamicProgramming; the order of ties may differ, so sets are compared as sets
+ * and probabilities position by position
+ */
+public class TopKCandidateGeneratorTest {
+
+    @Test
+    public void sameAsDynamicProgramming() {
+        Random random = new Random(0);
+        TopKCandidateGenerator generator = TopKCandidateGenerator.forCurrentThread();
+        for (int t=0;t<500;t++){
+            double[] marginals = new double[1+random.nextInt(8)];
+            for (int l=0;l<marginals.length;l++){
+                marginals[l] = randomMarginal(random);
+            }
+            // up to all sets, and past them into the padding
+            for (int k: new int[]{1, 4, 50, 300}){
+                check(marginals, new DynamicProgramming(marginals).topK(k), generator.topK(marginals, k));
+            }
+        }
+    }
+
+    @Test
+    public void sameAsDynamicProgrammingWithLogProbs() {
+        Random random = new Random(1);
+        TopKCandidateGenerator generator = new TopKCandidateGenerator();
+        for (int t=0;t<200;t++){
+            double[] marginals = new double[1+random.nextInt(8)];
+            double[][] probs = new double[marginals.length][2];
+            double[][] logProbs = new double[marginals.length][2];
+            for (int l=0;l<marginals.length;l++){
+                marginals[l] = randomMarginal(random);
+                probs[l][0] = 1-marginals[l];
+                probs[l][1] = marginals[l];
+                logProbs[l][0] = Math.log(probs[l][0]);
+                logProbs[l][1] = Math.log(probs[l][1]);
+            }
+            DynamicProgramming dynamicProgramming = new DynamicProgramming(probs, logProbs);
+            generator.start(logProbs);
+            int k = 40;
+            List<Pair<MultiLabel,Double>> expected = dynamicProgramming.topK(k);
+            for (int i=0;i<k;i++){
+                Pair<MultiLabel,Double> pair = expected.get(i);
+                if (pair.getSecond()==0){
+                    assertFalse(generator.hasNext());
+                    continue;
+                }
+                assertEquals(Math.log(pair.getSecond()), generator.highestLogProb(), 1e-9);
+                assertEquals(probability(marginals, generator.next()), pair.getSecond(), 1e-12);
+            }
+        }
+    }
+
+    private static void check(double[] marginals, List<Pair<MultiLabel,Double>> expected, List<Pair<MultiLabel,Double>> actual){
+        assertEquals(expected.size(), actual.size());
+        // sets tied with the last one may be cut off differently, all others have to be the same
+        double last = expected.get(expected.size()-1).getSecond();
+        Set<MultiLabel> expectedSets = new HashSet<>();
+        Set<MultiLabel> actualSets = new HashSet<>();
+        Set<MultiLabel> distinct = new HashSet<>();
+        for (int i=0;i<expected.size();i++){
+            double prob = expected.get(i).getSecond();
+            assertEquals(prob, actual.get(i).getSecond(), 1e-12);
+            if (prob==0){
+                // padding
+                assertEquals(new MultiLabel(), actual.get(i).getFirst());
+                continue;
+            }
+            assertEquals(actual.get(i).getSecond(), probability(marginals, actual.get(i).getFirst()), 1e-12);
+            assertTrue(distinct.add(actual.get(i).getFirst()));
+            if (prob>last+1e-12){
+                expectedSets.add(expected.get(i).getFirst());
+                actualSets.add(actual.get(i).getFirst());
+            }
+        }
+        assertEquals(expectedSets, actualSets);
+    }
+
+    private static double probability(double[] marginals, MultiLabel multiLabel){
+        double prob = 1;
+        for (int l=0;l<marginals.length;l++){
+            prob *= multiLabel.matchClass(l)? marginals[l]: 1-marginals[l];
+        }
+        return prob;
+    }
+
+    /**
+     * includes certain labels, 0.5, and repeated values, which give tied sets
+     */
+    private static double randomMarginal(Random random){
+        switch (random.nextInt(6)){
+            case 0:
+                return 0;
+            case 1:
+                return 1;
+            case 2:
+                return 0.5;
+            case 3:
+                return 0.2;
+            default:
+                return random.nextDouble();
+        }
+    }
+}
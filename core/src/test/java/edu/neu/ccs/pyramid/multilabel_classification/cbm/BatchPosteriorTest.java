@@ -0,0 +1,217 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import edu.neu.ccs.pyramid.classification.Classifier;
+import edu.neu.ccs.pyramid.classification.PriorProbClassifier;
+import edu.neu.ccs.pyramid.classification.logistic_regression.LogisticRegression;
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.dataset.LabelTranslator;
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.feature.FeatureList;
+import edu.neu.ccs.pyramid.util.MathUtil;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * batch gammas vs BMDistribution.posteriorMembership row by row
+ */
+public class BatchPosteriorTest {
+    private static final int NUM_DATA_POINTS = 300;
+    private static final int NUM_FEATURES = 10;
+    private static final int NUM_LABELS = 4;
+    private static final int NUM_COMPONENTS = 5;
+
+    @Test
+    public void stacked() {
+        Random random = new Random(0);
+        DataSet dataSet = randomDataSet(random);
+        MultiLabel[] multiLabels = randomMultiLabels(random);
+        CBM cbm = randomCBM(random);
+        BatchPosterior batchPosterior = new BatchPosterior(cbm, NUM_FEATURES);
+        samePosterior(cbm, batchPosterior, dataSet, multiLabels, null);
+        samePosterior(cbm, batchPosterior, dataSet, multiLabels, randomNoiseWeights(random));
+    }
+
+    /**
+     * above the stacking limit, each logistic regression scores the blocks with its own kernel
+     */
+    @Test
+    public void notStacked() {
+        Random random = new Random(1);
+        DataSet dataSet = randomDataSet(random);
+        MultiLabel[] multiLabels = randomMultiLabels(random);
+        CBM cbm = randomCBM(random);
+        BatchPosterior batchPosterior = new BatchPosterior(cbm, NUM_FEATURES, 0);
+        samePosterior(cbm, batchPosterior, dataSet, multiLabels, null);
+        samePosterior(cbm, batchPosterior, dataSet, multiLabels, randomNoiseWeights(random));
+    }
+
+    /**
+     * prior classifiers, as set for skipped labels, and other classifiers called per row
+     */
+    @Test
+    public void nonLogisticClassifiers() {
+        Random random = new Random(2);
+        DataSet dataSet = randomDataSet(random);
+        MultiLabel[] multiLabels = randomMultiLabels(random);
+        CBM cbm = randomCBM(random);
+        cbm.binaryClassifiers[0][1] = new PriorProbClassifier(new double[]{0.3, 0.7});
+        cbm.binaryClassifiers[2][3] = new PriorProbClassifier(new double[]{0.99, 0.01});
+        cbm.binaryClassifiers[4][0] = new FirstFeatureClassifier();
+        cbm.binaryClassifiers[1][2] = new FirstFeatureClassifier();
+        for (long maxStackedWeights: new long[]{BatchPosterior.MAX_STACKED_WEIGHTS, 0}){
+            BatchPosterior batchPosterior = new BatchPosterior(cbm, NUM_FEATURES, maxStackedWeights);
+            samePosterior(cbm, batchPosterior, dataSet, multiLabels, null);
+            samePosterior(cbm, batchPosterior, dataSet, multiLabels, randomNoiseWeights(random));
+        }
+    }
+
+    /**
+     * one instance across E-steps: new weights and replaced classifiers are picked up by update
+     */
+    @Test
+    public void update() {
+        Random random = new Random(3);
+        DataSet dataSet = randomDataSet(random);
+        MultiLabel[] multiLabels = randomMultiLabels(random);
+        CBM cbm = randomCBM(random);
+        cbm.binaryClassifiers[3][1] = new PriorProbClassifier(new double[]{0.6, 0.4});
+        BatchPosterior batchPosterior = new BatchPosterior(cbm, NUM_FEATURES);
+        samePosterior(cbm, batchPosterior, dataSet, multiLabels, null);
+
+        randomize((LogisticRegression) cbm.getMultiClassClassifier(), random, 1);
+        for (int k=0;k<NUM_COMPONENTS;k++){
+            for (int l=0;l<NUM_LABELS;l++){
+                if (cbm.binaryClassifiers[k][l] instanceof LogisticRegression){
+                    randomize((LogisticRegression) cbm.binaryClassifiers[k][l], random, 1);
+                }
+            }
+        }
+        // a feature that was zero in every classifier, and one that becomes zero
+        for (int k=0;k<NUM_COMPONENTS;k++){
+            for (int l=0;l<NUM_LABELS;l++){
+                if (cbm.binaryClassifiers[k][l] instanceof LogisticRegression){
+                    Vector weights = ((LogisticRegression) cbm.binaryClassifiers[k][l]).getWeights().getAllWeights();
+                    weights.set(3, 0);
+                    weights.set(NUM_FEATURES+1+3, 0);
+                }
+            }
+        }
+        cbm.binaryClassifiers[3][1] = new LogisticRegression(2, NUM_FEATURES);
+        randomize((LogisticRegression) cbm.binaryClassifiers[3][1], random, 1);
+        cbm.binaryClassifiers[0][0] = new PriorProbClassifier(new double[]{0.2, 0.8});
+        batchPosterior.update();
+        samePosterior(cbm, batchPosterior, dataSet, multiLabels, null);
+    }
+
+    @Test
+    public void logSigmoid() {
+        for (double score: new double[]{0, 1e-8, -1e-8, 0.5, -0.5, 3, -3, 20, -20, 40, -40, 700, -700, 1000, -1000}){
+            // the formula before the rewrite
+            double expected = MathUtil.logSoftmax(new double[]{0, score})[1];
+            double actual = MathUtil.logSigmoid(score);
+            assertEquals(expected, actual, 1e-15*Math.max(1, Math.abs(expected)));
+            assertTrue(actual<=0);
+        }
+        assertEquals(-1000, MathUtil.logSigmoid(-1000), 0);
+        assertEquals(-Math.exp(-40), MathUtil.logSigmoid(40), 1e-30);
+    }
+
+    private static void samePosterior(CBM cbm, BatchPosterior batchPosterior, DataSet dataSet, MultiLabel[] multiLabels,
+                                      double[][] noiseLabelWeights){
+        double[][] gammas = new double[NUM_DATA_POINTS][NUM_COMPONENTS];
+        batchPosterior.posteriorMembership(dataSet, multiLabels, noiseLabelWeights, gammas);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            BMDistribution bmDistribution = cbm.computeBM(dataSet.getRow(i));
+            double[] expected = noiseLabelWeights==null? bmDistribution.posteriorMembership(multiLabels[i]):
+                    bmDistribution.posteriorMembership(multiLabels[i], noiseLabelWeights[i]);
+            assertArrayEquals(expected, gammas[i], 1e-10);
+        }
+    }
+
+    private static DataSet randomDataSet(Random random){
+        DataSet dataSet = DataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .density(Density.SPARSE_RANDOM).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (random.nextDouble()<0.4){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+        }
+        return dataSet;
+    }
+
+    private static MultiLabel[] randomMultiLabels(Random random){
+        MultiLabel[] multiLabels = new MultiLabel[NUM_DATA_POINTS];
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            multiLabels[i] = new MultiLabel();
+            for (int l=0;l<NUM_LABELS;l++){
+                if (random.nextDouble()<0.3){
+                    multiLabels[i].addLabel(l);
+                }
+            }
+        }
+        return multiLabels;
+    }
+
+    private static double[][] randomNoiseWeights(Random random){
+        double[][] weights = new double[NUM_DATA_POINTS][NUM_LABELS];
+        for (double[] row: weights){
+            for (int l=0;l<NUM_LABELS;l++){
+                row[l] = random.nextDouble();
+            }
+        }
+        return weights;
+    }
+
+    private static CBM randomCBM(Random random){
+        CBM cbm = CBM.getBuilder().setNumClasses(NUM_LABELS).setNumComponents(NUM_COMPONENTS)
+                .setNumFeatures(NUM_FEATURES).setDense(true).build();
+        randomize((LogisticRegression) cbm.getMultiClassClassifier(), random, 1);
+        for (Classifier.ProbabilityEstimator[] row: cbm.getBinaryClassifiers()){
+            for (Classifier.ProbabilityEstimator binary: row){
+                randomize((LogisticRegression) binary, random, 2);
+            }
+        }
+        return cbm;
+    }
+
+    private static void randomize(LogisticRegression logisticRegression, Random random, double scale){
+        Vector weights = logisticRegression.getWeights().getAllWeights();
+        for (int p=0;p<weights.size();p++){
+            weights.set(p, random.nextGaussian()*scale);
+        }
+    }
+
+    /**
+     * neither logistic nor prior, so the batch path calls it per row
+     */
+    private static class FirstFeatureClassifier implements Classifier.ProbabilityEstimator {
+        @Override
+        public double[] predictClassProbs(Vector vector) {
+            double p = 1/(1+Math.exp(-vector.get(0)));
+            return new double[]{1-p, p};
+        }
+
+        @Override
+        public int getNumClasses() {
+            return 2;
+        }
+
+        @Override
+        public FeatureList getFeatureList() {
+            return null;
+        }
+
+        @Override
+        public LabelTranslator getLabelTranslator() {
+            return null;
+        }
+    }
+}
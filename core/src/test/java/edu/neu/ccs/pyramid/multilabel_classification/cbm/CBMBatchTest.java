@@ -0,0 +1,71 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import edu.neu.ccs.pyramid.classification.Classifier;
+import edu.neu.ccs.pyramid.classification.logistic_regression.LogisticRegression;
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.Density;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * block marginals vs per row marginals, over several blocks and with components below the marginal threshold
+ */
+public class CBMBatchTest {
+    private static final int NUM_DATA_POINTS = 600;
+    private static final int NUM_FEATURES = 10;
+    private static final int NUM_LABELS = 4;
+    private static final int NUM_COMPONENTS = 6;
+
+    @Test
+    public void sameMarginals() {
+        Random random = new Random(0);
+        DataSet dataSet = DataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .density(Density.SPARSE_RANDOM).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (random.nextDouble()<0.4){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+        }
+        CBM cbm = CBM.getBuilder().setNumClasses(NUM_LABELS).setNumComponents(NUM_COMPONENTS)
+                .setNumFeatures(NUM_FEATURES).setDense(true).build();
+        // peaked proportions, so many components fall below the threshold for many rows
+        randomize((LogisticRegression) cbm.getMultiClassClassifier(), random, 4);
+        for (Classifier.ProbabilityEstimator[] row: cbm.getBinaryClassifiers()){
+            for (Classifier.ProbabilityEstimator binary: row){
+                randomize((LogisticRegression) binary, random, 1);
+            }
+        }
+
+        double[][] probs = new double[NUM_DATA_POINTS][NUM_LABELS];
+        cbm.predictClassProbs(dataSet, probs);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertArrayEquals(cbm.predictClassProbs(dataSet.getRow(i)), probs[i], 1e-12);
+        }
+
+        // an offset block into a dirty buffer
+        int start = 37;
+        int end = 590;
+        double[][] buffer = new double[end-start][NUM_LABELS];
+        for (double[] row: buffer){
+            java.util.Arrays.fill(row, 7);
+        }
+        cbm.predictClassProbs(dataSet, start, end, buffer);
+        for (int i=start;i<end;i++){
+            assertArrayEquals(probs[i], buffer[i-start], 0);
+        }
+    }
+
+    private static void randomize(LogisticRegression logisticRegression, Random random, double scale){
+        Vector weights = logisticRegression.getWeights().getAllWeights();
+        for (int p=0;p<weights.size();p++){
+            weights.set(p, random.nextGaussian()*scale);
+        }
+    }
+}
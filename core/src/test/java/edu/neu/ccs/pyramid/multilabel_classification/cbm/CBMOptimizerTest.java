@@ -0,0 +1,116 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import edu.neu.ccs.pyramid.classification.lkboost.LKBoost;
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.dataset.MLClfDataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * binary boosters of CBMOptimizer: concurrency, and which rows they train on
+ */
+public class CBMOptimizerTest {
+    private static final int NUM_DATA_POINTS = 200;
+    private static final int NUM_FEATURES = 6;
+    private static final int NUM_LABELS = 3;
+    private static final int NUM_COMPONENTS = 3;
+
+    @Test
+    public void sameModelForAnyNumberOfWorkers() {
+        MultiLabelClfDataSet dataSet = dataSet();
+        for (boolean histogram: new boolean[]{false, true}){
+            double[][] sequential = train(dataSet, 1, histogram, 0.05);
+            assertDeepEquals(sequential, train(dataSet, 3, histogram, 0.05));
+            assertDeepEquals(sequential, train(dataSet, 0, histogram, 0.05));
+        }
+    }
+
+    /**
+     * no rows are skipped unless a threshold is set
+     */
+    @Test
+    public void allRowsByDefault() {
+        MultiLabelClfDataSet dataSet = dataSet();
+        double[][] byDefault = train(dataSet, 0, false, null);
+        assertDeepEquals(train(dataSet, 0, false, 0.0), byDefault);
+        double[][] skipping = train(dataSet, 0, false, 1E-5);
+        boolean differ = false;
+        for (int i=0;i<NUM_DATA_POINTS && !differ;i++){
+            differ = !Arrays.equals(byDefault[i], skipping[i]);
+        }
+        assertTrue(differ);
+    }
+
+    /**
+     * @param skipDataThreshold null = default
+     */
+    private static double[][] train(MultiLabelClfDataSet dataSet, int binaryParallelism, boolean histogram,
+                                    Double skipDataThreshold){
+        CBM cbm = CBM.getBuilder().setNumClasses(NUM_LABELS).setNumComponents(NUM_COMPONENTS)
+                .setNumFeatures(NUM_FEATURES).setBinaryClassifierType("boost")
+                .setMultiClassClassifierType("lr").build();
+        // the builder leaves the boosters to the caller
+        for (int k=0;k<NUM_COMPONENTS;k++){
+            for (int l=0;l<NUM_LABELS;l++){
+                cbm.binaryClassifiers[k][l] = new LKBoost(2);
+            }
+        }
+        CBMOptimizer optimizer = new CBMOptimizer(cbm, dataSet);
+        optimizer.setBinaryParallelism(binaryParallelism);
+        optimizer.setHistogramBinaryTrees(histogram);
+        if (skipDataThreshold!=null){
+            optimizer.setSkipDataThreshold(skipDataThreshold);
+        }
+        optimizer.setNumLeavesBinary(4);
+        optimizer.setShrinkageBinary(0.5);
+        optimizer.setNumIterationsBinary(3);
+        // nearly hard assignments, so the first M step has tiny gammas to skip
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int k=0;k<NUM_COMPONENTS;k++){
+                double gamma = i%NUM_COMPONENTS==k? 1-(NUM_COMPONENTS-1)*1E-6: 1E-6;
+                optimizer.gammas[i][k] = gamma;
+                optimizer.gammasT[k][i] = gamma;
+            }
+        }
+        optimizer.mStep();
+        optimizer.iterate();
+        double[][] probs = new double[NUM_DATA_POINTS][];
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            probs[i] = cbm.predictClassProbs(dataSet.getRow(i));
+        }
+        return probs;
+    }
+
+    private static void assertDeepEquals(double[][] expected, double[][] actual){
+        for (int i=0;i<expected.length;i++){
+            assertArrayEquals(expected[i], actual[i], 0);
+        }
+    }
+
+    private static MultiLabelClfDataSet dataSet(){
+        Random random = new Random(0);
+        MultiLabelClfDataSet dataSet = MLClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS)
+                .numFeatures(NUM_FEATURES).numClasses(NUM_LABELS).density(Density.SPARSE_RANDOM).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (random.nextDouble()<0.5){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+            // labels depend on the features, and co-occur in a few patterns
+            int pattern = dataSet.getRow(i).get(0)>0 ? 0 : (dataSet.getRow(i).get(1)>0 ? 1 : 2);
+            for (int l=0;l<NUM_LABELS;l++){
+                boolean on = (l+pattern)%3==0 ? random.nextDouble()<0.8 : random.nextDouble()<0.1;
+                if (on){
+                    dataSet.addLabel(i,l);
+                }
+            }
+        }
+        return dataSet;
+    }
+}
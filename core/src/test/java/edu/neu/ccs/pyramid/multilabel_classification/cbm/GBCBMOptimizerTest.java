@@ -0,0 +1,129 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.dataset.MLClfDataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * concurrent binary boosters vs one booster at a time, with exact and histogram trees
+ */
+public class GBCBMOptimizerTest {
+    private static final int NUM_DATA_POINTS = 300;
+    private static final int NUM_FEATURES = 8;
+    private static final int NUM_LABELS = 4;
+    private static final int NUM_COMPONENTS = 3;
+
+    @Test
+    public void sameModelForAnyNumberOfWorkers() {
+        MultiLabelClfDataSet dataSet = dataSet();
+        for (boolean histogram: new boolean[]{false, true}){
+            double[][] sequential = train(dataSet, 1, true, histogram);
+            assertDeepEquals(sequential, train(dataSet, 3, true, histogram));
+            assertDeepEquals(sequential, train(dataSet, 0, true, histogram));
+            assertDeepEquals(sequential, train(dataSet, 3, false, histogram));
+        }
+    }
+
+    /**
+     * exact splits unless histogram trees are asked for
+     */
+    @Test
+    public void histogramTreesAreOptIn() {
+        MultiLabelClfDataSet dataSet = dataSet();
+        double[][] byDefault = train(dataSet, 0, true, null);
+        assertDeepEquals(train(dataSet, 0, true, false), byDefault);
+        double[][] histogram = train(dataSet, 0, true, true);
+        boolean differ = false;
+        for (int i=0;i<NUM_DATA_POINTS && !differ;i++){
+            differ = !Arrays.equals(byDefault[i], histogram[i]);
+        }
+        assertTrue(differ);
+    }
+
+    /**
+     * exact trees train on the active data of each component, as the one component at a time updates do
+     */
+    @Test
+    public void exactTreesTrainOnActiveData() {
+        MultiLabelClfDataSet dataSet = dataSet();
+        double[][] byComponent = train(dataSet, 1, false, false, true);
+        assertDeepEquals(byComponent, train(dataSet, 0, true, false, false));
+    }
+
+    /**
+     * @param histogram null = default
+     */
+    private static double[][] train(MultiLabelClfDataSet dataSet, int binaryParallelism, boolean parallelBinaryUpdates,
+                                    Boolean histogram){
+        return train(dataSet, binaryParallelism, parallelBinaryUpdates, histogram, false);
+    }
+
+    /**
+     * @param byComponent whether the binary classifiers are updated one component at a time, by AbstractCBMOptimizer
+     */
+    private static double[][] train(MultiLabelClfDataSet dataSet, int binaryParallelism, boolean parallelBinaryUpdates,
+                                    Boolean histogram, boolean byComponent){
+        CBM cbm = CBM.getBuilder().setNumClasses(NUM_LABELS).setNumComponents(NUM_COMPONENTS)
+                .setNumFeatures(NUM_FEATURES).setBinaryClassifierType("boost")
+                .setMultiClassClassifierType("boost").build();
+        GBCBMOptimizer optimizer = byComponent? new GBCBMOptimizer(cbm, dataSet){
+            @Override
+            protected void updateBinaryClassifiers() {
+                for (int k=0;k<NUM_COMPONENTS;k++){
+                    updateBinaryClassifiers(k);
+                }
+            }
+        }: new GBCBMOptimizer(cbm, dataSet);
+        optimizer.setBinaryParallelism(binaryParallelism);
+        optimizer.setParallelBinaryUpdates(parallelBinaryUpdates);
+        if (histogram!=null){
+            optimizer.setHistogramBinaryTrees(histogram);
+        }
+        optimizer.setNumLeaves(4);
+        optimizer.setShrinkage(0.5);
+        optimizer.setBinaryUpdatesPerIter(3);
+        optimizer.setMulticlassUpdatesPerIter(3);
+        optimizer.setSkipDataThreshold(0.01);
+        optimizer.initialize();
+        optimizer.iterate();
+        double[][] probs = new double[NUM_DATA_POINTS][];
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            probs[i] = cbm.predictClassProbs(dataSet.getRow(i));
+        }
+        return probs;
+    }
+
+    private static void assertDeepEquals(double[][] expected, double[][] actual){
+        for (int i=0;i<expected.length;i++){
+            assertArrayEquals(expected[i], actual[i], 0);
+        }
+    }
+
+    private static MultiLabelClfDataSet dataSet(){
+        Random random = new Random(0);
+        MultiLabelClfDataSet dataSet = MLClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS)
+                .numFeatures(NUM_FEATURES).numClasses(NUM_LABELS).density(Density.SPARSE_RANDOM).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (random.nextDouble()<0.5){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+            // labels depend on the features, and co-occur in a few patterns
+            int pattern = dataSet.getRow(i).get(0)>0 ? 0 : (dataSet.getRow(i).get(1)>0 ? 1 : 2);
+            for (int l=0;l<NUM_LABELS;l++){
+                boolean on = (l+pattern)%3==0 ? random.nextDouble()<0.8 : random.nextDouble()<0.1;
+                if (on){
+                    dataSet.addLabel(i,l);
+                }
+            }
+        }
+        return dataSet;
+    }
+}
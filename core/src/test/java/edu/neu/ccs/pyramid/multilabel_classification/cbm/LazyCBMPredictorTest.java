@@ -0,0 +1,143 @@
+package edu.neu.ccs.pyramid.multilabel_classification.cbm;
+
+import edu.neu.ccs.pyramid.classification.Classifier;
+import edu.neu.ccs.pyramid.classification.logistic_regression.LogisticRegression;
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import org.apache.mahout.math.RandomAccessSparseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * without the poll cap, the lazy search returns the most probable set among all 2^L sets
+ * main compares the latency of "lazy" and "dynamic" on synthetic models
+ */
+public class LazyCBMPredictorTest {
+    private static final int NUM_LABELS = 8;
+    private static final int NUM_COMPONENTS = 5;
+    private static final int NUM_FEATURES = 30;
+
+    public static void main(String[] args) {
+        Random random = new Random(0);
+        // peaked proportions, mostly negative labels
+        bench(randomCBM(random, 20, 2000, 2000, 0.02, -7, 3), 2000, random, 0);
+        // flat proportions, uncertain labels
+        CBM flat = randomCBM(random, 50, 200, 500, 0.3, -1, 0.1);
+        bench(flat, 500, random, 0);
+        // no poll cap, many seen sets
+        bench(flat, 500, random, 20000);
+    }
+
+    private static void bench(CBM cbm, int numFeatures, Random random, int maxPolls){
+        Vector[] rows = new Vector[30];
+        for (int i=0;i<rows.length;i++){
+            rows[i] = randomRow(random, numFeatures, 30);
+        }
+        for (int repeat=0;repeat<4;repeat++){
+            cbm.setPredictMode("dynamic");
+            long start = System.nanoTime();
+            MultiLabel[] dynamic = new MultiLabel[rows.length];
+            for (int i=0;i<rows.length;i++){
+                dynamic[i] = maxPolls==0? cbm.predict(rows[i]): null;
+            }
+            long middle = System.nanoTime();
+            int numSame = 0;
+            for (int i=0;i<rows.length;i++){
+                LazyCBMPredictor predictor = new LazyCBMPredictor(cbm, rows[i]);
+                if (maxPolls>0){
+                    predictor.setMaxPolls(maxPolls);
+                }
+                if (predictor.predict().equals(dynamic[i])){
+                    numSame += 1;
+                }
+            }
+            long end = System.nanoTime();
+            String header = "labels = "+cbm.getNumClasses()+", components = "+cbm.getNumComponents();
+            if (maxPolls>0){
+                System.out.println(header+", maxPolls = "+maxPolls+", lazy = "+(end-middle)/1E6/rows.length+" ms/row");
+            } else {
+                System.out.println(header+", dynamic = "+(middle-start)/1E6/rows.length+" ms/row, lazy = "
+                        +(end-middle)/1E6/rows.length+" ms/row, same predictions = "+numSame+"/"+rows.length);
+            }
+        }
+    }
+
+    @Test
+    public void sameAsBruteForce() {
+        Random random = new Random(0);
+        List<MultiLabel> all = new ArrayList<>();
+        for (int s=0;s<(1<<NUM_LABELS);s++){
+            MultiLabel multiLabel = new MultiLabel();
+            for (int l=0;l<NUM_LABELS;l++){
+                if (((s>>l)&1)==1){
+                    multiLabel.addLabel(l);
+                }
+            }
+            all.add(multiLabel);
+        }
+        int numEvaluated = 0;
+        int numRows = 0;
+        for (int m=0;m<10;m++){
+            // from peaked to flat proportions, from certain to uncertain labels
+            CBM cbm = randomCBM(random, NUM_COMPONENTS, NUM_LABELS, NUM_FEATURES, 0.2+0.3*m, m%2==0? -1: 0, 2.0/(1+m));
+            for (int i=0;i<40;i++){
+                Vector x = randomRow(random, NUM_FEATURES, 8);
+                double[] probs = cbm.predictAssignmentProbs(x, all);
+                for (boolean allowEmpty: new boolean[]{true, false}){
+                    double max = 0;
+                    for (int s=allowEmpty? 0: 1;s<all.size();s++){
+                        max = Math.max(max, probs[s]);
+                    }
+                    LazyCBMPredictor predictor = new LazyCBMPredictor(cbm, x);
+                    predictor.setAllowEmpty(allowEmpty);
+                    predictor.setMaxPolls(Integer.MAX_VALUE);
+                    MultiLabel prediction = predictor.predict();
+                    assertTrue(allowEmpty || prediction.getNumMatchedLabels()>0);
+                    assertEquals(max, probs[all.indexOf(prediction)], 1e-12);
+                    numEvaluated += predictor.getNumEvaluated();
+                    numRows += 1;
+                }
+            }
+        }
+        // components are skipped on some rows
+        assertTrue(numEvaluated < numRows*NUM_COMPONENTS);
+    }
+
+    private static Vector randomRow(Random random, int numFeatures, int numNonZeros){
+        Vector x = new RandomAccessSparseVector(numFeatures);
+        for (int t=0;t<numNonZeros;t++){
+            x.set(random.nextInt(numFeatures), random.nextGaussian());
+        }
+        return x;
+    }
+
+    private static CBM randomCBM(Random random, int numComponents, int numLabels, int numFeatures,
+                                 double binaryScale, double bias, double proportionScale){
+        CBM cbm = CBM.getBuilder().setNumClasses(numLabels).setNumComponents(numComponents)
+                .setNumFeatures(numFeatures).setDense(true).build();
+        randomize((LogisticRegression) cbm.getMultiClassClassifier(), random, proportionScale, 0);
+        for (Classifier.ProbabilityEstimator[] row: cbm.getBinaryClassifiers()){
+            for (Classifier.ProbabilityEstimator binary: row){
+                randomize((LogisticRegression) binary, random, binaryScale, bias);
+            }
+        }
+        return cbm;
+    }
+
+    private static void randomize(LogisticRegression logisticRegression, Random random, double scale, double bias){
+        Vector weights = logisticRegression.getWeights().getAllWeights();
+        for (int p=0;p<weights.size();p++){
+            weights.set(p, random.nextGaussian()*scale);
+        }
+        if (logisticRegression.getNumClasses()==2){
+            // bias of the positive class
+            int position = logisticRegression.getNumFeatures()+1;
+            weights.set(position, weights.get(position)+bias);
+        }
+    }
+}
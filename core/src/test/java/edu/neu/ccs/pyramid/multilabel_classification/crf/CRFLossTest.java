@@ -0,0 +1,157 @@
+package edu.neu.ccs.pyramid.multilabel_classification.crf;
+
+import edu.neu.ccs.pyramid.dataset.DataSetUtil;
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.dataset.MLClfDataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
+import edu.neu.ccs.pyramid.util.MathUtil;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * row-major feature-label gradient, in blocks of rows, vs a per parameter column walk, the full gradient vs finite differences,
+ * and the value with repeated support combinations
+ */
+public class CRFLossTest {
+    private static final int NUM_DATA_POINTS = 200;
+    private static final int NUM_FEATURES = 6;
+    private static final int NUM_CLASSES = 7;
+    private static final double VARIANCE = 2;
+
+    @Test
+    public void featureLabelGradient() {
+        for (boolean regularizeAll: new boolean[]{false, true}){
+            MultiLabelClfDataSet dataSet = dataSet(new Random(0));
+            CMLCRF cmlcrf = randomCRF(dataSet, new Random(1));
+            CRFLoss loss = new CRFLoss(cmlcrf, dataSet, VARIANCE);
+            loss.setRegularizeAll(regularizeAll);
+            Vector gradient = loss.getGradient();
+            Weights weights = cmlcrf.getWeights();
+            double[][] classProbs = new double[NUM_DATA_POINTS][];
+            for (int i=0;i<NUM_DATA_POINTS;i++){
+                classProbs[i] = cmlcrf.predictClassProbs(dataSet.getRow(i));
+            }
+            // blocks of rows added up, also uneven ones and one block per row
+            for (int numBlocks: new int[]{1, 3, 7, NUM_DATA_POINTS}){
+                loss.updateFeatureLabelGradient(numBlocks);
+                for (int p=0;p<weights.getNumWeightsForFeatures();p++){
+                    int k = weights.getClassIndex(p);
+                    int j = weights.getFeatureIndex(p);
+                    double expected = 0;
+                    for (int i=0;i<NUM_DATA_POINTS;i++){
+                        double featureValue = j==-1 ? 1 : dataSet.getColumn(j).get(i);
+                        double empirical = dataSet.getMultiLabels()[i].matchClass(k) ? 1 : 0;
+                        expected += (classProbs[i][k] - empirical)*featureValue;
+                    }
+                    if (j!=-1 || regularizeAll){
+                        expected += weights.getWeightForIndex(p)/VARIANCE;
+                    }
+                    assertEquals(expected, gradient.get(p), 1e-10);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void finiteDifferences() {
+        MultiLabelClfDataSet dataSet = dataSet(new Random(2));
+        CMLCRF cmlcrf = randomCRF(dataSet, new Random(3));
+        CRFLoss loss = new CRFLoss(cmlcrf, dataSet, VARIANCE);
+        loss.setRegularizeAll(true);
+        Vector parameters = cmlcrf.getWeights().getAllWeights().clone();
+        Vector gradient = loss.getGradient().clone();
+        double h = 1e-5;
+        for (int p=0;p<parameters.size();p++){
+            Vector plus = parameters.clone();
+            plus.set(p, plus.get(p)+h);
+            loss.setParameters(plus);
+            double valuePlus = loss.getValue();
+            Vector minus = parameters.clone();
+            minus.set(p, minus.get(p)-h);
+            loss.setParameters(minus);
+            double valueMinus = loss.getValue();
+            assertEquals((valuePlus-valueMinus)/(2*h), gradient.get(p), 1e-5*Math.max(1, Math.abs(gradient.get(p))));
+        }
+    }
+
+    /**
+     * combinations listed twice make dictionary ids differ from support positions;
+     * the true combination of each data point has to be found by position
+     */
+    @Test
+    public void duplicateSupport() {
+        MultiLabelClfDataSet dataSet = dataSet(new Random(4));
+        List<MultiLabel> support = new ArrayList<>(DataSetUtil.gatherMultiLabels(dataSet));
+        support.add(0, support.get(3).copy());
+        support.add(2, support.get(5).copy());
+        support.add(support.get(0).copy());
+        CMLCRF cmlcrf = new CMLCRF(NUM_CLASSES, NUM_FEATURES, support);
+        Random random = new Random(5);
+        Vector weights = new DenseVector(cmlcrf.getWeights().totalSize());
+        for (int p=0;p<weights.size();p++){
+            weights.set(p, random.nextGaussian()*0.5);
+        }
+        cmlcrf.getWeights().setWeightVector(weights);
+        cmlcrf.setConsiderPair(true);
+
+        for (int c=0;c<support.size();c++){
+            assertEquals(support.indexOf(support.get(c)), cmlcrf.getSupportPosition(support.get(c)));
+        }
+        MultiLabel missing = new MultiLabel();
+        for (int l=0;l<NUM_CLASSES;l++){
+            missing.addLabel(l);
+        }
+        if (!support.contains(missing)){
+            assertEquals(-1, cmlcrf.getSupportPosition(missing));
+        }
+
+        CRFLoss loss = new CRFLoss(cmlcrf, dataSet, VARIANCE);
+        double value = 0;
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            double[] scores = cmlcrf.predictCombinationScores(dataSet.getRow(i));
+            value += MathUtil.logSumExp(scores) - scores[support.indexOf(dataSet.getMultiLabels()[i])];
+        }
+        for (int k=0;k<NUM_CLASSES;k++){
+            Vector vector = cmlcrf.getWeights().getWeightsWithoutBiasForClass(k);
+            value += vector.dot(vector)/(2*VARIANCE);
+        }
+        assertEquals(value, loss.getValue(), 1e-9);
+    }
+
+    private static CMLCRF randomCRF(MultiLabelClfDataSet dataSet, Random random){
+        CMLCRF cmlcrf = new CMLCRF(dataSet);
+        Vector weights = new DenseVector(cmlcrf.getWeights().totalSize());
+        for (int p=0;p<weights.size();p++){
+            weights.set(p, random.nextGaussian()*0.5);
+        }
+        cmlcrf.getWeights().setWeightVector(weights);
+        cmlcrf.setConsiderPair(true);
+        return cmlcrf;
+    }
+
+    private static MultiLabelClfDataSet dataSet(Random random){
+        MultiLabelClfDataSet dataSet = MLClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS)
+                .numFeatures(NUM_FEATURES).numClasses(NUM_CLASSES).density(Density.SPARSE_RANDOM).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (random.nextDouble()<0.4){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+            for (int k=0;k<NUM_CLASSES;k++){
+                if (random.nextDouble()<0.25){
+                    dataSet.addLabel(i,k);
+                }
+            }
+        }
+        return dataSet;
+    }
+}
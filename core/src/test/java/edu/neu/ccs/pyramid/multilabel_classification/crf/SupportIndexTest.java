@@ -0,0 +1,135 @@
+package edu.neu.ccs.pyramid.multilabel_classification.crf;
+
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.util.ArgMax;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * pruned top k and truncated support vs a full sort of predictCombinationScores
+ */
+public class SupportIndexTest {
+    private static final int NUM_CLASSES = 10;
+    private static final int NUM_FEATURES = 6;
+
+    @Test
+    public void topKSameAsFullSort() {
+        Random random = new Random(0);
+        CMLCRF cmlcrf = randomCRF(random, true);
+        for (int t=0;t<200;t++){
+            Vector vector = randomVector(random);
+            double[] scores = cmlcrf.predictCombinationScores(vector);
+            int[] sorted = fullSort(scores);
+            for (int k: new int[]{1, 5, 37, cmlcrf.getNumSupports(), cmlcrf.getNumSupports()+3}){
+                SupportIndex.Candidates candidates = cmlcrf.predictTopCombinations(vector, k);
+                assertEquals(Math.min(k, cmlcrf.getNumSupports()), candidates.size());
+                for (int i=0;i<candidates.size();i++){
+                    assertEquals(sorted[i], candidates.getIndex(i));
+                    assertEquals(scores[sorted[i]], candidates.getScore(i), 1e-10);
+                }
+            }
+            // the full scan predict used before
+            assertEquals(cmlcrf.getSupportCombinations().get(ArgMax.argMax(scores)), cmlcrf.predict(vector));
+        }
+    }
+
+    /**
+     * with all weights zero every combination scores 0, and duplicate combinations always tie
+     */
+    @Test
+    public void tiesGoToTheLowerIndex() {
+        CMLCRF cmlcrf = randomCRF(new Random(1), false);
+        cmlcrf.getWeights().setWeightVector(new DenseVector(cmlcrf.getWeights().totalSize()));
+        cmlcrf.setConsiderPair(true);
+        Vector vector = randomVector(new Random(2));
+        SupportIndex.Candidates candidates = cmlcrf.predictTopCombinations(vector, 20);
+        for (int i=0;i<20;i++){
+            assertEquals(i, candidates.getIndex(i));
+        }
+        assertEquals(cmlcrf.getSupportCombinations().get(0), cmlcrf.predict(vector));
+    }
+
+    @Test
+    public void truncatedLogPartition() {
+        Random random = new Random(3);
+        for (boolean considerPair: new boolean[]{true, false}){
+            CMLCRF cmlcrf = randomCRF(random, considerPair);
+            for (int t=0;t<100;t++){
+                Vector vector = randomVector(random);
+                double[] scores = cmlcrf.predictCombinationScores(vector);
+                double logZ = logSumExp(scores);
+                assertEquals(logZ, cmlcrf.predictTruncatedCombinations(vector, 0).getLogPartition(), 1e-9);
+                for (double epsilon: new double[]{1e-6, 1e-3, 0.1}){
+                    SupportIndex.Candidates candidates = cmlcrf.predictTruncatedCombinations(vector, epsilon);
+                    double truncated = candidates.getLogPartition();
+                    assertTrue(truncated <= logZ + 1e-9);
+                    assertTrue(logZ - truncated <= Math.log1p(epsilon) + 1e-9);
+                    for (int i=0;i<candidates.size();i++){
+                        assertEquals(scores[candidates.getIndex(i)], candidates.getScore(i), 1e-10);
+                    }
+                }
+            }
+        }
+    }
+
+    private static CMLCRF randomCRF(Random random, boolean considerPair){
+        List<MultiLabel> support = new ArrayList<>();
+        support.add(new MultiLabel());
+        for (int c=0;c<400;c++){
+            MultiLabel multiLabel = new MultiLabel();
+            for (int l=0;l<NUM_CLASSES;l++){
+                if (random.nextDouble()<0.3){
+                    multiLabel.addLabel(l);
+                }
+            }
+            support.add(multiLabel);
+        }
+        // duplicates score the same
+        for (int c=0;c<10;c++){
+            support.add(support.get(random.nextInt(support.size())).copy());
+        }
+        CMLCRF cmlcrf = new CMLCRF(NUM_CLASSES, NUM_FEATURES, support);
+        Vector weights = new DenseVector(cmlcrf.getWeights().totalSize());
+        for (int p=0;p<weights.size();p++){
+            weights.set(p, random.nextGaussian());
+        }
+        cmlcrf.getWeights().setWeightVector(weights);
+        cmlcrf.setConsiderPair(considerPair);
+        return cmlcrf;
+    }
+
+    private static Vector randomVector(Random random){
+        Vector vector = new DenseVector(NUM_FEATURES);
+        for (int j=0;j<NUM_FEATURES;j++){
+            vector.set(j, random.nextGaussian());
+        }
+        return vector;
+    }
+
+    private static int[] fullSort(double[] scores){
+        return IntStream.range(0, scores.length).boxed()
+                .sorted(Comparator.comparingDouble((Integer c) -> -scores[c]).thenComparingInt(c -> c))
+                .mapToInt(Integer::intValue).toArray();
+    }
+
+    private static double logSumExp(double[] scores){
+        double max = Double.NEGATIVE_INFINITY;
+        for (double score: scores){
+            max = Math.max(max, score);
+        }
+        double sum = 0;
+        for (double score: scores){
+            sum += Math.exp(score-max);
+        }
+        return Math.log(sum) + max;
+    }
+}
@@ -0,0 +1,124 @@
+package edu.neu.ccs.pyramid.multilabel_classification.imlgb;
+
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.dataset.MLClfDataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
+import edu.neu.ccs.pyramid.regression.ConstantRegressor;
+import edu.neu.ccs.pyramid.regression.Regressor;
+import edu.neu.ccs.pyramid.regression.regression_tree.CompiledTreeEnsemble;
+import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeConfig;
+import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeTrainer;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * batch and single row predictions through the cached compiled ensemble against the sum of the regressors
+ */
+public class IMLGradientBoostingBatchTest {
+    private static final int NUM_DATA_POINTS = 500;
+    private static final int NUM_FEATURES = 8;
+    private static final int NUM_CLASSES = 4;
+
+    @Test
+    public void sameBatchPredictions() {
+        Random random = new Random(0);
+        MultiLabelClfDataSet dataSet = dataSet(random);
+        IMLGradientBoosting boosting = boosting(dataSet, random);
+
+        double[][] probs = new double[NUM_DATA_POINTS][NUM_CLASSES];
+        boosting.predictClassProbs(dataSet, probs);
+        MultiLabel[] predictions = boosting.predict(dataSet);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            double[] scores = regressorScores(boosting, dataSet.getRow(i));
+            // single rows go through the same compiled trees
+            assertArrayEquals(scores, boosting.predictClassScores(dataSet.getRow(i)), 1e-12);
+            MultiLabel expected = new MultiLabel();
+            for (int k=0;k<NUM_CLASSES;k++){
+                assertEquals(1/(1+Math.exp(-scores[k])), probs[i][k], 1e-12);
+                if (scores[k]>0){
+                    expected.addLabel(k);
+                }
+            }
+            assertEquals(expected.getMatchedLabels(), predictions[i].getMatchedLabels());
+            assertEquals(boosting.predict(dataSet.getRow(i)), predictions[i]);
+        }
+    }
+
+    /**
+     * the compiled trees are reused until a regressor is added or the tail is cut
+     */
+    @Test
+    public void compiledIsCached() {
+        Random random = new Random(1);
+        MultiLabelClfDataSet dataSet = dataSet(random);
+        IMLGradientBoosting boosting = boosting(dataSet, random);
+        CompiledTreeEnsemble compiled = boosting.compile();
+        assertSame(compiled, boosting.compile());
+        boosting.predictClassScores(dataSet.getRow(0));
+        assertSame(compiled, boosting.compile());
+
+        boosting.addRegressor(new ConstantRegressor(1.5), 2);
+        CompiledTreeEnsemble added = boosting.compile();
+        assertNotSame(compiled, added);
+        assertEquals(compiled.score(dataSet.getRow(0), 2)+1.5, added.score(dataSet.getRow(0), 2), 1e-12);
+
+        boosting.cutTail(1, 2);
+        assertNotSame(added, boosting.compile());
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertArrayEquals(regressorScores(boosting, dataSet.getRow(i)), boosting.predictClassScores(dataSet.getRow(i)), 1e-12);
+        }
+    }
+
+    private static MultiLabelClfDataSet dataSet(Random random){
+        MultiLabelClfDataSet dataSet = MLClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS)
+                .numFeatures(NUM_FEATURES).numClasses(NUM_CLASSES).density(Density.SPARSE_RANDOM)
+                .missingValue(true).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                double u = random.nextDouble();
+                if (u<0.1){
+                    dataSet.setFeatureValue(i,j,Double.NaN);
+                } else if (u<0.6){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+        }
+        return dataSet;
+    }
+
+    private static IMLGradientBoosting boosting(MultiLabelClfDataSet dataSet, Random random){
+        IMLGradientBoosting boosting = new IMLGradientBoosting(NUM_CLASSES);
+        RegTreeConfig regTreeConfig = new RegTreeConfig().setMaxNumLeaves(6).setMinDataPerLeaf(5);
+        for (int k=0;k<NUM_CLASSES;k++){
+            boosting.addRegressor(new ConstantRegressor(random.nextGaussian()), k);
+            for (int t=0;t<5;t++){
+                double[] labels = new double[NUM_DATA_POINTS];
+                int feature = random.nextInt(NUM_FEATURES);
+                for (int i=0;i<NUM_DATA_POINTS;i++){
+                    double value = dataSet.getRow(i).get(feature);
+                    labels[i] = (Double.isNaN(value)? 0: value) + random.nextGaussian()*0.5;
+                }
+                boosting.addRegressor(RegTreeTrainer.fit(regTreeConfig, dataSet, labels), k);
+            }
+        }
+        return boosting;
+    }
+
+    /**
+     * sum of the regressors, without the compiled trees
+     */
+    private static double[] regressorScores(IMLGradientBoosting boosting, Vector vector){
+        double[] scores = new double[NUM_CLASSES];
+        for (int k=0;k<NUM_CLASSES;k++){
+            for (Regressor regressor: boosting.getRegressors(k)){
+                scores[k] += regressor.predict(vector);
+            }
+        }
+        return scores;
+    }
+}
@@ -1,11 +1,84 @@
 package edu.neu.ccs.pyramid.multilabel_classification.multi_label_logistic_regression;
 
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.dataset.MLClfDataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.MultiLabel;
+import edu.neu.ccs.pyramid.dataset.MultiLabelClfDataSet;
+import org.apache.mahout.math.DenseVector;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
 import static org.junit.Assert.*;
 
+/**
+ * fused value vs assignment probabilities of the model, and the gradient vs finite differences of the value
+ */
 public class MLLogisticLossTest {
+    private static final int NUM_DATA_POINTS = 150;
+    private static final int NUM_FEATURES = 10;
+    private static final int NUM_CLASSES = 3;
+    private static final double VARIANCE = 3;
+
     public static void main(String[] args) throws Exception{
 
 
     }
 
-}
\ No newline at end of file
+    @Test
+    public void valueAndGradient() {
+        Random random = new Random(0);
+        MultiLabelClfDataSet dataSet = MLClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS)
+                .numFeatures(NUM_FEATURES).numClasses(NUM_CLASSES).density(Density.SPARSE_RANDOM).build();
+        List<MultiLabel> assignments = new ArrayList<>();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                if (random.nextDouble()<0.4){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+            for (int k=0;k<NUM_CLASSES;k++){
+                if (random.nextDouble()<0.4){
+                    dataSet.addLabel(i,k);
+                }
+            }
+            if (!assignments.contains(dataSet.getMultiLabels()[i])){
+                assignments.add(dataSet.getMultiLabels()[i]);
+            }
+        }
+        Vector weightVector = new DenseVector((NUM_FEATURES+1)*NUM_CLASSES);
+        for (int p=0;p<weightVector.size();p++){
+            weightVector.set(p, random.nextGaussian()*0.5);
+        }
+        MLLogisticRegression model = new MLLogisticRegression(NUM_CLASSES, NUM_FEATURES, assignments, weightVector);
+        MLLogisticLoss loss = new MLLogisticLoss(model, dataSet, VARIANCE);
+
+        double logLikelihood = 0;
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            logLikelihood += Math.log(model.predictAssignmentProb(dataSet.getRow(i), dataSet.getMultiLabels()[i]));
+        }
+        double value = -logLikelihood + weightVector.dot(weightVector)/(2*VARIANCE);
+        assertEquals(value, loss.getValue(), 1e-9);
+        // class probabilities come from the same pass
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertArrayEquals(model.predictClassProbs(dataSet.getRow(i)), loss.getClassProbs(i), 1e-12);
+        }
+
+        Vector gradient = loss.getGradient().clone();
+        double h = 1e-5;
+        for (int p=0;p<weightVector.size();p++){
+            Vector plus = weightVector.clone();
+            plus.set(p, plus.get(p)+h);
+            loss.setParameters(plus);
+            double valuePlus = loss.getValue();
+            Vector minus = weightVector.clone();
+            minus.set(p, minus.get(p)-h);
+            loss.setParameters(minus);
+            double valueMinus = loss.getValue();
+            assertEquals((valuePlus-valueMinus)/(2*h), gradient.get(p), 1e-5*Math.max(1, Math.abs(gradient.get(p))));
+        }
+    }
+}
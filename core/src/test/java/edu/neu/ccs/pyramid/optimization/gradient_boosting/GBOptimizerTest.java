@@ -0,0 +1,88 @@
+package edu.neu.ccs.pyramid.optimization.gradient_boosting;
+
+import edu.neu.ccs.pyramid.classification.lkboost.LKBoost;
+import edu.neu.ccs.pyramid.classification.lkboost.LKBoostOptimizer;
+import edu.neu.ccs.pyramid.dataset.ClfDataSet;
+import edu.neu.ccs.pyramid.dataset.ClfDataSetBuilder;
+import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeConfig;
+import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeFactory;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * staged scores kept by the optimizer vs predictions of the trained model;
+ * fitting ensembles concurrently vs one at a time
+ */
+public class GBOptimizerTest {
+    private static final int NUM_DATA_POINTS = 600;
+    private static final int NUM_FEATURES = 6;
+    private static final int NUM_CLASSES = 3;
+
+    @Test
+    public void stagedScores() {
+        ClfDataSet dataSet = dataSet(new Random(0));
+        LKBoost lkBoost = new LKBoost(NUM_CLASSES);
+        LKBoostOptimizer optimizer = optimizer(lkBoost, dataSet);
+        optimizer.initialize();
+        optimizer.iterate(10);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            double[] expected = lkBoost.predictClassScores(dataSet.getRow(i));
+            float[] scores = optimizer.scoreMatrix.getScoresForData(i);
+            for (int k=0;k<NUM_CLASSES;k++){
+                // the score matrix is in float
+                assertEquals(expected[k], scores[k], 1e-4);
+            }
+        }
+    }
+
+    @Test
+    public void classParallelism() {
+        ClfDataSet dataSet = dataSet(new Random(1));
+        LKBoost sequential = new LKBoost(NUM_CLASSES);
+        LKBoostOptimizer sequentialOptimizer = optimizer(sequential, dataSet);
+        sequentialOptimizer.setClassParallelism(1);
+        sequentialOptimizer.initialize();
+        sequentialOptimizer.iterate(5);
+        LKBoost concurrent = new LKBoost(NUM_CLASSES);
+        LKBoostOptimizer concurrentOptimizer = optimizer(concurrent, dataSet);
+        concurrentOptimizer.setClassParallelism(NUM_CLASSES);
+        concurrentOptimizer.initialize();
+        concurrentOptimizer.iterate(5);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertArrayEquals(sequential.predictClassScores(dataSet.getRow(i)),
+                    concurrent.predictClassScores(dataSet.getRow(i)), 0);
+            assertArrayEquals(sequentialOptimizer.scoreMatrix.getScoresForData(i),
+                    concurrentOptimizer.scoreMatrix.getScoresForData(i), 0);
+        }
+    }
+
+    private static LKBoostOptimizer optimizer(LKBoost lkBoost, ClfDataSet dataSet){
+        RegTreeConfig regTreeConfig = new RegTreeConfig().setMaxNumLeaves(5).setMinDataPerLeaf(3);
+        LKBoostOptimizer optimizer = new LKBoostOptimizer(lkBoost, dataSet, new RegTreeFactory(regTreeConfig));
+        optimizer.setShrinkage(0.3);
+        return optimizer;
+    }
+
+    // labels depend on features with missing values, so some data points are routed fractionally
+    private static ClfDataSet dataSet(Random random){
+        ClfDataSet dataSet = ClfDataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .numClasses(NUM_CLASSES).missingValue(true).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                double u = random.nextDouble();
+                if (u<0.1){
+                    dataSet.setFeatureValue(i,j,Double.NaN);
+                } else if (u<0.7){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+            double value = dataSet.getRow(i).get(0) + 0.5*random.nextGaussian();
+            int label = Double.isNaN(value) ? random.nextInt(NUM_CLASSES) : (value<-0.3 ? 0 : (value<0.3 ? 1 : 2));
+            dataSet.setLabel(i,label);
+        }
+        return dataSet;
+    }
+}
@@ -1,6 +1,8 @@
 package edu.neu.ccs.pyramid.ranking;
 
 
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
 import edu.neu.ccs.pyramid.dataset.DataSetType;
 import edu.neu.ccs.pyramid.dataset.DataSetUtil;
 import edu.neu.ccs.pyramid.dataset.RegDataSet;
@@ -8,12 +10,17 @@ import edu.neu.ccs.pyramid.dataset.TRECFormat;
 import edu.neu.ccs.pyramid.eval.NDCG;
 import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeConfig;
 import edu.neu.ccs.pyramid.regression.regression_tree.RegTreeFactory;
+import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
+import static org.junit.Assert.*;
+
 public class LambdaMARTOptimizerTest  {
     public static void main(String[] args) throws Exception{
         test1();
@@ -46,4 +53,80 @@ public class LambdaMARTOptimizerTest  {
         }
     }
 
-}
\ No newline at end of file
+
+    /**
+     * incremental pair deltas vs swapping two grades and evaluating NDCG.ndcg twice
+     * scores start all tied, and trees with few leaves keep many ties
+     */
+    @Test
+    public void sameGradientsAsSwappedNDCG(){
+        Random random = new Random(0);
+        int numDataPoints = 300;
+        DataSet dataSet = DataSetBuilder.getBuilder().numDataPoints(numDataPoints).numFeatures(4).build();
+        double[] grades = new double[numDataPoints];
+        for (int i=0;i<numDataPoints;i++){
+            for (int j=0;j<4;j++){
+                dataSet.setFeatureValue(i,j,random.nextInt(5));
+            }
+            grades[i] = Math.min(3, Math.max(0, Math.round(dataSet.getRow(i).get(0)*0.5 + random.nextGaussian())));
+        }
+        // queries of different sizes, some shorter than the truncation level
+        List<List<Integer>> instancesInQuery = new ArrayList<>();
+        int start = 0;
+        while (start<numDataPoints){
+            int end = Math.min(numDataPoints, start + 3 + random.nextInt(40));
+            instancesInQuery.add(IntStream.range(start, end).boxed().collect(Collectors.toList()));
+            start = end;
+        }
+        // every query needs a relevant document, otherwise the naive ndcg is 0/0
+        for (List<Integer> query: instancesInQuery){
+            grades[query.get(0)] = 1;
+        }
+        ScoreExposingOptimizer optimizer = new ScoreExposingOptimizer(new LambdaMART(), dataSet, grades,
+                new RegTreeFactory(new RegTreeConfig().setMaxNumLeaves(3)), instancesInQuery);
+        optimizer.setNdcgTruncationLevel(10);
+        optimizer.initialize();
+        for (int iteration=0;iteration<4;iteration++){
+            double[] gradients = optimizer.gradient(0);
+            for (List<Integer> query: instancesInQuery){
+                double[] scores = query.stream().mapToDouble(optimizer::score).toArray();
+                double[] relevance = query.stream().mapToDouble(i->grades[i]).toArray();
+                for (int i=0;i<query.size();i++){
+                    assertEquals(naiveGradient(scores, relevance, i, 10), gradients[query.get(i)], 1e-12);
+                }
+            }
+            optimizer.iterate();
+        }
+    }
+
+    private static double naiveGradient(double[] scores, double[] relevance, int i, int truncation){
+        double gradient = 0;
+        for (int j=0;j<relevance.length;j++){
+            if (relevance[i]==relevance[j]){
+                continue;
+            }
+            double[] swapped = Arrays.copyOf(relevance, relevance.length);
+            swapped[i] = relevance[j];
+            swapped[j] = relevance[i];
+            int truncationUsed = Math.min(truncation, relevance.length);
+            double delta = Math.abs(NDCG.ndcg(swapped, scores, truncationUsed) - NDCG.ndcg(relevance, scores, truncationUsed));
+            if (relevance[i]>relevance[j]){
+                gradient += 1.0/(1+Math.exp(scores[i] - scores[j]))*delta;
+            } else {
+                gradient -= 1.0/(1+Math.exp(scores[j] - scores[i]))*delta;
+            }
+        }
+        return gradient;
+    }
+
+    private static class ScoreExposingOptimizer extends LambdaMARTOptimizer {
+        ScoreExposingOptimizer(LambdaMART lambdaMART, DataSet dataSet, double[] relevanceGrades,
+                               RegTreeFactory factory, List<List<Integer>> instanceIdsInEachQuery) {
+            super(lambdaMART, dataSet, relevanceGrades, factory, instanceIdsInEachQuery);
+        }
+
+        double score(int dataIndex){
+            return scoreMatrix.getScoresForData(dataIndex)[0];
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package edu.neu.ccs.pyramid.regression.linear_regression;
+
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.Density;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * screened covariance updates vs plain cyclic coordinate descent over all features,
+ * and the KKT conditions of the solutions
+ */
+public class ElasticNetLinearRegOptimizerTest {
+    private static final int NUM_DATA_POINTS = 200;
+    private static final int NUM_FEATURES = 60;
+
+    @Test
+    public void lasso() {
+        check(0.05, 1);
+    }
+
+    @Test
+    public void elasticNet() {
+        check(0.02, 0.5);
+    }
+
+    @Test
+    public void ridge() {
+        check(0.1, 0);
+    }
+
+    /**
+     * x1 = 3*x0 + v is uncorrelated with y at the start, so the strong rule screens it out,
+     * but its gradient moves 3 times as fast as the regularization decreases;
+     * it has to come back through the KKT check, and coordinate descent continues after that
+     */
+    @Test
+    public void strongRuleViolation() {
+        Random random = new Random(0);
+        int numDataPoints = 200;
+        double[] u = new double[numDataPoints];
+        double[] v = new double[numDataPoints];
+        for (int i=0;i<numDataPoints;i++){
+            u[i] = random.nextGaussian();
+            v[i] = random.nextGaussian();
+        }
+        double uu = 0;
+        double vv = 0;
+        double uv = 0;
+        for (int i=0;i<numDataPoints;i++){
+            uu += u[i]*u[i];
+            vv += v[i]*v[i];
+            uv += u[i]*v[i];
+        }
+        // y = u + b*v with sum_i x1_i*y_i = 0
+        double b = -(3*uu+uv)/(3*uv+vv);
+        Problem problem = new Problem(numDataPoints, 2);
+        for (int i=0;i<numDataPoints;i++){
+            problem.dataSet.setFeatureValue(i,0,u[i]);
+            problem.dataSet.setFeatureValue(i,1,3*u[i]+v[i]);
+            problem.labels[i] = u[i] + b*v[i];
+            problem.instanceWeights[i] = 1;
+        }
+        LinearRegression linearRegression = new LinearRegression(2);
+        ElasticNetLinearRegOptimizer optimizer = problem.optimizer(linearRegression, 0, 1);
+        optimizer.setRegularization(0.7*optimizer.getMaxRegularization());
+        optimizer.optimize();
+        double[] expected = problem.naive(optimizer.getRegularization(), 1);
+        assertTrue(expected[2]!=0);
+        // correlated features converge slowly
+        for (int p=0;p<=2;p++){
+            assertEquals(expected[p], linearRegression.getWeights().getWeights().get(p), 1e-4);
+        }
+    }
+
+    @Test
+    public void path() {
+        Problem problem = new Problem(new Random(3));
+        LinearRegression linearRegression = new LinearRegression(NUM_FEATURES);
+        ElasticNetLinearRegOptimizer optimizer = problem.optimizer(linearRegression, 0.01, 0.8);
+        List<Vector> solutions = optimizer.optimizePath(new double[]{0.2, 0.1, 0.05, 0.01});
+        assertEquals(4, solutions.size());
+        double[] regularizations = {0.2, 0.1, 0.05, 0.01};
+        for (int l=0;l<regularizations.length;l++){
+            double[] expected = problem.naive(regularizations[l], 0.8);
+            for (int p=0;p<=NUM_FEATURES;p++){
+                assertEquals(expected[p], solutions.get(l).get(p), 1e-6);
+            }
+        }
+        // all zeros at the max regularization
+        LinearRegression empty = new LinearRegression(NUM_FEATURES);
+        ElasticNetLinearRegOptimizer maxOptimizer = problem.optimizer(empty, 0, 0.8);
+        maxOptimizer.setRegularization(maxOptimizer.getMaxRegularization()*1.0001);
+        maxOptimizer.optimize();
+        assertEquals(0, empty.getWeights().getWeightsWithoutBias().norm(1), 0);
+    }
+
+    private static void check(double regularization, double l1Ratio){
+        Problem problem = new Problem(new Random(0));
+        LinearRegression linearRegression = new LinearRegression(NUM_FEATURES);
+        problem.optimizer(linearRegression, regularization, l1Ratio).optimize();
+        Vector weights = linearRegression.getWeights().getWeights();
+        double[] expected = problem.naive(regularization, l1Ratio);
+        int numNonZeros = 0;
+        for (int p=0;p<=NUM_FEATURES;p++){
+            assertEquals(expected[p], weights.get(p), 1e-6);
+            if (p>0 && weights.get(p)!=0){
+                numNonZeros += 1;
+            }
+        }
+        if (l1Ratio>0){
+            // some features are screened out, and some are not
+            assertTrue(numNonZeros>0 && numNonZeros<NUM_FEATURES);
+        }
+
+        // KKT: sum_i w_i x_ij r_i / W = regularization*((1-l1Ratio)*b_j + l1Ratio*s_j), s_j in sign(b_j)
+        double[] residuals = problem.residuals(weights);
+        double sumWeights = 0;
+        double residualSum = 0;
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            sumWeights += problem.instanceWeights[i];
+            residualSum += problem.instanceWeights[i]*residuals[i];
+        }
+        assertEquals(0, residualSum/sumWeights, 1e-6);
+        for (int j=0;j<NUM_FEATURES;j++){
+            double correlation = 0;
+            for (int i=0;i<NUM_DATA_POINTS;i++){
+                correlation += problem.instanceWeights[i]*problem.dataSet.getRow(i).get(j)*residuals[i];
+            }
+            double gradient = correlation/sumWeights - regularization*(1-l1Ratio)*weights.get(j+1);
+            double l1 = regularization*l1Ratio;
+            if (weights.get(j+1)==0){
+                assertTrue(Math.abs(gradient)<=l1+1e-6);
+            } else {
+                assertEquals(l1*Math.signum(weights.get(j+1)), gradient, 1e-6);
+            }
+        }
+    }
+
+    private static class Problem {
+        int numDataPoints;
+        int numFeatures;
+        DataSet dataSet;
+        double[] labels;
+        double[] instanceWeights;
+
+        Problem(int numDataPoints, int numFeatures) {
+            this.numDataPoints = numDataPoints;
+            this.numFeatures = numFeatures;
+            dataSet = DataSetBuilder.getBuilder().numDataPoints(numDataPoints).numFeatures(numFeatures)
+                    .density(Density.SPARSE_RANDOM).build();
+            labels = new double[numDataPoints];
+            instanceWeights = new double[numDataPoints];
+        }
+
+        Problem(Random random) {
+            this(NUM_DATA_POINTS, NUM_FEATURES);
+            for (int i=0;i<NUM_DATA_POINTS;i++){
+                for (int j=0;j<NUM_FEATURES;j++){
+                    if (random.nextDouble()<0.2){
+                        dataSet.setFeatureValue(i,j,random.nextGaussian());
+                    }
+                }
+                Vector row = dataSet.getRow(i);
+                labels[i] = 1 + 2*row.get(0) - 1.5*row.get(1) + row.get(2) + random.nextGaussian()*0.3;
+                instanceWeights[i] = random.nextDouble()<0.1 ? 0 : random.nextDouble()+0.5;
+            }
+        }
+
+        ElasticNetLinearRegOptimizer optimizer(LinearRegression linearRegression, double regularization, double l1Ratio){
+            ElasticNetLinearRegOptimizer optimizer = new ElasticNetLinearRegOptimizer(linearRegression, dataSet, labels,
+                    instanceWeights);
+            optimizer.setRegularization(regularization);
+            optimizer.setL1Ratio(l1Ratio);
+            optimizer.getTerminator().setRelativeEpsilon(1e-12).setAbsoluteEpsilon(1e-12);
+            return optimizer;
+        }
+
+        double[] residuals(Vector weights){
+            double[] residuals = new double[numDataPoints];
+            for (int i=0;i<numDataPoints;i++){
+                double score = weights.get(0);
+                for (int j=0;j<numFeatures;j++){
+                    score += weights.get(j+1)*dataSet.getRow(i).get(j);
+                }
+                residuals[i] = labels[i] - score;
+            }
+            return residuals;
+        }
+
+        /**
+         * cyclic coordinate descent over all features on dense arrays, bias first
+         */
+        double[] naive(double regularization, double l1Ratio){
+            double[][] x = new double[numDataPoints][numFeatures];
+            double sumWeights = 0;
+            for (int i=0;i<numDataPoints;i++){
+                for (int j=0;j<numFeatures;j++){
+                    x[i][j] = dataSet.getRow(i).get(j);
+                }
+                sumWeights += instanceWeights[i];
+            }
+            double[] weights = new double[numFeatures+1];
+            double[] residuals = labels.clone();
+            for (int iteration=0;iteration<2000;iteration++){
+                double residualSum = 0;
+                for (int i=0;i<numDataPoints;i++){
+                    residualSum += instanceWeights[i]*residuals[i];
+                }
+                double biasChange = residualSum/sumWeights;
+                weights[0] += biasChange;
+                for (int i=0;i<numDataPoints;i++){
+                    residuals[i] -= biasChange;
+                }
+                for (int j=0;j<numFeatures;j++){
+                    double fit = 0;
+                    double squareSum = 0;
+                    for (int i=0;i<numDataPoints;i++){
+                        fit += instanceWeights[i]*x[i][j]*(residuals[i] + weights[j+1]*x[i][j]);
+                        squareSum += instanceWeights[i]*x[i][j]*x[i][j];
+                    }
+                    fit /= sumWeights;
+                    double threshold = regularization*l1Ratio;
+                    double numerator = Math.signum(fit)*Math.max(0, Math.abs(fit)-threshold);
+                    double denominator = squareSum/sumWeights + regularization*(1-l1Ratio);
+                    double newWeight = denominator==0 ? 0 : numerator/denominator;
+                    for (int i=0;i<numDataPoints;i++){
+                        residuals[i] -= (newWeight - weights[j+1])*x[i][j];
+                    }
+                    weights[j+1] = newWeight;
+                }
+            }
+            return weights;
+        }
+    }
+}
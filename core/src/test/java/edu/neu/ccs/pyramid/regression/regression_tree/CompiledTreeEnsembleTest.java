@@ -0,0 +1,156 @@
+package edu.neu.ccs.pyramid.regression.regression_tree;
+
+import edu.neu.ccs.pyramid.classification.lkboost.LKBoost;
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.regression.ConstantRegressor;
+import edu.neu.ccs.pyramid.util.ArgMax;
+import edu.neu.ccs.pyramid.util.MathUtil;
+import org.apache.mahout.math.Vector;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * compiled ensembles against RegressionTree.predict, on data with missing values
+ */
+public class CompiledTreeEnsembleTest {
+    private static final int NUM_DATA_POINTS = 500;
+    private static final int NUM_FEATURES = 8;
+    private static final int NUM_CLASSES = 3;
+
+    @Test
+    public void sameScores() throws Exception {
+        Random random = new Random(0);
+        DataSet dataSet = dataSet(random);
+        LKBoost lkBoost = lkBoost(dataSet, random);
+        CompiledTreeEnsemble compiled = lkBoost.compile();
+        assertEquals(NUM_CLASSES*5, compiled.getNumTrees());
+        CompiledTreeEnsemble deserialized = copy(compiled);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            Vector row = dataSet.getRow(i);
+            // the ensembles, regressor by regressor
+            double[] expected = lkBoost.scores(row);
+            assertArrayEquals(expected, compiled.scores(row), 1e-12);
+            assertArrayEquals(expected, lkBoost.predictClassScores(row), 1e-12);
+
+            double[] dense = new double[NUM_FEATURES];
+            List<Integer> indices = new ArrayList<>();
+            List<Double> values = new ArrayList<>();
+            for (Vector.Element element: row.nonZeroes()){
+                dense[element.index()] = element.get();
+                indices.add(element.index());
+                values.add(element.get());
+            }
+            double[] scores = new double[NUM_CLASSES];
+            compiled.scores(dense, scores);
+            assertArrayEquals(expected, scores, 1e-12);
+
+            int[] sparseIndices = indices.stream().mapToInt(Integer::intValue).toArray();
+            double[] sparseValues = values.stream().mapToDouble(Double::doubleValue).toArray();
+            compiled.scores(sparseIndices, sparseValues, scores);
+            assertArrayEquals(expected, scores, 1e-12);
+            // the per thread buffer is rebuilt after deserialization
+            deserialized.scores(sparseIndices, sparseValues, scores);
+            assertArrayEquals(expected, scores, 1e-12);
+        }
+    }
+
+    @Test
+    public void sameBatchPredictions() {
+        Random random = new Random(1);
+        DataSet dataSet = dataSet(random);
+        LKBoost lkBoost = lkBoost(dataSet, random);
+        double[][] probs = new double[NUM_DATA_POINTS][NUM_CLASSES];
+        lkBoost.predictClassProbs(dataSet, probs);
+        int[] predictions = lkBoost.predict(dataSet);
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            double[] scores = lkBoost.scores(dataSet.getRow(i));
+            double logDenominator = MathUtil.logSumExp(scores);
+            for (int k=0;k<NUM_CLASSES;k++){
+                assertEquals(Math.exp(scores[k]-logDenominator), probs[i][k], 1e-12);
+            }
+            assertEquals(ArgMax.argMax(scores), predictions[i]);
+            assertEquals(lkBoost.predict(dataSet.getRow(i)), predictions[i]);
+        }
+    }
+
+    /**
+     * the compiled trees are reused until a regressor is added, also after deserialization
+     */
+    @Test
+    public void compiledIsCached() throws Exception {
+        Random random = new Random(2);
+        DataSet dataSet = dataSet(random);
+        LKBoost lkBoost = lkBoost(dataSet, random);
+        CompiledTreeEnsemble compiled = lkBoost.compile();
+        assertSame(compiled, lkBoost.compile());
+        lkBoost.predictClassScores(dataSet.getRow(0));
+        assertSame(compiled, lkBoost.compile());
+
+        lkBoost.getEnsemble(1).add(new ConstantRegressor(2.5));
+        CompiledTreeEnsemble added = lkBoost.compile();
+        assertNotSame(compiled, added);
+        assertEquals(compiled.score(dataSet.getRow(0), 1)+2.5, added.score(dataSet.getRow(0), 1), 1e-12);
+
+        LKBoost deserialized = copy(lkBoost);
+        deserialized.getEnsemble(0).add(new ConstantRegressor(-1));
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            assertArrayEquals(deserialized.scores(dataSet.getRow(i)), deserialized.predictClassScores(dataSet.getRow(i)), 1e-12);
+        }
+    }
+
+    private static LKBoost lkBoost(DataSet dataSet, Random random){
+        LKBoost lkBoost = new LKBoost(NUM_CLASSES);
+        RegTreeConfig regTreeConfig = new RegTreeConfig().setMaxNumLeaves(6).setMinDataPerLeaf(5);
+        for (int k=0;k<NUM_CLASSES;k++){
+            lkBoost.getEnsemble(k).add(new ConstantRegressor(random.nextGaussian()));
+            for (int t=0;t<5;t++){
+                double[] labels = new double[NUM_DATA_POINTS];
+                int feature = random.nextInt(NUM_FEATURES);
+                for (int i=0;i<NUM_DATA_POINTS;i++){
+                    double value = dataSet.getRow(i).get(feature);
+                    labels[i] = (Double.isNaN(value)? 0: value) + random.nextGaussian()*0.5;
+                }
+                lkBoost.getEnsemble(k).add(RegTreeTrainer.fit(regTreeConfig, dataSet, labels));
+            }
+        }
+        return lkBoost;
+    }
+
+    private static DataSet dataSet(Random random){
+        DataSet dataSet = DataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .density(Density.SPARSE_RANDOM).missingValue(true).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                double u = random.nextDouble();
+                if (u<0.1){
+                    dataSet.setFeatureValue(i,j,Double.NaN);
+                } else if (u<0.6){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+        }
+        return dataSet;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T copy(T object) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream output = new ObjectOutputStream(bytes)){
+            output.writeObject(object);
+        }
+        try (ObjectInputStream input = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))){
+            return (T) input.readObject();
+        }
+    }
+}
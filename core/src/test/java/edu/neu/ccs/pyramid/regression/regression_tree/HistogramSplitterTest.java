@@ -0,0 +1,192 @@
+package edu.neu.ccs.pyramid.regression.regression_tree;
+
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.Density;
+import edu.neu.ccs.pyramid.eval.MSE;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * histogram mode vs interval splitter on synthetic sparse data with missing values,
+ * and row built and subtracted histograms vs column built ones
+ */
+public class HistogramSplitterTest {
+    private static final int NUM_DATA_POINTS = 2000;
+    private static final int NUM_FEATURES = 10;
+
+    @Test
+    public void sameRootSplit() {
+        Random random = new Random(0);
+        DataSet dataSet = dataSet(random);
+        double[] labels = labels(dataSet, random);
+        // the binning matches the interval splitter at the root
+        RegTreeConfig stumpConfig = new RegTreeConfig().setMaxNumLeaves(2).setMinDataPerLeaf(5);
+        RegressionTree stump = RegTreeTrainer.fit(stumpConfig,dataSet,labels);
+        RegressionTree histogramStump = histogramTree(new RegTreeConfig().setMaxNumLeaves(2).setMinDataPerLeaf(5),
+                dataSet,labels);
+        assertEquals(3, stump.getRoot().getFeatureIndex());
+        assertEquals(stump.getRoot().getFeatureIndex(), histogramStump.getRoot().getFeatureIndex());
+        assertEquals(stump.getRoot().getThreshold(), histogramStump.getRoot().getThreshold(), 1e-12);
+    }
+
+    @Test
+    public void similarMSE() {
+        Random random = new Random(1);
+        DataSet dataSet = dataSet(random);
+        double[] labels = labels(dataSet, random);
+        RegressionTree tree = RegTreeTrainer.fit(new RegTreeConfig().setMaxNumLeaves(20).setMinDataPerLeaf(5),
+                dataSet,labels);
+        RegressionTree histogramTree = histogramTree(new RegTreeConfig().setMaxNumLeaves(20).setMinDataPerLeaf(5),
+                dataSet,labels);
+        double mse = mse(tree, dataSet, labels);
+        double histogramMSE = mse(histogramTree, dataSet, labels);
+        assertEquals(mse, histogramMSE, 0.05*mse);
+    }
+
+    @Test
+    public void rowsSameAsColumns() {
+        Random random = new Random(2);
+        // enough rows for several blocks in parallel
+        DataSet dataSet = dataSet(random, 60000);
+        double[] labels = labels(dataSet, random);
+        BinnedFeatures binnedFeatures = BinnedFeatures.build(dataSet, 50);
+        RowPartition partition = new RowPartition(weights(random, dataSet.getNumDataPoints()));
+        RowPartition.Membership[] children = partition.split(partition.root(), dataSet.getColumn(3), 0.2, 0.3, 0.7);
+        // fractional data points from the missing values of the first split
+        RowPartition.Membership[] grandChildren = partition.split(children[0], dataSet.getColumn(5), -0.1, 0.6, 0.4);
+        for (RowPartition.Membership membership: new RowPartition.Membership[]{children[0], children[1], grandChildren[1]}){
+            Histogram columns = columnHistogram(binnedFeatures, labels, partition, membership);
+            for (boolean parallel: new boolean[]{false, true}){
+                Histogram rows = Histogram.build(binnedFeatures, labels, partition, membership, parallel);
+                sameHistogram(columns, rows, 1e-9*columns.getProbabilisticCount());
+            }
+        }
+    }
+
+    /**
+     * bins emptied by the subtraction hold round-off residue, which must not become intervals
+     */
+    @Test
+    public void noIntervalsFromResidue() {
+        Random random = new Random(3);
+        DataSet dataSet = dataSet(random, NUM_DATA_POINTS);
+        double[] labels = labels(dataSet, random);
+        BinnedFeatures binnedFeatures = BinnedFeatures.build(dataSet, 50);
+        RowPartition partition = new RowPartition(weights(random, dataSet.getNumDataPoints()));
+        RowPartition.Membership root = partition.root();
+        Histogram parent = columnHistogram(binnedFeatures, labels, partition, root);
+        // the feature the children are split on has many bins that only one child has
+        RowPartition.Membership[] children = partition.split(root, dataSet.getColumn(3), 0.2, 0.5, 0.5);
+        Histogram left = Histogram.build(binnedFeatures, labels, partition, children[0], false);
+        Histogram right = Histogram.subtract(parent, left, false);
+        Histogram exactRight = columnHistogram(binnedFeatures, labels, partition, children[1]);
+        sameHistogram(exactRight, right, 1e-9*parent.getProbabilisticCount());
+        int numResidues = 0;
+        for (int j=0;j<NUM_FEATURES;j++){
+            double[] counts = right.getCounts(j);
+            double[] exactCounts = exactRight.getCounts(j);
+            List<Interval> intervals = HistogramSplitter.generateIntervals(binnedFeatures, right, j);
+            List<Interval> exactIntervals = HistogramSplitter.generateIntervals(binnedFeatures, exactRight, j);
+            for (int b=0;b<counts.length;b++){
+                if (exactCounts[b]==0 && counts[b]!=0){
+                    numResidues += 1;
+                }
+                assertEquals(exactIntervals.get(b).getProbabilisticCount()>0, intervals.get(b).getProbabilisticCount()>0);
+            }
+        }
+        assertTrue(numResidues>0);
+    }
+
+    /**
+     * the data set overloads would bin the features again for every tree
+     */
+    @Test(expected = IllegalArgumentException.class)
+    public void histogramNeedsBinnedFeatures() {
+        Random random = new Random(3);
+        DataSet dataSet = dataSet(random);
+        RegTreeTrainer.fit(new RegTreeConfig().setHistogram(true),dataSet,labels(dataSet, random));
+    }
+
+    private static RegressionTree histogramTree(RegTreeConfig config, DataSet dataSet, double[] labels){
+        config.setHistogram(true);
+        double[] weights = new double[labels.length];
+        Arrays.fill(weights, 1);
+        return RegTreeTrainer.fit(config,BinnedFeatures.build(dataSet,config.getNumSplitIntervals()),labels,weights,
+                new AverageOutputCalculator());
+    }
+
+    private static Histogram columnHistogram(BinnedFeatures binnedFeatures, double[] labels, RowPartition partition,
+                                             RowPartition.Membership membership){
+        double[] probs = partition.toProbs(membership);
+        Histogram histogram = Histogram.build(binnedFeatures, labels, probs, false);
+        partition.release(membership);
+        return histogram;
+    }
+
+    private static void sameHistogram(Histogram expected, Histogram actual, double delta){
+        assertEquals(expected.getProbabilisticCount(), actual.getProbabilisticCount(), delta);
+        assertEquals(expected.getWeightedLabelSum(), actual.getWeightedLabelSum(), delta);
+        for (int j=0;j<NUM_FEATURES;j++){
+            assertArrayEquals(expected.getCounts(j), actual.getCounts(j), delta);
+            assertArrayEquals(expected.getSums(j), actual.getSums(j), delta);
+            assertEquals(expected.getNanCount(j), actual.getNanCount(j), delta);
+            assertEquals(expected.getNanSum(j), actual.getNanSum(j), delta);
+        }
+    }
+
+    /**
+     * fractional weights, some of them zero
+     */
+    private static double[] weights(Random random, int numDataPoints){
+        double[] weights = new double[numDataPoints];
+        for (int i=0;i<numDataPoints;i++){
+            weights[i] = random.nextDouble()<0.1? 0: random.nextDouble();
+        }
+        return weights;
+    }
+
+    private static DataSet dataSet(Random random){
+        return dataSet(random, NUM_DATA_POINTS);
+    }
+
+    private static DataSet dataSet(Random random, int numDataPoints){
+        DataSet dataSet = DataSetBuilder.getBuilder().numDataPoints(numDataPoints).numFeatures(NUM_FEATURES)
+                .density(Density.SPARSE_RANDOM).missingValue(true).build();
+        for (int i=0;i<numDataPoints;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                double u = random.nextDouble();
+                if (u<0.05){
+                    dataSet.setFeatureValue(i,j,Double.NaN);
+                } else if (u<0.5){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+        }
+        return dataSet;
+    }
+
+    private static double[] labels(DataSet dataSet, Random random){
+        double[] labels = new double[dataSet.getNumDataPoints()];
+        for (int i=0;i<labels.length;i++){
+            labels[i] = dataSet.getRow(i).get(3)>0.2 ? 1 : 0;
+            double value = dataSet.getRow(i).get(5);
+            if (!Double.isNaN(value)){
+                labels[i] += 0.5*value;
+            }
+            labels[i] += random.nextGaussian()*0.1;
+        }
+        return labels;
+    }
+
+    private static double mse(RegressionTree tree, DataSet dataSet, double[] labels){
+        return MSE.mse(labels, IntStream.range(0, dataSet.getNumDataPoints())
+                .mapToDouble(i->tree.predict(dataSet.getRow(i))).toArray());
+    }
+}
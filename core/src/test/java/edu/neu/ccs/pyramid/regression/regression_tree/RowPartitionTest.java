@@ -0,0 +1,83 @@
+package edu.neu.ccs.pyramid.regression.regression_tree;
+
+import edu.neu.ccs.pyramid.dataset.DataSet;
+import edu.neu.ccs.pyramid.dataset.DataSetBuilder;
+import edu.neu.ccs.pyramid.dataset.Density;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * leaf outputs of trees grown on the row partition vs
+ * weighted label averages over the routing probabilities of the grown tree,
+ * which is what the per node probability vectors used to hold
+ */
+public class RowPartitionTest {
+    private static final int NUM_DATA_POINTS = 1000;
+    private static final int NUM_FEATURES = 8;
+
+    @Test
+    public void leafOutputs() {
+        check(new RegTreeConfig().setMaxNumLeaves(15).setMinDataPerLeaf(3), 0);
+    }
+
+    @Test
+    public void leafOutputsHistogram() {
+        check(new RegTreeConfig().setMaxNumLeaves(15).setMinDataPerLeaf(3).setHistogram(true), 1);
+    }
+
+    private static void check(RegTreeConfig config, long seed){
+        Random random = new Random(seed);
+        DataSet dataSet = DataSetBuilder.getBuilder().numDataPoints(NUM_DATA_POINTS).numFeatures(NUM_FEATURES)
+                .density(Density.SPARSE_RANDOM).missingValue(true).build();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            for (int j=0;j<NUM_FEATURES;j++){
+                double u = random.nextDouble();
+                if (u<0.1){
+                    dataSet.setFeatureValue(i,j,Double.NaN);
+                } else if (u<0.6){
+                    dataSet.setFeatureValue(i,j,random.nextGaussian());
+                }
+            }
+        }
+        double[] labels = new double[NUM_DATA_POINTS];
+        double[] weights = new double[NUM_DATA_POINTS];
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            labels[i] = random.nextGaussian();
+            double value = dataSet.getRow(i).get(2);
+            if (!Double.isNaN(value) && value>0){
+                labels[i] += 2;
+            }
+            // some data points are left out
+            weights[i] = random.nextDouble()<0.1 ? 0 : random.nextDouble()+0.5;
+        }
+        RegressionTree tree;
+        if (config.isHistogram()){
+            tree = RegTreeTrainer.fit(config,BinnedFeatures.build(dataSet,config.getNumSplitIntervals()),labels,weights,
+                    new AverageOutputCalculator());
+        } else {
+            tree = RegTreeTrainer.fit(config,dataSet,labels,weights,new AverageOutputCalculator());
+        }
+        List<Node> leaves = tree.getLeaves();
+        assertTrue(leaves.size()>5);
+        for (Node leaf: leaves){
+            double sum = 0;
+            double count = 0;
+            for (int i=0;i<NUM_DATA_POINTS;i++){
+                double prob = weights[i]*tree.probability(dataSet.getRow(i),leaf);
+                sum += prob*labels[i];
+                count += prob;
+            }
+            assertEquals(sum/count, leaf.getValue(), 1e-9);
+        }
+        int[] assignment = tree.getTrainingLeafAssignment();
+        for (int i=0;i<NUM_DATA_POINTS;i++){
+            if (assignment[i]>=0){
+                assertEquals(1, tree.probability(dataSet.getRow(i),leaves.get(assignment[i])), 0);
+            }
+        }
+    }
+}
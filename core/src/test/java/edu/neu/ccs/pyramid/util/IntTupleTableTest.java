@@ -0,0 +1,81 @@
+package edu.neu.ccs.pyramid.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * ids vs a map of boxed tuples
+ */
+public class IntTupleTableTest {
+
+    @Test
+    public void sameIdsAsMap() {
+        Random random = new Random(0);
+        IntTupleTable table = new IntTupleTable(1);
+        Map<List<Integer>,Integer> expected = new HashMap<>();
+        for (int t=0;t<5000;t++){
+            // lengths 0 to 4, including the empty tuple
+            int[] tuple = new int[random.nextInt(5)];
+            for (int i=0;i<tuple.length;i++){
+                tuple[i] = random.nextInt(8) - 2;
+            }
+            int id = table.add(tuple);
+            Integer previous = expected.putIfAbsent(boxed(tuple), id);
+            assertEquals(previous==null? expected.size()-1: previous, id);
+            assertEquals(id, table.getId(tuple));
+        }
+        assertEquals(expected.size(), table.size());
+        for (Map.Entry<List<Integer>,Integer> entry: expected.entrySet()){
+            int id = entry.getValue();
+            assertEquals(entry.getKey(), boxed(table.toArray(id)));
+            assertEquals(entry.getKey().size(), table.getLength(id));
+            for (int i=0;i<table.getLength(id);i++){
+                assertEquals((int) entry.getKey().get(i), table.get(id, i));
+            }
+        }
+        assertEquals(-1, table.getId(new int[]{100}));
+    }
+
+    @Test
+    public void addFromOtherTable() {
+        IntTupleTable table = new IntTupleTable();
+        table.add(new int[]{1, 2});
+        IntTupleTable other = new IntTupleTable();
+        other.add(new int[]{3});
+        other.add(new int[]{1, 2});
+        other.add(new int[]{});
+        assertEquals(1, table.add(other, 0));
+        assertEquals(0, table.add(other, 1));
+        assertEquals(2, table.add(other, 2));
+        assertEquals(3, table.size());
+        assertEquals(1, table.getId(new int[]{3}));
+        assertEquals(2, table.getId(new int[]{}));
+    }
+
+    @Test
+    public void binarySearch() {
+        IntTupleTable table = new IntTupleTable();
+        table.add(new int[]{9, 9, 9});
+        int[] sorted = {1, 4, 6, 10};
+        int id = table.add(sorted);
+        for (int value=0;value<12;value++){
+            assertEquals(Arrays.binarySearch(sorted, value), table.binarySearch(id, value));
+        }
+    }
+
+    private static List<Integer> boxed(int[] tuple){
+        List<Integer> list = new ArrayList<>();
+        for (int value: tuple){
+            list.add(value);
+        }
+        return list;
+    }
+}